@@ -21,7 +21,6 @@ import java.io.IOException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
@@ -39,14 +38,15 @@ public class WordCount extends Configured implements Tool {
     public static class WordSplittingMapper extends Mapper<LongWritable, Text, Text, LongWritable> {
 
         private static final LongWritable ONE  = new LongWritable(1);
-        private static final Text         WORD = new Text();
+        // Not static: the local job runner runs several mappers in the same JVM.
+        private final Text         text = new Text();
 
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
             String[] words = value.toString().split(" ");
             for (String word : words) {
-                WordSplittingMapper.WORD.set(word);
-                context.write(WordSplittingMapper.WORD, ONE);
+                text.set(word);
+                context.write(text, ONE);
             }
         }
     }
@@ -71,18 +71,25 @@ public class WordCount extends Configured implements Tool {
         }
 
         job.setInputFormatClass(TextInputFormat.class);
+        configureJob(job);
 
+        return (job.waitForCompletion(true) ? 1 : 0);
+
+    }
+
+    /**
+     * Set the mapper, combiner, reducer and output of the word count on the job.
+     * The input (format and paths) and the output path are left to the caller.
+     */
+    public static void configureJob(Job job) {
         job.setMapperClass(WordSplittingMapper.class);
         job.setCombinerClass(LongSumReducer.class);
         job.setReducerClass(LongSumReducer.class);
 
         job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(IntWritable.class);
+        job.setOutputValueClass(LongWritable.class);
 
         job.setOutputFormatClass(TextOutputFormat.class);
-
-        return (job.waitForCompletion(true) ? 1 : 0);
-
     }
 
     public static void main(String[] args) throws Exception {
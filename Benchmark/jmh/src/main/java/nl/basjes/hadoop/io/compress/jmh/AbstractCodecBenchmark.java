@@ -0,0 +1,121 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress.jmh;
+
+import java.io.File;
+import java.io.IOException;
+
+import nl.basjes.hadoop.io.compress.SplittableGzipCodec;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The file and the codec that all benchmarks share.
+ * The codec is configured in {@link #configure(Configuration)}.
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractCodecBenchmark {
+
+  @Param({"LOG_LINES", "RANDOM_TEXT", "INCOMPRESSIBLE"})
+  public Corpus corpus;
+
+  @Param({"64"})
+  public int uncompressedMiB;
+
+  protected FileSystem fs;
+  protected Path path;
+  protected long length;
+  protected SplittableGzipCodec codec;
+  private Decompressor decompressor;
+
+  @Setup(Level.Trial)
+  public void setupCodec() throws IOException {
+    final File file = corpus.getFile(uncompressedMiB);
+    final Configuration conf = new Configuration();
+    // No index or checkpoints of earlier runs may influence the results.
+    conf.setBoolean(SplittableGzipCodec.INDEX_ENABLED_KEY, false);
+    configure(conf);
+    fs = FileSystem.getLocal(conf);
+    path = new Path(file.getAbsolutePath());
+    length = file.length();
+    codec = ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+    decompressor = CodecPool.getDecompressor(codec);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownCodec() {
+    CodecPool.returnDecompressor(decompressor);
+  }
+
+  /**
+   * Change the configuration of the codec.
+   *
+   * @param conf The configuration.
+   */
+  protected void configure(final Configuration conf) {
+  }
+
+  /**
+   * Open a split of the file (with the same decompressor every time).
+   *
+   * @param start The start of the split.
+   * @param end The end of the split.
+   * @return the stream of the split.
+   * @throws IOException In case of an IO problem
+   */
+  protected SplitCompressionInputStream openSplit(final long start,
+      final long end) throws IOException {
+    decompressor.reset();
+    return codec.createInputStream(fs.open(path), decompressor, start, end,
+        SplittableCompressionCodec.READ_MODE.BYBLOCK);
+  }
+
+  /**
+   * Read the split like a record reader does: until the position is beyond
+   * the end of the split.
+   *
+   * @param in The stream.
+   * @param end The end of the split.
+   * @param buffer The buffer to read into.
+   * @return the number of bytes read.
+   * @throws IOException In case of an IO problem
+   */
+  protected static long readSplit(final SplitCompressionInputStream in,
+      final long end, final byte[] buffer) throws IOException {
+    long total = 0;
+    int n;
+    while (in.getPos() <= end
+        && (n = in.read(buffer, 0, buffer.length)) != -1) {
+      total += n;
+    }
+    return total;
+  }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress.jmh;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * The synthetic gzip files the benchmarks run on. They are generated
+ * (deterministically) the first time they are needed and kept in the
+ * directory {@value #DIRECTORY_PROPERTY} (default: a directory in
+ * java.io.tmpdir) so all benchmark runs use exactly the same files.<br>
+ * To generate them in advance:
+ * <pre>
+ * java -cp target/benchmarks.jar nl.basjes.hadoop.io.compress.jmh.Corpus [MiB]
+ * </pre>
+ */
+public enum Corpus {
+
+  /**
+   * Lines of random words from a small vocabulary (compresses about 3:1).
+   */
+  RANDOM_TEXT,
+
+  /**
+   * Very repetitive access log lines (compresses about 10:1).
+   */
+  LOG_LINES,
+
+  /**
+   * Random bytes (does not compress at all; gzip stores it).
+   */
+  INCOMPRESSIBLE;
+
+  public static final String DIRECTORY_PROPERTY = "splittablegzip.jmh.corpus";
+
+  private static final int LINES_PER_WRITE = 1000;
+
+  /**
+   * Get the file (generate it if it does not exist yet).
+   *
+   * @param uncompressedMiB The size of the uncompressed data in MiB.
+   * @return the gzip file.
+   * @throws IOException If the file could not be written.
+   */
+  public synchronized File getFile(final int uncompressedMiB)
+    throws IOException {
+    final File directory = new File(System.getProperty(DIRECTORY_PROPERTY,
+        System.getProperty("java.io.tmpdir") + "/splittablegzip-jmh"));
+    final File file = new File(directory,
+        name().toLowerCase() + "-" + uncompressedMiB + "MiB.gz");
+    if (file.exists()) {
+      return file;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    final File temp = File.createTempFile(file.getName(), ".tmp", directory);
+    try (OutputStream out =
+             new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024)) {
+      generate(out, uncompressedMiB * 1024L * 1024L);
+    }
+    Files.move(temp.toPath(), file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE);
+    return file;
+  }
+
+  private void generate(final OutputStream out, final long size)
+    throws IOException {
+    final Random random = new Random(ordinal());
+    final String[] words = new String[1000];
+    for (int i = 0; i < words.length; i++) {
+      final char[] word = new char[2 + random.nextInt(9)];
+      for (int c = 0; c < word.length; c++) {
+        word[c] = (char) ('a' + random.nextInt(26));
+      }
+      words[i] = new String(word);
+    }
+
+    final StringBuilder lines = new StringBuilder(128 * LINES_PER_WRITE);
+    final byte[] bytes = new byte[64 * 1024];
+    long written = 0;
+    while (written < size) {
+      final byte[] data;
+      if (this == INCOMPRESSIBLE) {
+        random.nextBytes(bytes);
+        data = bytes;
+      } else {
+        lines.setLength(0);
+        for (int line = 0; line < LINES_PER_WRITE; line++) {
+          if (this == LOG_LINES) {
+            appendLogLine(lines, random);
+          } else {
+            appendTextLine(lines, random, words);
+          }
+        }
+        data = lines.toString().getBytes(US_ASCII);
+      }
+      final int length = (int) Math.min(data.length, size - written);
+      out.write(data, 0, length);
+      written += length;
+    }
+  }
+
+  private static void appendLogLine(final StringBuilder line,
+      final Random random) {
+    line.append("192.168.").append(random.nextInt(4)).append('.')
+        .append(random.nextInt(256))
+        .append(" - - [18/Oct/2019:13:").append(10 + random.nextInt(50))
+        .append(':').append(10 + random.nextInt(50))
+        .append(" +0200] \"GET /api/v1/items/").append(random.nextInt(1000))
+        .append(" HTTP/1.1\" 200 ").append(random.nextInt(5000))
+        .append(" \"-\" \"Mozilla/5.0 (X11; Linux x86_64)\"\n");
+  }
+
+  private static void appendTextLine(final StringBuilder line,
+      final Random random, final String[] words) {
+    final int count = 1 + random.nextInt(20);
+    for (int word = 0; word < count; word++) {
+      line.append(words[random.nextInt(words.length)])
+          .append(word + 1 < count ? ' ' : '\n');
+    }
+  }
+
+  public static void main(final String[] args) throws IOException {
+    final int size = args.length == 0 ? 64 : Integer.parseInt(args[0]);
+    for (Corpus corpus : values()) {
+      final File file = corpus.getFile(size);
+      System.out.println(file + " (" + file.length() + " bytes)");
+    }
+  }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nl.basjes.hadoop.io.compress.SplittableGzipCodec;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of creating (and closing) the stream of a split without reading
+ * anything from it (the skip to the start of the split is only done at the
+ * first read).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CreationBenchmark extends AbstractCodecBenchmark {
+
+  @Param({"0", "4194304"})
+  public int readAheadSize;
+
+  @Override
+  protected void configure(final Configuration conf) {
+    conf.setInt(SplittableGzipCodec.READ_AHEAD_SIZE_KEY, readAheadSize);
+  }
+
+  @Benchmark
+  public long createStream() throws IOException {
+    try (SplitCompressionInputStream in = openSplit(length / 2, length)) {
+      return in.getPos();
+    }
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nl.basjes.hadoop.io.compress.ReadSizes;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The time needed to read the entire file as a single split depending on
+ * the read size (the number of compressed bytes given to the decompressor
+ * at a time; 0 = chosen by the codec).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReadBenchmark extends AbstractCodecBenchmark {
+
+  @Param({"0", "4096", "65536", "1048576"})
+  public int readSize;
+
+  private final byte[] buffer = new byte[64 * 1024];
+
+  @Override
+  protected void configure(final Configuration conf) {
+    conf.setInt(ReadSizes.READ_SIZE_KEY, readSize);
+  }
+
+  @Benchmark
+  public long readFile() throws IOException {
+    try (SplitCompressionInputStream in = openSplit(0, length)) {
+      return readSplit(in, length, buffer);
+    }
+  }
+
+}
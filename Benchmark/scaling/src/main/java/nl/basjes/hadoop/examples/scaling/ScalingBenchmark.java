@@ -0,0 +1,219 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.examples.scaling;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.basjes.hadoop.examples.WordCount;
+import nl.basjes.hadoop.io.compress.SplittableGzipCodec;
+import nl.basjes.hadoop.mapreduce.lib.input.SplittableGzipCounters;
+import nl.basjes.hadoop.mapreduce.lib.input.SplittableGzipTextInputFormat;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Runs the {@link WordCount} on a synthetic gzip file (see
+ * {@link SyntheticLogs}) with the local job runner, once for each of a series
+ * of split counts, and writes the wall time, the CPU time and the decompressed
+ * bytes of each run as CSV and JSON. Because every split decompresses (and
+ * throws away) everything before its start the total work grows with the
+ * number of splits; the results show that curve.<br>
+ * <pre>
+ * hadoop jar splittablegzip-scaling-benchmark-job.jar [-D...] &lt;work dir&gt; &lt;results&gt;
+ * </pre>
+ * The file is generated in (and reused from) the work directory, which can be
+ * on any file system (e.g. -fs hdfs://namenode:8020). The results are written
+ * to the local files &lt;results&gt;.csv and &lt;results&gt;.json.<br>
+ * The splits are of equal size unless
+ * -D{@value SplittableGzipTextInputFormat#PLANNER_ENABLED_KEY}=true
+ * is given; all other settings of the codec can be passed with -D as well.
+ */
+public class ScalingBenchmark extends Configured implements Tool {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ScalingBenchmark.class);
+
+  /**
+   * The size of the uncompressed data of the synthetic file in MiB.
+   */
+  public static final String SIZE_KEY =
+      "io.compression.codec.splittablegzip.scaling.size.mib";
+  public static final int SIZE_DEFAULT = 2048;
+
+  /**
+   * The numbers of splits to run the job with (comma separated).
+   */
+  public static final String SPLITS_KEY =
+      "io.compression.codec.splittablegzip.scaling.splits";
+  public static final String SPLITS_DEFAULT = "1,2,4,8,16,32";
+
+  /**
+   * The number of map tasks the local job runner runs at the same time
+   * (0 = the number of processors).
+   */
+  public static final String THREADS_KEY =
+      "io.compression.codec.splittablegzip.scaling.threads";
+  public static final int THREADS_DEFAULT = 0;
+
+  /**
+   * How many times the job is run for each number of splits.
+   */
+  public static final String RUNS_KEY =
+      "io.compression.codec.splittablegzip.scaling.runs";
+  public static final int RUNS_DEFAULT = 1;
+
+  private final List<ScalingResult> results = new ArrayList<>();
+
+  /**
+   * @return The results of the last {@link #run(String[])}.
+   */
+  public List<ScalingResult> getResults() {
+    return results;
+  }
+
+  @Override
+  public int run(final String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: " + getClass().getName()
+          + " [-D...] <work dir> <results>");
+      return 1;
+    }
+
+    final Configuration conf = getConf();
+    final Path workDir = new Path(args[0]);
+    final FileSystem fs = workDir.getFileSystem(conf);
+    final int sizeMiB = conf.getInt(SIZE_KEY, SIZE_DEFAULT);
+    final Path input = SyntheticLogs.getFile(fs, workDir, sizeMiB);
+    final long length = fs.getFileStatus(input).getLen();
+    final long uncompressed = sizeMiB * 1024L * 1024L;
+    LOG.info("Input {}: {} bytes ({} uncompressed)",
+        input, length, uncompressed);
+
+    final int runs = conf.getInt(RUNS_KEY, RUNS_DEFAULT);
+    results.clear();
+    for (String splits : conf.get(SPLITS_KEY, SPLITS_DEFAULT).split(",")) {
+      final int splitCount = Integer.parseInt(splits.trim());
+      for (int run = 1; run <= runs; run++) {
+        final ScalingResult result = runJob(fs, input,
+            new Path(workDir, "output"), length, uncompressed, splitCount,
+            run);
+        LOG.info("Result: {}", result.toCsv());
+        results.add(result);
+      }
+    }
+
+    final StringBuilder csv = new StringBuilder(ScalingResult.csvHeader())
+        .append('\n');
+    final StringBuilder json = new StringBuilder()
+        .append("{\n  \"file\": \"").append(input).append("\",\n")
+        .append("  \"compressedBytes\": ").append(length).append(",\n")
+        .append("  \"uncompressedBytes\": ").append(uncompressed).append(",\n")
+        .append("  \"threads\": ").append(getThreads(conf)).append(",\n")
+        .append("  \"results\": [");
+    for (int i = 0; i < results.size(); i++) {
+      csv.append(results.get(i).toCsv()).append('\n');
+      json.append(i == 0 ? "\n    " : ",\n    ")
+          .append(results.get(i).toJson());
+    }
+    json.append("\n  ]\n}\n");
+    Files.write(Paths.get(args[1] + ".csv"), csv.toString().getBytes(UTF_8));
+    Files.write(Paths.get(args[1] + ".json"),
+        json.toString().getBytes(UTF_8));
+    System.out.print(csv);
+    return 0;
+  }
+
+  private ScalingResult runJob(final FileSystem fs, final Path input,
+      final Path output, final long length, final long uncompressed,
+      final int splitCount, final int run) throws Exception {
+    final Configuration conf = new Configuration(getConf());
+    conf.set("mapreduce.framework.name", "local");
+    conf.setInt("mapreduce.local.map.tasks.maximum", getThreads(conf));
+    conf.set("io.compression.codecs", SplittableGzipCodec.class.getName());
+    final long splitSize = (length + splitCount - 1) / splitCount;
+    conf.setLong(FileInputFormat.SPLIT_MINSIZE, splitSize);
+    conf.setLong(FileInputFormat.SPLIT_MAXSIZE, splitSize);
+
+    final Job job = Job.getInstance(conf);
+    job.setJobName("Wordcount-" + splitCount + "-splits-run-" + run);
+    job.setJarByClass(WordCount.class);
+    WordCount.configureJob(job);
+    job.setInputFormatClass(SplittableGzipTextInputFormat.class);
+    FileInputFormat.setInputPaths(job, input);
+    FileOutputFormat.setOutputPath(job, output);
+    fs.delete(output, true);
+
+    final int splits =
+        new SplittableGzipTextInputFormat().getSplits(job).size();
+    final long startCpu = getProcessCpuNanos();
+    final long startWall = System.nanoTime();
+    if (!job.waitForCompletion(false)) {
+      throw new IOException("The job " + job.getJobName() + " failed");
+    }
+    final long wallMillis = (System.nanoTime() - startWall) / 1000000;
+    final long cpuMillis = (getProcessCpuNanos() - startCpu) / 1000000;
+    fs.delete(output, true);
+
+    final Counters counters = job.getCounters();
+    final long skipped = counters.findCounter(
+        SplittableGzipCounters.SKIPPED_UNCOMPRESSED_BYTES).getValue();
+    final long read = counters.findCounter(
+        SplittableGzipCounters.SPLIT_UNCOMPRESSED_BYTES).getValue();
+    final long skipMillis = counters.findCounter(
+        SplittableGzipCounters.SKIP_TIME_MILLIS).getValue();
+    return new ScalingResult(splitCount, splits, run, splitSize, wallMillis,
+        cpuMillis, skipped, skipped + read, skipMillis, uncompressed);
+  }
+
+  private static int getThreads(final Configuration conf) {
+    final int threads = conf.getInt(THREADS_KEY, THREADS_DEFAULT);
+    return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * The CPU time of the entire JVM: with the local job runner all tasks run
+   * in this JVM, so this includes the map and reduce tasks.
+   */
+  private static long getProcessCpuNanos() {
+    return ((com.sun.management.OperatingSystemMXBean)
+        ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+  }
+
+  public static void main(final String[] args) throws Exception {
+    System.exit(ToolRunner.run(new Configuration(), new ScalingBenchmark(),
+        args));
+  }
+
+}
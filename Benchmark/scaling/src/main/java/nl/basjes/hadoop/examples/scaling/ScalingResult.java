@@ -0,0 +1,142 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.examples.scaling;
+
+import java.util.Locale;
+
+/**
+ * The measurements of one run of the WordCount with a number of splits.
+ */
+public final class ScalingResult {
+
+  private final int splitCount;
+  private final int splits;
+  private final int run;
+  private final long splitSize;
+  private final long wallMillis;
+  private final long cpuMillis;
+  private final long skippedUncompressedBytes;
+  private final long inflatedBytes;
+  private final long skipMillis;
+  private final long uncompressedBytes;
+
+  ScalingResult(final int splitCount, final int splits, final int run,
+      final long splitSize, final long wallMillis, final long cpuMillis,
+      final long skippedUncompressedBytes, final long inflatedBytes,
+      final long skipMillis, final long uncompressedBytes) {
+    this.splitCount = splitCount;
+    this.splits = splits;
+    this.run = run;
+    this.splitSize = splitSize;
+    this.wallMillis = wallMillis;
+    this.cpuMillis = cpuMillis;
+    this.skippedUncompressedBytes = skippedUncompressedBytes;
+    this.inflatedBytes = inflatedBytes;
+    this.skipMillis = skipMillis;
+    this.uncompressedBytes = uncompressedBytes;
+  }
+
+  /**
+   * @return The number of splits that was asked for.
+   */
+  public int getSplitCount() {
+    return splitCount;
+  }
+
+  /**
+   * @return The number of splits (map tasks) the job actually had.
+   */
+  public int getSplits() {
+    return splits;
+  }
+
+  public int getRun() {
+    return run;
+  }
+
+  public long getSplitSize() {
+    return splitSize;
+  }
+
+  public long getWallMillis() {
+    return wallMillis;
+  }
+
+  /**
+   * @return The CPU time of the entire JVM (all tasks and the job itself)
+   * while the job ran.
+   */
+  public long getCpuMillis() {
+    return cpuMillis;
+  }
+
+  /**
+   * @return The decompressed bytes that were thrown away before the start of
+   * the splits.
+   */
+  public long getSkippedUncompressedBytes() {
+    return skippedUncompressedBytes;
+  }
+
+  /**
+   * @return All decompressed bytes (skipped and read) of all splits.
+   */
+  public long getInflatedBytes() {
+    return inflatedBytes;
+  }
+
+  public long getSkipMillis() {
+    return skipMillis;
+  }
+
+  /**
+   * @return How many times the file was decompressed in total (1.0 means
+   * nothing was decompressed twice). With equal splits that all start
+   * decompressing at the start of the file this is about (splits + 1) / 2.
+   */
+  public double getInflationFactor() {
+    return uncompressedBytes == 0
+        ? 0 : (double) inflatedBytes / uncompressedBytes;
+  }
+
+  // -------------------------------------------
+
+  static String csvHeader() {
+    return "splitCount,splits,run,splitSize,wallMillis,cpuMillis,"
+        + "skippedUncompressedBytes,inflatedBytes,inflationFactor,skipMillis";
+  }
+
+  String toCsv() {
+    return String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%d,%.3f,%d",
+        splitCount, splits, run, splitSize, wallMillis, cpuMillis,
+        skippedUncompressedBytes, inflatedBytes, getInflationFactor(),
+        skipMillis);
+  }
+
+  String toJson() {
+    return String.format(Locale.ROOT, "{\"splitCount\": %d, \"splits\": %d, "
+        + "\"run\": %d, \"splitSize\": %d, \"wallMillis\": %d, "
+        + "\"cpuMillis\": %d, \"skippedUncompressedBytes\": %d, "
+        + "\"inflatedBytes\": %d, \"inflationFactor\": %.3f, "
+        + "\"skipMillis\": %d}",
+        splitCount, splits, run, splitSize, wallMillis, cpuMillis,
+        skippedUncompressedBytes, inflatedBytes, getInflationFactor(),
+        skipMillis);
+  }
+
+}
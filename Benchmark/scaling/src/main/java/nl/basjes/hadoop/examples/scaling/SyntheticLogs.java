@@ -0,0 +1,121 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.examples.scaling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * The synthetic gzip file the scaling benchmark runs on: access log lines
+ * with a few words of random text (so the WordCount has something to count).
+ * The file is generated deterministically the first time it is needed and
+ * then reused, so all runs (also of different releases) read exactly the
+ * same data.
+ */
+public final class SyntheticLogs {
+
+  private static final int LINES_PER_WRITE = 1000;
+
+  private static final String[] PATHS = {
+    "index.html", "api/v1/items", "api/v1/users", "static/app.js",
+    "static/style.css", "images/logo.png", "search", "cart", "checkout"
+  };
+
+  private SyntheticLogs() {
+  }
+
+  /**
+   * Get the file (generate it if it does not exist yet).
+   *
+   * @param fs The file system to write the file to.
+   * @param directory The directory of the file.
+   * @param uncompressedMiB The size of the uncompressed data in MiB.
+   * @return the gzip file.
+   * @throws IOException If the file could not be written.
+   */
+  public static Path getFile(final FileSystem fs, final Path directory,
+      final int uncompressedMiB) throws IOException {
+    final Path file =
+        new Path(directory, "access-" + uncompressedMiB + "MiB.log.gz");
+    if (fs.exists(file)) {
+      return file;
+    }
+    final Path temp = new Path(directory, "_" + file.getName() + ".tmp");
+    try (OutputStream out =
+             new GZIPOutputStream(fs.create(temp, true), 64 * 1024)) {
+      generate(out, uncompressedMiB * 1024L * 1024L);
+    }
+    if (!fs.rename(temp, file)) {
+      throw new IOException("Unable to rename " + temp + " to " + file);
+    }
+    return file;
+  }
+
+  private static void generate(final OutputStream out, final long size)
+    throws IOException {
+    final Random random = new Random(42);
+    final String[] words = new String[2000];
+    for (int i = 0; i < words.length; i++) {
+      final char[] word = new char[2 + random.nextInt(9)];
+      for (int c = 0; c < word.length; c++) {
+        word[c] = (char) ('a' + random.nextInt(26));
+      }
+      words[i] = new String(word);
+    }
+
+    final StringBuilder lines = new StringBuilder(160 * LINES_PER_WRITE);
+    long written = 0;
+    while (written < size) {
+      lines.setLength(0);
+      for (int line = 0; line < LINES_PER_WRITE; line++) {
+        appendLine(lines, random, words);
+      }
+      final byte[] data = lines.toString().getBytes(US_ASCII);
+      final int length = (int) Math.min(data.length, size - written);
+      out.write(data, 0, length);
+      written += length;
+    }
+  }
+
+  private static void appendLine(final StringBuilder line,
+      final Random random, final String[] words) {
+    line.append("10.").append(random.nextInt(4)).append('.')
+        .append(random.nextInt(256)).append('.').append(random.nextInt(256))
+        .append(" - - [18/Oct/2019:").append(10 + random.nextInt(14))
+        .append(':').append(10 + random.nextInt(50))
+        .append(':').append(10 + random.nextInt(50))
+        .append(" +0200] \"GET /").append(PATHS[random.nextInt(PATHS.length)])
+        .append('/').append(random.nextInt(10000))
+        .append(" HTTP/1.1\" ").append(random.nextInt(10) == 0 ? 404 : 200)
+        .append(' ').append(random.nextInt(50000)).append(" \"");
+    final int count = 1 + random.nextInt(8);
+    for (int word = 0; word < count; word++) {
+      line.append(words[random.nextInt(words.length)])
+          .append(word + 1 < count ? ' ' : '"');
+    }
+    line.append('\n');
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.examples.scaling;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the scaling benchmark on a small file with the local job runner.
+ */
+public class TestScalingBenchmark {
+
+  @Test
+  public void testScalingCurve() throws Exception {
+    final Configuration conf = new Configuration();
+    conf.set("fs.defaultFS", "file:///");
+    conf.setInt(ScalingBenchmark.SIZE_KEY, 8);
+    conf.set(ScalingBenchmark.SPLITS_KEY, "1,4");
+    conf.setInt(ScalingBenchmark.THREADS_KEY, 2);
+
+    final FileSystem fs = FileSystem.getLocal(conf);
+    final Path root = new Path(new Path(System.getProperty("test.build.data",
+        "/tmp")).makeQualified(fs.getUri(), fs.getWorkingDirectory()),
+        getClass().getSimpleName());
+    fs.delete(root, true);
+    final String results = new Path(root, "results").toUri().getPath();
+
+    final ScalingBenchmark benchmark = new ScalingBenchmark();
+    assertEquals(0, ToolRunner.run(conf, benchmark,
+        new String[]{new Path(root, "work").toString(), results}));
+
+    final List<ScalingResult> curve = benchmark.getResults();
+    assertEquals(2, curve.size());
+    assertEquals(1, curve.get(0).getSplits());
+    assertEquals(4, curve.get(1).getSplits());
+
+    // A single split decompresses the file exactly once, with 4 equal splits
+    // everything before each split is decompressed again.
+    assertEquals(0, curve.get(0).getSkippedUncompressedBytes());
+    assertEquals(1.0, curve.get(0).getInflationFactor(), 0.001);
+    assertTrue(curve.get(1).getSkippedUncompressedBytes() > 0);
+    assertTrue(curve.get(1).getInflationFactor() > 2.0);
+
+    final List<String> csv =
+        Files.readAllLines(Paths.get(results + ".csv"), UTF_8);
+    assertEquals(3, csv.size());
+    assertEquals(ScalingResult.csvHeader(), csv.get(0));
+    final String json =
+        new String(Files.readAllBytes(Paths.get(results + ".json")), UTF_8);
+    assertTrue(json.contains("\"splitCount\": 4"));
+
+    fs.delete(root, true);
+  }
+
+}
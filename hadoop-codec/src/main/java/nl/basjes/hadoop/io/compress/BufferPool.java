@@ -0,0 +1,160 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A JVM wide pool of the byte arrays used by the split streams.<br>
+ * Every split stream needs several large buffers (the compressed input, the
+ * read ahead blocks, the buffers to discard the skipped data into). In a long
+ * lived JVM that reads thousands of splits (i.e. a Spark executor) allocating
+ * them for each split only produces garbage. The streams take their buffers
+ * from this pool and give them back when they are closed.<br>
+ * <br>
+ * The buffers are pooled by their exact size. The total memory of the
+ * buffers that are kept is limited to {@value #POOL_SIZE_KEY} bytes; a buffer
+ * that is given back when the pool is full is left to the garbage collector.
+ */
+public final class BufferPool {
+
+  /**
+   * The maximum memory (in bytes) of the buffers kept in the pool; 0 disables
+   * the pool.
+   */
+  public static final String POOL_SIZE_KEY =
+      "io.compression.codec.splittablegzip.pool.size";
+  public static final long POOL_SIZE_DEFAULT = 64 * 1024 * 1024; // 64 MiB
+
+  private static final BufferPool INSTANCE = new BufferPool(POOL_SIZE_DEFAULT);
+
+  /**
+   * @return the JVM wide pool.
+   */
+  public static BufferPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Get the JVM wide pool.
+   *
+   * @param conf The configuration with the size of the pool.
+   * @return the pool.
+   */
+  public static BufferPool getInstance(final Configuration conf) {
+    INSTANCE.setMaxMemory(conf.getLong(POOL_SIZE_KEY, POOL_SIZE_DEFAULT));
+    return INSTANCE;
+  }
+
+  // -------------------------------------------
+
+  private final Map<Integer, ArrayDeque<byte[]>> buffers = new HashMap<>();
+  private long maxMemory;
+  private long pooledMemory = 0;
+  private long allocated = 0;
+  private long reused = 0;
+
+  BufferPool(final long maxMemory) {
+    this.maxMemory = maxMemory;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Take a buffer from the pool (or allocate a new one). The content of the
+   * buffer is undefined.
+   *
+   * @param size The size of the buffer.
+   * @return the buffer of exactly this size.
+   */
+  public byte[] take(final int size) {
+    synchronized (this) {
+      final ArrayDeque<byte[]> pooled = buffers.get(size);
+      if (pooled != null && !pooled.isEmpty()) {
+        pooledMemory -= size;
+        reused++;
+        return pooled.pop();
+      }
+      allocated++;
+    }
+    return new byte[size];
+  }
+
+  /**
+   * Give a buffer back to the pool. The caller MUST NOT use it afterwards.
+   *
+   * @param buffer The buffer (null is ignored).
+   */
+  public synchronized void give(final byte[] buffer) {
+    if (buffer == null || pooledMemory + buffer.length > maxMemory) {
+      return;
+    }
+    buffers.computeIfAbsent(buffer.length, s -> new ArrayDeque<>())
+        .push(buffer);
+    pooledMemory += buffer.length;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * @return the memory of the buffers in the pool.
+   */
+  public synchronized long getPooledMemory() {
+    return pooledMemory;
+  }
+
+  /**
+   * @return how many buffers had to be allocated.
+   */
+  public synchronized long getAllocated() {
+    return allocated;
+  }
+
+  /**
+   * @return how many buffers were taken from the pool.
+   */
+  public synchronized long getReused() {
+    return reused;
+  }
+
+  public synchronized void clear() {
+    buffers.clear();
+    pooledMemory = 0;
+  }
+
+  synchronized void setMaxMemory(final long newMaxMemory) {
+    maxMemory = newMaxMemory;
+    final Iterator<ArrayDeque<byte[]>> iterator =
+        buffers.values().iterator();
+    while (pooledMemory > maxMemory && iterator.hasNext()) {
+      final ArrayDeque<byte[]> pooled = iterator.next();
+      while (pooledMemory > maxMemory && !pooled.isEmpty()) {
+        pooledMemory -= pooled.pop().length;
+      }
+      if (pooled.isEmpty()) {
+        iterator.remove();
+      }
+    }
+  }
+
+}
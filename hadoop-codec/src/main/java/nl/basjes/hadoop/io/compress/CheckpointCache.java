@@ -0,0 +1,293 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JVM wide cache of the {@link DeflateCheckpoint}s that have been passed
+ * while decompressing gzip files.<br>
+ * When several tasks in the same JVM (i.e. the LocalJobRunner or a Spark
+ * executor) read splits of the same gzip file, each of them normally
+ * decompresses the same prefix of the file. With this cache a stream publishes
+ * the checkpoints it passes and a stream that must skip to the start of its
+ * split continues from the closest checkpoint another stream already
+ * published. This is only possible if the codec knows the file of the split
+ * (so not with the new mapreduce TextInputFormat or the Spark DataFrame
+ * readers).<br>
+ * <br>
+ * The checkpoints are kept per file, identified by the path, length and
+ * modification time. The total (estimated) memory of all checkpoints is
+ * limited to {@value #CACHE_SIZE_KEY} bytes; the least recently used
+ * checkpoints are evicted first.
+ */
+public final class CheckpointCache {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(CheckpointCache.class);
+
+  /**
+   * The maximum memory (in bytes) used by the cache; 0 disables the cache.
+   */
+  public static final String CACHE_SIZE_KEY =
+      "io.compression.codec.splittablegzip.cache.size";
+  public static final long CACHE_SIZE_DEFAULT = 0;
+
+  /**
+   * The (minimal) number of compressed bytes between two published
+   * checkpoints.
+   */
+  public static final String CACHE_INTERVAL_KEY =
+      "io.compression.codec.splittablegzip.cache.interval";
+  public static final long CACHE_INTERVAL_DEFAULT = 4 * 1024 * 1024; // 4 MiB
+
+  // Rough estimate of the memory used by a checkpoint besides the window.
+  private static final int CHECKPOINT_OVERHEAD = 128;
+
+  private static CheckpointCache instance = null;
+
+  /**
+   * The identity of a file: if any of these changes it is a different file.
+   */
+  public static final class FileKey {
+    private final String path;
+    private final long length;
+    private final long modificationTime;
+
+    public FileKey(final FileStatus status) {
+      this(status.getPath().toString(), status.getLen(),
+          status.getModificationTime());
+    }
+
+    public FileKey(final String path, final long length,
+        final long modificationTime) {
+      this.path = path;
+      this.length = length;
+      this.modificationTime = modificationTime;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public long getModificationTime() {
+      return modificationTime;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof FileKey)) {
+        return false;
+      }
+      final FileKey other = (FileKey) o;
+      return length == other.length
+          && modificationTime == other.modificationTime
+          && path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, length, modificationTime);
+    }
+
+    @Override
+    public String toString() {
+      return path + " (" + length + " bytes @ " + modificationTime + ")";
+    }
+  }
+
+  /**
+   * A single checkpoint of a single file (for the LRU administration).
+   */
+  private static final class CheckpointKey {
+    private final FileKey file;
+    private final long bitPosition;
+
+    CheckpointKey(final FileKey file, final long bitPosition) {
+      this.file = file;
+      this.bitPosition = bitPosition;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof CheckpointKey)) {
+        return false;
+      }
+      final CheckpointKey other = (CheckpointKey) o;
+      return bitPosition == other.bitPosition && file.equals(other.file);
+    }
+
+    @Override
+    public int hashCode() {
+      return file.hashCode() * 31 + Long.hashCode(bitPosition);
+    }
+  }
+
+  private final Map<FileKey, TreeMap<Long, DeflateCheckpoint>> files =
+      new HashMap<>();
+  private final LinkedHashMap<CheckpointKey, DeflateCheckpoint> lru =
+      new LinkedHashMap<>(16, 0.75F, true);
+  private long maxMemory;
+  private long usedMemory = 0;
+
+  // -------------------------------------------
+
+  CheckpointCache(final long maxMemory) {
+    this.maxMemory = maxMemory;
+  }
+
+  /**
+   * Get the JVM wide cache.
+   *
+   * @param conf The configuration with the size of the cache.
+   * @return the cache or null if the cache is disabled.
+   */
+  public static synchronized CheckpointCache getInstance(
+      final Configuration conf) {
+    final long maxMemory = conf.getLong(CACHE_SIZE_KEY, CACHE_SIZE_DEFAULT);
+    if (maxMemory <= 0) {
+      return null;
+    }
+    if (instance == null) {
+      LOG.info("Creating a checkpoint cache of {} bytes", maxMemory);
+      instance = new CheckpointCache(maxMemory);
+    } else {
+      instance.setMaxMemory(maxMemory);
+    }
+    return instance;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Store a checkpoint of the file.
+   *
+   * @param file The file.
+   * @param checkpoint The checkpoint.
+   */
+  public synchronized void put(final FileKey file,
+      final DeflateCheckpoint checkpoint) {
+    if (checkpoint.getCompressedOffset() == 0) {
+      return; // Useless
+    }
+    final long bitPosition = getBitPosition(checkpoint);
+    final CheckpointKey key = new CheckpointKey(file, bitPosition);
+    if (lru.containsKey(key)) {
+      lru.get(key); // Only mark it as recently used
+      return;
+    }
+    lru.put(key, checkpoint);
+    files.computeIfAbsent(file, f -> new TreeMap<>())
+        .put(bitPosition, checkpoint);
+    usedMemory += getMemory(checkpoint);
+    evict();
+  }
+
+  /**
+   * Find the checkpoint of the file that is closest to (but not after) the
+   * provided compressed offset.
+   *
+   * @param file The file.
+   * @param maxCompressedOffset The highest acceptable compressed offset.
+   * @return the checkpoint or null if there is none.
+   */
+  public synchronized DeflateCheckpoint get(final FileKey file,
+      final long maxCompressedOffset) {
+    final TreeMap<Long, DeflateCheckpoint> checkpoints = files.get(file);
+    if (checkpoints == null) {
+      return null;
+    }
+    final Map.Entry<Long, DeflateCheckpoint> entry =
+        checkpoints.floorEntry(maxCompressedOffset * 8 + 7);
+    if (entry == null) {
+      return null;
+    }
+    lru.get(new CheckpointKey(file, entry.getKey()));
+    return entry.getValue();
+  }
+
+  /**
+   * @return the number of cached checkpoints.
+   */
+  public synchronized int size() {
+    return lru.size();
+  }
+
+  /**
+   * @return the estimated memory used by the cached checkpoints.
+   */
+  public synchronized long getUsedMemory() {
+    return usedMemory;
+  }
+
+  public synchronized void clear() {
+    files.clear();
+    lru.clear();
+    usedMemory = 0;
+  }
+
+  synchronized void setMaxMemory(final long newMaxMemory) {
+    maxMemory = newMaxMemory;
+    evict();
+  }
+
+  // -------------------------------------------
+
+  private void evict() {
+    final Iterator<Map.Entry<CheckpointKey, DeflateCheckpoint>> iterator =
+        lru.entrySet().iterator();
+    while (usedMemory > maxMemory && iterator.hasNext()) {
+      final Map.Entry<CheckpointKey, DeflateCheckpoint> eldest =
+          iterator.next();
+      iterator.remove();
+      final CheckpointKey key = eldest.getKey();
+      final TreeMap<Long, DeflateCheckpoint> checkpoints = files.get(key.file);
+      checkpoints.remove(key.bitPosition);
+      if (checkpoints.isEmpty()) {
+        files.remove(key.file);
+      }
+      usedMemory -= getMemory(eldest.getValue());
+    }
+  }
+
+  private static long getBitPosition(final DeflateCheckpoint checkpoint) {
+    return checkpoint.getCompressedOffset() * 8 + checkpoint.getBitOffset();
+  }
+
+  private static long getMemory(final DeflateCheckpoint checkpoint) {
+    return checkpoint.getWindow().length + CHECKPOINT_OVERHEAD;
+  }
+
+}
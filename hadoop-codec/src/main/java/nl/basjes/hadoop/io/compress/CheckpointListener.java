@@ -0,0 +1,38 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+
+/**
+ * Receives the checkpoints a {@link CheckpointableGzipDecompressor} passes
+ * while decompressing.
+ */
+public interface CheckpointListener {
+
+  /**
+   * Called by the decompressor each time it passes a checkpoint.
+   * The checkpoint is passed in the same thread that called decompress(),
+   * so keep this fast.
+   *
+   * @param checkpoint The checkpoint that was just passed.
+   * @throws IOException In case of an IO problem
+   */
+  void checkpoint(DeflateCheckpoint checkpoint) throws IOException;
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the {@link DeflateCheckpoint}s that are passed while decompressing
+ * gzip files in a shared directory (on HDFS or any other filesystem).<br>
+ * A split that starts deep into a file decompresses the entire prefix anyway;
+ * with this store it leaves checkpoints behind so that later tasks (i.e.
+ * retried or speculative attempts) and later jobs over the same file can
+ * resume close to the start of their split. It is like a {@link GzipIndex}
+ * that is built as a side effect instead of in a separate pass.<br>
+ * <br>
+ * Each file gets a directory named after the hash of its path, its length and
+ * its modification time; a changed file simply gets a new directory. Every
+ * checkpoint is a separate (single entry) {@link GzipIndex} file named after
+ * its offset. It is written to a temporary file that is then renamed so
+ * concurrent writers and readers never see a partial checkpoint. Nothing is
+ * ever removed; clean the directory with the usual tools.
+ */
+public final class CheckpointStore {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(CheckpointStore.class);
+
+  /**
+   * The directory (URI) where the checkpoints are stored; empty disables the
+   * store.
+   */
+  public static final String STORE_DIR_KEY =
+      "io.compression.codec.splittablegzip.store.dir";
+  public static final String STORE_DIR_DEFAULT = "";
+
+  /**
+   * The (minimal) number of compressed bytes between two stored checkpoints.
+   */
+  public static final String STORE_INTERVAL_KEY =
+      "io.compression.codec.splittablegzip.store.interval";
+  public static final long STORE_INTERVAL_DEFAULT = 64 * 1024 * 1024;
+
+  private static final String EXTENSION = ".ckpt";
+  private static final byte[] NO_FINGERPRINT = new byte[0];
+
+  private final FileSystem fs;
+  private final Path directory;
+  private final long interval;
+
+  // -------------------------------------------
+
+  CheckpointStore(final FileSystem fs, final Path directory,
+      final long interval) {
+    this.fs = fs;
+    this.directory = directory;
+    this.interval = Math.max(1, interval);
+  }
+
+  /**
+   * @param conf The configuration with the directory of the store.
+   * @return the store or null if the store is disabled or unavailable.
+   */
+  public static CheckpointStore getInstance(final Configuration conf) {
+    final String dir = conf.getTrimmed(STORE_DIR_KEY, STORE_DIR_DEFAULT);
+    if (dir.isEmpty()) {
+      return null;
+    }
+    try {
+      final Path directory = new Path(dir);
+      return new CheckpointStore(directory.getFileSystem(conf), directory,
+          conf.getLong(STORE_INTERVAL_KEY, STORE_INTERVAL_DEFAULT));
+    } catch (IOException e) {
+      LOG.warn("Unable to use the checkpoint store {}: {}",
+          dir, e.getMessage());
+      return null;
+    }
+  }
+
+  public long getInterval() {
+    return interval;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * @param file The file.
+   * @return the directory with the checkpoints of the file.
+   */
+  Path getDirectory(final CheckpointCache.FileKey file) {
+    return new Path(directory, DigestUtils.sha256Hex(file.getPath())
+        + '-' + file.getLength() + '-' + file.getModificationTime());
+  }
+
+  private static String getName(final DeflateCheckpoint checkpoint) {
+    return checkpoint.getCompressedOffset() + "-" + checkpoint.getBitOffset()
+        + EXTENSION;
+  }
+
+  /**
+   * @return the compressed offset from the name of a checkpoint file or -1
+   * if this is not a checkpoint file.
+   */
+  private static long getOffset(final String name) {
+    final int dash = name.indexOf('-');
+    if (name.startsWith(".") || dash <= 0 || !name.endsWith(EXTENSION)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(name.substring(0, dash));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Store a checkpoint of the file (unless it is already there).
+   *
+   * @param file The file.
+   * @param checkpoint The checkpoint.
+   * @throws IOException In case of an IO problem
+   */
+  public void put(final CheckpointCache.FileKey file,
+      final DeflateCheckpoint checkpoint) throws IOException {
+    if (checkpoint.getCompressedOffset() == 0) {
+      return; // Useless
+    }
+    final Path parent = getDirectory(file);
+    final Path target = new Path(parent, getName(checkpoint));
+    if (fs.exists(target)) {
+      return;
+    }
+    final GzipIndex index = new GzipIndex(file.getLength(),
+        file.getModificationTime(), NO_FINGERPRINT);
+    index.add(checkpoint);
+    final Path temporary = new Path(parent,
+        "." + target.getName() + "." + UUID.randomUUID() + ".tmp");
+    try (FSDataOutputStream out = fs.create(temporary, true)) {
+      index.write(out);
+    }
+    // If another task stored the same checkpoint first the rename fails.
+    if (!fs.rename(temporary, target)) {
+      fs.delete(temporary, false);
+      return;
+    }
+    LOG.debug("Stored {} of {}", checkpoint, file);
+  }
+
+  /**
+   * Find the stored checkpoint of the file that is closest to (but not
+   * after) the provided compressed offset.
+   *
+   * @param file The file.
+   * @param maxCompressedOffset The highest acceptable compressed offset.
+   * @return the checkpoint or null if there is none.
+   * @throws IOException In case of an IO problem or a corrupt checkpoint.
+   */
+  public DeflateCheckpoint get(final CheckpointCache.FileKey file,
+      final long maxCompressedOffset) throws IOException {
+    final FileStatus[] stored;
+    try {
+      stored = fs.listStatus(getDirectory(file));
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    Path best = null;
+    long bestOffset = 0;
+    for (FileStatus status : stored) {
+      final long offset = getOffset(status.getPath().getName());
+      if (offset > bestOffset && offset <= maxCompressedOffset) {
+        best = status.getPath();
+        bestOffset = offset;
+      }
+    }
+    if (best == null) {
+      return null;
+    }
+    final GzipIndex index;
+    try (FSDataInputStream in = fs.open(best)) {
+      index = GzipIndex.read(in);
+    }
+    if (index.size() != 1 || index.getDataLength() != file.getLength()
+        || index.getDataModificationTime() != file.getModificationTime()) {
+      throw new IOException("The checkpoint " + best + " does not belong to "
+          + file);
+    }
+    return index.getCheckpoint(0);
+  }
+
+  // -------------------------------------------
+
+  /**
+   * @param file The file that is being decompressed.
+   * @param from The compressed offset where the decompression starts (0 or
+   *             the offset of the checkpoint it resumed at).
+   * @return a listener that stores (at most) one checkpoint per interval.
+   * Problems are logged; they never fail the decompression.
+   */
+  public CheckpointListener createListener(
+      final CheckpointCache.FileKey file, final long from) {
+    return new CheckpointListener() {
+      private long lastStored = from;
+
+      @Override
+      public void checkpoint(final DeflateCheckpoint checkpoint) {
+        if (checkpoint.getCompressedOffset() - lastStored < interval) {
+          return;
+        }
+        lastStored = checkpoint.getCompressedOffset();
+        try {
+          put(file, checkpoint);
+        } catch (IOException e) {
+          LOG.warn("Unable to store {} of {}: {}",
+              checkpoint, file, e.getMessage());
+        }
+      }
+    };
+  }
+
+}
@@ -0,0 +1,1045 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * A pure Java gzip {@link Decompressor}.<br>
+ * The zlib based decompressors (both the native one and the one in the JDK)
+ * do not tell where they are in the deflate bit stream and they cannot be
+ * started in the middle of a deflate stream. This one can:
+ * <ul>
+ * <li>While decompressing it reports {@link DeflateCheckpoint}s (the exact bit
+ * position of a deflate block boundary and the 32 KiB window at that point) to
+ * a {@link CheckpointListener}.</li>
+ * <li>It can {@link #resume(DeflateCheckpoint)} decompressing at such a
+ * checkpoint.</li>
+ * </ul>
+ * The input is consumed lazily: a byte is only taken from the input when the
+ * bits are needed to decode the next symbol. As a consequence every byte of
+ * output is produced as soon as the input that describes it has been provided,
+ * just like zlib does. This is important because the
+ * {@link SplittableGzipCodec} relates the compressed and uncompressed
+ * positions in exactly this way.<br>
+ * <br>
+ * Note that {@link #reset()} does NOT reset the input position (it is called
+ * by the {@link org.apache.hadoop.io.compress.DecompressorStream} between the
+ * members of a concatenated gzip file); use {@link #resume(DeflateCheckpoint)}
+ * to reposition the decompressor.
+ */
+public class CheckpointableGzipDecompressor implements Decompressor {
+
+  private static final int GZIP_ID1 = 0x1F;
+  private static final int GZIP_ID2 = 0x8B;
+  private static final int GZIP_DEFLATE_METHOD = 8;
+  private static final int FLAG_HEADER_CRC = 0x02;
+  private static final int FLAG_EXTRA = 0x04;
+  private static final int FLAG_NAME = 0x08;
+  private static final int FLAG_COMMENT = 0x10;
+  private static final int FLAG_RESERVED = 0xE0;
+
+  private static final int WINDOW_SIZE = DeflateCheckpoint.WINDOW_SIZE;
+  private static final int MAX_MATCH = 258;
+
+  // The ring buffer holds the window AND the decompressed data that has not
+  // been handed to the caller yet.
+  private static final int RING_SIZE = 4 * WINDOW_SIZE;
+  private static final int RING_MASK = RING_SIZE - 1;
+  private static final int MAX_PENDING = RING_SIZE - WINDOW_SIZE - MAX_MATCH;
+
+  private static final int MAX_BITS = 15;
+  private static final int LITLEN_ROOT_BITS = 10;
+  private static final int DIST_ROOT_BITS = 8;
+  private static final int CODELEN_ROOT_BITS = 7;
+  private static final int END_OF_BLOCK = 256;
+
+  private static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59,
+    67, 83, 99, 115, 131, 163, 195, 227, 258};
+  private static final int[] LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3,
+    4, 4, 4, 4, 5, 5, 5, 5, 0};
+  private static final int[] DIST_BASE = {
+    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513,
+    769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+  private static final int[] DIST_EXTRA = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8,
+    9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+  private static final int[] CODELEN_ORDER = {
+    16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+  private static final HuffmanTable FIXED_LITLEN;
+  private static final HuffmanTable FIXED_DIST;
+
+  static {
+    final byte[] lengths = new byte[288];
+    Arrays.fill(lengths, 0, 144, (byte) 8);
+    Arrays.fill(lengths, 144, 256, (byte) 9);
+    Arrays.fill(lengths, 256, 280, (byte) 7);
+    Arrays.fill(lengths, 280, 288, (byte) 8);
+    FIXED_LITLEN = new HuffmanTable(LITLEN_ROOT_BITS, 288);
+    FIXED_DIST = new HuffmanTable(DIST_ROOT_BITS, 32);
+    try {
+      FIXED_LITLEN.build(lengths, 0, 288);
+      Arrays.fill(lengths, 0, 32, (byte) 5);
+      FIXED_DIST.build(lengths, 0, 32);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to build the fixed tables", e);
+    }
+  }
+
+  private enum State {
+    HEADER, BLOCK_HEADER, STORED_HEADER, STORED, DYNAMIC_HEADER, CODES,
+    TRAILER, FINISHED
+  }
+
+  private State state;
+  private int headerStep;
+  private int headerFlags;
+  private int extraRemaining;
+  private boolean lastBlock;
+  private int storedRemaining;
+  private int dynamicStep;
+  private int dynamicLitLenCount;
+  private int dynamicDistCount;
+  private int dynamicCodeLenCount;
+  private int dynamicIndex;
+
+  // The input
+  private byte[] input;
+  private int inputOffset;
+  private int inputEnd;
+  private long inputPosition; // The position of input[inputOffset]
+
+  // The bit buffer
+  private long hold;
+  private int bitCount;
+  private int bitsToSkip;
+
+  // The output
+  private final byte[] ring = new byte[RING_SIZE];
+  private long written;     // Number of bytes written into the ring
+  private long delivered;   // Number of bytes handed to the caller
+  private long memberStart; // Value of 'written' at the start of the member
+  private long outputBase;  // Uncompressed offset of written==0 (or UNKNOWN)
+
+  private final HuffmanTable dynamicLitLen =
+      new HuffmanTable(LITLEN_ROOT_BITS, 288);
+  private final HuffmanTable dynamicDist = new HuffmanTable(DIST_ROOT_BITS, 32);
+  private final HuffmanTable codeLengths =
+      new HuffmanTable(CODELEN_ROOT_BITS, 19);
+  private final byte[] lengths = new byte[288 + 32];
+  private HuffmanTable litLenTable;
+  private HuffmanTable distTable;
+
+  private final CRC32 crc = new CRC32();
+  private long memberBytes;
+  private boolean verifyTrailer;
+
+  private CheckpointListener checkpointListener = null;
+
+  // Only used after resumeWithoutWindow: which bytes in the ring are unknown
+  // because they (indirectly) refer to the data before the resume point.
+  private boolean[] unknown = null;
+  private boolean windowUnknown;
+  private long unknownEnd; // Value of 'written' after the last unknown byte
+  private long checkpointInterval = Long.MAX_VALUE;
+  private long lastCheckpoint;
+
+  // -------------------------------------------
+
+  public CheckpointableGzipDecompressor() {
+    resume(DeflateCheckpoint.memberStart(0, 0));
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Report checkpoints to the provided listener.
+   *
+   * @param listener The listener (null to stop reporting).
+   * @param interval The minimal distance (in compressed bytes) between two
+   *                 reported checkpoints.
+   */
+  public void setCheckpointListener(final CheckpointListener listener,
+      final long interval) {
+    this.checkpointListener = listener;
+    this.checkpointInterval = Math.max(1, interval);
+    this.lastCheckpoint = -1;
+  }
+
+  /**
+   * Reposition the decompressor to the provided checkpoint. After this the
+   * next input provided via setInput MUST be the data starting at
+   * {@link DeflateCheckpoint#getCompressedOffset()}.
+   *
+   * @param checkpoint Where to resume.
+   */
+  public final void resume(final DeflateCheckpoint checkpoint) {
+    reset();
+    inputPosition = checkpoint.getCompressedOffset();
+    final byte[] window = checkpoint.getWindow();
+    System.arraycopy(window, 0, ring, 0, window.length);
+    written = window.length;
+    delivered = written;
+    memberStart = checkpoint.isMemberStart() ? written : 0;
+    if (checkpoint.getUncompressedOffset() == DeflateCheckpoint.UNKNOWN_OFFSET) {
+      outputBase = DeflateCheckpoint.UNKNOWN_OFFSET;
+    } else {
+      outputBase = checkpoint.getUncompressedOffset() - written;
+    }
+    if (!checkpoint.isMemberStart()) {
+      state = State.BLOCK_HEADER;
+      bitsToSkip = checkpoint.getBitOffset();
+      // We did not see the start of the member so the CRC is unknown.
+      verifyTrailer = false;
+    }
+  }
+
+  /**
+   * Start decompressing at a deflate block boundary WITHOUT knowing the window.
+   * The bytes that refer back to data before this point are unknown; only
+   * checkpoints where the entire window is known are reported.
+   * The output itself is incomplete and must not be used.
+   *
+   * @param compressedOffset The offset of the byte with the first bit of the
+   *                         block.
+   * @param bitOffset The number of bits (0-7) in that byte to skip.
+   */
+  void resumeWithoutWindow(final long compressedOffset, final int bitOffset) {
+    resume(DeflateCheckpoint.blockBoundary(compressedOffset, bitOffset,
+        DeflateCheckpoint.UNKNOWN_OFFSET, null));
+    if (unknown == null) {
+      unknown = new boolean[RING_SIZE];
+    }
+    windowUnknown = true;
+    unknownEnd = 0;
+  }
+
+  /**
+   * @return The offset in the compressed input of the next bit that will be
+   * used (expressed in bits).
+   */
+  public long getCompressedBitPosition() {
+    return inputPosition * 8 - bitCount + bitsToSkip;
+  }
+
+  /**
+   * @return The offset in the uncompressed data of the next byte that will be
+   * returned (or {@link DeflateCheckpoint#UNKNOWN_OFFSET} if not known).
+   */
+  public long getUncompressedPosition() {
+    if (outputBase == DeflateCheckpoint.UNKNOWN_OFFSET) {
+      return DeflateCheckpoint.UNKNOWN_OFFSET;
+    }
+    return outputBase + delivered;
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public void setInput(final byte[] b, final int off, final int len) {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+    input = b;
+    inputOffset = off;
+    inputEnd = off + len;
+  }
+
+  @Override
+  public boolean needsInput() {
+    return state != State.FINISHED
+        && written == delivered
+        && inputOffset >= inputEnd;
+  }
+
+  @Override
+  public void setDictionary(final byte[] b, final int off, final int len) {
+    throw new UnsupportedOperationException(
+        "The gzip format does not use a preset dictionary.");
+  }
+
+  @Override
+  public boolean needsDictionary() {
+    return false;
+  }
+
+  @Override
+  public boolean finished() {
+    return state == State.FINISHED && written == delivered;
+  }
+
+  @Override
+  public int getRemaining() {
+    return inputEnd - inputOffset;
+  }
+
+  @Override
+  public void reset() {
+    state = State.HEADER;
+    headerStep = 0;
+    lastBlock = false;
+    storedRemaining = 0;
+    dynamicStep = 0;
+    input = null;
+    inputOffset = 0;
+    inputEnd = 0;
+    hold = 0;
+    bitCount = 0;
+    bitsToSkip = 0;
+    delivered = written; // Anything not yet delivered is discarded
+    memberStart = written;
+    crc.reset();
+    memberBytes = 0;
+    verifyTrailer = true;
+    windowUnknown = false; // A new member never refers to a previous one
+  }
+
+  @Override
+  public void end() {
+    // Nothing to release
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public int decompress(final byte[] b, final int off, final int len)
+    throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (written - delivered < len) {
+      inflate(Math.min(len, MAX_PENDING));
+    }
+    final int available = (int) Math.min(written - delivered, len);
+    if (available == 0) {
+      return 0;
+    }
+    final int from = (int) (delivered & RING_MASK);
+    final int first = Math.min(available, RING_SIZE - from);
+    System.arraycopy(ring, from, b, off, first);
+    if (first < available) {
+      System.arraycopy(ring, 0, b, off + first, available - first);
+    }
+    crc.update(b, off, available);
+    memberBytes += available;
+    delivered += available;
+    return available;
+  }
+
+  /**
+   * Decompress up to len bytes and throw them away. Nothing is copied and the
+   * CRC is not calculated, so the trailer of the current member is not
+   * verified.
+   *
+   * @param len The maximum number of bytes to discard.
+   * @return the number of bytes that were discarded (0 if more input is
+   * needed or the member is finished).
+   * @throws IOException In case of corrupt input.
+   */
+  public int discard(final int len) throws IOException {
+    if (len <= 0) {
+      return 0;
+    }
+    if (written - delivered < len) {
+      inflate(Math.min(len, MAX_PENDING));
+    }
+    final int available = (int) Math.min(written - delivered, len);
+    if (available == 0) {
+      return 0;
+    }
+    verifyTrailer = false;
+    memberBytes += available;
+    delivered += available;
+    return available;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Ensure there are at least n bits in the bit buffer.
+   * @return false if there is not enough input available.
+   */
+  private boolean need(final int n) {
+    while (bitCount < n) {
+      if (inputOffset >= inputEnd) {
+        return false;
+      }
+      hold |= (input[inputOffset++] & 0xFFL) << bitCount;
+      bitCount += 8;
+      inputPosition++;
+    }
+    return true;
+  }
+
+  private int bits(final int n) {
+    final int value = (int) (hold & ((1L << n) - 1));
+    hold >>>= n;
+    bitCount -= n;
+    return value;
+  }
+
+  private void fill() {
+    // Fill the bit buffer as far as possible without overflowing it.
+    while (bitCount <= 56 && inputOffset < inputEnd) {
+      hold |= (input[inputOffset++] & 0xFFL) << bitCount;
+      bitCount += 8;
+      inputPosition++;
+    }
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Decompress until at least 'wanted' bytes are available or no further
+   * progress is possible with the current input.
+   */
+  private void inflate(final int wanted) throws IOException {
+    while (written - delivered < wanted) {
+      switch (state) {
+      case HEADER:
+        if (headerStep == 0 && bitCount == 0) {
+          reportCheckpoint(true);
+        }
+        if (!readHeader()) {
+          return;
+        }
+        state = State.BLOCK_HEADER;
+        break;
+
+      case BLOCK_HEADER:
+        if (bitsToSkip > 0) {
+          if (!need(bitsToSkip)) {
+            return;
+          }
+          bits(bitsToSkip);
+          bitsToSkip = 0;
+        }
+        reportCheckpoint(false);
+        if (!need(3)) {
+          return;
+        }
+        lastBlock = bits(1) == 1;
+        switch (bits(2)) {
+        case 0:
+          state = State.STORED_HEADER;
+          break;
+        case 1:
+          litLenTable = FIXED_LITLEN;
+          distTable = FIXED_DIST;
+          state = State.CODES;
+          break;
+        case 2:
+          state = State.DYNAMIC_HEADER;
+          break;
+        default:
+          throw new IOException("Invalid deflate block type");
+        }
+        break;
+
+      case STORED_HEADER:
+        bits(bitCount & 7); // Go to the byte boundary
+        if (!need(32)) {
+          return;
+        }
+        storedRemaining = bits(16);
+        if (storedRemaining != (~bits(16) & 0xFFFF)) {
+          throw new IOException("Invalid stored block lengths");
+        }
+        state = State.STORED;
+        break;
+
+      case STORED:
+        if (!copyStored(wanted)) {
+          return;
+        }
+        break;
+
+      case DYNAMIC_HEADER:
+        if (!readDynamicHeader()) {
+          return;
+        }
+        litLenTable = dynamicLitLen;
+        distTable = dynamicDist;
+        state = State.CODES;
+        break;
+
+      case CODES:
+        if (!decodeCodes(wanted)) {
+          return;
+        }
+        break;
+
+      case TRAILER:
+        if (written != delivered) {
+          return; // The CRC is only complete when everything was delivered.
+        }
+        bits(bitCount & 7); // Go to the byte boundary
+        if (!need(64)) {
+          return;
+        }
+        final long storedCrc = bits(16) | ((long) bits(16) << 16);
+        final long storedSize = bits(16) | ((long) bits(16) << 16);
+        if (verifyTrailer) {
+          if (storedCrc != crc.getValue()) {
+            throw new IOException("Gzip trailer: CRC mismatch");
+          }
+          if (storedSize != (memberBytes & 0xFFFFFFFFL)) {
+            throw new IOException("Gzip trailer: size mismatch");
+          }
+        }
+        state = State.FINISHED;
+        return;
+
+      case FINISHED:
+      default:
+        return;
+      }
+    }
+  }
+
+  // -------------------------------------------
+
+  private void reportCheckpoint(final boolean atMemberStart)
+    throws IOException {
+    if (checkpointListener == null) {
+      return;
+    }
+    if (windowUnknown && written - unknownEnd < WINDOW_SIZE) {
+      return; // Not a usable checkpoint (yet).
+    }
+    final long bitPosition = getCompressedBitPosition();
+    if (lastCheckpoint >= 0
+        && bitPosition - lastCheckpoint < checkpointInterval * 8) {
+      return;
+    }
+    lastCheckpoint = bitPosition;
+    final long uncompressedOffset =
+        outputBase == DeflateCheckpoint.UNKNOWN_OFFSET
+        ? DeflateCheckpoint.UNKNOWN_OFFSET : outputBase + written;
+    if (atMemberStart) {
+      checkpointListener.checkpoint(DeflateCheckpoint
+          .memberStart(bitPosition >>> 3, uncompressedOffset));
+      return;
+    }
+    checkpointListener.checkpoint(DeflateCheckpoint.blockBoundary(
+        bitPosition >>> 3, (int) (bitPosition & 7), uncompressedOffset,
+        getWindow()));
+  }
+
+  /**
+   * @return a copy of the last (up to) 32 KiB that were decompressed in the
+   * current member.
+   */
+  private byte[] getWindow() {
+    final int size = (int) Math.min(WINDOW_SIZE, written - memberStart);
+    final byte[] window = new byte[size];
+    final int from = (int) ((written - size) & RING_MASK);
+    final int first = Math.min(size, RING_SIZE - from);
+    System.arraycopy(ring, from, window, 0, first);
+    System.arraycopy(ring, 0, window, first, size - first);
+    return window;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Reads the gzip header.
+   * @return true if the entire header has been read.
+   */
+  private boolean readHeader() throws IOException {
+    while (true) {
+      switch (headerStep) {
+      case 0: // ID1, ID2, CM, FLG
+        if (!need(32)) {
+          return false;
+        }
+        if (bits(8) != GZIP_ID1 || bits(8) != GZIP_ID2) {
+          throw new IOException("Not in gzip format");
+        }
+        if (bits(8) != GZIP_DEFLATE_METHOD) {
+          throw new IOException("Unsupported gzip compression method");
+        }
+        headerFlags = bits(8);
+        if ((headerFlags & FLAG_RESERVED) != 0) {
+          throw new IOException("Reserved gzip header flags are set");
+        }
+        headerStep = 1;
+        break;
+
+      case 1: // MTIME, XFL, OS
+        if (!need(48)) {
+          return false;
+        }
+        bits(32);
+        bits(16);
+        headerStep = 2;
+        break;
+
+      case 2: // XLEN
+        if ((headerFlags & FLAG_EXTRA) != 0) {
+          if (!need(16)) {
+            return false;
+          }
+          extraRemaining = bits(16);
+        } else {
+          extraRemaining = 0;
+        }
+        headerStep = 3;
+        break;
+
+      case 3: // EXTRA
+        while (extraRemaining > 0) {
+          if (!need(8)) {
+            return false;
+          }
+          bits(8);
+          extraRemaining--;
+        }
+        headerStep = 4;
+        break;
+
+      case 4: // FNAME
+        if (!skipZeroTerminated(FLAG_NAME)) {
+          return false;
+        }
+        headerStep = 5;
+        break;
+
+      case 5: // FCOMMENT
+        if (!skipZeroTerminated(FLAG_COMMENT)) {
+          return false;
+        }
+        headerStep = 6;
+        break;
+
+      case 6: // FHCRC
+        if ((headerFlags & FLAG_HEADER_CRC) != 0) {
+          if (!need(16)) {
+            return false;
+          }
+          bits(16);
+        }
+        headerStep = 0;
+        return true;
+
+      default:
+        throw new IllegalStateException("Invalid header step " + headerStep);
+      }
+    }
+  }
+
+  private boolean skipZeroTerminated(final int flag) {
+    if ((headerFlags & flag) == 0) {
+      return true;
+    }
+    while (need(8)) {
+      if (bits(8) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Reads the code lengths of a dynamic block and builds the tables.
+   * This can be interrupted (and continued) at any point.
+   * @return true if the entire header has been read.
+   */
+  private boolean readDynamicHeader() throws IOException {
+    switch (dynamicStep) {
+    case 0:
+      if (!need(14)) {
+        return false;
+      }
+      dynamicLitLenCount = bits(5) + 257;
+      dynamicDistCount = bits(5) + 1;
+      dynamicCodeLenCount = bits(4) + 4;
+      if (dynamicLitLenCount > 286 || dynamicDistCount > 30) {
+        throw new IOException("Invalid dynamic block: too many length or "
+            + "distance symbols");
+      }
+      Arrays.fill(lengths, 0, 19, (byte) 0);
+      dynamicIndex = 0;
+      dynamicStep = 1;
+      // fall through
+    case 1:
+      while (dynamicIndex < dynamicCodeLenCount) {
+        if (!need(3)) {
+          return false;
+        }
+        lengths[CODELEN_ORDER[dynamicIndex++]] = (byte) bits(3);
+      }
+      codeLengths.build(lengths, 0, 19);
+      dynamicIndex = 0;
+      dynamicStep = 2;
+      // fall through
+    case 2:
+      final int total = dynamicLitLenCount + dynamicDistCount;
+      while (dynamicIndex < total) {
+        fill();
+        // A code length symbol and its extra bits are at most 14 bits.
+        // If they are not all available then fill() has taken all input
+        // so we can simply roll back the bit buffer.
+        final long savedHold = hold;
+        final int savedBitCount = bitCount;
+        final int symbol = decodeSymbol(codeLengths);
+        if (symbol < 0) {
+          return false;
+        }
+        if (symbol < 16) {
+          lengths[dynamicIndex++] = (byte) symbol;
+          continue;
+        }
+        final byte value;
+        final int repeat;
+        switch (symbol) {
+        case 16:
+          if (dynamicIndex == 0) {
+            throw new IOException("Invalid dynamic block: repeat without a "
+                + "previous length");
+          }
+          value = lengths[dynamicIndex - 1];
+          repeat = need(2) ? 3 + bits(2) : -1;
+          break;
+        case 17:
+          value = 0;
+          repeat = need(3) ? 3 + bits(3) : -1;
+          break;
+        default:
+          value = 0;
+          repeat = need(7) ? 11 + bits(7) : -1;
+          break;
+        }
+        if (repeat < 0) {
+          hold = savedHold;
+          bitCount = savedBitCount;
+          return false;
+        }
+        if (dynamicIndex + repeat > total) {
+          throw new IOException("Invalid dynamic block: too many lengths");
+        }
+        Arrays.fill(lengths, dynamicIndex, dynamicIndex + repeat, value);
+        dynamicIndex += repeat;
+      }
+
+      if (lengths[END_OF_BLOCK] == 0) {
+        throw new IOException(
+            "Invalid dynamic block: missing end-of-block code");
+      }
+      dynamicLitLen.build(lengths, 0, dynamicLitLenCount);
+      dynamicDist.build(lengths, dynamicLitLenCount, dynamicDistCount);
+      dynamicStep = 0;
+      return true;
+
+    default:
+      throw new IllegalStateException("Invalid dynamic header step "
+          + dynamicStep);
+    }
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Copy the content of a stored block.
+   * @return false if there is not enough input.
+   */
+  private boolean copyStored(final int wanted) {
+    while (storedRemaining > 0) {
+      final long pending = written - delivered;
+      if (pending >= wanted) {
+        return true;
+      }
+      final int to = (int) (written & RING_MASK);
+      if (windowUnknown) {
+        unknown[to] = false;
+      }
+      if (bitCount >= 8) {
+        ring[to] = (byte) bits(8);
+        written++;
+        storedRemaining--;
+        continue;
+      }
+      if (inputOffset >= inputEnd) {
+        return false;
+      }
+      final int length = (int) Math.min(Math.min(storedRemaining,
+          inputEnd - inputOffset), Math.min(RING_SIZE - to,
+          MAX_PENDING - pending));
+      System.arraycopy(input, inputOffset, ring, to, length);
+      if (windowUnknown) {
+        Arrays.fill(unknown, to, to + length, false);
+      }
+      inputOffset += length;
+      inputPosition += length;
+      written += length;
+      storedRemaining -= length;
+    }
+    state = lastBlock ? State.TRAILER : State.BLOCK_HEADER;
+    return true;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Decode the literal/length and distance codes of a block.
+   * @return false if there is not enough input.
+   */
+  private boolean decodeCodes(final int wanted) throws IOException {
+    final byte[] out = ring;
+    final HuffmanTable litLen = litLenTable;
+    final HuffmanTable dist = distTable;
+
+    while (written - delivered < wanted) {
+      fill();
+      // A complete symbol (with its distance) is at most 48 bits. If they are
+      // not all available then fill() has taken all input so to roll back an
+      // incomplete symbol we only need to restore the bit buffer.
+      final long savedHold = hold;
+      final int savedBitCount = bitCount;
+
+      int symbol = decodeSymbol(litLen);
+      if (symbol < 0) {
+        break;
+      }
+
+      if (symbol < END_OF_BLOCK) {
+        if (windowUnknown) {
+          unknown[(int) (written & RING_MASK)] = false;
+        }
+        out[(int) (written & RING_MASK)] = (byte) symbol;
+        written++;
+        continue;
+      }
+
+      if (symbol == END_OF_BLOCK) {
+        state = lastBlock ? State.TRAILER : State.BLOCK_HEADER;
+        return true;
+      }
+
+      symbol -= 257;
+      if (symbol >= LENGTH_BASE.length) {
+        throw new IOException("Invalid literal/length code");
+      }
+      int extra = LENGTH_EXTRA[symbol];
+      if (!need(extra)) {
+        hold = savedHold;
+        bitCount = savedBitCount;
+        break;
+      }
+      final int length = LENGTH_BASE[symbol] + bits(extra);
+
+      symbol = decodeSymbol(dist);
+      if (symbol < 0) {
+        hold = savedHold;
+        bitCount = savedBitCount;
+        break;
+      }
+      if (symbol >= DIST_BASE.length) {
+        throw new IOException("Invalid distance code");
+      }
+      extra = DIST_EXTRA[symbol];
+      if (!need(extra)) {
+        hold = savedHold;
+        bitCount = savedBitCount;
+        break;
+      }
+      final int distance = DIST_BASE[symbol] + bits(extra);
+      if (windowUnknown) {
+        copyUnknownMatch(out, distance, length);
+        continue;
+      }
+      if (distance > written - memberStart) {
+        throw new IOException("Invalid distance: too far back");
+      }
+
+      copyMatch(out, distance, length);
+    }
+    return false;
+  }
+
+  private void copyMatch(final byte[] out, final int distance,
+      final int length) {
+    final int to = (int) (written & RING_MASK);
+    final int from = (int) ((written - distance) & RING_MASK);
+    if (distance >= length
+        && from + length <= RING_SIZE && to + length <= RING_SIZE) {
+      System.arraycopy(out, from, out, to, length);
+    } else {
+      for (int i = 0; i < length; i++) {
+        out[(to + i) & RING_MASK] = out[(from + i) & RING_MASK];
+      }
+    }
+    written += length;
+  }
+
+  /**
+   * Copy a match while keeping track of which bytes are unknown.
+   */
+  private void copyUnknownMatch(final byte[] out, final int distance,
+      final int length) {
+    for (int i = 0; i < length; i++) {
+      final long source = written - distance;
+      final int to = (int) (written & RING_MASK);
+      final int from = (int) (source & RING_MASK);
+      final boolean isUnknown = source < 0 || unknown[from];
+      out[to] = source < 0 ? 0 : out[from];
+      unknown[to] = isUnknown;
+      written++;
+      if (isUnknown) {
+        unknownEnd = written;
+      }
+    }
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Decode a single Huffman coded symbol using only the bits that are
+   * actually available.
+   * @return the symbol or -1 if more input is needed.
+   */
+  private int decodeSymbol(final HuffmanTable table) throws IOException {
+    if (bitCount < MAX_BITS) {
+      fill();
+    }
+    final int entry = table.table[(int) (hold & table.rootMask)];
+    final int length = entry & 0x0F;
+    if (length != 0) {
+      if (length > bitCount) {
+        return -1;
+      }
+      hold >>>= length;
+      bitCount -= length;
+      return entry >>> 4;
+    }
+
+    // A code longer than the root table (or an invalid one): do it the slow
+    // way, one bit at a time.
+    long bitBuffer = hold;
+    int code = 0;
+    int first = 0;
+    int index = 0;
+    for (int len = 1; len <= MAX_BITS; len++) {
+      if (len > bitCount) {
+        return -1;
+      }
+      code |= (int) (bitBuffer & 1);
+      bitBuffer >>>= 1;
+      final int count = table.count[len];
+      if (code - count < first) {
+        hold >>>= len;
+        bitCount -= len;
+        return table.symbol[index + (code - first)];
+      }
+      index += count;
+      first += count;
+      first <<= 1;
+      code <<= 1;
+    }
+    throw new IOException("Invalid Huffman code");
+  }
+
+  // -------------------------------------------
+
+  /**
+   * A canonical Huffman decoding table: a direct lookup table for the short
+   * codes and the canonical code counts for decoding the longer ones.
+   */
+  private static final class HuffmanTable {
+    private final int[] table;
+    private final int rootBits;
+    private final int rootMask;
+    private final short[] count = new short[MAX_BITS + 1];
+    private final short[] symbol;
+    private final short[] offsets = new short[MAX_BITS + 1];
+
+    HuffmanTable(final int rootBits, final int maxSymbols) {
+      this.rootBits = rootBits;
+      this.rootMask = (1 << rootBits) - 1;
+      this.table = new int[1 << rootBits];
+      this.symbol = new short[maxSymbols];
+    }
+
+    void build(final byte[] lengths, final int offset, final int n)
+      throws IOException {
+      Arrays.fill(count, (short) 0);
+      for (int i = 0; i < n; i++) {
+        count[lengths[offset + i]]++;
+      }
+      count[0] = 0;
+
+      int max = MAX_BITS;
+      while (max > 0 && count[max] == 0) {
+        max--;
+      }
+
+      int left = 1;
+      for (int len = 1; len <= MAX_BITS; len++) {
+        left <<= 1;
+        left -= count[len];
+        if (left < 0) {
+          throw new IOException("Invalid Huffman code: over-subscribed");
+        }
+      }
+      if (left > 0 && max > 1) {
+        throw new IOException("Invalid Huffman code: incomplete");
+      }
+
+      offsets[1] = 0;
+      for (int len = 1; len < MAX_BITS; len++) {
+        offsets[len + 1] = (short) (offsets[len] + count[len]);
+      }
+      for (int i = 0; i < n; i++) {
+        final int len = lengths[offset + i];
+        if (len != 0) {
+          symbol[offsets[len]++] = (short) i;
+        }
+      }
+
+      // The direct lookup table
+      Arrays.fill(table, 0);
+      int code = 0;
+      int index = 0;
+      for (int len = 1; len <= rootBits; len++) {
+        for (int i = 0; i < count[len]; i++) {
+          final int reversed = Integer.reverse(code) >>> (32 - len);
+          final int entry = (symbol[index] << 4) | len;
+          for (int slot = reversed; slot < table.length; slot += 1 << len) {
+            table[slot] = entry;
+          }
+          code++;
+          index++;
+        }
+        code <<= 1;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decompresses on a background thread into a bounded ring of reusable
+ * buffers so decompressing and processing the records overlap.<br>
+ * <br>
+ * Each buffer holds the output of exactly one read of the underlying stream
+ * together with the position (the compressed bytes read) right after that
+ * read. A read from the pipeline never returns data from more than one buffer
+ * and the reported position is that of the buffer the data came from. So the
+ * caller sees exactly the same data with exactly the same positions as it
+ * would when reading the underlying stream directly with reads of the buffer
+ * size, only sooner.
+ */
+final class DecompressionPipeline {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(DecompressionPipeline.class);
+
+  /**
+   * What must be done on the background thread before decompressing.
+   */
+  interface Preparation {
+    void prepare() throws IOException;
+  }
+
+  /**
+   * A buffer in the ring.
+   */
+  private static final class Chunk {
+    private final byte[] data;
+    private int length;
+    private long pos;
+    private IOException error;
+
+    Chunk(final byte[] data) {
+      this.data = data;
+    }
+  }
+
+  private final ThrottleableDecompressorStream in;
+  private final Preparation preparation;
+  private final BlockingQueue<Chunk> free;
+  private final BlockingQueue<Chunk> filled;
+  private final Chunk[] chunks;
+  private final Thread thread;
+
+  private volatile boolean prepared = false;
+  private volatile long producedPos;
+  private volatile boolean closed = false;
+
+  // Only used by the reading thread.
+  private Chunk current = null;
+  private int currentOffset = 0;
+  private long pos;
+  private boolean eof = false;
+
+  // -------------------------------------------
+
+  /**
+   * @param in The stream that is read on the background thread; it must not
+   *           be used by anything else until this pipeline is closed.
+   * @param preparation Is run on the background thread before decompressing
+   *                    (i.e. skipping to the start of the split).
+   * @param buffers The number of buffers in the ring.
+   * @param bufferSize The size of each buffer.
+   * @param name The name of the background thread.
+   */
+  DecompressionPipeline(final ThrottleableDecompressorStream in,
+      final Preparation preparation, final int buffers, final int bufferSize,
+      final String name) {
+    this.in = in;
+    this.preparation = preparation;
+    this.pos = in.getBytesRead();
+    this.producedPos = pos;
+    // One more slot in the filled queue for the final (EOF/error) chunk.
+    free = new ArrayBlockingQueue<>(buffers);
+    filled = new ArrayBlockingQueue<>(buffers + 1);
+    chunks = new Chunk[buffers];
+    for (int i = 0; i < buffers; i++) {
+      chunks[i] = new Chunk(BufferPool.getInstance().take(bufferSize));
+      free.add(chunks[i]);
+    }
+    thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void run() {
+    try {
+      preparation.prepare();
+      prepared = true;
+      producedPos = in.getBytesRead();
+      while (!closed) {
+        final Chunk chunk = free.take();
+        chunk.length = in.read(chunk.data, 0, chunk.data.length);
+        chunk.pos = in.getBytesRead();
+        producedPos = chunk.pos;
+        filled.put(chunk);
+        if (chunk.length == -1) {
+          return;
+        }
+      }
+    } catch (InterruptedException | InterruptedIOException e) {
+      LOG.debug("Stopped decompressing in the background");
+    } catch (IOException | RuntimeException e) {
+      final Chunk failed = new Chunk(new byte[0]);
+      failed.error = e instanceof IOException ? (IOException) e
+          : new IOException(e);
+      filled.add(failed); // There is always room for this one.
+    }
+  }
+
+  // -------------------------------------------
+
+  /**
+   * @return true if the preparation is done.
+   */
+  boolean isPrepared() {
+    return prepared;
+  }
+
+  /**
+   * @return the position directly after the data that was returned last.
+   */
+  long getPos() {
+    return pos;
+  }
+
+  /**
+   * @return the position of the background thread (for progress reporting).
+   */
+  long getProducedPos() {
+    return producedPos;
+  }
+
+  /**
+   * Wait until there is data (or the end of the stream) to read.
+   *
+   * @throws IOException In case of an IO problem on the background thread.
+   */
+  void waitForData() throws IOException {
+    if (eof || (current != null && currentOffset < current.length)) {
+      return;
+    }
+    if (current != null) {
+      free.add(current);
+      current = null;
+    }
+    final Chunk chunk;
+    try {
+      chunk = filled.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the "
+          + "decompressed data");
+    }
+    if (chunk.error != null) {
+      eof = true;
+      throw chunk.error;
+    }
+    pos = chunk.pos;
+    if (chunk.length == -1) {
+      eof = true;
+      return;
+    }
+    current = chunk;
+    currentOffset = 0;
+  }
+
+  int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    waitForData();
+    if (eof) {
+      return -1;
+    }
+    final int bytes = Math.min(len, current.length - currentOffset);
+    System.arraycopy(current.data, currentOffset, b, off, bytes);
+    currentOffset += bytes;
+    return bytes;
+  }
+
+  int read() throws IOException {
+    waitForData();
+    if (eof) {
+      return -1;
+    }
+    return current.data[currentOffset++] & 0xFF;
+  }
+
+  /**
+   * Stop the background thread and wait for it (it may be in the middle of a
+   * read of the underlying stream). The buffers are given back to the
+   * {@link BufferPool}.
+   */
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return; // The thread may still use the buffers.
+    }
+    current = null;
+    eof = true;
+    free.clear();
+    filled.clear();
+    for (Chunk chunk : chunks) {
+      BufferPool.getInstance().give(chunk.data);
+    }
+  }
+
+}
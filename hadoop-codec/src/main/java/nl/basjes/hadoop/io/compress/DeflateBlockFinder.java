@@ -0,0 +1,260 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds a {@link DeflateCheckpoint} in the middle of a gzip file without
+ * decompressing anything before it (in the style of pugz and rapidgzip).<br>
+ * <br>
+ * The compressed data is scanned bit by bit for something that looks like
+ * the header of a deflate block with dynamic Huffman codes. Each candidate is
+ * then trial-decoded with a {@link CheckpointableGzipDecompressor} that does
+ * not know the window: every byte that (indirectly) refers to data before the
+ * candidate is marked as unknown. As soon as a block boundary is reached where
+ * the preceding 32 KiB are all known, this is a real checkpoint: from there on
+ * decompressing gives exactly the same output as decompressing from the start
+ * of the file.<br>
+ * <br>
+ * A false candidate almost always fails within a few bytes with an invalid
+ * code. If no checkpoint is found in the scanned range the caller simply has
+ * to decompress from the start of the file. The data is read in pooled chunks
+ * (of {@value #CHUNK_SIZE} bytes); a trial decode reads the next chunks only if
+ * it gets that far.<br>
+ * <br>
+ * NOTE: This only works for data without long back-references. In log files
+ * each line refers back to the previous lines so the unknown bytes never
+ * disappear. pugz/rapidgzip guess those bytes (which could give wrong records)
+ * or take the window from the previous chunk. Here a known window comes from
+ * the index, the checkpoint cache or the checkpoint store and then the split
+ * simply resumes there: this scan is only done if none of those has one.
+ */
+final class DeflateBlockFinder {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(DeflateBlockFinder.class);
+
+  private static final int DYNAMIC_BLOCK = 2;
+  private static final int MAX_HLIT = 29;
+  private static final int MAX_HDIST = 29;
+  private static final int HEADER_BITS = 3 + 5 + 5 + 4;
+  // A chunk is scanned up to this many bytes before its end; the rest is
+  // scanned at the start of the next chunk (a header is checked in 10 bytes).
+  private static final int OVERLAP = 16;
+  static final int CHUNK_SIZE = 1024 * 1024;
+
+  private final CheckpointableGzipDecompressor decompressor =
+      new CheckpointableGzipDecompressor();
+  private final byte[] output = new byte[64 * 1024];
+  private final int chunkSize;
+  private DeflateCheckpoint found = null;
+  private long maxBitPosition;
+
+  DeflateBlockFinder() {
+    this(CHUNK_SIZE);
+  }
+
+  /**
+   * @param chunkSize The size of the chunks that are read (for testing).
+   */
+  DeflateBlockFinder(final int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Find a checkpoint in a part of a gzip file.
+   *
+   * @param in The gzip file.
+   * @param from The compressed offset where the scan starts.
+   * @param maxCompressedOffset The highest acceptable compressed offset of
+   *                            the checkpoint.
+   * @return the first checkpoint that was found or null if none was found.
+   * @throws IOException if the file could not be read.
+   */
+  DeflateCheckpoint findCheckpoint(final PositionedReadable in,
+      final long from, final long maxCompressedOffset) throws IOException {
+    maxBitPosition = (maxCompressedOffset + 1) * 8;
+    decompressor.setCheckpointListener(this::checkpoint, 1);
+
+    final BufferPool pool = BufferPool.getInstance();
+    final byte[] data = pool.take(chunkSize);
+    final byte[] next = pool.take(chunkSize);
+    try {
+      long candidates = 0;
+      long dataOffset = from;
+      while (dataOffset < maxCompressedOffset) {
+        final int length = read(in, dataOffset, data);
+        final boolean last = length < data.length
+            || dataOffset + length - OVERLAP >= maxCompressedOffset;
+        final long lastBit = last
+            ? Math.min(length, maxCompressedOffset - dataOffset) * 8L
+              - HEADER_BITS
+            : (length - OVERLAP) * 8L;
+        for (long bit = 0; bit < lastBit; bit++) {
+          if (!isDynamicBlockHeader(data, length, bit)) {
+            continue;
+          }
+          candidates++;
+          if (trialDecode(in, data, length, dataOffset, bit, next)) {
+            // This was a real block: any later block is decoded by this too.
+            if (found != null) {
+              LOG.info("Found {} after {} candidates ({} bits scanned)",
+                  found, candidates, (dataOffset - from) * 8 + bit);
+            } else {
+              LOG.info("Found a deflate block at bit {} but the window never "
+                  + "became known", (dataOffset - from) * 8 + bit);
+            }
+            return found;
+          }
+        }
+        if (last) {
+          break;
+        }
+        dataOffset += length - OVERLAP;
+      }
+      LOG.info("No usable checkpoint found after {} candidates", candidates);
+      return null;
+    } finally {
+      pool.give(data);
+      pool.give(next);
+    }
+  }
+
+  private void checkpoint(final DeflateCheckpoint checkpoint) {
+    if (found == null && checkpoint.getCompressedOffset() * 8
+        + checkpoint.getBitOffset() < maxBitPosition) {
+      found = checkpoint;
+    }
+  }
+
+  /**
+   * Decompress from the candidate until a checkpoint with a known window is
+   * found, the decompression fails or we are too far. When the scanned chunk
+   * is used up the following data is read into the next buffer.
+   * @return false if this was not a real deflate block.
+   */
+  private boolean trialDecode(final PositionedReadable in, final byte[] data,
+      final int length, final long dataOffset, final long bit,
+      final byte[] next) throws IOException {
+    final int offset = (int) (bit >>> 3);
+    found = null;
+    decompressor.resumeWithoutWindow(dataOffset + offset, (int) (bit & 7));
+    decompressor.setInput(data, offset, length - offset);
+    byte[] input = data;
+    int inputLength = length;
+    long nextOffset = dataOffset + length;
+    while (found == null
+        && decompressor.getCompressedBitPosition() < maxBitPosition) {
+      try {
+        if (decompressor.finished()) {
+          // The next member starts here (which is reported as a checkpoint).
+          final int remaining = decompressor.getRemaining();
+          decompressor.reset();
+          decompressor.setInput(input, inputLength - remaining, remaining);
+        }
+        if (decompressor.decompress(output, 0, output.length) != 0
+            || !decompressor.needsInput()) {
+          continue;
+        }
+      } catch (IOException | RuntimeException e) {
+        return false;
+      }
+      inputLength = read(in, nextOffset, next);
+      if (inputLength == 0) {
+        break;
+      }
+      input = next;
+      nextOffset += inputLength;
+      decompressor.setInput(next, 0, inputLength);
+    }
+    return true;
+  }
+
+  /**
+   * Read as much as possible (the end of the file may be in the range).
+   * @return the number of bytes that were read.
+   */
+  private static int read(final PositionedReadable in, final long position,
+      final byte[] buffer) throws IOException {
+    int total = 0;
+    while (total < buffer.length) {
+      final int bytesRead = in.read(position + total, buffer, total,
+          buffer.length - total);
+      if (bytesRead <= 0) {
+        break;
+      }
+      total += bytesRead;
+    }
+    return total;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * A quick check if there could be a non-final dynamic block at the bit
+   * position: the block type, the number of codes and a complete code for the
+   * code lengths.
+   */
+  static boolean isDynamicBlockHeader(final byte[] data, final int length,
+      final long bit) {
+    final int header = peekBits(data, length, bit, HEADER_BITS);
+    if ((header & 0x07) != DYNAMIC_BLOCK << 1) { // BFINAL = 0, BTYPE = 2
+      return false;
+    }
+    if (((header >>> 3) & 0x1F) > MAX_HLIT
+        || ((header >>> 8) & 0x1F) > MAX_HDIST) {
+      return false;
+    }
+    final int codeLengthCodes = ((header >>> 13) & 0x0F) + 4;
+    if (bit + HEADER_BITS + 3L * codeLengthCodes > length * 8L) {
+      return false;
+    }
+    // The code length code must be complete (Kraft sum of exactly 1).
+    int kraft = 0;
+    for (int i = 0; i < codeLengthCodes; i++) {
+      final int codeLength =
+          peekBits(data, length, bit + HEADER_BITS + 3L * i, 3);
+      if (codeLength != 0) {
+        kraft += 1 << (7 - codeLength);
+      }
+    }
+    return kraft == 1 << 7;
+  }
+
+  /**
+   * @return the n (at most 25) bits at the bit position (LSB first); bits
+   * beyond the length of the data are 0.
+   */
+  private static int peekBits(final byte[] data, final int length,
+      final long bit, final int n) {
+    int index = (int) (bit >>> 3);
+    long value = 0;
+    for (int shift = 0; shift < n + 8 && index < length; shift += 8) {
+      value |= (data[index++] & 0xFFL) << shift;
+    }
+    return (int) ((value >>> (bit & 7)) & ((1L << n) - 1));
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+/**
+ * A point in a gzip file where decompression can be resumed without
+ * decompressing anything that comes before it.<br>
+ * There are two kinds of checkpoints:
+ * <ul>
+ * <li><b>Member start</b>: the first byte of a gzip member (i.e. the gzip
+ * header). Nothing is needed to resume here.</li>
+ * <li><b>Block boundary</b>: the first bit of a deflate block somewhere inside
+ * a gzip member. To resume here the decompressor needs the (at most) 32 KiB of
+ * uncompressed data that precede this point (the "window") because the
+ * following blocks can refer back into it.</li>
+ * </ul>
+ */
+public final class DeflateCheckpoint {
+
+  /**
+   * The size of the deflate sliding window.
+   */
+  public static final int WINDOW_SIZE = 32 * 1024;
+
+  /**
+   * Indicates the uncompressed offset of a checkpoint is not known.
+   */
+  public static final long UNKNOWN_OFFSET = -1;
+
+  private static final byte[] NO_WINDOW = new byte[0];
+
+  private final long compressedOffset;
+  private final int bitOffset;
+  private final long uncompressedOffset;
+  private final boolean memberStart;
+  private final byte[] window;
+
+  // -------------------------------------------
+
+  private DeflateCheckpoint(final long compressedOffset, final int bitOffset,
+      final long uncompressedOffset, final boolean memberStart,
+      final byte[] window) {
+    if (compressedOffset < 0) {
+      throw new IllegalArgumentException(
+          "The compressed offset cannot be negative: " + compressedOffset);
+    }
+    if (bitOffset < 0 || bitOffset > 7) {
+      throw new IllegalArgumentException(
+          "The bit offset must be in the range [0,7]: " + bitOffset);
+    }
+    if (window.length > WINDOW_SIZE) {
+      throw new IllegalArgumentException(
+          "The window cannot be larger than " + WINDOW_SIZE + " bytes: "
+          + window.length);
+    }
+    this.compressedOffset = compressedOffset;
+    this.bitOffset = bitOffset;
+    this.uncompressedOffset = uncompressedOffset;
+    this.memberStart = memberStart;
+    this.window = window;
+  }
+
+  /**
+   * A checkpoint at the start of a gzip member.
+   *
+   * @param compressedOffset The offset of the first byte of the gzip header.
+   * @param uncompressedOffset The offset in the uncompressed data (or
+   *                           {@link #UNKNOWN_OFFSET}).
+   * @return the checkpoint
+   */
+  public static DeflateCheckpoint memberStart(final long compressedOffset,
+      final long uncompressedOffset) {
+    return new DeflateCheckpoint(compressedOffset, 0, uncompressedOffset, true,
+        NO_WINDOW);
+  }
+
+  /**
+   * A checkpoint at the start of a deflate block.
+   *
+   * @param compressedOffset The offset of the byte that holds the first bit of
+   *                         the block.
+   * @param bitOffset The number of bits (0-7) in that byte that belong to the
+   *                  previous block.
+   * @param uncompressedOffset The offset in the uncompressed data (or
+   *                           {@link #UNKNOWN_OFFSET}).
+   * @param window The (at most 32 KiB) uncompressed data preceding this point
+   *               within the same gzip member. This array is NOT copied.
+   * @return the checkpoint
+   */
+  public static DeflateCheckpoint blockBoundary(final long compressedOffset,
+      final int bitOffset, final long uncompressedOffset, final byte[] window) {
+    return new DeflateCheckpoint(compressedOffset, bitOffset,
+        uncompressedOffset, false, window == null ? NO_WINDOW : window);
+  }
+
+  // -------------------------------------------
+
+  public long getCompressedOffset() {
+    return compressedOffset;
+  }
+
+  public int getBitOffset() {
+    return bitOffset;
+  }
+
+  public long getUncompressedOffset() {
+    return uncompressedOffset;
+  }
+
+  public boolean isMemberStart() {
+    return memberStart;
+  }
+
+  /**
+   * @return the window; do NOT modify the content of this array.
+   */
+  public byte[] getWindow() {
+    return window;
+  }
+
+  @Override
+  public String toString() {
+    return "DeflateCheckpoint{"
+        + (memberStart ? "member start" : "block boundary")
+        + " @ " + compressedOffset + "." + bitOffset
+        + " (uncompressed " + uncompressedOffset + ")"
+        + " window=" + window.length + "}";
+  }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.DirectDecompressor;
+
+/**
+ * A gzip {@link Decompressor} that can also decompress directly from and into
+ * (direct) ByteBuffers.<br>
+ * <br>
+ * The native zlib decompressor of Hadoop copies all input into and all output
+ * out of its own direct buffers. Its {@code ZlibDirectDecompressor} avoids
+ * that but only supports ByteBuffers (so it cannot be used by a normal
+ * {@link org.apache.hadoop.io.compress.DecompressorStream}) and it requires
+ * the native Hadoop library. This one uses the ByteBuffer support of the
+ * {@link Inflater} of the JDK (which uses zlib too): with direct buffers zlib
+ * reads and writes the off-heap memory itself and with arrays it works on the
+ * arrays; in neither case is anything copied.<br>
+ * <br>
+ * Just like zlib all output is produced as soon as the input that describes it
+ * has been provided (which the {@link SplittableGzipCodec} relies on).
+ */
+public class DirectGzipDecompressor implements Decompressor,
+    DirectDecompressor {
+
+  private static final int GZIP_ID1 = 0x1F;
+  private static final int GZIP_ID2 = 0x8B;
+  private static final int GZIP_DEFLATE_METHOD = 8;
+  private static final int FLAG_HEADER_CRC = 0x02;
+  private static final int FLAG_EXTRA = 0x04;
+  private static final int FLAG_NAME = 0x08;
+  private static final int FLAG_COMMENT = 0x10;
+  private static final int FLAG_RESERVED = 0xE0;
+
+  private static final int HEADER_SIZE = 10;
+  private static final int TRAILER_SIZE = 8;
+
+  // Where discarded output goes.
+  private static final int DISCARD_BUFFER_SIZE = 64 * 1024;
+
+  private enum State {
+    HEADER, DEFLATE, TRAILER, FINISHED
+  }
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final Inflater inflater = new Inflater(true);
+  private final CRC32 crc = new CRC32();
+  private ByteBuffer input = EMPTY;
+  private ByteBuffer discardBuffer = null;
+
+  private State state;
+  private int headerStep;
+  private int headerFlags;
+  private int extraRemaining;
+  // The fixed size parts of the header and the trailer.
+  private final byte[] field = new byte[HEADER_SIZE];
+  private int fieldFill;
+  private long memberBytes;
+  private boolean verifyTrailer;
+
+  public DirectGzipDecompressor() {
+    reset();
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public void setInput(final byte[] b, final int off, final int len) {
+    setInput(ByteBuffer.wrap(b, off, len));
+  }
+
+  private void setInput(final ByteBuffer newInput) {
+    input = newInput;
+    if (state == State.DEFLATE) {
+      inflater.setInput(input);
+    }
+  }
+
+  @Override
+  public boolean needsInput() {
+    switch (state) {
+    case DEFLATE:
+      return inflater.needsInput();
+    case FINISHED:
+      return false;
+    default:
+      return !input.hasRemaining();
+    }
+  }
+
+  @Override
+  public void setDictionary(final byte[] b, final int off, final int len) {
+    throw new UnsupportedOperationException(
+        "The gzip format does not use a preset dictionary.");
+  }
+
+  @Override
+  public boolean needsDictionary() {
+    return false;
+  }
+
+  @Override
+  public boolean finished() {
+    return state == State.FINISHED;
+  }
+
+  @Override
+  public int getRemaining() {
+    return input.remaining();
+  }
+
+  @Override
+  public void reset() {
+    inflater.reset();
+    crc.reset();
+    input = EMPTY;
+    state = State.HEADER;
+    headerStep = 0;
+    fieldFill = 0;
+    memberBytes = 0;
+    verifyTrailer = true;
+  }
+
+  @Override
+  public void end() {
+    inflater.end();
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public int decompress(final byte[] b, final int off, final int len)
+    throws IOException {
+    return decompress(ByteBuffer.wrap(b, off, len));
+  }
+
+  /**
+   * Decompress the src into the dst (both are normally direct buffers).
+   * The position of src is moved past the consumed input and the position of
+   * dst past the produced output. When src is the same buffer as the previous
+   * call the input continues where it was.
+   */
+  @Override
+  public void decompress(final ByteBuffer src, final ByteBuffer dst)
+    throws IOException {
+    if (src != input) {
+      setInput(src);
+    }
+    decompress(dst);
+  }
+
+  /**
+   * Decompress into the output buffer.
+   * @return the number of bytes produced (the position of output is moved).
+   * @throws IOException In case of corrupt input.
+   */
+  public int decompress(final ByteBuffer output) throws IOException {
+    while (true) {
+      switch (state) {
+      case HEADER:
+        if (!readHeader()) {
+          return 0;
+        }
+        state = State.DEFLATE;
+        inflater.setInput(input);
+        break;
+
+      case DEFLATE:
+        final int n = inflate(output);
+        if (n > 0) {
+          return n;
+        }
+        if (!inflater.finished()) {
+          return 0; // Needs input (or there is no room for output).
+        }
+        state = State.TRAILER;
+        break;
+
+      case TRAILER:
+        if (!fill(TRAILER_SIZE)) {
+          return 0;
+        }
+        if (verifyTrailer) {
+          if (getInt(0) != crc.getValue()) {
+            throw new IOException("Gzip trailer: CRC mismatch");
+          }
+          if (getInt(4) != (memberBytes & 0xFFFFFFFFL)) {
+            throw new IOException("Gzip trailer: size mismatch");
+          }
+        }
+        state = State.FINISHED;
+        return 0;
+
+      case FINISHED:
+      default:
+        return 0;
+      }
+    }
+  }
+
+  private int inflate(final ByteBuffer output) throws IOException {
+    final int start = output.position();
+    try {
+      inflater.inflate(output);
+    } catch (DataFormatException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    final int n = output.position() - start;
+    if (n > 0 && verifyTrailer) {
+      final ByteBuffer produced = output.duplicate();
+      produced.limit(output.position()).position(start);
+      crc.update(produced);
+    }
+    memberBytes += n;
+    return n;
+  }
+
+  /**
+   * Decompress and throw away up to len bytes of output. No CRC is calculated
+   * so the trailer of the current member is not verified.
+   * @return the number of discarded bytes.
+   * @throws IOException In case of corrupt input.
+   */
+  public int discard(final int len) throws IOException {
+    if (discardBuffer == null) {
+      discardBuffer = ByteBuffer.allocateDirect(DISCARD_BUFFER_SIZE);
+    }
+    verifyTrailer = false;
+    int total = 0;
+    while (total < len) {
+      discardBuffer.clear();
+      discardBuffer.limit(Math.min(DISCARD_BUFFER_SIZE, len - total));
+      final int n = decompress(discardBuffer);
+      if (n == 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Reads the gzip header.
+   * @return true if the entire header has been read.
+   */
+  private boolean readHeader() throws IOException {
+    while (true) {
+      switch (headerStep) {
+      case 0: // ID1, ID2, CM, FLG, MTIME, XFL, OS
+        if (!fill(HEADER_SIZE)) {
+          return false;
+        }
+        if ((field[0] & 0xFF) != GZIP_ID1 || (field[1] & 0xFF) != GZIP_ID2) {
+          throw new IOException("Not in gzip format");
+        }
+        if (field[2] != GZIP_DEFLATE_METHOD) {
+          throw new IOException("Unsupported gzip compression method");
+        }
+        headerFlags = field[3] & 0xFF;
+        if ((headerFlags & FLAG_RESERVED) != 0) {
+          throw new IOException("Reserved gzip header flags are set");
+        }
+        headerStep = 1;
+        break;
+
+      case 1: // XLEN
+        if ((headerFlags & FLAG_EXTRA) != 0) {
+          if (!fill(2)) {
+            return false;
+          }
+          extraRemaining = (field[0] & 0xFF) | (field[1] & 0xFF) << 8;
+        } else {
+          extraRemaining = 0;
+        }
+        headerStep = 2;
+        break;
+
+      case 2: // EXTRA
+        final int skip = Math.min(extraRemaining, input.remaining());
+        input.position(input.position() + skip);
+        extraRemaining -= skip;
+        if (extraRemaining > 0) {
+          return false;
+        }
+        headerStep = 3;
+        break;
+
+      case 3: // FNAME
+        if (!skipZeroTerminated(FLAG_NAME)) {
+          return false;
+        }
+        headerStep = 4;
+        break;
+
+      case 4: // FCOMMENT
+        if (!skipZeroTerminated(FLAG_COMMENT)) {
+          return false;
+        }
+        headerStep = 5;
+        break;
+
+      case 5: // FHCRC
+        if ((headerFlags & FLAG_HEADER_CRC) != 0 && !fill(2)) {
+          return false;
+        }
+        headerStep = 0;
+        return true;
+
+      default:
+        throw new IllegalStateException("Invalid header step " + headerStep);
+      }
+    }
+  }
+
+  private boolean skipZeroTerminated(final int flag) {
+    if ((headerFlags & flag) == 0) {
+      return true;
+    }
+    while (input.hasRemaining()) {
+      if (input.get() == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Collect the next size bytes of the input in field.
+   * @return true if they are all there.
+   */
+  private boolean fill(final int size) {
+    while (fieldFill < size && input.hasRemaining()) {
+      field[fieldFill++] = input.get();
+    }
+    if (fieldFill < size) {
+      return false;
+    }
+    fieldFill = 0;
+    return true;
+  }
+
+  private long getInt(final int offset) {
+    return (field[offset] & 0xFFL)
+        | (field[offset + 1] & 0xFFL) << 8
+        | (field[offset + 2] & 0xFFL) << 16
+        | (field[offset + 3] & 0xFFL) << 24;
+  }
+
+}
@@ -0,0 +1,774 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.util.functional.CallableRaisingIOE;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single sequential decompression of a gzip file whose output is shared by
+ * the streams of several splits of that file in the same JVM (i.e. the tasks
+ * of the LocalJobRunner or the splits a single task reads one after the
+ * other). Without this each split decompresses the file from the start (or
+ * from the closest checkpoint) up to its own start. Only streams of which the
+ * codec knows the file can share a decompression (so not those of the Spark
+ * DataFrame readers).<br>
+ * <br>
+ * The start and end of every split that joins are read boundaries of the
+ * shared decompression: no single read of the compressed data crosses them.
+ * The decompressed data is kept in chunks that each know the compressed
+ * position after the read that produced them. A split stream skips the
+ * chunks that were produced at or before its start and reports the position
+ * of the chunk it is reading. That is exactly what its own
+ * {@link ThrottleableDecompressorStream} with a read boundary would do, so
+ * the records are assigned to the splits in exactly the same way.<br>
+ * <br>
+ * Only a limited number of chunks that a split still has to read are kept;
+ * a split that needs a new chunk beyond that waits (for a while) for the
+ * slower splits. After that the slowest splits are detached: they continue
+ * on their own decompression of the file (from where the shared one
+ * started), so a split that stopped reading (i.e. a killed task) never makes
+ * the buffer grow. The chunks after the last boundary that was passed are
+ * also kept (as long as they fit) so the next split of a task that reads its
+ * splits one after the other can continue where the previous one stopped.
+ * <br>
+ * The compressed data is read and inflated by one split at a time outside
+ * the lock of the source, so the other splits can read the chunks that are
+ * already there in the meantime.<br>
+ * <br>
+ * A split can only join if the shared decompression has not passed its
+ * start (or its start is a boundary that was kept) and its end; otherwise it
+ * simply decompresses on its own. A source without splits is closed after
+ * {@value #IDLE_TIMEOUT_MILLIS} ms.
+ */
+final class FanOutSource {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(FanOutSource.class);
+
+  // The size of the chunks of decompressed data.
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  // How long a split waits for slower splits before detaching them.
+  private static final long BACKPRESSURE_TIMEOUT_MILLIS = 10_000;
+  private static volatile long backpressureTimeoutMillis =
+      BACKPRESSURE_TIMEOUT_MILLIS;
+
+  // How long an unused source is kept (for the next split of the file).
+  static final long IDLE_TIMEOUT_MILLIS = 60_000;
+
+  private static final Map<CheckpointCache.FileKey, FanOutSource> SOURCES =
+      new HashMap<>();
+
+  private static final AtomicLong DETACHED = new AtomicLong();
+
+  private static final ScheduledExecutorService REAPER =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread =
+            new Thread(runnable, "SplittableGzip fan-out reaper");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /**
+   * Decompressed data, where it starts in the output of the source and the
+   * compressed position after it was read.
+   */
+  private static final class Chunk {
+    private final byte[] data;
+    private final int length;
+    private final long offset;
+    private final long pos;
+
+    Chunk(final byte[] data, final int length, final long offset,
+        final long pos) {
+      this.data = data;
+      this.length = length;
+      this.offset = offset;
+      this.pos = pos;
+    }
+  }
+
+  // Returned by next() instead of a chunk. Their position is beyond any
+  // discardUntil so they are never discarded.
+  // The calling split must produce the next chunk (outside the lock).
+  private static final Chunk PRODUCE = new Chunk(null, 0, 0, Long.MAX_VALUE);
+  // The calling split was detached and must continue on its own.
+  private static final Chunk DETACHED_SPLIT =
+      new Chunk(null, 0, 0, Long.MAX_VALUE);
+
+  private final CheckpointCache.FileKey key;
+  private final ThrottleableDecompressorStream stream;
+  private final CallableRaisingIOE<ThrottleableDecompressorStream> opener;
+  private final int maxChunks;
+  private final TreeSet<Long> boundaries = new TreeSet<>();
+  private final List<Consumer> consumers = new ArrayList<>();
+
+  // chunks.get(0) is chunk number firstIndex.
+  private final List<Chunk> chunks = new ArrayList<>();
+  private long firstIndex = 0;
+  // The highest position of a chunk that was dropped.
+  private long droppedPos;
+  // The compressed position and the decompressed bytes after the last chunk.
+  private long pos;
+  private long produced = 0;
+  // A split is reading (and inflating) the next chunk; only that split
+  // uses the stream.
+  private boolean producing = false;
+
+  private boolean eof = false;
+  private IOException failure = null;
+  private boolean closed = false;
+  private long idleSince;
+
+  // -------------------------------------------
+
+  private FanOutSource(final CheckpointCache.FileKey key,
+      final ThrottleableDecompressorStream stream,
+      final CallableRaisingIOE<ThrottleableDecompressorStream> opener,
+      final int maxChunks) {
+    this.key = key;
+    this.stream = stream;
+    this.opener = opener;
+    this.maxChunks = Math.max(1, maxChunks);
+    this.pos = stream.getBytesRead();
+    this.droppedPos = pos;
+    this.idleSince = System.currentTimeMillis();
+  }
+
+  /**
+   * Get a stream for a split that reads from the shared decompression of the
+   * file (which is created if needed).
+   *
+   * @param key The file.
+   * @param in The input stream of the split (it is only closed).
+   * @param start The start of the split.
+   * @param end The end of the split.
+   * @param notBefore Where the split would start decompressing on its own;
+   *                  a source that is not there yet is useless.
+   * @param maxChunks The number of chunks (of 64 KiB decompressed data) that
+   *                  are buffered for the splits.
+   * @param opener Opens the decompression of the file at notBefore (also
+   *               used by the splits that are detached).
+   * @return the stream or null if the split must read on its own.
+   * @throws IOException In case of an IO problem opening a new source.
+   */
+  static ThrottleableDecompressorStream join(
+      final CheckpointCache.FileKey key, final InputStream in,
+      final long start, final long end, final long notBefore,
+      final int maxChunks,
+      final CallableRaisingIOE<ThrottleableDecompressorStream> opener)
+    throws IOException {
+    synchronized (SOURCES) {
+      final FanOutSource existing = SOURCES.get(key);
+      if (existing != null) {
+        final Consumer consumer =
+            existing.register(in, start, end, notBefore);
+        if (consumer != null) {
+          return consumer;
+        }
+        if (!existing.closeIfUnused(0)) {
+          LOG.info("The split [{},{}) of {} cannot join the shared "
+              + "decompression", start, end, key);
+          return null; // Used by other splits
+        }
+        SOURCES.remove(key);
+      }
+      final FanOutSource source =
+          new FanOutSource(key, opener.apply(), opener, maxChunks);
+      final Consumer consumer = source.register(in, start, end, notBefore);
+      if (consumer == null) {
+        source.closeIfUnused(0);
+        return null;
+      }
+      SOURCES.put(key, source);
+      LOG.info("Created the shared decompression of {} at {}",
+          key, source.stream.getBytesRead());
+      return consumer;
+    }
+  }
+
+  /**
+   * @return the number of open sources (for testing).
+   */
+  static int getSources() {
+    synchronized (SOURCES) {
+      return SOURCES.size();
+    }
+  }
+
+  /**
+   * @return the number of splits that were detached (for testing).
+   */
+  static long getDetachedSplits() {
+    return DETACHED.get();
+  }
+
+  /**
+   * Set how long a split waits for the slower splits (for testing).
+   *
+   * @param timeoutMillis The timeout; 0 restores the default.
+   */
+  static void setBackpressureTimeout(final long timeoutMillis) {
+    backpressureTimeoutMillis = timeoutMillis > 0
+        ? timeoutMillis : BACKPRESSURE_TIMEOUT_MILLIS;
+  }
+
+  /**
+   * Close all unused sources (for testing).
+   */
+  static void closeUnused() {
+    synchronized (SOURCES) {
+      SOURCES.values().removeIf(source -> source.closeIfUnused(0));
+    }
+  }
+
+  private static void reap(final FanOutSource source) {
+    synchronized (SOURCES) {
+      if (SOURCES.get(source.key) == source
+          && source.closeIfUnused(IDLE_TIMEOUT_MILLIS)) {
+        SOURCES.remove(source.key);
+        LOG.debug("Closed the unused shared decompression of {}",
+            source.key);
+      }
+    }
+  }
+
+  // -------------------------------------------
+
+  private synchronized Consumer register(final InputStream in,
+      final long start, final long end, final long notBefore)
+    throws IOException {
+    // The boundary of a read in progress cannot be changed anymore.
+    while (producing) {
+      await(0);
+    }
+    if (closed || failure != null) {
+      return null;
+    }
+    if (pos < notBefore) {
+      return null;
+    }
+    long cursor = firstIndex + chunks.size();
+    if (start < pos) {
+      // Only if all data after the start is still there.
+      if (!boundaries.contains(start) || droppedPos > start) {
+        return null;
+      }
+      for (int i = chunks.size() - 1; i >= 0 && chunks.get(i).pos > start;
+           i--) {
+        cursor = firstIndex + i;
+      }
+    }
+    if (end < pos && !boundaries.contains(end)) {
+      return null;
+    }
+    boundaries.add(start);
+    boundaries.add(end);
+    // If the start is not passed yet the chunks up to it still have to be
+    // discarded; also if the source is exactly at the start (and has not
+    // returned all data of the bytes before it).
+    final Consumer consumer = new Consumer(in, this, start, cursor,
+        Math.min(start, pos), start < pos ? -1 : start);
+    consumers.add(consumer);
+    return consumer;
+  }
+
+  private synchronized void unregister(final Consumer consumer) {
+    consumers.remove(consumer);
+    trim();
+    notifyAll();
+    if (consumers.isEmpty()) {
+      idleSince = System.currentTimeMillis();
+      REAPER.schedule(() -> reap(this), IDLE_TIMEOUT_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return true if the source was closed (or already was).
+   */
+  private synchronized boolean closeIfUnused(final long minIdleMillis) {
+    if (!consumers.isEmpty() || producing
+        || System.currentTimeMillis() - idleSince < minIdleMillis) {
+      return false;
+    }
+    if (!closed) {
+      closed = true;
+      for (Chunk chunk : chunks) {
+        BufferPool.getInstance().give(chunk.data);
+      }
+      chunks.clear();
+      try {
+        stream.close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close the shared decompression of {}: {}",
+            key, e.getMessage());
+      }
+    }
+    return true;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Must be called while holding the lock of this source.
+   *
+   * @return the chunk the consumer must read next, null at the end of the
+   * input, {@link #PRODUCE} if the consumer must call {@link #produce()} or
+   * {@link #DETACHED_SPLIT} if the consumer must continue on its own.
+   */
+  private Chunk next(final Consumer consumer) throws IOException {
+    boolean waited = false;
+    while (true) {
+      if (consumer.detachedAt >= 0) {
+        return DETACHED_SPLIT;
+      }
+      final long index = consumer.cursor - firstIndex;
+      if (index < chunks.size()) {
+        return chunks.get((int) index);
+      }
+      if (eof) {
+        return null;
+      }
+      if (failure != null) {
+        throw new IOException("The shared decompression of " + key
+            + " failed", failure);
+      }
+      if (producing) {
+        await(0);
+        continue;
+      }
+      if (getBufferedChunks() >= maxChunks) {
+        if (waited) {
+          detachSlowestSplits();
+        } else {
+          waitForSlowerSplits(consumer);
+          waited = true;
+        }
+        continue;
+      }
+      producing = true;
+      return PRODUCE;
+    }
+  }
+
+  /**
+   * @return the number of chunks that some split still has to read.
+   */
+  private long getBufferedChunks() {
+    long min = firstIndex + chunks.size();
+    for (Consumer consumer : consumers) {
+      min = Math.min(min, consumer.cursor);
+    }
+    return firstIndex + chunks.size() - min;
+  }
+
+  private void waitForSlowerSplits(final Consumer consumer)
+    throws InterruptedIOException {
+    final long timeout = backpressureTimeoutMillis;
+    final long deadline = System.currentTimeMillis() + timeout;
+    long remaining = timeout;
+    while (remaining > 0 && getBufferedChunks() >= maxChunks
+        && consumer.cursor - firstIndex >= chunks.size()) {
+      await(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Detach the splits that hold on to the oldest chunk. They continue on
+   * their own decompression of the file when (if ever) they read again.
+   */
+  private void detachSlowestSplits() {
+    long min = Long.MAX_VALUE;
+    for (Consumer consumer : consumers) {
+      min = Math.min(min, consumer.cursor);
+    }
+    final Iterator<Consumer> iterator = consumers.iterator();
+    while (iterator.hasNext()) {
+      final Consumer slow = iterator.next();
+      if (slow.cursor != min) {
+        continue;
+      }
+      final long index = slow.cursor - firstIndex;
+      slow.detachedAt = index < chunks.size()
+          ? chunks.get((int) index).offset + slow.chunkOffset : produced;
+      iterator.remove();
+      DETACHED.incrementAndGet();
+      LOG.warn("The split starting at {} of {} did not read for {} ms; "
+          + "it continues on its own decompression",
+          slow.start, key, backpressureTimeoutMillis);
+    }
+    trim();
+    notifyAll();
+  }
+
+  private void await(final long millis) throws InterruptedIOException {
+    try {
+      wait(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for "
+          + "the other splits of " + key);
+    }
+  }
+
+  /**
+   * Read and inflate the next chunk. Only called by the split that got
+   * {@link #PRODUCE}; the lock is only held to publish the chunk.
+   */
+  private void produce() throws IOException {
+    final Long boundary;
+    synchronized (this) {
+      boundary = boundaries.higher(pos);
+    }
+    final byte[] data = BufferPool.getInstance().take(CHUNK_SIZE);
+    int length = -1;
+    Exception error = null;
+    try {
+      stream.setReadBoundary(boundary == null ? -1 : boundary);
+      length = stream.read(data, 0, data.length);
+    } catch (IOException | RuntimeException e) {
+      error = e;
+    }
+    synchronized (this) {
+      producing = false;
+      if (error != null || length == -1) {
+        BufferPool.getInstance().give(data);
+        if (error != null) {
+          failure = error instanceof IOException ? (IOException) error
+              : new IOException(error);
+        } else {
+          eof = true;
+        }
+      } else {
+        pos = stream.getBytesRead();
+        chunks.add(new Chunk(data, length, produced, pos));
+        produced += length;
+        trim();
+      }
+      notifyAll();
+    }
+    if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    }
+    if (error != null) {
+      throw (IOException) error;
+    }
+  }
+
+  /**
+   * Drop the chunks that no split needs anymore.
+   */
+  private void trim() {
+    long min = firstIndex + chunks.size();
+    for (Consumer consumer : consumers) {
+      min = Math.min(min, consumer.cursor);
+    }
+    final Long lastBoundary = boundaries.floor(pos);
+    int drop = 0;
+    while (drop < chunks.size() && firstIndex + drop < min) {
+      // Keep the chunks after the last boundary for the next split.
+      if (lastBoundary != null && chunks.get(drop).pos > lastBoundary
+          && chunks.size() - drop <= maxChunks) {
+        break;
+      }
+      drop++;
+    }
+    for (int i = 0; i < drop; i++) {
+      final Chunk chunk = chunks.get(i);
+      droppedPos = Math.max(droppedPos, chunk.pos);
+      BufferPool.getInstance().give(chunk.data);
+    }
+    chunks.subList(0, drop).clear();
+    firstIndex += drop;
+  }
+
+  // ===========================================
+
+  /**
+   * The stream of a single split. Only the methods the split stream uses are
+   * implemented; the read boundary is the end of the split it registered
+   * with. After it was detached it reads from its own decompression of the
+   * file which first reads (again) what the split already got from the
+   * shared one.
+   */
+  private static final class Consumer extends ThrottleableDecompressorStream {
+    private final FanOutSource source;
+    private final long start;
+    private long cursor;
+    private int chunkOffset = 0;
+    private long position;
+    private long discarded = 0;
+    // The chunks up to here are never returned (-1 = none).
+    private long discardUntil;
+    // The decompressed bytes of the source this split had consumed when
+    // it was detached (-1 = not detached).
+    private long detachedAt = -1;
+    private long readBoundary = -1;
+    private volatile ThrottleableDecompressorStream fallback = null;
+
+    Consumer(final InputStream in, final FanOutSource source,
+        final long start, final long cursor, final long position,
+        final long discardUntil) throws IOException {
+      super(in);
+      this.source = source;
+      this.start = start;
+      this.cursor = cursor;
+      this.position = position;
+      this.discardUntil = discardUntil;
+    }
+
+    @Override
+    public long getBytesRead() {
+      final ThrottleableDecompressorStream own = fallback;
+      synchronized (source) {
+        return own == null
+            ? position : Math.max(position, own.getBytesRead());
+      }
+    }
+
+    @Override
+    public long getDiscardedBytes() {
+      final ThrottleableDecompressorStream own = fallback;
+      synchronized (source) {
+        return own == null
+            ? discarded : discarded + own.getDiscardedBytes();
+      }
+    }
+
+    @Override
+    public void setReadBoundary(final long boundary) {
+      // The boundaries were registered when joining the source; they only
+      // matter for the own decompression of a detached split.
+      readBoundary = boundary;
+      final ThrottleableDecompressorStream own = fallback;
+      if (own != null) {
+        own.setReadBoundary(boundary);
+      }
+    }
+
+    @Override
+    public void fastForward(final long target) throws IOException {
+      checkStream();
+      while (true) {
+        final ThrottleableDecompressorStream own = getFallback();
+        if (own != null) {
+          own.fastForward(target);
+          return;
+        }
+        final Chunk chunk;
+        synchronized (source) {
+          discardUntil = Math.max(discardUntil, target);
+          chunk = next();
+          if (chunk != PRODUCE && chunk != DETACHED_SPLIT) {
+            if (chunk != null) {
+              position = Math.max(position, target);
+            }
+            return;
+          }
+        }
+        if (chunk == PRODUCE) {
+          source.produce();
+        }
+      }
+    }
+
+    /**
+     * Must be called while holding the lock of the source.
+     *
+     * @return the next chunk to read from after discarding the chunks up to
+     * discardUntil, or what {@link FanOutSource#next(Consumer)} returns
+     * instead of a chunk.
+     */
+    private Chunk next() throws IOException {
+      Chunk chunk;
+      while ((chunk = source.next(this)) != null
+          && chunk.pos <= discardUntil) {
+        discarded += chunk.length - chunkOffset;
+        position = chunk.pos;
+        advance();
+      }
+      return chunk;
+    }
+
+    /**
+     * @return the own decompression of this split if it was detached (it is
+     * opened when needed) or null.
+     */
+    private ThrottleableDecompressorStream getFallback() throws IOException {
+      final ThrottleableDecompressorStream existing = fallback;
+      if (existing != null) {
+        return existing;
+      }
+      final long consumed;
+      final long reached;
+      synchronized (source) {
+        if (detachedAt < 0) {
+          return null;
+        }
+        consumed = detachedAt;
+        reached = position;
+      }
+      final ThrottleableDecompressorStream own = source.opener.apply();
+      final byte[] buffer = BufferPool.getInstance().take(CHUNK_SIZE);
+      try {
+        // All of it came from before the position the split had reached.
+        own.setReadBoundary(reached);
+        long remaining = consumed;
+        while (remaining > 0) {
+          final int read = own.read(buffer, 0,
+              (int) Math.min(buffer.length, remaining));
+          if (read == -1) {
+            throw new EOFException("Unexpected end of " + source.key
+                + " while continuing the detached split at " + start);
+          }
+          remaining -= read;
+        }
+        own.setReadBoundary(readBoundary);
+      } catch (IOException | RuntimeException e) {
+        own.close();
+        throw e;
+      } finally {
+        BufferPool.getInstance().give(buffer);
+      }
+      fallback = own;
+      return own;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+      checkStream();
+      if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+        throw new IndexOutOfBoundsException();
+      } else if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        final ThrottleableDecompressorStream own = getFallback();
+        if (own != null) {
+          return own.read(b, off, len);
+        }
+        final Chunk chunk;
+        synchronized (source) {
+          chunk = next();
+          if (chunk == null) {
+            return -1;
+          }
+          if (chunk != PRODUCE && chunk != DETACHED_SPLIT) {
+            final int n = Math.min(len, chunk.length - chunkOffset);
+            System.arraycopy(chunk.data, chunkOffset, b, off, n);
+            consumed(chunk, n);
+            return n;
+          }
+        }
+        if (chunk == PRODUCE) {
+          source.produce();
+        }
+      }
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+      checkStream();
+      if (!dst.hasRemaining()) {
+        return 0;
+      }
+      while (true) {
+        final ThrottleableDecompressorStream own = getFallback();
+        if (own != null) {
+          return own.read(dst);
+        }
+        final Chunk chunk;
+        synchronized (source) {
+          chunk = next();
+          if (chunk == null) {
+            return -1;
+          }
+          if (chunk != PRODUCE && chunk != DETACHED_SPLIT) {
+            final int n =
+                Math.min(dst.remaining(), chunk.length - chunkOffset);
+            dst.put(chunk.data, chunkOffset, n);
+            consumed(chunk, n);
+            return n;
+          }
+        }
+        if (chunk == PRODUCE) {
+          source.produce();
+        }
+      }
+    }
+
+    private void consumed(final Chunk chunk, final int n) {
+      position = chunk.pos;
+      chunkOffset += n;
+      if (chunkOffset == chunk.length) {
+        advance();
+      }
+    }
+
+    private void advance() {
+      cursor++;
+      chunkOffset = 0;
+      source.trim();
+      source.notifyAll();
+    }
+
+    @Override
+    public void resume(final DeflateCheckpoint checkpoint)
+      throws IOException {
+      throw new IOException("A split that reads from the shared "
+          + "decompression cannot resume at a checkpoint");
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      try {
+        source.unregister(this);
+        final ThrottleableDecompressorStream own = fallback;
+        if (own != null) {
+          own.close();
+        }
+      } finally {
+        super.close();
+      }
+    }
+  }
+
+}
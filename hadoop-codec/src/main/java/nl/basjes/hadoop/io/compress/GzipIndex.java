@@ -0,0 +1,682 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A list of {@link DeflateCheckpoint}s of a single gzip file that is stored
+ * next to that file in a "sidecar" file with the extension {@value #EXTENSION}.
+ * <br>
+ * With such an index a split that starts deep into a gzip file no longer needs
+ * to decompress everything before it: it can resume at the last checkpoint that
+ * is far enough before the start of the split.<br>
+ * <br>
+ * To detect an index that does not belong to the data (anymore) the index
+ * records the length, the modification time and the first
+ * {@value #FINGERPRINT_SIZE} bytes of the gzip file it was created from.<br>
+ * <br>
+ * The file layout (all numbers are big endian as written by a DataOutput):
+ * <pre>
+ * header  : magic, version, data length, data modification time,
+ *           fingerprint length, fingerprint, number of checkpoints
+ * table   : per checkpoint: compressed offset, bit offset, member start flag,
+ *           uncompressed offset, window length, stored window length
+ * windows : per checkpoint the window as a raw deflate stream
+ * </pre>
+ * The windows are only read when a checkpoint is actually used.<br>
+ * <br>
+ * The {@link ParallelGzipOutputStream} can also embed an index (of
+ * checkpoints that need no window) at the end of the gzip file itself. This
+ * is an extra gzip member without any data; the index is in the FEXTRA field
+ * of its header so every gzip tool simply ignores it.
+ * <pre>
+ * header  : 1f 8b 08 04 (FEXTRA) 00000000 00 ff, XLEN
+ * "SI"    : version, number of checkpoints and per checkpoint the (varint)
+ *           increase of the compressed offset (times 2, +1 for a member
+ *           start) and of the uncompressed offset
+ * "SL"    : the length of this entire member (4 bytes)
+ * deflate : 03 00 (an empty final block)
+ * trailer : CRC32 (0) and ISIZE (0)
+ * </pre>
+ */
+public final class GzipIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GzipIndex.class);
+
+  /**
+   * The extension of the index file (appended to the name of the gzip file).
+   */
+  public static final String EXTENSION = ".gzidx";
+
+  /**
+   * The number of bytes at the start of the gzip file stored in the index.
+   */
+  public static final int FINGERPRINT_SIZE = 64;
+
+  private static final int MAGIC = 0x475A4958; // "GZIX"
+  private static final int VERSION = 1;
+
+  private static final byte[] NO_WINDOW = new byte[0];
+
+  // The tail of an embedded index: "SL", 4, 0, length, 03 00, CRC, ISIZE
+  private static final int EMBEDDED_TAIL_SIZE = 18;
+  // The member without the "SI" subfield: header, XLEN, "SL", deflate, trailer
+  private static final int EMBEDDED_OVERHEAD = 10 + 2 + 8 + 2 + 8;
+  private static final int MAX_EMBEDDED_INDEX_SIZE = 0xFFFF - 4 - 8;
+  private static final int EMBEDDED_VERSION = 1;
+
+  private final long dataLength;
+  private final long dataModificationTime;
+  private final byte[] fingerprint;
+  private final List<Entry> entries = new ArrayList<>();
+
+  // Where the windows can be read if they are not in memory.
+  private FileSystem fileSystem = null;
+  private Path indexPath = null;
+
+  /**
+   * A single checkpoint with its window in stored (compressed) form.
+   */
+  private static final class Entry {
+    private long compressedOffset;
+    private int bitOffset;
+    private boolean memberStart;
+    private long uncompressedOffset;
+    private int windowLength;
+    private int storedLength;
+    private long windowPosition;
+    private byte[] storedWindow;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Create an empty index for the described gzip file.
+   *
+   * @param dataLength The length of the gzip file.
+   * @param dataModificationTime The modification time of the gzip file.
+   * @param fingerprint The first (at most {@value #FINGERPRINT_SIZE}) bytes of
+   *                    the gzip file.
+   */
+  public GzipIndex(final long dataLength, final long dataModificationTime,
+      final byte[] fingerprint) {
+    this.dataLength = dataLength;
+    this.dataModificationTime = dataModificationTime;
+    this.fingerprint = fingerprint.clone();
+  }
+
+  // -------------------------------------------
+
+  /**
+   * @param dataFile The gzip file.
+   * @return the path of the index of the provided gzip file.
+   */
+  public static Path getIndexPath(final Path dataFile) {
+    return dataFile.suffix(EXTENSION);
+  }
+
+  public long getDataLength() {
+    return dataLength;
+  }
+
+  public long getDataModificationTime() {
+    return dataModificationTime;
+  }
+
+  /**
+   * @return the number of checkpoints in this index.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the compressed offsets of all checkpoints (in order) without
+   * loading their windows.
+   */
+  public long[] getCompressedOffsets() {
+    final long[] offsets = new long[entries.size()];
+    for (int index = 0; index < offsets.length; index++) {
+      offsets[index] = entries.get(index).compressedOffset;
+    }
+    return offsets;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Add a checkpoint. Checkpoints must be added in the order of their
+   * compressed offset.
+   *
+   * @param checkpoint The checkpoint to add.
+   */
+  public void add(final DeflateCheckpoint checkpoint) {
+    if (!entries.isEmpty() && entries.get(entries.size() - 1).compressedOffset
+        >= checkpoint.getCompressedOffset()) {
+      throw new IllegalArgumentException(
+          "Checkpoints must be added in increasing order: " + checkpoint);
+    }
+    final Entry entry = new Entry();
+    entry.compressedOffset = checkpoint.getCompressedOffset();
+    entry.bitOffset = checkpoint.getBitOffset();
+    entry.memberStart = checkpoint.isMemberStart();
+    entry.uncompressedOffset = checkpoint.getUncompressedOffset();
+    entry.windowLength = checkpoint.getWindow().length;
+    entry.storedWindow = entry.windowLength == 0
+        ? NO_WINDOW : storeWindow(checkpoint.getWindow());
+    entry.storedLength = entry.storedWindow.length;
+    entries.add(entry);
+  }
+
+  /**
+   * Find the checkpoint that is closest to (but not after) the provided
+   * compressed offset. A checkpoint at the very start of the file is never
+   * returned because that does not save anything.
+   *
+   * @param maxCompressedOffset The highest acceptable compressed offset.
+   * @return the checkpoint or null if there is none.
+   * @throws IOException In case of an IO problem reading the window.
+   */
+  public DeflateCheckpoint findCheckpoint(final long maxCompressedOffset)
+    throws IOException {
+    int low = 0;
+    int high = entries.size() - 1;
+    int found = -1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      if (entries.get(middle).compressedOffset <= maxCompressedOffset) {
+        found = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    if (found == -1 || entries.get(found).compressedOffset == 0) {
+      return null;
+    }
+    return getCheckpoint(found);
+  }
+
+  /**
+   * @param index The index (0 based) of the checkpoint.
+   * @return the checkpoint.
+   * @throws IOException In case of an IO problem reading the window.
+   */
+  public DeflateCheckpoint getCheckpoint(final int index) throws IOException {
+    final Entry entry = entries.get(index);
+    if (entry.memberStart) {
+      return DeflateCheckpoint.memberStart(entry.compressedOffset,
+          entry.uncompressedOffset);
+    }
+    return DeflateCheckpoint.blockBoundary(entry.compressedOffset,
+        entry.bitOffset, entry.uncompressedOffset,
+        loadWindow(entry, getStoredWindow(entry)));
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Does this index belong to the provided data file?
+   *
+   * @param status The status of the gzip file.
+   * @param dataFingerprint The first (at most {@value #FINGERPRINT_SIZE}) bytes
+   *                        of the gzip file; null to skip this check.
+   * @return true if the index matches the data.
+   */
+  public boolean matches(final FileStatus status,
+      final byte[] dataFingerprint) {
+    return status.getLen() == dataLength
+        && status.getModificationTime() == dataModificationTime
+        && (dataFingerprint == null
+            || Arrays.equals(dataFingerprint, fingerprint));
+  }
+
+  /**
+   * Read the fingerprint of a gzip file without changing the position of the
+   * stream.
+   *
+   * @param in The gzip file.
+   * @param length The length of the gzip file.
+   * @return the first (at most {@value #FINGERPRINT_SIZE}) bytes.
+   * @throws IOException In case of an IO problem
+   */
+  public static byte[] readFingerprint(final PositionedReadable in,
+      final long length) throws IOException {
+    final byte[] result = new byte[(int) Math.min(length, FINGERPRINT_SIZE)];
+    in.readFully(0, result);
+    return result;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Load the index of the provided gzip file.
+   *
+   * @param fs The filesystem of the gzip file.
+   * @param dataFile The gzip file.
+   * @return the index or null if there is no index that matches the length
+   * and modification time of the gzip file.
+   * @throws IOException In case of an IO problem
+   */
+  public static GzipIndex load(final FileSystem fs, final Path dataFile)
+    throws IOException {
+    final Path indexPath = getIndexPath(dataFile);
+    final FileStatus dataStatus = fs.getFileStatus(dataFile);
+    final GzipIndex index;
+    try (FSDataInputStream in = fs.open(indexPath)) {
+      index = read(in, in);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    if (!index.matches(dataStatus, null)) {
+      LOG.warn("Ignoring index {} because it does not match {}",
+          indexPath, dataFile);
+      return null;
+    }
+    index.fileSystem = fs;
+    index.indexPath = indexPath;
+    return index;
+  }
+
+  /**
+   * Read an index that was written by {@link #write(OutputStream)}.
+   * Note that all windows are read into memory.
+   *
+   * @param in The stream to read the index from.
+   * @return the index
+   * @throws IOException In case of an IO problem or a corrupt index.
+   */
+  public static GzipIndex read(final InputStream in) throws IOException {
+    return read(in, null);
+  }
+
+  private static GzipIndex read(final InputStream input,
+      final FSDataInputStream positioned) throws IOException {
+    final DataInputStream in = new DataInputStream(input);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a gzip index file");
+    }
+    final int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported gzip index version " + version);
+    }
+    final long dataLength = in.readLong();
+    final long dataModificationTime = in.readLong();
+    final byte[] fingerprint = new byte[in.readShort()];
+    in.readFully(fingerprint);
+    final GzipIndex index =
+        new GzipIndex(dataLength, dataModificationTime, fingerprint);
+
+    final int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      final Entry entry = new Entry();
+      entry.compressedOffset = in.readLong();
+      entry.bitOffset = in.readByte();
+      entry.memberStart = in.readBoolean();
+      entry.uncompressedOffset = in.readLong();
+      entry.windowLength = in.readInt();
+      entry.storedLength = in.readInt();
+      index.entries.add(entry);
+    }
+
+    if (positioned == null) {
+      for (Entry entry : index.entries) {
+        entry.storedWindow = new byte[entry.storedLength];
+        in.readFully(entry.storedWindow);
+      }
+    } else {
+      long position = positioned.getPos();
+      for (Entry entry : index.entries) {
+        entry.windowPosition = position;
+        position += entry.storedLength;
+      }
+    }
+    return index;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Write this index to the provided stream.
+   *
+   * @param out Where to write the index to.
+   * @throws IOException In case of an IO problem
+   */
+  public void write(final OutputStream out) throws IOException {
+    final DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeLong(dataLength);
+    data.writeLong(dataModificationTime);
+    data.writeShort(fingerprint.length);
+    data.write(fingerprint);
+    data.writeInt(entries.size());
+    for (Entry entry : entries) {
+      data.writeLong(entry.compressedOffset);
+      data.writeByte(entry.bitOffset);
+      data.writeBoolean(entry.memberStart);
+      data.writeLong(entry.uncompressedOffset);
+      data.writeInt(entry.windowLength);
+      data.writeInt(entry.storedLength);
+    }
+    for (Entry entry : entries) {
+      data.write(getStoredWindow(entry));
+    }
+    data.flush();
+  }
+
+  /**
+   * Write this index next to the provided gzip file. The index is first
+   * written to a temporary file which is then renamed so readers never see a
+   * partially written index.
+   *
+   * @param fs The filesystem of the gzip file.
+   * @param dataFile The gzip file.
+   * @throws IOException In case of an IO problem
+   */
+  public void save(final FileSystem fs, final Path dataFile)
+    throws IOException {
+    final Path target = getIndexPath(dataFile);
+    final Path temporary =
+        new Path(target.getParent(), "." + target.getName() + ".tmp");
+    try (FSDataOutputStream out = fs.create(temporary, true)) {
+      write(out);
+    }
+    fs.delete(target, false);
+    if (!fs.rename(temporary, target)) {
+      fs.delete(temporary, false);
+      throw new IOException("Unable to rename " + temporary + " to " + target);
+    }
+    LOG.info("Wrote index with {} checkpoints to {}", entries.size(), target);
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Create the gzip member that embeds the provided checkpoints. None of the
+   * checkpoints may need a window. If there are too many checkpoints to fit
+   * in the gzip header every other checkpoint is dropped until they fit.
+   *
+   * @param checkpoints The checkpoints (in the order of the compressed
+   *                    offset).
+   * @return the complete gzip member.
+   */
+  public static byte[] createEmbedded(
+      final List<DeflateCheckpoint> checkpoints) {
+    List<DeflateCheckpoint> remaining = checkpoints;
+    byte[] index = encodeEmbedded(remaining);
+    while (index.length > MAX_EMBEDDED_INDEX_SIZE) {
+      final List<DeflateCheckpoint> thinned = new ArrayList<>();
+      for (int i = 1; i < remaining.size(); i += 2) {
+        thinned.add(remaining.get(i));
+      }
+      remaining = thinned;
+      index = encodeEmbedded(remaining);
+    }
+
+    final int extraLength = 4 + index.length + 8;
+    final int memberLength = EMBEDDED_OVERHEAD + index.length + 4;
+    final ByteArrayOutputStream member = new ByteArrayOutputStream();
+    member.write(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0,
+                            (byte) 0xff}, 0, 10);
+    writeShortLE(member, extraLength);
+    member.write('S');
+    member.write('I');
+    writeShortLE(member, index.length);
+    member.write(index, 0, index.length);
+    member.write('S');
+    member.write('L');
+    writeShortLE(member, 4);
+    writeShortLE(member, memberLength);
+    writeShortLE(member, memberLength >>> 16);
+    member.write(3); // An empty final block with fixed Huffman codes
+    member.write(0);
+    member.write(new byte[8], 0, 8); // CRC32 and ISIZE of nothing
+    return member.toByteArray();
+  }
+
+  private static byte[] encodeEmbedded(
+      final List<DeflateCheckpoint> checkpoints) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(EMBEDDED_VERSION);
+    writeVarLong(out, checkpoints.size());
+    long compressed = 0;
+    long uncompressed = 0;
+    for (DeflateCheckpoint checkpoint : checkpoints) {
+      if (checkpoint.getWindow().length != 0 || checkpoint.getBitOffset() != 0
+          || checkpoint.getUncompressedOffset() < uncompressed) {
+        throw new IllegalArgumentException(
+            "Unable to embed the checkpoint " + checkpoint);
+      }
+      writeVarLong(out, (checkpoint.getCompressedOffset() - compressed) * 2
+          + (checkpoint.isMemberStart() ? 1 : 0));
+      writeVarLong(out, checkpoint.getUncompressedOffset() - uncompressed);
+      compressed = checkpoint.getCompressedOffset();
+      uncompressed = checkpoint.getUncompressedOffset();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Read the index that is embedded at the end of a gzip file (by the
+   * {@link ParallelGzipOutputStream}).
+   *
+   * @param in The gzip file.
+   * @param status The status of the gzip file.
+   * @return the index or null if the file does not end with an index.
+   * @throws IOException In case of an IO problem or a corrupt index.
+   */
+  public static GzipIndex readEmbedded(final PositionedReadable in,
+      final FileStatus status) throws IOException {
+    return readEmbedded(in, status.getLen(), status.getModificationTime());
+  }
+
+  /**
+   * Read the index that is embedded at the end of a gzip file (by the
+   * {@link ParallelGzipOutputStream}).
+   *
+   * @param in The gzip file.
+   * @param length The length of the gzip file.
+   * @param modificationTime The modification time of the gzip file.
+   * @return the index or null if the file does not end with an index.
+   * @throws IOException In case of an IO problem or a corrupt index.
+   */
+  public static GzipIndex readEmbedded(final PositionedReadable in,
+      final long length, final long modificationTime) throws IOException {
+    if (length < EMBEDDED_OVERHEAD + 4) {
+      return null;
+    }
+    final byte[] tail = new byte[EMBEDDED_TAIL_SIZE];
+    in.readFully(length - tail.length, tail);
+    if (tail[0] != 'S' || tail[1] != 'L' || tail[2] != 4 || tail[3] != 0
+        || tail[8] != 3 || tail[9] != 0) {
+      return null;
+    }
+    for (int i = 10; i < tail.length; i++) {
+      if (tail[i] != 0) {
+        return null;
+      }
+    }
+    final long memberLength = readIntLE(tail, 4) & 0xFFFFFFFFL;
+    if (memberLength < EMBEDDED_OVERHEAD + 4 || memberLength > length
+        || memberLength > EMBEDDED_OVERHEAD + 4 + MAX_EMBEDDED_INDEX_SIZE) {
+      return null;
+    }
+    final byte[] member = new byte[(int) memberLength];
+    in.readFully(length - memberLength, member);
+    final int indexLength = (int) memberLength - EMBEDDED_OVERHEAD - 4;
+    if ((member[0] & 0xFF) != 0x1f || (member[1] & 0xFF) != 0x8b
+        || member[2] != 8 || member[3] != 4
+        || readShortLE(member, 10) != 4 + indexLength + 8
+        || member[12] != 'S' || member[13] != 'I'
+        || readShortLE(member, 14) != indexLength) {
+      return null;
+    }
+
+    final GzipIndex index = new GzipIndex(length, modificationTime,
+        readFingerprint(in, length));
+    final DataInputStream data = new DataInputStream(
+        new ByteArrayInputStream(member, 16, indexLength));
+    final int version = data.readUnsignedByte();
+    if (version != EMBEDDED_VERSION) {
+      throw new IOException("Unsupported embedded gzip index version "
+          + version);
+    }
+    final long count = readVarLong(data);
+    long compressed = 0;
+    long uncompressed = 0;
+    for (long i = 0; i < count; i++) {
+      final long compressedStep = readVarLong(data);
+      compressed += compressedStep >>> 1;
+      uncompressed += readVarLong(data);
+      if ((compressedStep & 1) != 0) {
+        index.add(DeflateCheckpoint.memberStart(compressed, uncompressed));
+      } else {
+        index.add(DeflateCheckpoint.blockBoundary(compressed, 0, uncompressed,
+            NO_WINDOW));
+      }
+    }
+    return index;
+  }
+
+  private static void writeShortLE(final ByteArrayOutputStream out,
+      final int value) {
+    out.write(value);
+    out.write(value >>> 8);
+  }
+
+  private static int readShortLE(final byte[] b, final int off) {
+    return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+  }
+
+  private static int readIntLE(final byte[] b, final int off) {
+    return readShortLE(b, off) | readShortLE(b, off + 2) << 16;
+  }
+
+  private static void writeVarLong(final ByteArrayOutputStream out,
+      final long value) {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      out.write((int) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    out.write((int) remaining);
+  }
+
+  private static long readVarLong(final DataInputStream in)
+    throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Corrupt embedded gzip index");
+  }
+
+  // -------------------------------------------
+
+  private byte[] getStoredWindow(final Entry entry) throws IOException {
+    if (entry.storedWindow != null) {
+      return entry.storedWindow;
+    }
+    if (fileSystem == null) {
+      throw new IOException("The window of the checkpoint at "
+          + entry.compressedOffset + " is not available");
+    }
+    final byte[] stored = new byte[entry.storedLength];
+    try (FSDataInputStream in = fileSystem.open(indexPath)) {
+      in.readFully(entry.windowPosition, stored);
+    }
+    return stored;
+  }
+
+  private static byte[] storeWindow(final byte[] window) {
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(window);
+      deflater.finish();
+      final byte[] buffer = new byte[window.length + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+      return Arrays.copyOf(buffer, length);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] loadWindow(final Entry entry, final byte[] stored)
+    throws IOException {
+    if (entry.windowLength == 0) {
+      return NO_WINDOW;
+    }
+    final Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(stored);
+      final byte[] window = new byte[entry.windowLength];
+      int length = 0;
+      while (length < window.length && !inflater.finished()) {
+        final int inflated =
+            inflater.inflate(window, length, window.length - length);
+        if (inflated == 0 && (inflater.needsInput()
+                              || inflater.needsDictionary())) {
+          break;
+        }
+        length += inflated;
+      }
+      if (length != window.length) {
+        throw new IOException("Corrupt window of the checkpoint at "
+            + entry.compressedOffset);
+      }
+      return window;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt window of the checkpoint at "
+          + entry.compressedOffset, e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+}
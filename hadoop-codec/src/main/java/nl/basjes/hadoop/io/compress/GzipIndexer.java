@@ -0,0 +1,176 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Progressable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the {@link GzipIndex} of a gzip file by decompressing it once and
+ * recording a checkpoint every "interval" compressed bytes.<br>
+ * This can be run from the command line:
+ * <pre>
+ * hadoop nl.basjes.hadoop.io.compress.GzipIndexer file.gz [file.gz ...]
+ * </pre>
+ */
+public final class GzipIndexer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GzipIndexer.class);
+
+  /**
+   * The number of compressed bytes between two checkpoints.
+   */
+  public static final String INDEX_INTERVAL_KEY =
+      "io.compression.codec.splittablegzip.index.interval";
+  public static final long INDEX_INTERVAL_DEFAULT = 8 * 1024 * 1024; // 8 MiB
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private GzipIndexer() {
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Decompress the entire gzip file and collect the checkpoints.
+   *
+   * @param fs The filesystem of the gzip file.
+   * @param file The gzip file.
+   * @param interval The (minimal) number of compressed bytes between two
+   *                 checkpoints.
+   * @return the index.
+   * @throws IOException In case of an IO problem or a corrupt gzip file.
+   */
+  public static GzipIndex buildIndex(final FileSystem fs, final Path file,
+      final long interval) throws IOException {
+    return buildIndex(fs, file, interval, null);
+  }
+
+  /**
+   * Decompress the entire gzip file and collect the checkpoints.
+   *
+   * @param fs The filesystem of the gzip file.
+   * @param file The gzip file.
+   * @param interval The (minimal) number of compressed bytes between two
+   *                 checkpoints.
+   * @param progress Is called regularly during this (long) pass (may be null).
+   * @return the index.
+   * @throws IOException In case of an IO problem or a corrupt gzip file.
+   */
+  public static GzipIndex buildIndex(final FileSystem fs, final Path file,
+      final long interval, final Progressable progress) throws IOException {
+    final FileStatus status = fs.getFileStatus(file);
+    try (FSDataInputStream in = fs.open(file)) {
+      final GzipIndex index = new GzipIndex(status.getLen(),
+          status.getModificationTime(),
+          GzipIndex.readFingerprint(in, status.getLen()));
+
+      final CheckpointableGzipDecompressor decompressor =
+          new CheckpointableGzipDecompressor();
+      decompressor.setCheckpointListener(index::add, interval);
+
+      final ThrottleableDecompressorStream stream =
+          new ThrottleableDecompressorStream(in, decompressor,
+              READ_BUFFER_SIZE);
+      final byte[] buffer = new byte[READ_BUFFER_SIZE];
+      while (stream.read(buffer, 0, buffer.length) != -1) {
+        // Only the checkpoints are needed.
+        if (progress != null) {
+          progress.progress();
+        }
+      }
+      LOG.info("Found {} checkpoints in {}", index.size(), file);
+      return index;
+    }
+  }
+
+  /**
+   * Is there an index of the gzip file that was written after the gzip file
+   * was last modified?
+   *
+   * @param fs The filesystem of the gzip file.
+   * @param data The status of the gzip file.
+   * @return true if there is no need to create the index (again).
+   * @throws IOException In case of an IO problem
+   */
+  public static boolean isIndexUpToDate(final FileSystem fs,
+      final FileStatus data) throws IOException {
+    final FileStatus index;
+    try {
+      index = fs.getFileStatus(GzipIndex.getIndexPath(data.getPath()));
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    return index.getModificationTime() >= data.getModificationTime();
+  }
+
+  /**
+   * Build the index of the provided gzip file and store it next to it.
+   *
+   * @param conf The configuration (used for the filesystem and the interval).
+   * @param file The gzip file.
+   * @return the index.
+   * @throws IOException In case of an IO problem or a corrupt gzip file.
+   */
+  public static GzipIndex index(final Configuration conf, final Path file)
+    throws IOException {
+    return index(conf, file, null);
+  }
+
+  /**
+   * Build the index of the provided gzip file and store it next to it.
+   *
+   * @param conf The configuration (used for the filesystem and the interval).
+   * @param file The gzip file.
+   * @param progress Is called regularly during this (long) pass (may be null).
+   * @return the index.
+   * @throws IOException In case of an IO problem or a corrupt gzip file.
+   */
+  public static GzipIndex index(final Configuration conf, final Path file,
+      final Progressable progress) throws IOException {
+    final FileSystem fs = file.getFileSystem(conf);
+    final GzipIndex index = buildIndex(fs, file,
+        conf.getLong(INDEX_INTERVAL_KEY, INDEX_INTERVAL_DEFAULT), progress);
+    index.save(fs, file);
+    return index;
+  }
+
+  // -------------------------------------------
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: " + GzipIndexer.class.getName()
+          + " file.gz [file.gz ...]");
+      System.exit(1);
+    }
+    final Configuration conf = new Configuration();
+    for (String arg : args) {
+      index(conf, new Path(arg));
+    }
+  }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the start of a gzip member in a gzip file that consists of multiple
+ * concatenated members. Decompressing can start there with a fresh
+ * decompressor because a member never refers to a previous member.<br>
+ * <br>
+ * For BGZF files (as written by bgzip and htslib) every member has the size
+ * of the member in the "BC" subfield of the header so the members can be
+ * walked without decompressing anything.<br>
+ * For other files the data is scanned for the gzip magic followed by a
+ * plausible header and each candidate is verified by decompressing the first
+ * part of the member. Such a candidate can only be a false positive if the
+ * compressed data happens to contain something that is both a valid gzip
+ * header and a valid start of a deflate stream.
+ */
+final class GzipMemberFinder {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(GzipMemberFinder.class);
+
+  private static final int ID1 = 0x1F;
+  private static final int ID2 = 0x8B;
+  private static final int CM_DEFLATE = 8;
+  private static final int FLAG_EXTRA = 0x04;
+  private static final int FLAG_RESERVED = 0xE0;
+  private static final int MAX_OS = 13;
+  private static final int OS_UNKNOWN = 255;
+
+  // The fixed part of the gzip header.
+  private static final int HEADER_SIZE = 10;
+
+  // A BGZF header: the fixed part, XLEN and the BC subfield with BSIZE.
+  static final int BGZF_HEADER_SIZE = HEADER_SIZE + 2 + 6;
+
+  // A BGZF member is never larger than this.
+  static final int BGZF_MAX_MEMBER_SIZE = 64 * 1024;
+
+  // The amount of compressed data that is decompressed to verify a member.
+  static final int VERIFY_SIZE = 64 * 1024;
+
+  private GzipMemberFinder() {
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Does the file start with a BGZF header?
+   *
+   * @param in The gzip file.
+   * @return true if this is a BGZF file.
+   * @throws IOException In case of an IO problem
+   */
+  static boolean isBgzf(final PositionedReadable in) throws IOException {
+    final byte[] header = new byte[BGZF_HEADER_SIZE];
+    return read(in, 0, header) == header.length
+        && getBgzfMemberSize(header, 0) > 0;
+  }
+
+  /**
+   * Find the last member that starts at or before the provided offset.
+   *
+   * @param in The gzip file.
+   * @param maxOffset The highest acceptable offset of the member.
+   * @param lookBack How many bytes before maxOffset are searched.
+   * @param bgzf Is this a BGZF file?
+   * @return the offset of the member or -1 if none was found.
+   * @throws IOException In case of an IO problem
+   */
+  static long findMemberStart(final PositionedReadable in,
+      final long maxOffset, final long lookBack, final boolean bgzf)
+    throws IOException {
+    final long from = Math.max(0, maxOffset - lookBack);
+    final int verifySize = bgzf ? BGZF_HEADER_SIZE : VERIFY_SIZE;
+    final byte[] data = new byte[(int) (maxOffset - from) + verifySize];
+    final int length = read(in, from, data);
+    final int maxIndex = (int) Math.min(maxOffset - from, length - 1);
+
+    final int member = bgzf
+        ? findBgzfMember(data, length, maxIndex)
+        : findMember(data, length, maxIndex);
+    if (member == -1) {
+      LOG.info("No gzip member found in [{},{}]", from, maxOffset);
+      return -1;
+    }
+    return from + member;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Find the first spot where two consecutive BGZF headers are found and then
+   * walk the members from there.
+   */
+  private static int findBgzfMember(final byte[] data, final int length,
+      final int maxIndex) {
+    for (int candidate = 0; candidate <= maxIndex; candidate++) {
+      if (!isBgzfChain(data, length, candidate)) {
+        continue;
+      }
+      int member = candidate;
+      while (true) {
+        final int next = member + getBgzfMemberSize(data, member);
+        if (next > maxIndex || getBgzfMemberSize(data, next) <= 0) {
+          return member;
+        }
+        member = next;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Is there a BGZF header at this position that is followed by another BGZF
+   * header (or the end of the file)?
+   */
+  private static boolean isBgzfChain(final byte[] data, final int length,
+      final int offset) {
+    final int size = getBgzfMemberSize(data, offset);
+    if (size <= 0) {
+      return false;
+    }
+    final int next = offset + size;
+    if (next == length) {
+      return true; // The last member of the file.
+    }
+    return next < length && getBgzfMemberSize(data, next) > 0;
+  }
+
+  /**
+   * @return the size of the BGZF member that starts at the offset or -1 if
+   * there is no BGZF header.
+   */
+  static int getBgzfMemberSize(final byte[] data, final int offset) {
+    if (offset + BGZF_HEADER_SIZE > data.length
+        || !isMemberHeader(data, offset)
+        || (data[offset + 3] & FLAG_EXTRA) == 0) {
+      return -1;
+    }
+    final int extraLength = readShort(data, offset + HEADER_SIZE);
+    int subfield = offset + HEADER_SIZE + 2;
+    final int extraEnd = subfield + extraLength;
+    while (subfield + 4 <= extraEnd && extraEnd <= data.length) {
+      final int subfieldLength = readShort(data, subfield + 2);
+      if (data[subfield] == 'B' && data[subfield + 1] == 'C'
+          && subfieldLength == 2 && subfield + 6 <= extraEnd) {
+        return readShort(data, subfield + 4) + 1;
+      }
+      subfield += 4 + subfieldLength;
+    }
+    return -1;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Find the last plausible gzip header that starts a valid deflate stream.
+   */
+  private static int findMember(final byte[] data, final int length,
+      final int maxIndex) {
+    final CheckpointableGzipDecompressor decompressor =
+        new CheckpointableGzipDecompressor();
+    final byte[] output = new byte[64 * 1024];
+    for (int candidate = maxIndex; candidate > 0; candidate--) {
+      if (isMemberHeader(data, candidate)
+          && isValidMember(decompressor, output, data, length, candidate)) {
+        return candidate;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Decompress (part of) the member. If the member ends in the available
+   * data the CRC in the trailer is verified too.
+   * Note that the data always extends to VERIFY_SIZE after the candidate or
+   * to the end of the file.
+   */
+  private static boolean isValidMember(
+      final CheckpointableGzipDecompressor decompressor, final byte[] output,
+      final byte[] data, final int length, final int offset) {
+    final int end = Math.min(length, offset + VERIFY_SIZE);
+    decompressor.reset();
+    decompressor.setInput(data, offset, end - offset);
+    try {
+      while (!decompressor.finished()) {
+        if (decompressor.decompress(output, 0, output.length) == 0
+            && decompressor.needsInput()) {
+          return true; // All data decompressed without problems.
+        }
+      }
+      return true;
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  /**
+   * A quick check on the fixed part of the gzip header.
+   */
+  static boolean isMemberHeader(final byte[] data, final int offset) {
+    if (offset + HEADER_SIZE > data.length) {
+      return false;
+    }
+    final int xfl = data[offset + 8] & 0xFF;
+    final int os = data[offset + 9] & 0xFF;
+    return (data[offset] & 0xFF) == ID1
+        && (data[offset + 1] & 0xFF) == ID2
+        && data[offset + 2] == CM_DEFLATE
+        && (data[offset + 3] & FLAG_RESERVED) == 0
+        && (xfl == 0 || xfl == 2 || xfl == 4)
+        && (os <= MAX_OS || os == OS_UNKNOWN);
+  }
+
+  private static int readShort(final byte[] data, final int offset) {
+    return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+  }
+
+  /**
+   * Read as much as possible (the end of the file may be in the range).
+   * @return the number of bytes that were read.
+   */
+  private static int read(final PositionedReadable in, final long position,
+      final byte[] buffer) throws IOException {
+    int total = 0;
+    while (total < buffer.length) {
+      final int bytesRead = in.read(position + total, buffer, total,
+          buffer.length - total);
+      if (bytesRead <= 0) {
+        break;
+      }
+      total += bytesRead;
+    }
+    return total;
+  }
+
+}
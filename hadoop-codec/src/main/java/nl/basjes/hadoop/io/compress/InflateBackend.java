@@ -0,0 +1,64 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * The implementation that does the actual inflating (i.e. zlib) for the
+ * {@link SplittableGzipCodec}.<br>
+ * The codec uses the backend selected with
+ * {@value InflateBackends#BACKEND_KEY}: the name of one of the
+ * {@link InflateBackends} or the class name of an implementation of this
+ * interface (which must have a public no-argument constructor).<br>
+ * <br>
+ * The decompressors of a backend must produce all output as soon as the
+ * input that describes it has been provided (just like zlib does) because
+ * the {@link SplittableGzipCodec} relates the compressed and uncompressed
+ * positions in exactly this way.
+ */
+public interface InflateBackend {
+
+  /**
+   * @return the (short) name of this backend as used in the logging.
+   */
+  String getName();
+
+  /**
+   * Can this backend be used in this JVM?
+   *
+   * @param conf The configuration.
+   * @return true if the decompressors can be created.
+   */
+  boolean isAvailable(Configuration conf);
+
+  /**
+   * @return the type of the decompressors of this backend.
+   */
+  Class<? extends Decompressor> getDecompressorType();
+
+  /**
+   * Create a new gzip decompressor.
+   *
+   * @param conf The configuration.
+   * @return the decompressor.
+   */
+  Decompressor createDecompressor(Configuration conf);
+
+}
@@ -0,0 +1,410 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.zlib.BuiltInGzipDecompressor;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * The {@link InflateBackend}s that come with this codec and the selection of
+ * the backend that is used.
+ * <ul>
+ * <li><b>{@value #JDK}</b>: The {@link DirectGzipDecompressor} (the zlib in the
+ * JDK through its ByteBuffer API; CRC32 is an intrinsic on modern JVMs).</li>
+ * <li><b>{@value #NATIVE}</b>: The native zlib of Hadoop (only if libhadoop
+ * was loaded).</li>
+ * <li><b>{@value #JAVA}</b>: The pure Java
+ * {@link CheckpointableGzipDecompressor}.</li>
+ * <li><b>{@value #BUILTIN}</b>: The BuiltInGzipDecompressor of Hadoop (what the
+ * GzipCodec uses if the native zlib is not available).</li>
+ * <li><b>{@value #GZIPCODEC}</b> (the default): Whatever the GzipCodec would
+ * have chosen (the old behaviour).</li>
+ * <li><b>{@value #AUTO}</b>: Each available backend decompresses the same
+ * small sample until its speed is stable, then it is timed and the fastest is
+ * used. This is done once per JVM.</li>
+ * </ul>
+ * Which backend was chosen (and why) is logged once per JVM. On clusters where
+ * libhadoop is not loaded on all nodes the throughput differs greatly between
+ * the nodes; the automatic selection avoids this.
+ */
+public final class InflateBackends {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(InflateBackends.class);
+
+  public static final String AUTO = "auto";
+  public static final String JDK = "jdk";
+  public static final String NATIVE = "native";
+  public static final String JAVA = "java";
+  public static final String BUILTIN = "builtin";
+  public static final String GZIPCODEC = "gzipcodec";
+
+  /**
+   * The name of a backend, the class name of an {@link InflateBackend} or
+   * {@value #AUTO} to select the fastest available backend.
+   */
+  public static final String BACKEND_KEY =
+      "io.compression.codec.splittablegzip.backend";
+  public static final String BACKEND_DEFAULT = GZIPCODEC;
+
+  // The probe decompresses about this many bytes per backend per round.
+  private static final int PROBE_SIZE = 1024 * 1024;
+  // A backend is warmed up (i.e. JIT compiled) when a round is no longer
+  // notably faster than the fastest round before it.
+  private static final int PROBE_MIN_WARMUP_ROUNDS = 3;
+  private static final int PROBE_MAX_WARMUP_ROUNDS = 50;
+  private static final double PROBE_STEADY = 0.95;
+  private static final int PROBE_ROUNDS = 5;
+  // A later backend must be at least this much faster to be selected (so
+  // backends that use the same zlib do not alternate between runs).
+  private static final double PROBE_MARGIN = 0.9;
+
+  private static final Map<String, InflateBackend> SELECTED =
+      new ConcurrentHashMap<>();
+
+  private InflateBackends() {
+  }
+
+  // -------------------------------------------
+
+  /**
+   * A backend of which the decompressors are created by a function.
+   */
+  private static final class SimpleBackend implements InflateBackend {
+    private final String name;
+    private final Class<? extends Decompressor> type;
+    private final Predicate<Configuration> available;
+    private final Function<Configuration, Decompressor> factory;
+
+    SimpleBackend(final String name, final Class<? extends Decompressor> type,
+        final Predicate<Configuration> available,
+        final Function<Configuration, Decompressor> factory) {
+      this.name = name;
+      this.type = type;
+      this.available = available;
+      this.factory = factory;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean isAvailable(final Configuration conf) {
+      return available.test(conf);
+    }
+
+    @Override
+    public Class<? extends Decompressor> getDecompressorType() {
+      return type;
+    }
+
+    @Override
+    public Decompressor createDecompressor(final Configuration conf) {
+      return factory.apply(conf);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * The decompressor of the GzipCodec (which is native zlib if it is loaded
+   * and the BuiltInGzipDecompressor otherwise).
+   */
+  private static final class GzipCodecBackend implements InflateBackend {
+    private final String name;
+    private final boolean nativeOnly;
+
+    GzipCodecBackend(final String name, final boolean nativeOnly) {
+      this.name = name;
+      this.nativeOnly = nativeOnly;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean isAvailable(final Configuration conf) {
+      return !nativeOnly || ZlibFactory.isNativeZlibLoaded(conf);
+    }
+
+    @Override
+    public Class<? extends Decompressor> getDecompressorType() {
+      return gzipCodec(new Configuration(false)).getDecompressorType();
+    }
+
+    @Override
+    public Decompressor createDecompressor(final Configuration conf) {
+      return gzipCodec(conf).createDecompressor();
+    }
+
+    private static GzipCodec gzipCodec(final Configuration conf) {
+      final GzipCodec codec = new GzipCodec();
+      codec.setConf(conf);
+      return codec;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * @return all backends that come with this codec (available or not).
+   */
+  public static List<InflateBackend> getBuiltInBackends() {
+    final List<InflateBackend> backends = new ArrayList<>();
+    backends.add(new SimpleBackend(JDK, DirectGzipDecompressor.class,
+        conf -> true, conf -> new DirectGzipDecompressor()));
+    backends.add(new GzipCodecBackend(NATIVE, true));
+    backends.add(new SimpleBackend(JAVA, CheckpointableGzipDecompressor.class,
+        conf -> true, conf -> new CheckpointableGzipDecompressor()));
+    backends.add(new SimpleBackend(BUILTIN, BuiltInGzipDecompressor.class,
+        conf -> true, conf -> new BuiltInGzipDecompressor()));
+    backends.add(new GzipCodecBackend(GZIPCODEC, false));
+    return backends;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Get the backend as configured with {@value #BACKEND_KEY}. A backend that
+   * is not available is replaced by the automatically selected one.
+   *
+   * @param conf The configuration.
+   * @return the backend to use.
+   * @throws IllegalArgumentException if the configured backend is unknown.
+   */
+  public static InflateBackend getBackend(final Configuration conf) {
+    return getBackend(conf, conf.getTrimmed(BACKEND_KEY, BACKEND_DEFAULT));
+  }
+
+  /**
+   * Get the named backend.
+   *
+   * @param conf The configuration.
+   * @param name The name or class name of the backend or {@value #AUTO}.
+   * @return the backend to use.
+   * @throws IllegalArgumentException if the backend is unknown.
+   */
+  public static InflateBackend getBackend(final Configuration conf,
+      final String name) {
+    final InflateBackend selected = SELECTED.get(name);
+    if (selected != null) {
+      return selected;
+    }
+    synchronized (SELECTED) {
+      InflateBackend backend = SELECTED.get(name);
+      if (backend == null) {
+        backend = select(conf, name);
+        SELECTED.put(name, backend);
+      }
+      return backend;
+    }
+  }
+
+  private static InflateBackend select(final Configuration conf,
+      final String name) {
+    if (AUTO.equalsIgnoreCase(name)) {
+      return probe(conf);
+    }
+    final InflateBackend backend = create(conf, name);
+    if (!backend.isAvailable(conf)) {
+      LOG.warn("The {} inflate backend is not available; selecting one "
+          + "automatically.", backend.getName());
+      return getBackend(conf, AUTO);
+    }
+    LOG.info("Using the configured {} inflate backend.", backend.getName());
+    return backend;
+  }
+
+  private static InflateBackend create(final Configuration conf,
+      final String name) {
+    for (InflateBackend backend : getBuiltInBackends()) {
+      if (backend.getName().equalsIgnoreCase(name)) {
+        return backend;
+      }
+    }
+    try {
+      return ReflectionUtils.newInstance(
+          conf.getClassByName(name).asSubclass(InflateBackend.class), conf);
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IllegalArgumentException("Unknown inflate backend \"" + name
+          + "\" in " + BACKEND_KEY, e);
+    }
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Decompress the same sample with all available backends and return the
+   * fastest (preferring the first of nearly equally fast backends). A backend
+   * that fails (or produces the wrong data) is skipped.
+   */
+  private static InflateBackend probe(final Configuration conf) {
+    final byte[] compressed = createProbeSample();
+    InflateBackend fastest = null;
+    long fastestNanos = Long.MAX_VALUE;
+    final StringBuilder results = new StringBuilder();
+    for (InflateBackend backend : getBuiltInBackends()) {
+      if (GZIPCODEC.equals(backend.getName()) || !backend.isAvailable(conf)) {
+        continue;
+      }
+      final long nanos;
+      try {
+        nanos = timeBackend(conf, backend, compressed);
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("The {} inflate backend failed the probe: {}",
+            backend.getName(), e.toString());
+        continue;
+      }
+      results.append(' ').append(backend.getName()).append('=')
+          .append(PROBE_SIZE * 1000L / Math.max(nanos, 1)).append(" MB/s");
+      if (nanos < fastestNanos * PROBE_MARGIN) {
+        fastest = backend;
+        fastestNanos = nanos;
+      }
+    }
+    if (fastest == null) {
+      LOG.warn("No inflate backend passed the probe; using the GzipCodec.");
+      return new GzipCodecBackend(GZIPCODEC, false);
+    }
+    LOG.info("Selected the {} inflate backend (probe:{}).",
+        fastest.getName(), results);
+    return fastest;
+  }
+
+  /**
+   * @return the fastest time (in nanoseconds) to decompress the sample after
+   * the backend was warmed up.
+   */
+  static long timeBackend(final Configuration conf,
+      final InflateBackend backend, final byte[] compressed)
+    throws IOException {
+    final Decompressor decompressor = backend.createDecompressor(conf);
+    final byte[] output = new byte[64 * 1024];
+    try {
+      long warmest = Long.MAX_VALUE;
+      for (int round = 0; round < PROBE_MAX_WARMUP_ROUNDS; round++) {
+        final long nanos = inflate(decompressor, compressed, output);
+        if (round >= PROBE_MIN_WARMUP_ROUNDS
+            && nanos >= warmest * PROBE_STEADY) {
+          break;
+        }
+        warmest = Math.min(warmest, nanos);
+      }
+      long fastest = Long.MAX_VALUE;
+      for (int round = 0; round < PROBE_ROUNDS; round++) {
+        fastest = Math.min(fastest, inflate(decompressor, compressed, output));
+      }
+      return fastest;
+    } finally {
+      decompressor.end();
+    }
+  }
+
+  /**
+   * @return the time (in nanoseconds) to decompress the sample once.
+   */
+  private static long inflate(final Decompressor decompressor,
+      final byte[] compressed, final byte[] output) throws IOException {
+    decompressor.reset();
+    final long start = System.nanoTime();
+    decompressor.setInput(compressed, 0, compressed.length);
+    long total = 0;
+    while (!decompressor.finished()) {
+      final int n = decompressor.decompress(output, 0, output.length);
+      if (n == 0 && decompressor.needsInput()) {
+        break;
+      }
+      total += n;
+    }
+    final long nanos = System.nanoTime() - start;
+    if (total != PROBE_SIZE) {
+      throw new IOException("Produced " + total + " bytes instead of "
+          + PROBE_SIZE);
+    }
+    return nanos;
+  }
+
+  /**
+   * @return a gzip file with {@link #PROBE_SIZE} bytes of something that
+   * compresses like a log file.
+   */
+  static byte[] createProbeSample() {
+    final Random random = new Random(42);
+    final String[] paths = {"/", "/index.html", "/images/logo.png",
+      "/api/v1/items", "/api/v1/users", "/css/site.css", "/favicon.ico"};
+    final StringBuilder line = new StringBuilder(128);
+    final ByteArrayOutputStream data = new ByteArrayOutputStream(PROBE_SIZE);
+    while (data.size() < PROBE_SIZE) {
+      line.setLength(0);
+      line.append("10.0.").append(random.nextInt(256)).append('.')
+          .append(random.nextInt(256)).append(" - - [18/Oct/2019:13:")
+          .append(10 + random.nextInt(50)).append(':')
+          .append(10 + random.nextInt(50)).append(" +0200] \"GET ")
+          .append(paths[random.nextInt(paths.length)]).append('?')
+          .append(random.nextInt(100000)).append(" HTTP/1.1\" 200 ")
+          .append(random.nextInt(50000)).append('\n');
+      final byte[] bytes = line.toString().getBytes(US_ASCII);
+      data.write(bytes, 0, Math.min(bytes.length, PROBE_SIZE - data.size()));
+    }
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(compressed)) {
+      data.writeTo(out);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to create the probe sample", e);
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Forget the selected backends (so they are selected again).
+   */
+  static void clear() {
+    SELECTED.clear();
+  }
+
+}
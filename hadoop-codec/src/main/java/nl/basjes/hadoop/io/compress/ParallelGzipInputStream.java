@@ -0,0 +1,406 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * Reads an entire gzip file while inflating several parts of it at the same
+ * time.<br>
+ * The file is cut into ranges at the provided checkpoints (from an index or
+ * the starts of gzip members). Each range is inflated by a task on a shared
+ * fork-join pool with its own decompressor and positioned reads on the file;
+ * the output of the ranges is returned in order so the result is exactly the
+ * same as reading the file from start to end.<br>
+ * A range ends at the (compressed) start of the next range: it returns all
+ * data that can be decompressed from the bytes before that offset and the
+ * next range discards the data that it decompresses from them (exactly like
+ * the splits of the {@link SplittableGzipCodec} in exact position mode).<br>
+ * <br>
+ * NOTE: The output of a range is kept in memory until it has been read, so
+ * this needs (threads + 1) times the uncompressed size of a range.
+ */
+public class ParallelGzipInputStream extends CompressionInputStream {
+
+  private static final ForkJoinPool INFLATERS = new ForkJoinPool(
+      Runtime.getRuntime().availableProcessors(), pool -> {
+        final ForkJoinWorkerThread thread =
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("SplittableGzip inflater " + thread.getPoolIndex());
+        return thread;
+      }, null, false);
+
+  // The size of the compressed reads and of the blocks of uncompressed data.
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final PositionedReadable file;
+  private final long length;
+  private final int threads;
+
+  // Range i starts at boundaries[i] (resuming at resumeAt[i]) and ends at
+  // boundaries[i + 1]. The last range ends at the end of the file.
+  private final long[] boundaries;
+  private final DeflateCheckpoint[] resumeAt;
+
+  // The ranges that are being inflated (in the order of the data).
+  private final ArrayDeque<ForkJoinTask<Range>> pending = new ArrayDeque<>();
+  private int submitted = 0;
+
+  private Range current = null;
+  private int currentIndex = -1;
+  private int block = 0;
+  private int blockOffset = 0;
+  private final byte[] oneByte = new byte[1];
+  private boolean closed = false;
+
+  // -------------------------------------------
+
+  /**
+   * @param in The gzip file; must be PositionedReadable.
+   * @param length The length of the gzip file.
+   * @param checkpoints Where the ranges start (in increasing order of their
+   *                    compressed offset). Checkpoints in the middle of a
+   *                    gzip member must have been made by a
+   *                    {@link CheckpointableGzipDecompressor}.
+   * @param threads The maximum number of ranges that are inflated at the
+   *                same time.
+   */
+  public ParallelGzipInputStream(final InputStream in, final long length,
+      final List<DeflateCheckpoint> checkpoints, final int threads)
+    throws IOException {
+    super(in);
+    if (!(in instanceof PositionedReadable)) {
+      throw new IllegalArgumentException(
+          "The input stream must be PositionedReadable");
+    } else if (threads <= 0) {
+      throw new IllegalArgumentException("Illegal number of threads "
+          + threads);
+    }
+    this.file = (PositionedReadable) in;
+    this.length = length;
+    this.threads = threads;
+
+    final List<DeflateCheckpoint> starts = new ArrayList<>();
+    final List<Long> offsets = new ArrayList<>();
+    starts.add(null);
+    offsets.add(0L);
+    for (DeflateCheckpoint checkpoint : checkpoints) {
+      final long offset = boundary(checkpoint);
+      if (offset > offsets.get(offsets.size() - 1) && offset < length) {
+        starts.add(checkpoint);
+        offsets.add(offset);
+      }
+    }
+    resumeAt = starts.toArray(new DeflateCheckpoint[0]);
+    boundaries = new long[offsets.size() + 1];
+    for (int i = 0; i < offsets.size(); i++) {
+      boundaries[i] = offsets.get(i);
+    }
+    boundaries[offsets.size()] = -1;
+  }
+
+  /**
+   * A range that resumes at a checkpoint in the middle of a byte also
+   * inflates the end of the previous deflate block from that byte. So the
+   * previous range ends after that byte and this range discards what it got
+   * from it.
+   */
+  private static long boundary(final DeflateCheckpoint checkpoint) {
+    return checkpoint.getCompressedOffset()
+        + (checkpoint.getBitOffset() == 0 ? 0 : 1);
+  }
+
+  /**
+   * @return the number of ranges the file was cut into.
+   */
+  public int getRanges() {
+    return resumeAt.length;
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public int read() throws IOException {
+    return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xFF;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+    throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+    while (current == null || block == current.blocks.size()) {
+      if (!nextRange()) {
+        return -1;
+      }
+    }
+    final int available = current.length(block) - blockOffset;
+    final int n = Math.min(len, available);
+    System.arraycopy(current.blocks.get(block), blockOffset, b, off, n);
+    blockOffset += n;
+    if (n == available) {
+      block++;
+      blockOffset = 0;
+    }
+    return n;
+  }
+
+  private boolean nextRange() throws IOException {
+    if (current != null) {
+      current.release();
+      current = null;
+    }
+    if (currentIndex + 1 == resumeAt.length) {
+      currentIndex = resumeAt.length;
+      return false;
+    }
+    while (submitted < resumeAt.length && pending.size() < threads) {
+      final int index = submitted++;
+      pending.add(INFLATERS.submit(() -> inflate(index)));
+    }
+    final ForkJoinTask<Range> task = pending.remove();
+    try {
+      current = task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while inflating");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    currentIndex++;
+    block = 0;
+    blockOffset = 0;
+    return true;
+  }
+
+  /**
+   * Inflate one range: resume at its checkpoint, skip to its start and
+   * return everything until the start of the next range.
+   */
+  private Range inflate(final int index) throws IOException {
+    final DeflateCheckpoint checkpoint = resumeAt[index];
+    final long end = boundaries[index + 1];
+    // The JDK Inflater is faster but cannot resume inside a member.
+    final Decompressor decompressor =
+        checkpoint == null || checkpoint.isMemberStart()
+            ? new DirectGzipDecompressor()
+            : new CheckpointableGzipDecompressor();
+    final BufferPool pool = BufferPool.getInstance();
+    final Range range = new Range();
+    try (ThrottleableDecompressorStream stream =
+             new ThrottleableDecompressorStream(new RangeInputStream(file),
+                 decompressor, BUFFER_SIZE)) {
+      if (checkpoint != null) {
+        stream.resume(checkpoint);
+        stream.fastForward(boundaries[index]);
+      }
+      stream.setReadBoundary(end);
+      byte[] data = pool.take(BUFFER_SIZE);
+      int dataLength = 0;
+      try {
+        while (true) {
+          if (dataLength == data.length) {
+            range.add(data, dataLength);
+            data = pool.take(BUFFER_SIZE);
+            dataLength = 0;
+          }
+          final int n = stream.read(data, dataLength,
+              data.length - dataLength);
+          // This data came from the compressed bytes of the next range.
+          if (n == -1 || (end != -1 && stream.getBytesRead() > end)) {
+            break;
+          }
+          dataLength += n;
+        }
+      } finally {
+        range.add(data, dataLength);
+      }
+    } catch (IOException | RuntimeException e) {
+      range.release();
+      throw e;
+    } finally {
+      decompressor.end();
+    }
+    return range;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * The compressed offset of the start of the range that is being read (the
+   * length of the file at the end).
+   */
+  @Override
+  public long getPos() {
+    if (currentIndex < 0) {
+      return 0;
+    }
+    return currentIndex == resumeAt.length
+        ? length : boundaries[currentIndex];
+  }
+
+  /**
+   * Not supported; every range has its own decompressor.
+   */
+  @Override
+  public void resetState() throws IOException {
+    throw new IOException("A " + getClass().getSimpleName()
+        + " cannot be reset");
+  }
+
+  /**
+   * Stop the ranges that have not been started yet, give the buffers of the
+   * finished ranges back to the {@link BufferPool} and close the file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      for (ForkJoinTask<Range> task : pending) {
+        if (!task.cancel(false) && task.isDone()
+            && !task.isCompletedAbnormally()) {
+          try {
+            task.join().release();
+          } catch (CancellationException e) {
+            // Nothing to give back
+          }
+        }
+      }
+      pending.clear();
+      if (current != null) {
+        current.release();
+        current = null;
+      }
+    } finally {
+      super.close();
+    }
+  }
+
+  // -------------------------------------------
+
+  /**
+   * The uncompressed data of a range in blocks from the {@link BufferPool};
+   * all blocks are full except the last one.
+   */
+  private static final class Range {
+    private final List<byte[]> blocks = new ArrayList<>();
+    private int lastLength = 0;
+
+    void add(final byte[] data, final int dataLength) {
+      if (dataLength == 0) {
+        BufferPool.getInstance().give(data);
+        return;
+      }
+      blocks.add(data);
+      lastLength = dataLength;
+    }
+
+    int length(final int index) {
+      return index == blocks.size() - 1
+          ? lastLength : blocks.get(index).length;
+    }
+
+    void release() {
+      for (byte[] data : blocks) {
+        BufferPool.getInstance().give(data);
+      }
+      blocks.clear();
+    }
+  }
+
+  /**
+   * A Seekable stream of positioned reads so that all ranges can read the
+   * same file at the same time.
+   */
+  private static final class RangeInputStream extends InputStream
+      implements Seekable {
+    private final PositionedReadable file;
+    private long position = 0;
+
+    RangeInputStream(final PositionedReadable file) {
+      this.file = file;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      final int n;
+      try {
+        n = file.read(position, b, off, len);
+      } catch (EOFException e) {
+        return -1;
+      }
+      if (n > 0) {
+        position += n;
+      }
+      return n;
+    }
+
+    @Override
+    public void seek(final long pos) {
+      position = pos;
+    }
+
+    @Override
+    public long getPos() {
+      return position;
+    }
+
+    @Override
+    public boolean seekToNewSource(final long targetPos) {
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,521 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+
+/**
+ * Writes a gzip file while deflating on several threads (like pigz).<br>
+ * The data is cut into chunks that are deflated in parallel (on a shared pool
+ * of daemon threads). Each chunk uses the last 32 KiB of the previous chunk as
+ * its dictionary so the compression ratio is almost the same as that of a
+ * single deflate stream. All chunks except the last end with a sync flush
+ * (an empty stored block) so they can simply be concatenated; the CRC32 of the
+ * member is combined from the CRC32s of the chunks.<br>
+ * The result is a single standard gzip member that can be read by any gzip
+ * tool (and by the {@link SplittableGzipCodec}).<br>
+ * <br>
+ * With an index interval a chunk that starts at least that many uncompressed
+ * bytes after the previous checkpoint does NOT get a dictionary (this is a
+ * full flush point). Decompressing can start at such a point without any
+ * preceding data, so it is recorded as a checkpoint without a window. On
+ * finish() all checkpoints are written as an embedded {@link GzipIndex} (an
+ * extra gzip member without data) that a split uses to start close to its
+ * start. The offsets are relative to the start of this stream so it must
+ * write the entire file.<br>
+ * <br>
+ * NOTE: flush() only writes the chunks that are complete; the data of the
+ * chunk that is being filled is only written when it is full or on finish().
+ */
+public class ParallelGzipOutputStream extends CompressionOutputStream {
+
+  /**
+   * The size of the deflate window (and of the dictionary of each chunk).
+   */
+  public static final int DICTIONARY_SIZE = 32 * 1024;
+
+  private static final ExecutorService DEFLATERS =
+      Executors.newCachedThreadPool(runnable -> {
+        final Thread thread =
+            new Thread(runnable, "SplittableGzip deflater");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // Each thread of the pool reuses its own Deflater (one per level because
+  // changing the level of a Deflater can drop the dictionary).
+  private static final ThreadLocal<Deflater[]> DEFLATER =
+      ThreadLocal.withInitial(
+          () -> new Deflater[Deflater.BEST_COMPRESSION + 2]);
+
+  // ID1 ID2 CM FLG MTIME(4) XFL OS(unknown)
+  private static final byte[] HEADER =
+      {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private final int level;
+  private final int threads;
+  private final int chunkSize;
+  private final long indexInterval;
+
+  // The chunks that are being deflated (in the order of the data).
+  private final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+
+  private byte[] input = null;
+  private int inputLength = 0;
+  private byte[] dictionary = null;
+  private int dictionaryLength = 0;
+
+  private boolean headerWritten = false;
+  private boolean finished = false;
+  private int crc = 0;
+  private long uncompressedSize = 0;
+
+  // The offsets in the entire stream (for the index).
+  private long written = 0;
+  private long totalUncompressed = 0;
+  private long lastCheckpoint = 0;
+  private final List<DeflateCheckpoint> checkpoints = new ArrayList<>();
+
+  // -------------------------------------------
+
+  /**
+   * @param out The stream the gzip data is written to.
+   * @param level The compression level (0-9 or -1 for the default).
+   * @param threads The maximum number of chunks that are deflated at the
+   *                same time.
+   * @param chunkSize The number of uncompressed bytes per chunk (at least
+   *                  {@value #DICTIONARY_SIZE}).
+   */
+  public ParallelGzipOutputStream(final OutputStream out, final int level,
+      final int threads, final int chunkSize) {
+    this(out, level, threads, chunkSize, 0);
+  }
+
+  /**
+   * @param out The stream the gzip data is written to.
+   * @param level The compression level (0-9 or -1 for the default).
+   * @param threads The maximum number of chunks that are deflated at the
+   *                same time.
+   * @param chunkSize The number of uncompressed bytes per chunk (at least
+   *                  {@value #DICTIONARY_SIZE}).
+   * @param indexInterval The minimal number of uncompressed bytes between two
+   *                      checkpoints in the embedded index (0 = no index).
+   */
+  public ParallelGzipOutputStream(final OutputStream out, final int level,
+      final int threads, final int chunkSize, final long indexInterval) {
+    super(out);
+    if (level < Deflater.DEFAULT_COMPRESSION
+        || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Illegal compression level " + level);
+    }
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Illegal number of threads "
+          + threads);
+    }
+    if (chunkSize < DICTIONARY_SIZE) {
+      throw new IllegalArgumentException("Illegal chunkSize " + chunkSize
+          + " (minimum is " + DICTIONARY_SIZE + ")");
+    }
+    this.level = level;
+    this.threads = threads;
+    this.chunkSize = chunkSize;
+    this.indexInterval = Math.max(0, indexInterval);
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public void write(final int b) throws IOException {
+    startChunk();
+    input[inputLength++] = (byte) b;
+    if (inputLength == chunkSize) {
+      submit(false);
+    }
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len)
+    throws IOException {
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    }
+    int offset = off;
+    int remaining = len;
+    while (remaining > 0) {
+      startChunk();
+      final int bytes = Math.min(remaining, chunkSize - inputLength);
+      System.arraycopy(b, offset, input, inputLength, bytes);
+      inputLength += bytes;
+      offset += bytes;
+      remaining -= bytes;
+      if (inputLength == chunkSize) {
+        submit(false);
+      }
+    }
+  }
+
+  /**
+   * Write all chunks that are complete (waiting for them to be deflated) and
+   * flush the underlying stream.
+   */
+  @Override
+  public void flush() throws IOException {
+    writeChunks(true);
+    out.flush();
+  }
+
+  /**
+   * Deflate the remaining data and write the gzip trailer (and the embedded
+   * index). The underlying stream is not closed.
+   */
+  @Override
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    startChunk();
+    submit(true);
+    writeChunks(true);
+    final byte[] trailer = new byte[8];
+    writeIntLE(trailer, 0, crc);
+    writeIntLE(trailer, 4, (int) uncompressedSize);
+    writeOut(trailer, 0, trailer.length);
+    if (indexInterval > 0) {
+      final byte[] index = GzipIndex.createEmbedded(checkpoints);
+      writeOut(index, 0, index.length);
+    }
+    finished = true;
+  }
+
+  /**
+   * @return the checkpoints (full flush points and member starts) that have
+   * been written so far (only with an index interval).
+   */
+  public List<DeflateCheckpoint> getCheckpoints() {
+    return Collections.unmodifiableList(checkpoints);
+  }
+
+  /**
+   * Start a new gzip member (after the current one was finished).
+   */
+  @Override
+  public void resetState() throws IOException {
+    if (headerWritten && !finished) {
+      finish();
+    }
+    headerWritten = false;
+    finished = false;
+    crc = 0;
+    uncompressedSize = 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      final BufferPool pool = BufferPool.getInstance();
+      pool.give(input);
+      pool.give(dictionary);
+      input = null;
+      dictionary = null;
+    }
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Make sure there is a chunk to fill (and the gzip header was written).
+   */
+  private void startChunk() throws IOException {
+    if (finished) {
+      throw new IOException("write beyond end of stream");
+    }
+    if (!headerWritten) {
+      if (indexInterval > 0 && written > 0) {
+        checkpoints.add(
+            DeflateCheckpoint.memberStart(written, totalUncompressed));
+        lastCheckpoint = totalUncompressed;
+      }
+      writeOut(HEADER, 0, HEADER.length);
+      headerWritten = true;
+    }
+    if (input == null) {
+      input = BufferPool.getInstance().take(chunkSize);
+      inputLength = 0;
+    }
+  }
+
+  /**
+   * Hand the current chunk to the pool of deflaters.
+   */
+  private void submit(final boolean last) throws IOException {
+    while (pending.size() >= threads) {
+      writeChunk(pending.remove());
+    }
+    writeChunks(false);
+
+    long checkpoint = -1;
+    if (indexInterval > 0 && dictionary != null
+        && totalUncompressed - lastCheckpoint >= indexInterval) {
+      // Without the dictionary this chunk can be decompressed on its own.
+      BufferPool.getInstance().give(dictionary);
+      dictionary = null;
+      dictionaryLength = 0;
+      checkpoint = totalUncompressed;
+      lastCheckpoint = totalUncompressed;
+    }
+
+    final Chunk chunk = new Chunk(input, inputLength, dictionary,
+        dictionaryLength, level, last, chunkSize, checkpoint);
+    pending.add(DEFLATERS.submit(chunk));
+    uncompressedSize += inputLength;
+    totalUncompressed += inputLength;
+
+    if (last) {
+      dictionary = null;
+      dictionaryLength = 0;
+    } else {
+      // The end of this chunk is the dictionary of the next one.
+      dictionary = BufferPool.getInstance().take(DICTIONARY_SIZE);
+      dictionaryLength = Math.min(DICTIONARY_SIZE, inputLength);
+      System.arraycopy(input, inputLength - dictionaryLength,
+          dictionary, 0, dictionaryLength);
+    }
+    input = null;
+    inputLength = 0;
+  }
+
+  /**
+   * Write the deflated chunks (in order).
+   * @param wait Wait for all of them; else stop at the first chunk that is
+   *             still being deflated.
+   */
+  private void writeChunks(final boolean wait) throws IOException {
+    while (!pending.isEmpty() && (wait || pending.peek().isDone())) {
+      writeChunk(pending.remove());
+    }
+  }
+
+  private void writeChunk(final Future<Chunk> future) throws IOException {
+    final Chunk chunk;
+    try {
+      chunk = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while deflating");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    if (chunk.checkpoint >= 0) {
+      // The previous chunk ended with a sync flush: this is a byte boundary.
+      checkpoints.add(DeflateCheckpoint.blockBoundary(written, 0,
+          chunk.checkpoint, null));
+    }
+    writeOut(chunk.output, 0, chunk.outputLength);
+    crc = crc32Combine(crc, chunk.crc, chunk.length);
+    final BufferPool pool = BufferPool.getInstance();
+    pool.give(chunk.input);
+    pool.give(chunk.dictionary);
+    if (chunk.output.length == getOutputSize(chunkSize)) {
+      pool.give(chunk.output); // Not if it had to grow
+    }
+  }
+
+  private void writeOut(final byte[] b, final int off, final int len)
+    throws IOException {
+    out.write(b, off, len);
+    written += len;
+  }
+
+  private static void writeIntLE(final byte[] b, final int off,
+      final int value) {
+    b[off] = (byte) value;
+    b[off + 1] = (byte) (value >>> 8);
+    b[off + 2] = (byte) (value >>> 16);
+    b[off + 3] = (byte) (value >>> 24);
+  }
+
+  /**
+   * The deflated size of a chunk is almost never more than this (stored
+   * blocks cost 5 bytes per 16 KiB).
+   */
+  private static int getOutputSize(final int chunkSize) {
+    return chunkSize + (chunkSize >> 8) + 64;
+  }
+
+  // -------------------------------------------
+
+  /**
+   * The deflating (and CRC32) of a single chunk.
+   */
+  private static final class Chunk implements Callable<Chunk> {
+    private final byte[] input;
+    private final int length;
+    private final byte[] dictionary;
+    private final int dictionaryLength;
+    private final int level;
+    private final boolean last;
+    private final long checkpoint;
+    private byte[] output;
+    private int outputLength = 0;
+    private int crc;
+
+    Chunk(final byte[] input, final int length, final byte[] dictionary,
+        final int dictionaryLength, final int level, final boolean last,
+        final int chunkSize, final long checkpoint) {
+      this.input = input;
+      this.length = length;
+      this.dictionary = dictionary;
+      this.dictionaryLength = dictionaryLength;
+      this.level = level;
+      this.last = last;
+      this.checkpoint = checkpoint;
+      this.output = BufferPool.getInstance().take(getOutputSize(chunkSize));
+    }
+
+    @Override
+    public Chunk call() {
+      final CRC32 crc32 = new CRC32();
+      crc32.update(input, 0, length);
+      crc = (int) crc32.getValue();
+
+      final Deflater[] deflaters = DEFLATER.get();
+      if (deflaters[level + 1] == null) {
+        deflaters[level + 1] = new Deflater(level, true);
+      }
+      final Deflater deflater = deflaters[level + 1];
+      deflater.reset();
+      if (dictionaryLength > 0) {
+        deflater.setDictionary(dictionary, 0, dictionaryLength);
+      }
+      deflater.setInput(input, 0, length);
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          deflate(deflater, Deflater.NO_FLUSH);
+        }
+      } else {
+        // A full output buffer means there may be more output.
+        boolean full;
+        do {
+          full = deflate(deflater, Deflater.SYNC_FLUSH);
+        } while (full);
+      }
+      return this;
+    }
+
+    /**
+     * @return true if the output buffer was filled completely.
+     */
+    private boolean deflate(final Deflater deflater, final int flush) {
+      if (outputLength == output.length) {
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+      final int space = output.length - outputLength;
+      final int bytes =
+          deflater.deflate(output, outputLength, space, flush);
+      outputLength += bytes;
+      return bytes == space;
+    }
+  }
+
+  // -------------------------------------------
+
+  private static final int CRC32_POLYNOMIAL = 0xedb88320; // Reversed
+  private static final int[] X2N = new int[32];
+
+  static {
+    int p = 1 << 30; // x^1
+    X2N[0] = p;
+    for (int n = 1; n < X2N.length; n++) {
+      p = multModP(p, p);
+      X2N[n] = p;
+    }
+  }
+
+  /**
+   * The CRC32 of two concatenated blocks of data (the same as crc32_combine
+   * of zlib).
+   *
+   * @param crc1 The CRC32 of the first block.
+   * @param crc2 The CRC32 of the second block.
+   * @param length2 The length of the second block.
+   * @return the CRC32 of both blocks.
+   */
+  static int crc32Combine(final int crc1, final int crc2, final long length2) {
+    return multModP(x2nModP(length2, 3), crc1) ^ crc2;
+  }
+
+  /**
+   * a * b modulo the CRC32 polynomial (with reflected bits).
+   */
+  private static int multModP(final int a, final int b) {
+    int m = 1 << 31;
+    int p = 0;
+    int bb = b;
+    while (true) {
+      if ((a & m) != 0) {
+        p ^= bb;
+        if ((a & (m - 1)) == 0) {
+          break;
+        }
+      }
+      m >>>= 1;
+      bb = (bb & 1) != 0 ? (bb >>> 1) ^ CRC32_POLYNOMIAL : bb >>> 1;
+    }
+    return p;
+  }
+
+  /**
+   * x^(n * 2^k) modulo the CRC32 polynomial.
+   */
+  private static int x2nModP(final long n, final int k) {
+    int p = 1 << 31; // x^0
+    long remaining = n;
+    int kk = k;
+    while (remaining != 0) {
+      if ((remaining & 1) != 0) {
+        p = multModP(X2N[kk & 31], p);
+      }
+      remaining >>>= 1;
+      kk++;
+    }
+    return p;
+  }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * Reads the compressed input in large blocks while the previous block is
+ * being decompressed.<br>
+ * On object stores (S3A, ABFS) and remote datanodes each read of the
+ * underlying stream can be a round trip; reading a few KiB at a time makes
+ * skipping to the start of a split IO bound. This stream always has one read
+ * of a large block outstanding (on a shared pool of daemon threads) so the
+ * small reads of the decompressor are served from memory.<br>
+ * Seeking within the current block is free; any other seek waits for the
+ * outstanding read and seeks the underlying stream.<br>
+ * The blocks come from the {@link BufferPool} and are given back on close.
+ */
+final class ReadAheadInputStream extends InputStream implements Seekable {
+
+  private static final ExecutorService READERS =
+      Executors.newCachedThreadPool(runnable -> {
+        final Thread thread =
+            new Thread(runnable, "SplittableGzip read-ahead");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final InputStream in;
+  private final int blockSize;
+
+  private byte[] current = null;
+  private int currentLength = 0;
+  private int currentOffset = 0;
+  // The position of the next byte that is returned.
+  private long pos;
+
+  // The outstanding read (into next) of the block after the current one.
+  private Future<Integer> pending = null;
+  private byte[] next = null;
+  private boolean eof = false;
+
+  // -------------------------------------------
+
+  /**
+   * @param in The underlying stream; reading starts at its current position.
+   * @param blockSize The size of each read of the underlying stream.
+   * @throws IOException In case of an IO problem
+   */
+  ReadAheadInputStream(final InputStream in, final int blockSize)
+    throws IOException {
+    this.in = in;
+    this.blockSize = blockSize;
+    this.pos = in instanceof Seekable ? ((Seekable) in).getPos() : 0;
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+    throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (currentOffset >= currentLength && !nextBlock()) {
+      return -1;
+    }
+    final int bytes = Math.min(len, currentLength - currentOffset);
+    System.arraycopy(current, currentOffset, b, off, bytes);
+    currentOffset += bytes;
+    pos += bytes;
+    return bytes;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (currentOffset >= currentLength && !nextBlock()) {
+      return -1;
+    }
+    pos++;
+    return current[currentOffset++] & 0xFF;
+  }
+
+  @Override
+  public int available() {
+    return currentLength - currentOffset;
+  }
+
+  /**
+   * Make the block that was read ahead the current block and start reading
+   * the one after it.
+   * @return false at the end of the input.
+   */
+  private boolean nextBlock() throws IOException {
+    while (!eof) {
+      if (pending == null) {
+        startRead();
+      }
+      final int bytesRead = awaitPending();
+      if (bytesRead == -1) {
+        eof = true;
+        return false;
+      }
+      // Swap the buffers and immediately read the block after this one.
+      final byte[] previous = current;
+      current = next;
+      currentLength = bytesRead;
+      currentOffset = 0;
+      next = previous;
+      startRead();
+      if (bytesRead > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void startRead() {
+    if (next == null) {
+      next = BufferPool.getInstance().take(blockSize);
+    }
+    final byte[] target = next;
+    pending = READERS.submit(() -> readBlock(target));
+  }
+
+  /**
+   * @return the number of bytes read (the entire block unless the end of the
+   * input was reached) or -1 at the end of the input.
+   */
+  private int readBlock(final byte[] target) throws IOException {
+    int total = 0;
+    while (total < target.length) {
+      final int bytesRead = in.read(target, total, target.length - total);
+      if (bytesRead == -1) {
+        return total == 0 ? -1 : total;
+      }
+      total += bytesRead;
+    }
+    return total;
+  }
+
+  private int awaitPending() throws IOException {
+    if (pending == null) {
+      return 0;
+    }
+    try {
+      final int bytesRead = pending.get();
+      pending = null;
+      return bytesRead;
+    } catch (InterruptedException e) {
+      // The read itself continues (and is waited for by close).
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading ahead");
+    } catch (ExecutionException e) {
+      pending = null;
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public void seek(final long target) throws IOException {
+    final long currentStart = pos - currentOffset;
+    if (current != null
+        && target >= currentStart && target <= currentStart + currentLength) {
+      currentOffset = (int) (target - currentStart);
+      pos = target;
+      return;
+    }
+    if (!(in instanceof Seekable)) {
+      throw new IOException("Unable to seek to " + target
+          + ": the underlying stream is not Seekable");
+    }
+    awaitPending(); // The underlying stream must not be used by two threads.
+    ((Seekable) in).seek(target);
+    currentLength = 0;
+    currentOffset = 0;
+    pos = target;
+    eof = false;
+  }
+
+  @Override
+  public long getPos() {
+    return pos;
+  }
+
+  @Override
+  public boolean seekToNewSource(final long targetPos) {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The underlying stream must not be closed while it is being read.
+    boolean interrupted = false;
+    while (pending != null) {
+      try {
+        pending.get();
+        pending = null;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      } catch (ExecutionException e) {
+        pending = null; // Nobody is interested in this anymore.
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    final BufferPool pool = BufferPool.getInstance();
+    pool.give(current);
+    pool.give(next);
+    current = null;
+    next = null;
+    currentLength = 0;
+    currentOffset = 0;
+    in.close();
+  }
+
+}
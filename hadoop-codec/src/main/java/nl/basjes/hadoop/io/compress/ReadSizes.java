@@ -0,0 +1,222 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The sizes a split stream reads with.<br>
+ * These used to all be io.file.buffer.size (4 KiB by default) which made it
+ * impossible to read with large blocks without also raising the minimum
+ * split size and the crawl distance. Each has its own setting; by default
+ * they are sized from the length of the split and the compression ratio.
+ * An io.file.buffer.size that was set explicitly (not the value from
+ * core-default.xml) is still used as the read size if that is not set.
+ * <ul>
+ * <li>The read size: the number of compressed bytes given to the
+ * decompressor at a time.</li>
+ * <li>The output size: the maximum number of decompressed bytes a single
+ * read returns while crawling (with the exact position a read returns what
+ * was asked for).</li>
+ * <li>The crawl distance: without the exact position the reading slows down
+ * to 1 byte at a time when this close to the start and the end of the
+ * split.</li>
+ * </ul>
+ */
+public final class ReadSizes {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReadSizes.class);
+
+  /**
+   * The number of compressed bytes that is given to the decompressor at a
+   * time (the size of its input buffer). 0 = an explicitly set
+   * io.file.buffer.size, else 1/8 of the split (rounded down to a power of 2)
+   * between 4 KiB and 256 KiB. This does not depend on the compression ratio
+   * because it is an amount of compressed data; the ratio only determines the
+   * output size.
+   */
+  public static final String READ_SIZE_KEY =
+      "io.compression.codec.splittablegzip.read.size";
+  public static final int READ_SIZE_DEFAULT = 0;
+
+  /**
+   * The maximum number of decompressed bytes a single read of a split
+   * returns while crawling. 0 = the read size times the compression ratio
+   * that was seen so far (at most 1 MiB).
+   */
+  public static final String OUTPUT_SIZE_KEY =
+      "io.compression.codec.splittablegzip.output.size";
+  public static final int OUTPUT_SIZE_DEFAULT = 0;
+
+  /**
+   * Without the exact position: crawl (read 1 byte at a time) when this
+   * close to the start and the end of the split. 0 = 110% of the read size.
+   * It is never less than the read size + 128 bytes because a single read
+   * must not cross the end of the split.
+   */
+  public static final String CRAWL_SIZE_KEY =
+      "io.compression.codec.splittablegzip.crawl.size";
+  public static final int CRAWL_SIZE_DEFAULT = 0;
+
+  // The smallest split that is accepted (and the smallest read size).
+  static final int MINIMUM_SPLIT_SIZE = 4 * 1024;
+
+  private static final int MAXIMUM_AUTO_READ_SIZE = 256 * 1024;
+  private static final int MAXIMUM_AUTO_OUTPUT_SIZE = 1024 * 1024;
+
+  // The compression ratio of typical text until one was seen.
+  private static final int ASSUMED_COMPRESSION_RATIO = 4;
+
+  // We start crawling when within 110% of the read size from the split.
+  private static final float CRAWL_FACTOR = 1.1F;
+
+  // Just to be sure we always crawl the last part a minimal crawling
+  // distance is defined here... 128 bytes works fine.
+  private static final int MINIMAL_CRAWL_DISTANCE = 128;
+
+  private static final String DEFAULT_RESOURCE = "core-default.xml";
+
+  private static final AtomicBoolean WARNED_BUFFER_SIZE = new AtomicBoolean();
+
+  private final int readSize;
+  private final int outputSize;
+  private final int crawlDistance;
+  private final long minimumSplitSize;
+
+  private ReadSizes(final int readSize, final int outputSize,
+      final int crawlDistance, final long minimumSplitSize) {
+    this.readSize = readSize;
+    this.outputSize = outputSize;
+    this.crawlDistance = crawlDistance;
+    this.minimumSplitSize = minimumSplitSize;
+  }
+
+  /**
+   * @param conf The configuration.
+   * @param length The length of the split (Long.MAX_VALUE if unknown).
+   * @return the sizes for a split of this length.
+   */
+  public static ReadSizes forSplit(final Configuration conf,
+      final long length) {
+    final int configured = getConfiguredReadSize(conf);
+    final int readSize = configured > 0 ? configured
+        : (int) Math.max(MINIMUM_SPLIT_SIZE, Math.min(MAXIMUM_AUTO_READ_SIZE,
+            Long.highestOneBit(Math.max(1, length / 8))));
+    final int crawlDistance = Math.max(
+        conf.getInt(CRAWL_SIZE_KEY, CRAWL_SIZE_DEFAULT),
+        Math.max(Math.round(CRAWL_FACTOR * readSize),
+            readSize + MINIMAL_CRAWL_DISTANCE));
+    return new ReadSizes(readSize,
+        Math.max(0, conf.getInt(OUTPUT_SIZE_KEY, OUTPUT_SIZE_DEFAULT)),
+        crawlDistance, getMinimumSplitSize(conf));
+  }
+
+  /**
+   * The smallest split the codec accepts (except the first split of a file).
+   * With the exact position a read never crosses the end of the split so
+   * this is fixed; when crawling a split must be at least one read.
+   *
+   * @param conf The configuration.
+   * @return the minimum split size.
+   */
+  public static long getMinimumSplitSize(final Configuration conf) {
+    if (conf.getBoolean(SplittableGzipCodec.EXACT_POSITION_KEY,
+        SplittableGzipCodec.EXACT_POSITION_DEFAULT)) {
+      return MINIMUM_SPLIT_SIZE;
+    }
+    return Math.max(MINIMUM_SPLIT_SIZE, getConfiguredReadSize(conf));
+  }
+
+  /**
+   * @return the configured read size, else io.file.buffer.size if that was
+   * set explicitly, else 0.
+   */
+  private static int getConfiguredReadSize(final Configuration conf) {
+    final int configured = conf.getInt(READ_SIZE_KEY, READ_SIZE_DEFAULT);
+    if (configured > 0) {
+      return configured;
+    }
+    final String key = CommonConfigurationKeysPublic.IO_FILE_BUFFER_SIZE_KEY;
+    final String[] sources = conf.getPropertySources(key);
+    if (sources == null || sources.length == 0
+        || DEFAULT_RESOURCE.equals(sources[sources.length - 1])) {
+      return 0;
+    }
+    final int bufferSize = conf.getInt(key,
+        CommonConfigurationKeysPublic.IO_FILE_BUFFER_SIZE_DEFAULT);
+    if (WARNED_BUFFER_SIZE.compareAndSet(false, true)) {
+      LOG.warn("Using {} = {} as the read size of the SplittableGzipCodec; "
+          + "this is deprecated, set {} instead.", key, bufferSize,
+          READ_SIZE_KEY);
+    }
+    return Math.max(0, bufferSize);
+  }
+
+  // -------------------------------------------
+
+  /**
+   * @return the number of compressed bytes given to the decompressor at a
+   * time.
+   */
+  public int getReadSize() {
+    return readSize;
+  }
+
+  /**
+   * @param compressed The compressed bytes read so far.
+   * @param uncompressed The decompressed bytes that came out of them.
+   * @return the maximum number of bytes a single read returns.
+   */
+  public int getOutputSize(final long compressed, final long uncompressed) {
+    if (outputSize > 0) {
+      return outputSize;
+    }
+    // A ratio from less than a single read says nothing.
+    final long ratio = compressed < readSize
+        ? ASSUMED_COMPRESSION_RATIO
+        : Math.max(1, uncompressed / compressed);
+    return (int) Math.max(readSize, Math.min(MAXIMUM_AUTO_OUTPUT_SIZE,
+        Long.highestOneBit(readSize * ratio)));
+  }
+
+  /**
+   * @return the distance before the end of the split where crawling starts.
+   */
+  public int getCrawlDistance() {
+    return crawlDistance;
+  }
+
+  /**
+   * @return the smallest split that is accepted.
+   */
+  public long getMinimumSplitSize() {
+    return minimumSplitSize;
+  }
+
+  @Override
+  public String toString() {
+    return "ReadSizes{read=" + readSize + ", output="
+        + (outputSize > 0 ? outputSize : "auto") + ", crawl=" + crawlDistance
+        + ", minimumSplit=" + minimumSplitSize + "}";
+  }
+
+}
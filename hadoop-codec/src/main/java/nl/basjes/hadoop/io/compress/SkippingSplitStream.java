@@ -0,0 +1,54 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * A split stream that must decompress (and discard) everything before the
+ * start of the split. This skipping is done at the first read and for a late
+ * split in a big file this can take minutes. During that time the task would
+ * otherwise look like it is not making any progress at all.
+ */
+public interface SkippingSplitStream {
+
+  /**
+   * @param progressable Is called regularly while skipping (may be null).
+   */
+  void setProgressable(Progressable progressable);
+
+  /**
+   * @return true if the stream has not yet arrived at the start of the split.
+   */
+  boolean isSkipping();
+
+  /**
+   * @return the fraction (0.0 - 1.0) of all compressed data this stream must
+   * read (the skipped part and the split itself) that has been read so far.
+   */
+  float getProgress();
+
+  /**
+   * Go to the start of the split now instead of at the first read.
+   *
+   * @throws IOException In case of an IO problem
+   */
+  void skipToStart() throws IOException;
+
+}
@@ -0,0 +1,627 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSnapshot;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.util.Progressable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.CRAWL_BYTES;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.CRAWL_INFLATE_CALLS;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SKIPPED_COMPRESSED_BYTES;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SKIPPED_UNCOMPRESSED_BYTES;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SKIP_TIME_MILLIS;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SPLIT_COMPRESSED_BYTES;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SPLIT_UNCOMPRESSED_BYTES;
+import static org.apache.hadoop.fs.statistics.IOStatisticsLogging.demandStringifyIOStatisticsSource;
+
+/**
+ * The stream of a single split of a compressed file that can only be read
+ * from the start. Everything before the start of the split is decompressed
+ * and discarded; the end of the split is found either with the read boundary
+ * of the {@link ThrottleableDecompressorStream} (the exact position) or by
+ * crawling (reading 1 byte at a time) near the end. Nothing in here depends
+ * on the compression format; the codec provides the stream (possibly resumed
+ * at a checkpoint).
+ */
+final class SplitDecompressorStream extends SplitCompressionInputStream
+    implements SkippingSplitStream, ByteBufferReadable, IOStatisticsSource {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SplitDecompressorStream.class);
+
+  // At what distance from the target do we HOLD the position reporting.
+  // 128 bytes works fine (same as minimal crawl distance).
+  private static final int POSITION_HOLD_DISTANCE = 128;
+
+  // When setting log4j into TRACE mode we will report massive amounts
+  // of info when this many bytes near the relevant areas.
+  private static final int TRACE_REPORTING_DISTANCE = 64;
+
+  // While fast forwarding: check for a better checkpoint every MiB.
+  private static final long CHECKPOINT_LOOKUP_INTERVAL = 1024 * 1024;
+
+  // The size of each buffer when decompressing in the background.
+  private static final int BACKGROUND_BUFFER_SIZE = 64 * 1024;
+
+  private final ThrottleableDecompressorStream in;
+  private final ReadSizes sizes;
+  private final int crawlDistance;
+  private final boolean exactPosition;
+
+  // -------------------------------------------
+
+  /**
+   * @param sizes The sizes to read with.
+   * @param exactPosition Use the read boundary instead of crawling.
+   * @param backgroundBuffers Decompress on a background thread with this
+   *                          many buffers (0 = do not do that).
+   * @param checkpoints Gives the best checkpoint where this stream can
+   *                    resume that another stream has passed (may be null).
+   */
+  SplitDecompressorStream(final CompressionInputStream inputStream,
+      final long start, final long end, final ReadSizes sizes,
+      final boolean exactPosition, final int backgroundBuffers,
+      final Supplier<DeflateCheckpoint> checkpoints)
+    throws IOException {
+    super(inputStream, start, end);
+
+    this.sizes = sizes;
+    final long minimumSplitSize = sizes.getMinimumSplitSize();
+
+    if (getAdjustedStart() > 0) { // If the entire file is really small (like 1000 bytes) we want to continue anyway.
+      if (getAdjustedEnd() - getAdjustedStart() < minimumSplitSize) {
+        throw new IllegalArgumentException("The provided InputSplit " +
+                "(" + getAdjustedStart() + ";" + getAdjustedEnd() + "] " +
+                "is " + (getAdjustedEnd() - getAdjustedStart()) + " bytes which is too small. " +
+                "(Minimum is " + minimumSplitSize + ")");
+      }
+    }
+
+    // We MUST have the option of slowing down the reading of data.
+    // This check will fail if someone creates a subclass that breaks this.
+    if (inputStream instanceof ThrottleableDecompressorStream) {
+      this.in = (ThrottleableDecompressorStream) inputStream;
+    } else {
+      this.in = null; // Permanently cripple this instance ('in' is final) .
+      throw new IOException("The SplitDecompressorStream relies on"
+          + " functionality in the ThrottleableDecompressorStream class.");
+    }
+
+    this.crawlDistance = sizes.getCrawlDistance();
+    this.exactPosition = exactPosition;
+
+    this.splitStart = start;
+    this.splitEnd = end;
+    this.checkpoints = checkpoints;
+    // NOTE: If the stream was resumed at a checkpoint getPos() already
+    // starts at the checkpoint instead of at 0.
+    this.firstPos = getRealPos();
+
+    if (start == 0) {
+      if (exactPosition) {
+        in.setReadBoundary(end);
+      }
+      arrivalPos = firstPos;
+    } else {
+      // The stream is read until we are at the start of this split at the
+      // first read. This way the caller can first set a Progressable.
+      skipPending = true;
+    }
+
+    if (backgroundBuffers > 0) {
+      if (exactPosition) {
+        // Skipping starts right away on the background thread.
+        pipeline = new DecompressionPipeline(in, this::skipToStartNow,
+            backgroundBuffers, BACKGROUND_BUFFER_SIZE,
+            "Split decompressor [" + start + "," + end + ")");
+      } else {
+        LOG.warn("Decompressing in the background is only possible with "
+            + SplittableGzipCodec.EXACT_POSITION_KEY + "=true");
+      }
+    }
+    SplitStreamEvents.created(start, end, firstPos, exactPosition,
+        pipeline == null ? 0 : backgroundBuffers);
+  }
+
+  // -------------------------------------------
+
+  private final long splitStart;
+  private final long splitEnd;
+  private final long firstPos;
+  private final Supplier<DeflateCheckpoint> checkpoints;
+  private volatile Progressable progressable = null;
+  private volatile boolean skipPending = false;
+  private volatile boolean skipping = false;
+  private DecompressionPipeline pipeline = null;
+
+  // The statistics; the skip may be done by the background thread.
+  private volatile long arrivalPos = -1;
+  private volatile long skippedCompressedBytes = 0;
+  private volatile long skippedUncompressedBytes = 0;
+  private volatile long skipMillis = 0;
+  private long crawlBytes = 0;
+  private long splitUncompressedBytes = 0;
+  private boolean endOfInput = false;
+
+  @Override
+  public void setProgressable(final Progressable newProgressable) {
+    this.progressable = newProgressable;
+  }
+
+  @Override
+  public boolean isSkipping() {
+    if (pipeline != null) {
+      return !pipeline.isPrepared();
+    }
+    return skipPending || skipping;
+  }
+
+  @Override
+  public float getProgress() {
+    final long total = splitEnd - firstPos;
+    if (total <= 0) {
+      return 1.0F;
+    }
+    final long pos =
+        pipeline == null ? getRealPos() : pipeline.getProducedPos();
+    final float progress = (pos - firstPos) / (float) total;
+    return Math.max(0.0F, Math.min(1.0F, progress));
+  }
+
+  @Override
+  public void skipToStart() throws IOException {
+    if (pipeline != null) {
+      pipeline.waitForData();
+      return;
+    }
+    skipToStartNow();
+  }
+
+  private void skipToStartNow() throws IOException {
+    if (!skipPending) {
+      return;
+    }
+    skipPending = false;
+    skipping = true;
+    final Object skipEvent = SplitStreamEvents.skipStarted();
+    final long fromPos = getRealPos();
+    final long startTime = System.nanoTime();
+    try {
+      skipToStart(splitStart, splitEnd);
+    } finally {
+      skipping = false;
+      skipMillis = (System.nanoTime() - startTime) / 1_000_000;
+      SplitStreamEvents.skipEnded(skipEvent, splitStart, fromPos,
+          getRealPos(), skippedCompressedBytes);
+    }
+  }
+
+  private void skipToStart(final long start, final long end)
+    throws IOException {
+    // Set the range we want to run over quickly (only needed for crawling;
+    // with the exact position another thread may be reading the range).
+    if (!exactPosition) {
+      setStart(0);
+      setEnd(start);
+    }
+
+    LOG.debug("SKIPPING to position :{}", start);
+
+    // First we discard everything as fast as possible up to the start (with
+    // the exact position) or to the crawl distance before the start.
+    // Because all of that is consumed before fastForward returns we arrive
+    // at exactly the same position as where the previous split stops.
+    final long fastForwardTarget =
+        exactPosition ? start : start - crawlDistance;
+    final long skipStartPos = getRealPos();
+    final long discardedBefore = in.getDiscardedBytes();
+    long jumped = 0;
+    while (getSkipPos() < fastForwardTarget) {
+      if (checkpoints != null) {
+        // Another stream may have gone ahead of us.
+        final DeflateCheckpoint checkpoint = checkpoints.get();
+        if (checkpoint != null
+            && checkpoint.getCompressedOffset() > getSkipPos()) {
+          LOG.debug("JUMPING to {}", checkpoint);
+          jumped += checkpoint.getCompressedOffset() - getRealPos();
+          in.resume(checkpoint);
+        }
+      }
+      final long before = getSkipPos();
+      in.fastForward(Math.min(fastForwardTarget,
+          before + CHECKPOINT_LOOKUP_INTERVAL));
+      final Progressable progress = progressable;
+      if (progress != null) {
+        progress.progress();
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Interrupted while skipping to "
+            + start);
+      }
+      if (getSkipPos() == before) {
+        break; // The end of the input; the read below will report it.
+      }
+    }
+
+    // The target buffer to dump the discarded info to while crawling.
+    final byte[] skippedBytes = exactPosition
+        ? null : BufferPool.getInstance().take(sizes.getReadSize());
+    try {
+      while (getSkipPos() < start) {
+        // This reads the input and decompresses the data.
+        if (exactPosition
+            || -1 == read(skippedBytes, 0, skippedBytes.length)) {
+          // An EOF while seeking for the START of the split !?!?
+          throw new EOFException("Unexpected end of input stream when"
+              + " seeking for the start of the split in"
+              + " SplitDecompressorStream:"
+              + " start=" + start + " adjustedStart=" + start + " position="
+              + getSkipPos());
+        }
+      }
+    } finally {
+      BufferPool.getInstance().give(skippedBytes);
+    }
+
+    LOG.debug("ARRIVED at target location({}): {}", start, getSkipPos());
+    arrivalPos = getRealPos();
+    skippedCompressedBytes = arrivalPos - skipStartPos - jumped;
+    // The bytes read while crawling to the start were counted by read().
+    skippedUncompressedBytes += in.getDiscardedBytes() - discardedBefore;
+    if (exactPosition) {
+      in.setReadBoundary(end);
+    }
+
+    // Now we put the real split range values back.
+    if (!exactPosition) {
+      setStart(start);
+      setEnd(end);
+    }
+
+    // Set the reporting back to normal
+    setPosState(POS_STATE.REPORT);
+  }
+
+  /**
+   * The position while skipping. With the exact position this is the
+   * position of the underlying stream, also when the skipping is done on a
+   * background thread.
+   */
+  private long getSkipPos() {
+    return exactPosition ? getRealPos() : getPos();
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Position reporting states.
+   */
+  enum POS_STATE {
+    REPORT, HOLD, SLOPE
+  }
+
+  private POS_STATE posState = POS_STATE.REPORT;
+
+  private void setPosState(final POS_STATE newState) {
+    if (posState != newState) {
+      SplitStreamEvents.positionState(splitEnd, getStateName(),
+          newState.name(), getRealPos(), reportedPos);
+      posState = newState;
+    }
+  }
+
+  /**
+   * What do we call this state?
+   *
+   * @return String with state name useful for logging and debugging.
+   */
+  private String getStateName() {
+    switch (posState) {
+    case REPORT:
+      return "REPORT";
+    case HOLD:
+      return "HOLD";
+    case SLOPE:
+      return "SLOPE";
+    default:
+      return "ERROR";
+    }
+  }
+
+  // The reported position used in the HOLD and SLOPE states.
+  private long reportedPos = 0;
+
+  @Override
+  public long getPos() {
+    if (pipeline != null) {
+      return pipeline.getPos();
+    }
+    if (posState == POS_STATE.REPORT) {
+      return getRealPos();
+    }
+    return reportedPos;
+  }
+
+  /**
+   * The getPos position of the underlying input stream.
+   *
+   * @return number of bytes that have been read from the compressed input.
+   */
+  private long getRealPos() {
+    return in.getBytesRead();
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+    throws IOException {
+    if (pipeline != null) {
+      if (splitStart >= splitEnd) {
+        return -1; // Nothing to read in this split at all --> indicate EOF
+      }
+      return count(pipeline.read(b, off, len));
+    }
+    skipToStart();
+    if (exactPosition) {
+      if (getAdjustedStart() >= getAdjustedEnd()) {
+        return -1; // Nothing to read in this split at all --> indicate EOF
+      }
+      // The read boundary makes the position exact; no need to slow down.
+      return count(in.read(b, off, len));
+    }
+
+    final long currentRealPos = getRealPos();
+    int maxBytesToRead = Math.min(getOutputSize(), len);
+
+    final long adjustedEnd = getAdjustedEnd();
+    final long adjustedStart = getAdjustedStart();
+    if (adjustedStart >= adjustedEnd) {
+      return -1; // Nothing to read in this split at all --> indicate EOF
+    }
+
+    final long distanceToEnd = adjustedEnd - currentRealPos;
+
+    if (distanceToEnd <= crawlDistance) {
+      // We go to a crawl as soon as we are close to the end (or over it).
+      maxBytesToRead = 1;
+
+      // We're getting close
+      switch (posState) {
+      case REPORT:
+        // If we are within 128 bytes of the end we freeze the current value.
+        if (distanceToEnd <= POSITION_HOLD_DISTANCE) {
+          reportedPos = currentRealPos;
+          setPosState(POS_STATE.HOLD);
+          LOG.trace("STATE REPORT --> HOLD @ {}", currentRealPos);
+        }
+        break;
+
+      case HOLD:
+        // When we are ON/AFTER the real "end" then we start the slope.
+        // If we start too early the last split may lose the last record(s).
+        if (distanceToEnd <= 0) {
+          setPosState(POS_STATE.SLOPE);
+          LOG.trace("STATE HOLD --> SLOPE @ {}", currentRealPos);
+        }
+        break;
+
+      case SLOPE:
+        // We are reading 1 byte at a time and reporting 1 byte at a time.
+        ++reportedPos;
+        break;
+
+      default:
+        break;
+      }
+
+    } else {
+      // At a distance we always do normal reporting
+      // Set the state explicitly: the "end" value can change.
+      setPosState(POS_STATE.REPORT);
+    }
+
+    // Debugging facility
+    if (LOG.isTraceEnabled()) {
+      // When tracing do the first few bytes at crawl speed too.
+      final long distanceFromStart = currentRealPos - adjustedStart;
+      if (distanceFromStart <= TRACE_REPORTING_DISTANCE) {
+        maxBytesToRead = 1;
+      }
+    }
+
+    // Set the input read step to tune the disk reads to the wanted speed:
+    // crawl or give the decompressor the full read size.
+    in.setReadStep(maxBytesToRead == 1 ? 1 : 0);
+
+    // Actually read the information.
+    final int bytesRead = count(in.read(b, off, maxBytesToRead));
+    if (maxBytesToRead == 1 && bytesRead > 0) {
+      crawlBytes += bytesRead;
+    }
+
+    // Debugging facility
+    if (LOG.isTraceEnabled()) {
+      if (bytesRead == -1) {
+        LOG.trace("End-of-File");
+      } else {
+        // Report massive info on the LAST 64 bytes of the split
+        if (getPos() >= getAdjustedEnd() - TRACE_REPORTING_DISTANCE
+            && bytesRead < 10) {
+          traceRead("TAIL", b, off, bytesRead);
+        }
+
+        // Report massive info on the FIRST 64 bytes of the split
+        if (getPos() <= getAdjustedStart() + TRACE_REPORTING_DISTANCE
+            && bytesRead < 10) {
+          traceRead("HEAD", b, off, bytesRead);
+        }
+      }
+    }
+
+    return bytesRead;
+  }
+
+  /**
+   * @return the maximum number of bytes a read returns while crawling,
+   * based on the compression ratio of the split so far.
+   */
+  private int getOutputSize() {
+    final long arrived = arrivalPos;
+    return sizes.getOutputSize(arrived < 0 ? 0 : getRealPos() - arrived,
+        splitUncompressedBytes);
+  }
+
+  /**
+   * Only the bytes that were read (not the entire buffer) are converted.
+   */
+  private void traceRead(final String where, final byte[] b, final int off,
+      final int bytesRead) {
+    final String bytes = new String(b, off, bytesRead, UTF_8);
+    LOG.trace("READ {} {} bytes ({} pos = {}/{}): ##{}## HEX:##{}##",
+              where, bytesRead, getStateName(), getPos(), getRealPos(),
+              bytes, Hex.encodeHexString(bytes.getBytes(UTF_8)));
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public void resetState() throws IOException {
+    in.resetState();
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public int read() throws IOException {
+    final int value;
+    if (pipeline != null) {
+      value = pipeline.read();
+    } else {
+      skipToStart();
+      value = in.read();
+    }
+    count(value == -1 ? -1 : 1);
+    return value;
+  }
+
+  /**
+   * Read straight into the buffer. With the {@link DirectGzipDecompressor}
+   * and the exact position (and not in the background) nothing is copied.
+   */
+  @Override
+  public int read(final ByteBuffer buf) throws IOException {
+    if (pipeline != null || !exactPosition) {
+      if (!buf.hasRemaining()) {
+        return 0;
+      }
+      if (transferBuffer == null) {
+        transferBuffer = BufferPool.getInstance().take(getOutputSize());
+      }
+      final int n = read(transferBuffer, 0,
+          Math.min(transferBuffer.length, buf.remaining()));
+      if (n > 0) {
+        buf.put(transferBuffer, 0, n);
+      }
+      return n;
+    }
+    skipToStart();
+    if (getAdjustedStart() >= getAdjustedEnd()) {
+      return -1; // Nothing to read in this split at all --> indicate EOF
+    }
+    return count(in.read(buf));
+  }
+
+  private byte[] transferBuffer = null;
+
+  private boolean closed = false;
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (pipeline != null) {
+      pipeline.close();
+    }
+    BufferPool.getInstance().give(transferBuffer);
+    transferBuffer = null;
+    LOG.debug("Closing split [{},{}): {}", splitStart, splitEnd,
+        demandStringifyIOStatisticsSource(this));
+    SplitStreamEvents.ended(splitStart, splitEnd, getRealPos(),
+        splitUncompressedBytes, endOfInput);
+    super.close();
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Count the decompressed bytes that were read (either skipped or part of
+   * the split).
+   */
+  private int count(final int bytesRead) {
+    if (bytesRead > 0) {
+      if (skipping) {
+        skippedUncompressedBytes += bytesRead;
+      } else {
+        splitUncompressedBytes += bytesRead;
+      }
+    } else if (bytesRead == -1) {
+      endOfInput = true;
+    }
+    return bytesRead;
+  }
+
+  /**
+   * @return the statistics of this stream (see
+   * {@link SplittableGzipStatisticNames}).
+   */
+  @Override
+  public IOStatistics getIOStatistics() {
+    final long arrived = arrivalPos;
+    final long pos = pipeline == null ? getRealPos() : pipeline.getPos();
+    final IOStatisticsSnapshot statistics = new IOStatisticsSnapshot();
+    statistics.setCounter(SKIPPED_COMPRESSED_BYTES, skippedCompressedBytes);
+    statistics.setCounter(SKIPPED_UNCOMPRESSED_BYTES,
+        skippedUncompressedBytes);
+    statistics.setCounter(SKIP_TIME_MILLIS, skipMillis);
+    statistics.setCounter(CRAWL_BYTES, crawlBytes);
+    statistics.setCounter(CRAWL_INFLATE_CALLS, in.getSingleByteReads());
+    statistics.setCounter(SPLIT_COMPRESSED_BYTES,
+        arrived < 0 ? 0 : Math.max(0, pos - arrived));
+    statistics.setCounter(SPLIT_UNCOMPRESSED_BYTES, splitUncompressedBytes);
+    return statistics;
+  }
+
+  // -------------------------------------------
+}
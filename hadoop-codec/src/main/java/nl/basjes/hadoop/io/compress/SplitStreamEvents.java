@@ -0,0 +1,272 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events of the streams of the
+ * {@link SplittableGzipCodec}: the creation of the stream, the skip to the
+ * start of the split, the changes of the position reporting state (while
+ * crawling) and the end of the split.<br>
+ * Record them in a running task with
+ * <pre>
+ * jcmd &lt;pid&gt; JFR.start name=gzip filename=gzip.jfr
+ * </pre>
+ * There are only a few of these events per split so they cost nothing
+ * noticeable (also when recording). If the JVM does not have the jdk.jfr
+ * module nothing is recorded at all.
+ */
+final class SplitStreamEvents {
+
+  private static final boolean AVAILABLE = isJfrAvailable();
+
+  private SplitStreamEvents() {
+  }
+
+  private static boolean isJfrAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  // -------------------------------------------
+
+  static void created(final long splitStart, final long splitEnd,
+      final long startPosition, final boolean exactPosition,
+      final int backgroundBuffers) {
+    if (AVAILABLE) {
+      Events.created(splitStart, splitEnd, startPosition, exactPosition,
+          backgroundBuffers);
+    }
+  }
+
+  /**
+   * @return what must be passed to
+   * {@link #skipEnded(Object, long, long, long, long)} (null if there is no
+   * recording of this event).
+   */
+  static Object skipStarted() {
+    return AVAILABLE ? Events.skipStarted() : null;
+  }
+
+  static void skipEnded(final Object skip, final long splitStart,
+      final long fromPosition, final long toPosition,
+      final long skippedCompressedBytes) {
+    if (skip != null) {
+      Events.skipEnded(skip, splitStart, fromPosition, toPosition,
+          skippedCompressedBytes);
+    }
+  }
+
+  static void positionState(final long splitEnd, final String fromState,
+      final String toState, final long realPosition,
+      final long reportedPosition) {
+    if (AVAILABLE) {
+      Events.positionState(splitEnd, fromState, toState, realPosition,
+          reportedPosition);
+    }
+  }
+
+  static void ended(final long splitStart, final long splitEnd,
+      final long position, final long splitUncompressedBytes,
+      final boolean endOfInput) {
+    if (AVAILABLE) {
+      Events.ended(splitStart, splitEnd, position, splitUncompressedBytes,
+          endOfInput);
+    }
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Only this class refers to the jdk.jfr classes.
+   */
+  private static final class Events {
+
+    private Events() {
+    }
+
+    static void created(final long splitStart, final long splitEnd,
+        final long startPosition, final boolean exactPosition,
+        final int backgroundBuffers) {
+      final StreamCreated event = new StreamCreated();
+      if (event.isEnabled()) {
+        event.splitStart = splitStart;
+        event.splitEnd = splitEnd;
+        event.startPosition = startPosition;
+        event.exactPosition = exactPosition;
+        event.backgroundBuffers = backgroundBuffers;
+        event.commit();
+      }
+    }
+
+    static Object skipStarted() {
+      final Skip event = new Skip();
+      if (!event.isEnabled()) {
+        return null;
+      }
+      event.begin();
+      return event;
+    }
+
+    static void skipEnded(final Object skip, final long splitStart,
+        final long fromPosition, final long toPosition,
+        final long skippedCompressedBytes) {
+      final Skip event = (Skip) skip;
+      event.end();
+      event.splitStart = splitStart;
+      event.fromPosition = fromPosition;
+      event.toPosition = toPosition;
+      event.skippedCompressedBytes = skippedCompressedBytes;
+      event.commit();
+    }
+
+    static void positionState(final long splitEnd, final String fromState,
+        final String toState, final long realPosition,
+        final long reportedPosition) {
+      final PositionState event = new PositionState();
+      if (event.isEnabled()) {
+        event.splitEnd = splitEnd;
+        event.fromState = fromState;
+        event.toState = toState;
+        event.realPosition = realPosition;
+        event.reportedPosition = reportedPosition;
+        event.commit();
+      }
+    }
+
+    static void ended(final long splitStart, final long splitEnd,
+        final long position, final long splitUncompressedBytes,
+        final boolean endOfInput) {
+      final SplitEnded event = new SplitEnded();
+      if (event.isEnabled()) {
+        event.splitStart = splitStart;
+        event.splitEnd = splitEnd;
+        event.position = position;
+        event.splitUncompressedBytes = splitUncompressedBytes;
+        event.endOfInput = endOfInput;
+        event.commit();
+      }
+    }
+  }
+
+  // -------------------------------------------
+
+  @Name("nl.basjes.splittablegzip.StreamCreated")
+  @Label("Split Stream Created")
+  @Category({"Hadoop", "Splittable Gzip"})
+  @Description("A stream that reads a split of a gzip file was created")
+  @StackTrace(false)
+  static final class StreamCreated extends Event {
+    @Label("Split Start")
+    long splitStart;
+
+    @Label("Split End")
+    long splitEnd;
+
+    @Label("Start Position")
+    @Description("Where decompressing starts (0 or a checkpoint)")
+    long startPosition;
+
+    @Label("Exact Position")
+    boolean exactPosition;
+
+    @Label("Background Buffers")
+    int backgroundBuffers;
+  }
+
+  @Name("nl.basjes.splittablegzip.Skip")
+  @Label("Skip To Split Start")
+  @Category({"Hadoop", "Splittable Gzip"})
+  @Description("Decompressing (and throwing away) everything before the "
+      + "start of the split")
+  @StackTrace(false)
+  static final class Skip extends Event {
+    @Label("Split Start")
+    long splitStart;
+
+    @Label("From Position")
+    long fromPosition;
+
+    @Label("To Position")
+    long toPosition;
+
+    @Label("Skipped Compressed Bytes")
+    @Description("Excluding the parts that were jumped over with a checkpoint")
+    @DataAmount
+    long skippedCompressedBytes;
+  }
+
+  @Name("nl.basjes.splittablegzip.PositionState")
+  @Label("Position State Change")
+  @Category({"Hadoop", "Splittable Gzip"})
+  @Description("The reporting of the position while crawling near the end "
+      + "of the split changed (REPORT, HOLD or SLOPE)")
+  @StackTrace(false)
+  static final class PositionState extends Event {
+    @Label("Split End")
+    long splitEnd;
+
+    @Label("From State")
+    String fromState;
+
+    @Label("To State")
+    String toState;
+
+    @Label("Real Position")
+    long realPosition;
+
+    @Label("Reported Position")
+    long reportedPosition;
+  }
+
+  @Name("nl.basjes.splittablegzip.SplitEnded")
+  @Label("Split Stream Closed")
+  @Category({"Hadoop", "Splittable Gzip"})
+  @Description("The stream that read a split of a gzip file was closed")
+  @StackTrace(false)
+  static final class SplitEnded extends Event {
+    @Label("Split Start")
+    long splitStart;
+
+    @Label("Split End")
+    long splitEnd;
+
+    @Label("Position")
+    long position;
+
+    @Label("Split Uncompressed Bytes")
+    @DataAmount
+    long splitUncompressedBytes;
+
+    @Label("End Of Input")
+    @Description("The end of the gzip file was reached")
+    boolean endOfInput;
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static nl.basjes.hadoop.io.compress.SplittableGzipCodec.BACKGROUND_BUFFERS_DEFAULT;
+import static nl.basjes.hadoop.io.compress.SplittableGzipCodec.BACKGROUND_BUFFERS_KEY;
+import static nl.basjes.hadoop.io.compress.SplittableGzipCodec.EXACT_POSITION_DEFAULT;
+import static nl.basjes.hadoop.io.compress.SplittableGzipCodec.EXACT_POSITION_KEY;
+
+/**
+ * Makes another stream-only Hadoop codec splittable in the same way as the
+ * {@link SplittableGzipCodec} does for gzip: each split decompresses (and
+ * discards) everything before its start and stops at the exact position of
+ * its end (see {@value SplittableGzipCodec#EXACT_POSITION_KEY}) or by
+ * crawling.
+ * <p>
+ * A subclass only has to name the codec it wraps. Compressing, the non split
+ * reading and the decompressors are all those of the wrapped codec. The
+ * wrapped codec MUST have a {@link Decompressor} that accepts the compressed
+ * data in pieces of any size and only asks for more input (needsInput) after
+ * it has consumed all of it, like the zlib and gzip decompressors do. Codecs
+ * that put their own framing around the compressed blocks (the Lz4Codec and
+ * SnappyCodec of Hadoop) do not meet this.
+ * <p>
+ * The gzip specific features (the embedded index, the checkpoints, sharing a
+ * decompression) are not available here; the read sizes, the read ahead and
+ * decompressing in the background are.
+ */
+public abstract class SplittableCodecWrapper
+    implements Configurable, SplittableCompressionCodec {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SplittableCodecWrapper.class);
+
+  private final Class<? extends CompressionCodec> wrappedCodecClass;
+  private Configuration conf;
+  private CompressionCodec wrappedCodec;
+
+  protected SplittableCodecWrapper(
+      final Class<? extends CompressionCodec> wrappedCodecClass) {
+    this.wrappedCodecClass = wrappedCodecClass;
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public void setConf(final Configuration newConf) {
+    conf = newConf;
+    if (wrappedCodec instanceof Configurable) {
+      ((Configurable) wrappedCodec).setConf(newConf);
+    }
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /**
+   * @return The (lazily created) instance of the wrapped codec.
+   */
+  protected CompressionCodec getWrappedCodec() {
+    if (wrappedCodec == null) {
+      wrappedCodec = ReflectionUtils.newInstance(wrappedCodecClass, conf);
+    }
+    return wrappedCodec;
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public SplitCompressionInputStream createInputStream(
+      final InputStream seekableIn, final Decompressor decompressor,
+      final long start, final long end,
+      final READ_MODE readMode) // Ignored by this codec
+    throws IOException {
+    LOG.info("Creating SplitDecompressorStream for {} (range = [{},{}])",
+        wrappedCodecClass.getSimpleName(), start, end);
+    final Configuration config = getConf() == null
+        ? new Configuration() : getConf();
+    final ReadSizes sizes = ReadSizes.forSplit(config, end - start);
+    final boolean exactPosition =
+        config.getBoolean(EXACT_POSITION_KEY, EXACT_POSITION_DEFAULT);
+    final int backgroundBuffers =
+        config.getInt(BACKGROUND_BUFFERS_KEY, BACKGROUND_BUFFERS_DEFAULT);
+    BufferPool.getInstance(config); // Apply the configured size
+
+    final ThrottleableDecompressorStream stream =
+        new ThrottleableDecompressorStream(
+            SplittableGzipCodec.readAhead(config, seekableIn),
+            decompressor == null
+                ? CodecPool.getDecompressor(getWrappedCodec())
+                : decompressor,
+            sizes.getReadSize());
+    // A decompressor we took from the pool ourselves goes back on close.
+    stream.setReturnDecompressor(decompressor == null);
+    return new SplitDecompressorStream(stream, start, end, sizes,
+        exactPosition, backgroundBuffers, null);
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public CompressionInputStream createInputStream(final InputStream in)
+    throws IOException {
+    return getWrappedCodec().createInputStream(in);
+  }
+
+  @Override
+  public CompressionInputStream createInputStream(final InputStream in,
+      final Decompressor decompressor) throws IOException {
+    return getWrappedCodec().createInputStream(in, decompressor);
+  }
+
+  @Override
+  public Class<? extends Decompressor> getDecompressorType() {
+    return getWrappedCodec().getDecompressorType();
+  }
+
+  @Override
+  public Decompressor createDecompressor() {
+    return getWrappedCodec().createDecompressor();
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public CompressionOutputStream createOutputStream(final OutputStream out)
+    throws IOException {
+    return getWrappedCodec().createOutputStream(out);
+  }
+
+  @Override
+  public CompressionOutputStream createOutputStream(final OutputStream out,
+      final Compressor compressor) throws IOException {
+    return getWrappedCodec().createOutputStream(out, compressor);
+  }
+
+  @Override
+  public Class<? extends Compressor> getCompressorType() {
+    return getWrappedCodec().getCompressorType();
+  }
+
+  @Override
+  public Compressor createCompressor() {
+    return getWrappedCodec().createCompressor();
+  }
+
+  @Override
+  public String getDefaultExtension() {
+    return getWrappedCodec().getDefaultExtension();
+  }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.io.compress.DefaultCodec;
+
+/**
+ * The {@link DefaultCodec} (zlib, the ".deflate" files) made splittable with
+ * the {@link SplittableCodecWrapper}. To use it put this class in
+ * "io.compression.codecs" INSTEAD of the DefaultCodec (both claim the
+ * ".deflate" extension). Without the native zlib library the decompression
+ * is done by the java.util.zip.Inflater.
+ */
+public class SplittableDefaultCodec extends SplittableCodecWrapper {
+
+  public SplittableDefaultCodec() {
+    super(DefaultCodec.class);
+  }
+
+}
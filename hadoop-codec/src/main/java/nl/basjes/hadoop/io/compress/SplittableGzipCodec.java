@@ -17,16 +17,32 @@
 
 package nl.basjes.hadoop.io.compress;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
-import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.compress.GzipCodec;
 import org.apache.hadoop.io.compress.SplitCompressionInputStream;
 import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.io.compress.zlib.ZlibCompressor;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -156,6 +172,20 @@ import org.slf4j.LoggerFactory;
  * splittable codec.<br>
  * For example {@link org.apache.hadoop.io.compress.BZip2Codec} or not
  * compressing at all</li>
+ * <li>Create an index of the gzipped file with the {@link GzipIndexer}.
+ * This codec will then resume each split at the last checkpoint in the index
+ * that is before the start of the split instead of discarding everything from
+ * the start of the file.</li>
+ * <li>Enable {@value #SPECULATIVE_ENABLED_KEY}. Without an index the codec
+ * then scans the last {@value #SPECULATIVE_LOOKBACK_KEY} bytes before the
+ * split for the start of a deflate block and starts there if that
+ * succeeds.</li>
+ * <li>Write the files in the BGZF format (or as many concatenated gzip
+ * members with {@value #MEMBERS_SCAN_KEY} enabled). A split then starts at the
+ * last gzip member before the start of the split.</li>
+ * <li>Set {@value CheckpointCache#CACHE_SIZE_KEY} when several splits of the
+ * same file are read in the same JVM. The splits then share the checkpoints
+ * they pass through the {@link CheckpointCache}.</li>
  * </ol>
  * <hr>
  * <b>Implementation notes</b><br>
@@ -214,6 +244,13 @@ import org.slf4j.LoggerFactory;
  * would end: we find the start of a split by running over the "part that must
  * be discarded" as-if it is a split.
  * </ol>
+ * <b>The exact position</b><br>
+ * By default ({@value #EXACT_POSITION_KEY}) neither the crawling nor the lie
+ * is used. The compressed data is never read across the end of the split
+ * (see {@link ThrottleableDecompressorStream#setReadBoundary(long)}) so the
+ * data returned while the position is at most the end is exactly the data
+ * that was compressed before the end. A split starts by discarding exactly
+ * that same data.<br>
  */
 
 public class SplittableGzipCodec extends GzipCodec implements
@@ -222,296 +259,814 @@ public class SplittableGzipCodec extends GzipCodec implements
     private static final Logger LOG =
             LoggerFactory.getLogger(SplittableGzipCodec.class);
 
-  private static final int DEFAULT_FILE_BUFFER_SIZE = 4 * 1024; // 4 KiB
+  /**
+   * Should the {@link GzipIndex} of the file (in a sidecar file or embedded
+   * at the end of the file) be used if it exists.
+   */
+  public static final String INDEX_ENABLED_KEY =
+      "io.compression.codec.splittablegzip.index.enabled";
+  public static final boolean INDEX_ENABLED_DEFAULT = true;
+
+  /**
+   * If there is no index: should we try to find a checkpoint near the start
+   * of the split by scanning for a deflate block.
+   */
+  public static final String SPECULATIVE_ENABLED_KEY =
+      "io.compression.codec.splittablegzip.speculative.enabled";
+  public static final boolean SPECULATIVE_ENABLED_DEFAULT = false;
+
+  /**
+   * How many compressed bytes before the start of the split are scanned for a
+   * deflate block.
+   */
+  public static final String SPECULATIVE_LOOKBACK_KEY =
+      "io.compression.codec.splittablegzip.speculative.lookback";
+  public static final long SPECULATIVE_LOOKBACK_DEFAULT = 4 * 1024 * 1024;
+  private static final long MAX_SPECULATIVE_LOOKBACK = 64 * 1024 * 1024;
+
+  /**
+   * Should a split of a BGZF file (or a file that consists of multiple gzip
+   * members) start at the last member before the split.
+   */
+  public static final String MEMBERS_ENABLED_KEY =
+      "io.compression.codec.splittablegzip.members.enabled";
+  public static final boolean MEMBERS_ENABLED_DEFAULT = true;
+
+  /**
+   * BGZF files are recognized by their header. Other files that consist of
+   * multiple gzip members are only searched for a member if this is enabled
+   * (it costs reading and scanning {@value #MEMBERS_LOOKBACK_KEY} bytes).
+   */
+  public static final String MEMBERS_SCAN_KEY =
+      "io.compression.codec.splittablegzip.members.scan";
+  public static final boolean MEMBERS_SCAN_DEFAULT = false;
+
+  /**
+   * How many compressed bytes before the start of the split are scanned for
+   * the start of a gzip member (in a non BGZF file).
+   */
+  public static final String MEMBERS_LOOKBACK_KEY =
+      "io.compression.codec.splittablegzip.members.lookback";
+  public static final long MEMBERS_LOOKBACK_DEFAULT = 4 * 1024 * 1024;
+  private static final long MAX_MEMBERS_LOOKBACK = 64 * 1024 * 1024;
+
+  /**
+   * Report the exact position by never reading the compressed data across the
+   * end of the split. If disabled the old approach of crawling (1 byte at a
+   * time) near the end of the split is used. All splits of a file must use
+   * the same setting.
+   */
+  public static final String EXACT_POSITION_KEY =
+      "io.compression.codec.splittablegzip.position.exact";
+  public static final boolean EXACT_POSITION_DEFAULT = true;
+
+  /**
+   * The number of buffers in the ring between a background thread that
+   * decompresses (and skips to the start of the split) and the reader.
+   * 0 disables this; decompressing is then done in the thread that reads.
+   * Only used with the exact position.
+   */
+  public static final String BACKGROUND_BUFFERS_KEY =
+      "io.compression.codec.splittablegzip.background.buffers";
+  public static final int BACKGROUND_BUFFERS_DEFAULT = 0;
+
+  /**
+   * The compressed input is read in blocks of this size, one block ahead of
+   * the decompressor (on a separate thread). 0 disables this; the input is
+   * then read in reads of the read size (see {@link ReadSizes}). This costs a
+   * thread and two blocks per stream so it is only worth it on filesystems
+   * with a high latency per read (e.g. s3a or abfs).
+   */
+  public static final String READ_AHEAD_SIZE_KEY =
+      "io.compression.codec.splittablegzip.readahead.size";
+  public static final int READ_AHEAD_SIZE_DEFAULT = 0;
+
+  /**
+   * Use the {@link DirectGzipDecompressor} (which can decompress straight into
+   * direct ByteBuffers without copying) as the decompressor of this codec.
+   * This is the same as the {@value InflateBackends#JDK} backend.
+   */
+  public static final String DIRECT_ENABLED_KEY =
+      "io.compression.codec.splittablegzip.direct.enabled";
+  public static final boolean DIRECT_ENABLED_DEFAULT = false;
+
+  /**
+   * Compress with a {@link ParallelGzipOutputStream} that deflates this many
+   * chunks at the same time. 0 disables this; the output stream of the
+   * GzipCodec is then used.
+   */
+  public static final String COMPRESS_THREADS_KEY =
+      "io.compression.codec.splittablegzip.compress.threads";
+  public static final int COMPRESS_THREADS_DEFAULT = 0;
+
+  /**
+   * The number of uncompressed bytes per chunk of the
+   * {@link ParallelGzipOutputStream}.
+   */
+  public static final String COMPRESS_CHUNK_SIZE_KEY =
+      "io.compression.codec.splittablegzip.compress.chunk.size";
+  public static final int COMPRESS_CHUNK_SIZE_DEFAULT = 128 * 1024;
+
+  /**
+   * Make the {@link ParallelGzipOutputStream} insert a full flush point (at
+   * least) every this many uncompressed bytes and embed an index of these
+   * points at the end of the file. 0 disables this. If this is enabled and
+   * {@value #COMPRESS_THREADS_KEY} is not, a single thread is used.
+   */
+  public static final String COMPRESS_INDEX_INTERVAL_KEY =
+      "io.compression.codec.splittablegzip.compress.index.interval";
+  public static final long COMPRESS_INDEX_INTERVAL_DEFAULT = 0;
+
+  /**
+   * Read entire files (with {@link #createInputStream(InputStream,
+   * Decompressor)}) with a {@link ParallelGzipInputStream} that inflates this
+   * many ranges of the file at the same time. This needs a seekable input,
+   * the file (for its length, see {@link #createInputStream(InputStream,
+   * Decompressor, Path)}) and a file with an embedded index (see
+   * {@value #COMPRESS_INDEX_INTERVAL_KEY}) or in the BGZF format; otherwise
+   * the file is read sequentially. 0 disables this.
+   */
+  public static final String DECOMPRESS_THREADS_KEY =
+      "io.compression.codec.splittablegzip.decompress.threads";
+  public static final int DECOMPRESS_THREADS_DEFAULT = 0;
+
+  /**
+   * The minimal number of compressed bytes per range of the
+   * {@link ParallelGzipInputStream}.
+   */
+  public static final String DECOMPRESS_RANGE_SIZE_KEY =
+      "io.compression.codec.splittablegzip.decompress.range.size";
+  public static final long DECOMPRESS_RANGE_SIZE_DEFAULT = 4 * 1024 * 1024;
+
+  /**
+   * Let the splits of a file that are read in the same JVM share a single
+   * decompression of that file (see {@link FanOutSource}) instead of each
+   * decompressing everything before their start. Only with
+   * {@value #EXACT_POSITION_KEY}.
+   */
+  public static final String FANOUT_ENABLED_KEY =
+      "io.compression.codec.splittablegzip.fanout.enabled";
+  public static final boolean FANOUT_ENABLED_DEFAULT = false;
+
+  /**
+   * The maximum number of chunks (of 64 KiB decompressed data) that the
+   * shared decompression buffers for the splits that read it.
+   */
+  public static final String FANOUT_BUFFERS_KEY =
+      "io.compression.codec.splittablegzip.fanout.buffers";
+  public static final int FANOUT_BUFFERS_DEFAULT = 64;
+
+  // The name of the file that is read by the current map task (only set by
+  // the MapTask of the old mapred API).
+  private static final String MAP_INPUT_FILE_KEY = "mapreduce.map.input.file";
+
+  private static final AtomicBoolean WARNED_UNKNOWN_FILE = new AtomicBoolean();
 
   public SplittableGzipCodec() {
     super();
     LOG.info("Creating instance of SplittableGzipCodec");
   }
 
+  /**
+   * The file is taken from mapreduce.map.input.file which is only set by the
+   * old mapred API; with the new mapreduce API (and in Spark) the file is
+   * unknown and the index, the checkpoint cache, the checkpoint store and the
+   * fan-out are not used. The {@link
+   * nl.basjes.hadoop.mapreduce.lib.input.SplittableGzipTextInputFormat}
+   * passes the file itself.
+   */
+  @Override
   public SplitCompressionInputStream createInputStream(
       final InputStream seekableIn, final Decompressor decompressor,
       final long start, final long end,
       final READ_MODE readMode) // Ignored by this codec
     throws IOException {
-    LOG.info("Creating SplittableGzipInputStream (range = [{},{}])", start, end );
-    return new SplittableGzipInputStream(createInputStream(seekableIn,
-        decompressor), start, end, getConf().getInt("io.file.buffer.size",
-          DEFAULT_FILE_BUFFER_SIZE));
+    final String inputFile = getConf().get(MAP_INPUT_FILE_KEY);
+    return createInputStream(seekableIn, decompressor, start, end, readMode,
+        inputFile == null ? null : new Path(inputFile));
   }
 
-  // -------------------------------------------
-
-  @Override
-  public CompressionInputStream createInputStream(final InputStream in,
-      final Decompressor decompressor) throws IOException {
-    return new ThrottleableDecompressorStream(in,
-        (decompressor == null) ? createDecompressor() : decompressor,
-        getConf().getInt("io.file.buffer.size", DEFAULT_FILE_BUFFER_SIZE));
-  }
-
-  // ==========================================
-
-  private static final class SplittableGzipInputStream extends
-      SplitCompressionInputStream {
+  /**
+   * Same as {@link #createInputStream(InputStream, Decompressor, long, long,
+   * READ_MODE)} but with the file that is being read. If there is a valid
+   * {@link GzipIndex} for this file the split will resume at the best
+   * checkpoint instead of decompressing everything before the split.
+   *
+   * @param seekableIn The input stream (must be Seekable and
+   *                   PositionedReadable to use the index).
+   * @param decompressor The decompressor to use (may be null).
+   * @param start The start of the split.
+   * @param end The end of the split.
+   * @param readMode Ignored by this codec.
+   * @param file The file that is being read (may be null).
+   * @return the stream that reads the split.
+   * @throws IOException In case of an IO problem
+   */
+  public SplitCompressionInputStream createInputStream(
+      final InputStream seekableIn, final Decompressor decompressor,
+      final long start, final long end,
+      final READ_MODE readMode, // Ignored by this codec
+      final Path file)
+    throws IOException {
+    LOG.info("Creating SplitDecompressorStream (range = [{},{}])", start, end );
+    final ReadSizes sizes = ReadSizes.forSplit(getConf(), end - start);
+    final int readSize = sizes.getReadSize();
+    final boolean exactPosition =
+        getConf().getBoolean(EXACT_POSITION_KEY, EXACT_POSITION_DEFAULT);
+    final long maxResumeOffset =
+        getMaxResumeOffset(start, sizes.getCrawlDistance(), exactPosition);
+    final int backgroundBuffers =
+        getConf().getInt(BACKGROUND_BUFFERS_KEY, BACKGROUND_BUFFERS_DEFAULT);
+    BufferPool.getInstance(getConf()); // Apply the configured size
 
-    // We start crawling when within 110% of the blocksize from the split.
-    private static final float CRAWL_FACTOR = 1.1F;
+    final CheckpointCache cache = CheckpointCache.getInstance(getConf());
+    final CheckpointStore store = CheckpointStore.getInstance(getConf());
+    final boolean fanOut = exactPosition
+        && getConf().getBoolean(FANOUT_ENABLED_KEY, FANOUT_ENABLED_DEFAULT);
+    if (file == null) {
+      warnUnknownFile(cache != null, store != null, fanOut);
+    }
+    final CheckpointCache.FileKey cacheKey =
+        cache == null && store == null && !fanOut ? null : getCacheKey(file);
 
-    // Just to be sure we always crawl the last part a minimal crawling
-    // distance is defined here... 128 bytes works fine.
-    private static final int MINIMAL_CRAWL_DISTANCE = 128;
+    final DeflateCheckpoint checkpoint =
+        findCheckpoint(seekableIn, file, cache, store, cacheKey,
+            maxResumeOffset);
+    if (fanOut && cacheKey != null) {
+      final ThrottleableDecompressorStream shared = FanOutSource.join(
+          cacheKey, seekableIn, start, end,
+          checkpoint == null ? 0 : checkpoint.getCompressedOffset(),
+          getConf().getInt(FANOUT_BUFFERS_KEY, FANOUT_BUFFERS_DEFAULT),
+          () -> openFanOutSource(file, checkpoint, readSize));
+      if (shared != null) {
+        return new SplitDecompressorStream(shared, start, end, sizes,
+            true, backgroundBuffers, null);
+      }
+    }
+    final boolean publish =
+        cacheKey != null && (cache != null || store != null);
+    final InputStream compressedIn = readAhead(getConf(), seekableIn);
+    if (checkpoint == null && !publish) {
+      return new SplitDecompressorStream(createInputStream(compressedIn,
+          decompressor, readSize), start, end, sizes, exactPosition,
+          backgroundBuffers, null);
+    }
 
-    // At what distance from the target do we HOLD the position reporting.
-    // 128 bytes works fine (same as minimal crawl distance).
-    private static final int POSITION_HOLD_DISTANCE = 128;
+    // Only our own decompressor can start in the middle of a gzip member
+    // and report the checkpoints it passes.
+    final ThrottleableDecompressorStream stream;
+    if (!publish
+        && (checkpoint.isMemberStart()
+            || decompressor instanceof CheckpointableGzipDecompressor)) {
+      stream = createInputStream(compressedIn, decompressor, readSize);
+    } else {
+      final CheckpointableGzipDecompressor publishing =
+          (CheckpointableGzipDecompressor)
+              borrowDecompressor(CHECKPOINTABLE_CODEC);
+      if (publish) {
+        final long from =
+            checkpoint == null ? 0 : checkpoint.getCompressedOffset();
+        publishing.setCheckpointListener(
+            createPublisher(cache, store, cacheKey, from),
+            cache == null ? store.getInterval() : getConf().getLong(
+                CheckpointCache.CACHE_INTERVAL_KEY,
+                CheckpointCache.CACHE_INTERVAL_DEFAULT));
+      }
+      stream = new ThrottleableDecompressorStream(compressedIn, publishing,
+          readSize);
+      stream.setReturnDecompressor(true);
+    }
+    if (checkpoint != null) {
+      stream.resume(checkpoint);
+      LOG.info("Resuming at {} instead of at the start of {}",
+          checkpoint, file);
+    }
+    return new SplitDecompressorStream(stream, start, end, sizes,
+        exactPosition, backgroundBuffers,
+        cacheKey == null || cache == null
+            ? null : () -> cache.get(cacheKey, maxResumeOffset));
+  }
 
-    // When setting log4j into TRACE mode we will report massive amounts
-    // of info when this many bytes near the relevant areas.
-    private static final int TRACE_REPORTING_DISTANCE = 64;
+  /**
+   * Without the file the index, the checkpoint cache, the checkpoint store and
+   * the fan-out cannot be used. The new mapreduce API (and Spark) do not set
+   * mapreduce.map.input.file so this is logged (once per JVM) instead of
+   * silently reading without them.
+   */
+  private void warnUnknownFile(final boolean cache, final boolean store,
+      final boolean fanOut) {
+    final List<String> unused = new ArrayList<>();
+    if (getConf().getBoolean(INDEX_ENABLED_KEY, INDEX_ENABLED_DEFAULT)) {
+      unused.add("index");
+    }
+    if (cache) {
+      unused.add("checkpoint cache");
+    }
+    if (store) {
+      unused.add("checkpoint store");
+    }
+    if (fanOut) {
+      unused.add("fan-out");
+    }
+    if (!unused.isEmpty() && WARNED_UNKNOWN_FILE.compareAndSet(false, true)) {
+      LOG.warn("The file of the split is unknown so the {} cannot be used. "
+          + "Read with the SplittableGzipTextInputFormat, the old mapred API "
+          + "or pass the file to createInputStream.",
+          String.join(", ", unused));
+    }
+  }
 
-    private final ThrottleableDecompressorStream in;
-    private final int crawlDistance;
-    private final int bufferSize;
+  /**
+   * The decompression of the entire file (from the checkpoint) that is
+   * shared by the splits. It reads with the read size of the split that
+   * opens it so the reads beyond the last known boundary do not pass the
+   * end of the next split.
+   */
+  private ThrottleableDecompressorStream openFanOutSource(final Path file,
+      final DeflateCheckpoint checkpoint, final int readSize)
+    throws IOException {
+    final InputStream in =
+        readAhead(getConf(), file.getFileSystem(getConf()).open(file));
+    final ThrottleableDecompressorStream stream =
+        new ThrottleableDecompressorStream(in,
+            checkpoint == null || checkpoint.isMemberStart()
+                ? borrowDecompressor(this)
+                : borrowDecompressor(CHECKPOINTABLE_CODEC),
+            readSize);
+    stream.setReturnDecompressor(true);
+    if (checkpoint != null) {
+      stream.resume(checkpoint);
+    }
+    return stream;
+  }
 
-    // -------------------------------------------
+  /**
+   * The listener that publishes the passed checkpoints in the
+   * {@link CheckpointCache} and/or the {@link CheckpointStore}.
+   */
+  private static CheckpointListener createPublisher(
+      final CheckpointCache cache, final CheckpointStore store,
+      final CheckpointCache.FileKey key, final long from) {
+    if (store == null) {
+      return c -> cache.put(key, c);
+    }
+    final CheckpointListener stored = store.createListener(key, from);
+    if (cache == null) {
+      return stored;
+    }
+    return c -> {
+      cache.put(key, c);
+      stored.checkpoint(c);
+    };
+  }
 
-    public SplittableGzipInputStream(final CompressionInputStream inputStream,
-        final long start, final long end, final int inputStreamBufferSize)
-      throws IOException {
-      super(inputStream, start, end);
+  /**
+   * Wrap the input in a {@link ReadAheadInputStream} (if enabled). The
+   * throttling of the reads then only limits what is fed to the
+   * decompressor, not the reads of the (possibly remote) file.
+   */
+  static InputStream readAhead(final Configuration conf,
+      final InputStream in) throws IOException {
+    final int readAheadSize =
+        conf.getInt(READ_AHEAD_SIZE_KEY, READ_AHEAD_SIZE_DEFAULT);
+    if (readAheadSize <= 0) {
+      return in;
+    }
+    return new ReadAheadInputStream(in, readAheadSize);
+  }
 
-      bufferSize = inputStreamBufferSize;
+  private CheckpointCache.FileKey getCacheKey(final Path file) {
+    if (file == null) {
+      return null;
+    }
+    try {
+      return new CheckpointCache.FileKey(
+          file.getFileSystem(getConf()).getFileStatus(file));
+    } catch (IOException e) {
+      LOG.warn("Unable to use the checkpoint cache for {}: {}",
+          file, e.getMessage());
+      return null;
+    }
+  }
 
-      if (getAdjustedStart() > 0) { // If the entire file is really small (like 1000 bytes) we want to continue anyway.
-        if (getAdjustedEnd() - getAdjustedStart() < bufferSize) {
-          throw new IllegalArgumentException("The provided InputSplit " +
-                  "(" + getAdjustedStart() + ";" + getAdjustedEnd() + "] " +
-                  "is " + (getAdjustedEnd() - getAdjustedStart()) + " bytes which is too small. " +
-                  "(Minimum is " + bufferSize + ")");
-        }
+  /**
+   * Find a checkpoint where the split can resume: from the index, the
+   * checkpoint cache, the checkpoint store, the start of a gzip member or (if
+   * enabled) by scanning for a deflate block.
+   */
+  private DeflateCheckpoint findCheckpoint(final InputStream seekableIn,
+      final Path file, final CheckpointCache cache,
+      final CheckpointStore store, final CheckpointCache.FileKey cacheKey,
+      final long maxOffset) {
+    if (maxOffset <= 0 || !(seekableIn instanceof PositionedReadable)) {
+      return null;
+    }
+    final PositionedReadable in = (PositionedReadable) seekableIn;
+    DeflateCheckpoint checkpoint = findIndexedCheckpoint(in, file, maxOffset);
+    if (cacheKey != null && cache != null) {
+      final DeflateCheckpoint cached = cache.get(cacheKey, maxOffset);
+      if (cached != null && (checkpoint == null
+          || cached.getCompressedOffset() > checkpoint.getCompressedOffset())) {
+        checkpoint = cached;
       }
-
-      // We MUST have the option of slowing down the reading of data.
-      // This check will fail if someone creates a subclass that breaks this.
-      if (inputStream instanceof ThrottleableDecompressorStream) {
-        this.in = (ThrottleableDecompressorStream) inputStream;
-      } else {
-        this.in = null; // Permanently cripple this instance ('in' is final) .
-        throw new IOException("The SplittableGzipCodec relies on"
-            + " functionality in the ThrottleableDecompressorStream class.");
+    }
+    if (cacheKey != null && store != null) {
+      final DeflateCheckpoint stored = getStoredCheckpoint(store, cacheKey,
+          maxOffset);
+      if (stored != null && (checkpoint == null
+          || stored.getCompressedOffset() > checkpoint.getCompressedOffset())) {
+        checkpoint = stored;
       }
+    }
+    final DeflateCheckpoint member = findMemberStart(in, maxOffset);
+    if (member != null && (checkpoint == null
+        || member.getCompressedOffset() > checkpoint.getCompressedOffset())) {
+      checkpoint = member;
+    }
+    if (checkpoint != null) {
+      return checkpoint;
+    }
+    return findSpeculativeCheckpoint(in, maxOffset);
+  }
 
-      // When this close to the end of the split: crawl (read at most 1 byte
-      // at a time) to avoid overshooting the end.
-      // This calculates the distance at which we should switch to crawling.
-      // Fact is that if the previous buffer is 1 byte further than this value
-      // the end of the next block (+ 1 byte) will be the real point where we
-      // will start the crawl. --> either 10% of the bufferSize or the Minimal
-      // crawl distance value.
-      this.crawlDistance = Math.max(Math.round(CRAWL_FACTOR * bufferSize),
-          bufferSize + MINIMAL_CRAWL_DISTANCE);
-
-      // Now we read the stream until we are at the start of this split.
+  private static DeflateCheckpoint getStoredCheckpoint(
+      final CheckpointStore store, final CheckpointCache.FileKey key,
+      final long maxOffset) {
+    try {
+      return store.get(key, maxOffset);
+    } catch (IOException e) {
+      LOG.warn("Unable to use the checkpoint store for {}: {}",
+          key, e.getMessage());
+      return null;
+    }
+  }
 
-      if (start == 0) {
-        return; // That was quick; We're already where we want to be.
+  private DeflateCheckpoint findMemberStart(final PositionedReadable in,
+      final long maxOffset) {
+    if (!getConf().getBoolean(MEMBERS_ENABLED_KEY, MEMBERS_ENABLED_DEFAULT)) {
+      return null;
+    }
+    try {
+      final boolean bgzf = GzipMemberFinder.isBgzf(in);
+      final long lookBack;
+      if (bgzf) {
+        // There is always a member start in the last two members.
+        lookBack = 2L * GzipMemberFinder.BGZF_MAX_MEMBER_SIZE;
+      } else if (getConf().getBoolean(MEMBERS_SCAN_KEY, MEMBERS_SCAN_DEFAULT)) {
+        lookBack = Math.min(MAX_MEMBERS_LOOKBACK, getConf()
+            .getLong(MEMBERS_LOOKBACK_KEY, MEMBERS_LOOKBACK_DEFAULT));
+      } else {
+        return null;
       }
-
-      // Set the range we want to run over quickly.
-      setStart(0);
-      setEnd(start);
-
-      // The target buffer to dump the discarded info to.
-      final byte[] skippedBytes = new byte[bufferSize];
-
-      LOG.debug("SKIPPING to position :{}", start);
-      while (getPos() < start) {
-        // This reads the input and decompresses the data.
-        if (-1 == read(skippedBytes, 0, bufferSize)) {
-          // An EOF while seeking for the START of the split !?!?
-          throw new EOFException("Unexpected end of input stream when"
-              + " seeking for the start of the split in"
-              + " SplittableGzipCodec:"
-              + " start=" + start + " adjustedStart=" + start + " position="
-              + getPos());
-        }
+      final long offset =
+          GzipMemberFinder.findMemberStart(in, maxOffset, lookBack, bgzf);
+      if (offset <= 0) {
+        return null;
       }
-
-      LOG.debug("ARRIVED at target location({}): {}", start, getPos());
-
-      // Now we put the real split range values back.
-      setStart(start);
-      setEnd(end);
-
-      // Set the reporting back to normal
-      posState = POS_STATE.REPORT;
+      return DeflateCheckpoint.memberStart(offset,
+          DeflateCheckpoint.UNKNOWN_OFFSET);
+    } catch (IOException e) {
+      LOG.warn("Unable to search for a gzip member: {}", e.getMessage());
+      return null;
     }
+  }
 
-    // -------------------------------------------
-
-    /**
-     * Position reporting states.
-     */
-    enum POS_STATE {
-      REPORT, HOLD, SLOPE
+  private DeflateCheckpoint findIndexedCheckpoint(final PositionedReadable in,
+      final Path file, final long maxOffset) {
+    if (file == null || !getConf().getBoolean(INDEX_ENABLED_KEY,
+                                              INDEX_ENABLED_DEFAULT)) {
+      return null;
+    }
+    try {
+      final FileSystem fs = file.getFileSystem(getConf());
+      final GzipIndex index = loadIndex(in, fs, fs.getFileStatus(file));
+      return index == null ? null : index.findCheckpoint(maxOffset);
+    } catch (IOException e) {
+      LOG.warn("Unable to use the index of {}: {}", file, e.getMessage());
+      return null;
     }
+  }
 
-    private POS_STATE posState = POS_STATE.REPORT;
+  /**
+   * @return the index file of the gzip file, else the index that was
+   * embedded by the ParallelGzipOutputStream, else null.
+   */
+  private static GzipIndex loadIndex(final PositionedReadable in,
+      final FileSystem fs, final FileStatus status) throws IOException {
+    final GzipIndex index = GzipIndex.load(fs, status.getPath());
+    if (index == null) {
+      return GzipIndex.readEmbedded(in, status);
+    }
+    final byte[] fingerprint = GzipIndex.readFingerprint(in, status.getLen());
+    if (!index.matches(status, fingerprint)) {
+      LOG.warn("Ignoring the index of {} because it does not match",
+          status.getPath());
+      return null;
+    }
+    return index;
+  }
 
-    /**
-     * What do we call this state?
-     *
-     * @return String with state name useful for logging and debugging.
-     */
-    private String getStateName() {
-      switch (posState) {
-      case REPORT:
-        return "REPORT";
-      case HOLD:
-        return "HOLD";
-      case SLOPE:
-        return "SLOPE";
-      default:
-        return "ERROR";
+  /**
+   * The compressed offsets at which a split of the provided file can resume
+   * without decompressing everything before it, as far as these are known
+   * before any split is read: the checkpoints in its index. Used to plan the
+   * splits of a file.
+   *
+   * @param fs The filesystem of the gzip file.
+   * @param status The gzip file.
+   * @return the offsets in ascending order (empty if there is no index), or
+   * null if a split can resume close to any offset: a BGZF file, scanning for
+   * gzip members, speculative checkpoints or a checkpoint cache or store.
+   * @throws IOException In case of an IO problem
+   */
+  public long[] getCheckpointOffsets(final FileSystem fs,
+      final FileStatus status) throws IOException {
+    final Configuration conf = getConf();
+    if (conf.getBoolean(SPECULATIVE_ENABLED_KEY, SPECULATIVE_ENABLED_DEFAULT)
+        || conf.getLong(CheckpointCache.CACHE_SIZE_KEY,
+                        CheckpointCache.CACHE_SIZE_DEFAULT) > 0
+        || !conf.getTrimmed(CheckpointStore.STORE_DIR_KEY,
+                            CheckpointStore.STORE_DIR_DEFAULT).isEmpty()) {
+      return null;
+    }
+    try (FSDataInputStream in = fs.open(status.getPath())) {
+      if (conf.getBoolean(MEMBERS_ENABLED_KEY, MEMBERS_ENABLED_DEFAULT)
+          && (conf.getBoolean(MEMBERS_SCAN_KEY, MEMBERS_SCAN_DEFAULT)
+              || GzipMemberFinder.isBgzf(in))) {
+        return null;
+      }
+      if (!conf.getBoolean(INDEX_ENABLED_KEY, INDEX_ENABLED_DEFAULT)) {
+        return new long[0];
       }
+      final GzipIndex index = loadIndex(in, fs, status);
+      return index == null ? new long[0] : index.getCompressedOffsets();
     }
+  }
 
-    // The reported position used in the HOLD and SLOPE states.
-    private long reportedPos = 0;
+  private DeflateCheckpoint findSpeculativeCheckpoint(
+      final PositionedReadable in, final long maxOffset) {
+    if (!getConf().getBoolean(SPECULATIVE_ENABLED_KEY,
+                              SPECULATIVE_ENABLED_DEFAULT)) {
+      return null;
+    }
+    final long lookBack = Math.min(MAX_SPECULATIVE_LOOKBACK, getConf()
+        .getLong(SPECULATIVE_LOOKBACK_KEY, SPECULATIVE_LOOKBACK_DEFAULT));
+    final long from = maxOffset - lookBack;
+    if (from <= 0) {
+      return null; // Starting at the beginning is just as fast.
+    }
+    try {
+      return new DeflateBlockFinder().findCheckpoint(in, from, maxOffset);
+    } catch (IOException e) {
+      LOG.warn("Unable to read the data to scan for a deflate block: {}",
+          e.getMessage());
+      return null;
+    }
+  }
 
-    @Override
-    public long getPos() {
-      if (posState == POS_STATE.REPORT) {
-        return getRealPos();
-      }
-      return reportedPos;
+  /**
+   * The highest compressed offset of a checkpoint where a split can resume
+   * and still start at exactly the same position as the previous split ends.
+   * With the exact position everything that can be decompressed from the
+   * bytes before the start is discarded, so any checkpoint before the start
+   * will do. When crawling the checkpoint must be before the crawl region.
+   *
+   * @param start The start of the split.
+   * @param crawlDistance The distance before the start where crawling starts.
+   * @param exactPosition Is the exact position used?
+   * @return the highest usable offset of a checkpoint.
+   */
+  static long getMaxResumeOffset(final long start, final int crawlDistance,
+      final boolean exactPosition) {
+    if (exactPosition) {
+      return start - 1;
     }
+    return start - crawlDistance;
+  }
+
+  // -------------------------------------------
 
-    /**
-     * The getPos position of the underlying input stream.
-     *
-     * @return number of bytes that have been read from the compressed input.
-     */
-    private long getRealPos() {
-      return in.getBytesRead();
+  @Override
+  public Class<? extends Decompressor> getDecompressorType() {
+    return getInflateBackend().getDecompressorType();
+  }
+
+  @Override
+  public Decompressor createDecompressor() {
+    return getInflateBackend().createDecompressor(getConf());
+  }
+
+  /**
+   * @return the backend that creates the decompressors of this codec.
+   */
+  public InflateBackend getInflateBackend() {
+    if (getConf().getBoolean(DIRECT_ENABLED_KEY, DIRECT_ENABLED_DEFAULT)) {
+      return InflateBackends.getBackend(getConf(), InflateBackends.JDK);
     }
+    return InflateBackends.getBackend(getConf());
+  }
 
-    // -------------------------------------------
+  /**
+   * If no decompressor is provided one is taken from the {@link CodecPool};
+   * the stream returns it there when it is closed.
+   * With {@value #DECOMPRESS_THREADS_KEY} this may be a
+   * {@link ParallelGzipInputStream} that does not use the decompressor; the
+   * file is then taken from mapreduce.map.input.file.
+   */
+  @Override
+  public CompressionInputStream createInputStream(final InputStream in,
+      final Decompressor decompressor) throws IOException {
+    final String inputFile = getConf().get(MAP_INPUT_FILE_KEY);
+    return createInputStream(in, decompressor,
+        inputFile == null ? null : new Path(inputFile));
+  }
 
-    @Override
-    public int read(final byte[] b, final int off, final int len)
-      throws IOException {
-      final long currentRealPos = getRealPos();
-      int maxBytesToRead = Math.min(bufferSize, len);
-
-      final long adjustedEnd = getAdjustedEnd();
-      final long adjustedStart = getAdjustedStart();
-      if (adjustedStart >= adjustedEnd) {
-        return -1; // Nothing to read in this split at all --> indicate EOF
-      }
+  /**
+   * Same as {@link #createInputStream(InputStream, Decompressor)} but with
+   * the file that is being read. The length of the file is needed to read it
+   * with a {@link ParallelGzipInputStream}; without it the file is read
+   * sequentially.
+   *
+   * @param in The input stream.
+   * @param decompressor The decompressor to use (may be null).
+   * @param file The file that is being read (may be null).
+   * @return the stream that reads the file.
+   * @throws IOException In case of an IO problem
+   */
+  public CompressionInputStream createInputStream(final InputStream in,
+      final Decompressor decompressor, final Path file) throws IOException {
+    final CompressionInputStream parallel =
+        createParallelInputStream(in, file);
+    if (parallel != null) {
+      return parallel;
+    }
+    return createInputStream(in, decompressor,
+        ReadSizes.forSplit(getConf(), Long.MAX_VALUE).getReadSize());
+  }
 
-      final long distanceToEnd = adjustedEnd - currentRealPos;
-
-      if (distanceToEnd <= crawlDistance) {
-        // We go to a crawl as soon as we are close to the end (or over it).
-        maxBytesToRead = 1;
-
-        // We're getting close
-        switch (posState) {
-        case REPORT:
-          // If we are within 128 bytes of the end we freeze the current value.
-          if (distanceToEnd <= POSITION_HOLD_DISTANCE) {
-            posState = POS_STATE.HOLD;
-            reportedPos = currentRealPos;
-            LOG.trace("STATE REPORT --> HOLD @ {}", currentRealPos);
-          }
-          break;
-
-        case HOLD:
-          // When we are ON/AFTER the real "end" then we start the slope.
-          // If we start too early the last split may lose the last record(s).
-          if (distanceToEnd <= 0) {
-            posState = POS_STATE.SLOPE;
-            LOG.trace("STATE HOLD --> SLOPE @ {}", currentRealPos);
-          }
-          break;
-
-        case SLOPE:
-          // We are reading 1 byte at a time and reporting 1 byte at a time.
-          ++reportedPos;
-          break;
-
-        default:
-          break;
-        }
+  /**
+   * The sequential stream that gives readSize compressed bytes at a time to
+   * the decompressor.
+   */
+  private ThrottleableDecompressorStream createInputStream(
+      final InputStream in, final Decompressor decompressor,
+      final int readSize) throws IOException {
+    final ThrottleableDecompressorStream stream =
+        new ThrottleableDecompressorStream(in,
+            (decompressor == null) ? borrowDecompressor(this) : decompressor,
+            readSize);
+    stream.setReturnDecompressor(decompressor == null);
+    return stream;
+  }
 
-      } else {
-        // At a distance we always do normal reporting
-        // Set the state explicitly: the "end" value can change.
-        posState = POS_STATE.REPORT;
-      }
+  /**
+   * @return the parallel stream or null if the file cannot be cut into
+   * ranges.
+   */
+  private CompressionInputStream createParallelInputStream(
+      final InputStream in, final Path file) throws IOException {
+    final int threads =
+        getConf().getInt(DECOMPRESS_THREADS_KEY, DECOMPRESS_THREADS_DEFAULT);
+    if (threads <= 0 || !(in instanceof Seekable)
+        || !(in instanceof PositionedReadable)
+        || ((Seekable) in).getPos() != 0) {
+      return null;
+    }
+    if (file == null) {
+      LOG.info("The file is unknown so it is read sequentially");
+      return null;
+    }
+    final long rangeSize = Math.max(1, getConf()
+        .getLong(DECOMPRESS_RANGE_SIZE_KEY, DECOMPRESS_RANGE_SIZE_DEFAULT));
+    final long length =
+        file.getFileSystem(getConf()).getFileStatus(file).getLen();
+    if (length < 2 * rangeSize) {
+      return null;
+    }
+    final List<DeflateCheckpoint> starts =
+        findRangeStarts((PositionedReadable) in, length, rangeSize);
+    if (starts.isEmpty()) {
+      return null;
+    }
+    LOG.info("Reading {} bytes in {} ranges on {} threads", length,
+        starts.size() + 1, threads);
+    return new ParallelGzipInputStream(in, length, starts, threads);
+  }
 
-      // Debugging facility
-      if (LOG.isTraceEnabled()) {
-        // When tracing do the first few bytes at crawl speed too.
-        final long distanceFromStart = currentRealPos - adjustedStart;
-        if (distanceFromStart <= TRACE_REPORTING_DISTANCE) {
-          maxBytesToRead = 1;
+  /**
+   * The checkpoints (at least rangeSize apart) from the embedded index or
+   * the members of a BGZF file.
+   */
+  private List<DeflateCheckpoint> findRangeStarts(final PositionedReadable in,
+      final long length, final long rangeSize) throws IOException {
+    final List<DeflateCheckpoint> starts = new ArrayList<>();
+    long next = rangeSize;
+    final GzipIndex index = getConf().getBoolean(INDEX_ENABLED_KEY,
+                                                 INDEX_ENABLED_DEFAULT)
+        ? GzipIndex.readEmbedded(in, length, 0) : null;
+    if (index != null) {
+      for (int i = 0; i < index.size(); i++) {
+        final DeflateCheckpoint checkpoint = index.getCheckpoint(i);
+        if (checkpoint.getCompressedOffset() >= next) {
+          starts.add(checkpoint);
+          next = checkpoint.getCompressedOffset() + rangeSize;
         }
       }
-
-      // Set the input read step to tune the disk reads to the wanted speed.
-      in.setReadStep(maxBytesToRead);
-
-      // Actually read the information.
-      final int bytesRead = in.read(b, off, maxBytesToRead);
-
-      // Debugging facility
-      if (LOG.isTraceEnabled()) {
-        if (bytesRead == -1) {
-          LOG.trace("End-of-File");
-        } else {
-          // Report massive info on the LAST 64 bytes of the split
-          if (getPos() >= getAdjustedEnd() - TRACE_REPORTING_DISTANCE
-              && bytesRead < 10) {
-            final String bytes = new String(b).substring(0, bytesRead);
-            LOG.trace("READ TAIL {} bytes ({} pos = {}/{}): ##{}## HEX:##{}##",
-                      bytesRead, getStateName(), getPos(), getRealPos(),
-                      bytes, new String(Hex.encodeHex(bytes.getBytes())));
-          }
-
-          // Report massive info on the FIRST 64 bytes of the split
-          if (getPos() <= getAdjustedStart() + TRACE_REPORTING_DISTANCE
-              && bytesRead < 10) {
-            final String bytes = new String(b).substring(0, bytesRead);
-            LOG.trace("READ HEAD {} bytes ({} pos = {}/{}): ##{}## HEX:##{}##",
-                      bytesRead, getStateName(), getPos(), getRealPos(),
-                      bytes, new String(Hex.encodeHex(bytes.getBytes())));
-          }
+    } else if (getConf().getBoolean(MEMBERS_ENABLED_KEY,
+                                    MEMBERS_ENABLED_DEFAULT)
+        && GzipMemberFinder.isBgzf(in)) {
+      for (; next < length; next += rangeSize) {
+        final long offset = GzipMemberFinder.findMemberStart(in, next,
+            2L * GzipMemberFinder.BGZF_MAX_MEMBER_SIZE, true);
+        if (offset > 0 && (starts.isEmpty() || offset
+            > starts.get(starts.size() - 1).getCompressedOffset())) {
+          starts.add(DeflateCheckpoint.memberStart(offset,
+              DeflateCheckpoint.UNKNOWN_OFFSET));
         }
       }
+    }
+    return starts;
+  }
 
-      return bytesRead;
+  /**
+   * Take a decompressor from the {@link CodecPool}. A decompressor that was
+   * returned there has only been reset(); our own must also forget where in
+   * the input it was.
+   */
+  private static Decompressor borrowDecompressor(
+      final CompressionCodec codec) {
+    final Decompressor decompressor = CodecPool.getDecompressor(codec);
+    if (decompressor instanceof CheckpointableGzipDecompressor) {
+      ((CheckpointableGzipDecompressor) decompressor)
+          .resume(DeflateCheckpoint.memberStart(0, 0));
     }
+    return decompressor;
+  }
 
-    // -------------------------------------------
+  /**
+   * Only used to let the {@link CodecPool} pool the decompressors that
+   * publish their checkpoints (whatever the backend of this codec is).
+   */
+  private static final class CheckpointableCodec extends GzipCodec {
+    @Override
+    public Class<? extends Decompressor> getDecompressorType() {
+      return CheckpointableGzipDecompressor.class;
+    }
 
     @Override
-    public void resetState() throws IOException {
-      in.resetState();
+    public Decompressor createDecompressor() {
+      return new CheckpointableGzipDecompressor();
     }
+  }
 
-    // -------------------------------------------
+  private static final CompressionCodec CHECKPOINTABLE_CODEC =
+      new CheckpointableCodec();
 
-    @Override
-    public int read() throws IOException {
-      return in.read();
+  // -------------------------------------------
+
+  @Override
+  public CompressionOutputStream createOutputStream(final OutputStream out)
+    throws IOException {
+    if (useParallelOutputStream()) {
+      return createParallelOutputStream(out);
+    }
+    return super.createOutputStream(out);
+  }
+
+  /**
+   * With {@value #COMPRESS_THREADS_KEY} (or
+   * {@value #COMPRESS_INDEX_INTERVAL_KEY}) the provided compressor is not
+   * used.
+   */
+  @Override
+  public CompressionOutputStream createOutputStream(final OutputStream out,
+      final Compressor compressor) throws IOException {
+    if (useParallelOutputStream()) {
+      return createParallelOutputStream(out);
     }
+    return super.createOutputStream(out, compressor);
+  }
 
-    // -------------------------------------------
+  private boolean useParallelOutputStream() {
+    return getConf().getInt(COMPRESS_THREADS_KEY, COMPRESS_THREADS_DEFAULT) > 0
+        || getConf().getLong(COMPRESS_INDEX_INTERVAL_KEY,
+                             COMPRESS_INDEX_INTERVAL_DEFAULT) > 0;
   }
 
-  // ===================================================
+  private CompressionOutputStream createParallelOutputStream(
+      final OutputStream out) {
+    // The same level as the GzipCodec uses (the enum is in the zlib order).
+    final ZlibCompressor.CompressionLevel level =
+        ZlibFactory.getCompressionLevel(getConf());
+    return new ParallelGzipOutputStream(out,
+        level == ZlibCompressor.CompressionLevel.DEFAULT_COMPRESSION
+            ? Deflater.DEFAULT_COMPRESSION : level.ordinal(),
+        Math.max(1, getConf().getInt(COMPRESS_THREADS_KEY,
+                                     COMPRESS_THREADS_DEFAULT)),
+        getConf().getInt(COMPRESS_CHUNK_SIZE_KEY,
+            COMPRESS_CHUNK_SIZE_DEFAULT),
+        getConf().getLong(COMPRESS_INDEX_INTERVAL_KEY,
+            COMPRESS_INDEX_INTERVAL_DEFAULT));
+  }
 
 }
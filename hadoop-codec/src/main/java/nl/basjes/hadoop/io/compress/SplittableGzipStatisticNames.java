@@ -0,0 +1,79 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress;
+
+/**
+ * The names of the counters in the
+ * {@link org.apache.hadoop.fs.statistics.IOStatistics} of the streams of the
+ * {@link SplittableGzipCodec}. Together they show what reading a split costs
+ * compared to reading the same data from an uncompressed file: everything
+ * that was skipped is decompressed only to be thrown away.
+ */
+public final class SplittableGzipStatisticNames {
+
+  /**
+   * Compressed bytes that were read (and decompressed) before the start of
+   * the split. The part that was not read because the stream resumed at a
+   * checkpoint is not included.
+   */
+  public static final String SKIPPED_COMPRESSED_BYTES =
+      "splittablegzip_skipped_compressed_bytes";
+
+  /**
+   * Decompressed bytes that were thrown away before the start of the split.
+   */
+  public static final String SKIPPED_UNCOMPRESSED_BYTES =
+      "splittablegzip_skipped_uncompressed_bytes";
+
+  /**
+   * The wall clock time (in milliseconds) of skipping to the start of the
+   * split.
+   */
+  public static final String SKIP_TIME_MILLIS =
+      "splittablegzip_skip_time_ms";
+
+  /**
+   * Decompressed bytes that were read 1 byte at a time (near the end of the
+   * split if the exact position is disabled).
+   */
+  public static final String CRAWL_BYTES =
+      "splittablegzip_crawl_bytes";
+
+  /**
+   * The number of times the decompressor was given a single compressed byte
+   * because of the crawling.
+   */
+  public static final String CRAWL_INFLATE_CALLS =
+      "splittablegzip_crawl_inflate_calls";
+
+  /**
+   * Compressed bytes read from the start of the split onwards.
+   */
+  public static final String SPLIT_COMPRESSED_BYTES =
+      "splittablegzip_split_compressed_bytes";
+
+  /**
+   * Decompressed bytes returned to the reader of the split.
+   */
+  public static final String SPLIT_UNCOMPRESSED_BYTES =
+      "splittablegzip_split_uncompressed_bytes";
+
+  private SplittableGzipStatisticNames() {
+  }
+
+}
@@ -17,33 +17,68 @@
 
 package nl.basjes.hadoop.io.compress;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.compress.DecompressorStream;
 
 /**
  * A {@link DecompressorStream} that allows a dynamic reduction in block size
  * of the file read from disk. The purpose is to make determining the position
- * in the underlying compressed data stream more accurate.
+ * in the underlying compressed data stream more accurate.<br>
+ * All buffers come from the {@link BufferPool} and are given back on close.
  */
 public class ThrottleableDecompressorStream extends DecompressorStream {
 
+  // The size of the reads while fast forwarding.
+  private static final int FAST_FORWARD_READ_SIZE = 256 * 1024;
+
   private int readStep = 0;
   private long totalBytesRead = 0;
+  private long readBoundary = -1;
+  private int lastBytesSent = 0;
+  private long discardedBytes = 0;
+  private long singleByteReads = 0;
+
+  private byte[] fastForwardBuffer = null;
+  private byte[] discardBuffer = null;
+  private byte[] transferBuffer = null;
+
+  private boolean returnDecompressor = false;
 
   // ------------------------------------------
 
   public ThrottleableDecompressorStream(final InputStream in,
       final Decompressor decompressor, final int bufferSize)
     throws IOException {
-    super(in, decompressor, bufferSize);
+    super(in); // Does not allocate any buffers
+    if (decompressor == null) {
+      throw new NullPointerException();
+    } else if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Illegal bufferSize");
+    }
+    this.decompressor = decompressor;
+    this.buffer = BufferPool.getInstance().take(bufferSize);
     setReadStep(0); // Set readStep to the size of the buffer
   }
 
   // ------------------------------------------
 
+  /**
+   * For a subclass that gets its decompressed data from elsewhere: no
+   * decompressor and no buffers.
+   */
+  ThrottleableDecompressorStream(final InputStream in) throws IOException {
+    super(in);
+  }
+
+  // ------------------------------------------
+
   public ThrottleableDecompressorStream(final InputStream in,
       final Decompressor decompressor) throws IOException {
     this(in, decompressor, 512);
@@ -51,6 +86,18 @@ public class ThrottleableDecompressorStream extends DecompressorStream {
 
   // ------------------------------------------
 
+  /**
+   * Return the decompressor to the {@link CodecPool} when this stream is
+   * closed (because it was taken from there for this stream).
+   *
+   * @param newReturnDecompressor Return it or not.
+   */
+  void setReturnDecompressor(final boolean newReturnDecompressor) {
+    returnDecompressor = newReturnDecompressor;
+  }
+
+  // ------------------------------------------
+
   /**
    * The compressed data is read from disk in blocks the size of the allocated
    * buffer. The accuracy of the reported position in the input stream greatly
@@ -78,19 +125,45 @@ public class ThrottleableDecompressorStream extends DecompressorStream {
 
   // ------------------------------------------
 
+  /**
+   * No single read of the compressed data will cross this offset.
+   * Because the decompressor only gets new input after it has returned all
+   * output of the previous input, the data that is returned while
+   * getBytesRead() is at most the boundary is exactly the data that can be
+   * decompressed from the compressed bytes before the boundary.
+   *
+   * @param boundary The compressed offset (-1 for none).
+   */
+  public void setReadBoundary(final long boundary) {
+    readBoundary = boundary;
+  }
+
+  // ------------------------------------------
+
   /**
    * Reads the compressed input into the buffer.
-   * This Override limits the number of bytes read to "readStep" and records
-   * how many bytes have been read so far.
+   * This Override limits the number of bytes read to "readStep" (and the read
+   * boundary) and records how many bytes have been read so far.
    * @throws IOException In case of an IO problem
    */
   @Override
   protected int getCompressedData() throws IOException {
     checkStream();
 
+    int length = readStep;
+    if (totalBytesRead < readBoundary) {
+      length = (int) Math.min(length, readBoundary - totalBytesRead);
+    }
+
     // note that the _caller_ is now required to call setInput() or throw
-    final int bytesRead = in.read(buffer, 0, readStep);
-    totalBytesRead += bytesRead;
+    final int bytesRead = in.read(buffer, 0, length);
+    if (bytesRead > 0) { // Not the -1 at the end of the input
+      totalBytesRead += bytesRead;
+    }
+    lastBytesSent = bytesRead;
+    if (readStep == 1 && bytesRead == 1) {
+      singleByteReads++;
+    }
     return bytesRead;
   }
 
@@ -103,6 +176,270 @@ public class ThrottleableDecompressorStream extends DecompressorStream {
     return totalBytesRead;
   }
 
+  /**
+   * @return the number of decompressed bytes that were thrown away by
+   * {@link #fastForward(long)}.
+   */
+  public long getDiscardedBytes() {
+    return discardedBytes;
+  }
+
+  /**
+   * @return how often the decompressor was given a single byte of compressed
+   * data because the read step was 1 (i.e. while crawling).
+   */
+  public long getSingleByteReads() {
+    return singleByteReads;
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Decompress and discard everything until getBytesRead() reaches the target.
+   * This reads the compressed data in large blocks and with a
+   * {@link CheckpointableGzipDecompressor} nothing is copied and no CRC is
+   * calculated (so the trailer of the current member is not verified).<br>
+   * All compressed data that has been read is consumed before this returns so
+   * the normal reads continue exactly as if they had read everything before
+   * it themselves.
+   * @param target The compressed offset to go to. The actual position can be
+   *               beyond this if that was read already.
+   * @throws IOException In case of an IO problem or corrupt input. The end of
+   * the input is not an error here; the next read() reports it.
+   */
+  public void fastForward(final long target) throws IOException {
+    checkStream();
+    if (eof) {
+      return;
+    }
+    if (fastForwardBuffer == null) {
+      fastForwardBuffer =
+          BufferPool.getInstance().take(FAST_FORWARD_READ_SIZE);
+    }
+
+    // Where the input of the decompressor came from.
+    byte[] input = buffer;
+    int inputLength = lastBytesSent;
+
+    while (true) {
+      final int discarded = discard();
+      if (discarded > 0) {
+        discardedBytes += discarded;
+        continue;
+      }
+
+      if (decompressor.finished()) {
+        final int remaining = decompressor.getRemaining();
+        if (remaining > 0) {
+          // The next member (of a concatenated gzip file) starts here.
+          decompressor.reset();
+          decompressor.setInput(input, inputLength - remaining, remaining);
+          continue;
+        }
+      } else if (!decompressor.needsInput()) {
+        return; // Something we cannot handle here; leave it to read().
+      }
+
+      if (totalBytesRead >= target) {
+        return;
+      }
+      final int bytesRead = in.read(fastForwardBuffer, 0,
+          (int) Math.min(fastForwardBuffer.length, target - totalBytesRead));
+      if (bytesRead == -1) {
+        return;
+      }
+      totalBytesRead += bytesRead;
+      if (decompressor.finished()) {
+        decompressor.reset();
+      }
+      input = fastForwardBuffer;
+      inputLength = bytesRead;
+      decompressor.setInput(input, 0, inputLength);
+    }
+  }
+
+  private int discard() throws IOException {
+    if (decompressor instanceof CheckpointableGzipDecompressor) {
+      return ((CheckpointableGzipDecompressor) decompressor)
+          .discard(FAST_FORWARD_READ_SIZE);
+    }
+    if (decompressor instanceof DirectGzipDecompressor) {
+      return ((DirectGzipDecompressor) decompressor)
+          .discard(FAST_FORWARD_READ_SIZE);
+    }
+    return decompressor.decompress(getDiscardBuffer(), 0,
+        FAST_FORWARD_READ_SIZE);
+  }
+
+  private byte[] getDiscardBuffer() {
+    if (discardBuffer == null) {
+      discardBuffer = BufferPool.getInstance().take(FAST_FORWARD_READ_SIZE);
+    }
+    return discardBuffer;
+  }
+
+  /**
+   * Decompress and discard the next n bytes.
+   */
+  @Override
+  public long skip(final long n) throws IOException {
+    if (n < 0) {
+      throw new IllegalArgumentException("negative skip length");
+    }
+    checkStream();
+    long skipped = 0;
+    while (skipped < n) {
+      final int bytesRead = read(getDiscardBuffer(), 0,
+          (int) Math.min(n - skipped, FAST_FORWARD_READ_SIZE));
+      if (bytesRead == -1) {
+        break;
+      }
+      skipped += bytesRead;
+    }
+    return skipped;
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Read into a ByteBuffer. With a {@link DirectGzipDecompressor} the data is
+   * decompressed straight into the buffer (also if it is a direct buffer);
+   * otherwise a direct buffer is filled through a temporary array.
+   * @param dst Where the data goes; the position is moved past the data.
+   * @return the number of bytes read or -1 at the end of the input.
+   * @throws IOException In case of an IO problem or corrupt input.
+   */
+  public int read(final ByteBuffer dst) throws IOException {
+    checkStream();
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    if (dst.hasArray()) {
+      final int n = read(dst.array(), dst.arrayOffset() + dst.position(),
+          dst.remaining());
+      if (n > 0) {
+        dst.position(dst.position() + n);
+      }
+      return n;
+    }
+    if (!(decompressor instanceof DirectGzipDecompressor)) {
+      if (transferBuffer == null) {
+        transferBuffer = BufferPool.getInstance().take(buffer.length);
+      }
+      final int n = read(transferBuffer, 0,
+          Math.min(transferBuffer.length, dst.remaining()));
+      if (n > 0) {
+        dst.put(transferBuffer, 0, n);
+      }
+      return n;
+    }
+    if (eof) {
+      return -1;
+    }
+    return decompressDirect((DirectGzipDecompressor) decompressor, dst);
+  }
+
+  /**
+   * The same as DecompressorStream.decompress but into a ByteBuffer.
+   */
+  private int decompressDirect(final DirectGzipDecompressor direct,
+      final ByteBuffer dst) throws IOException {
+    int n;
+    while ((n = direct.decompress(dst)) == 0) {
+      if (direct.finished()) {
+        final int remaining = direct.getRemaining();
+        direct.reset();
+        if (remaining == 0) {
+          final int m = getCompressedData();
+          if (m == -1) {
+            eof = true;
+            return -1;
+          }
+          direct.setInput(buffer, 0, m);
+        } else {
+          // The next member of a concatenated gzip file.
+          direct.setInput(buffer, lastBytesSent - remaining, remaining);
+        }
+      } else if (direct.needsInput()) {
+        final int m = getCompressedData();
+        if (m == -1) {
+          throw new EOFException("Unexpected end of input stream");
+        }
+        direct.setInput(buffer, 0, m);
+      }
+    }
+    return n;
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Continue reading at the provided checkpoint instead of at the current
+   * position. This only works if the underlying stream is Seekable and the
+   * decompressor is a {@link CheckpointableGzipDecompressor}. At the start of
+   * a gzip member any decompressor can be used.
+   * Afterwards getBytesRead() reports the compressed offset of the checkpoint
+   * as if everything before it had been read.
+   * @param checkpoint Where to continue.
+   * @throws IOException In case of an IO problem or if resuming is not possible.
+   */
+  public void resume(final DeflateCheckpoint checkpoint) throws IOException {
+    checkStream();
+    if (!(decompressor instanceof CheckpointableGzipDecompressor)
+        && !checkpoint.isMemberStart()) {
+      throw new IOException("Resuming at a checkpoint requires a "
+          + CheckpointableGzipDecompressor.class.getSimpleName());
+    }
+    if (!(in instanceof Seekable)) {
+      throw new IOException("Resuming at a checkpoint requires a Seekable "
+          + "input stream");
+    }
+    ((Seekable) in).seek(checkpoint.getCompressedOffset());
+    if (decompressor instanceof CheckpointableGzipDecompressor) {
+      ((CheckpointableGzipDecompressor) decompressor).resume(checkpoint);
+    } else {
+      decompressor.reset();
+    }
+    totalBytesRead = checkpoint.getCompressedOffset();
+    eof = false;
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Close the underlying stream, give all buffers back to the
+   * {@link BufferPool} and (if it came from there) return the decompressor to
+   * the {@link CodecPool}.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      super.close();
+    } finally {
+      final BufferPool pool = BufferPool.getInstance();
+      pool.give(buffer);
+      pool.give(fastForwardBuffer);
+      pool.give(discardBuffer);
+      pool.give(transferBuffer);
+      buffer = null;
+      fastForwardBuffer = null;
+      discardBuffer = null;
+      transferBuffer = null;
+      if (returnDecompressor) {
+        returnDecompressor = false;
+        if (decompressor instanceof CheckpointableGzipDecompressor) {
+          // Do not publish anything for whoever gets it next.
+          ((CheckpointableGzipDecompressor) decompressor)
+              .setCheckpointListener(null, Long.MAX_VALUE);
+        }
+        CodecPool.returnDecompressor(decompressor);
+      }
+    }
+  }
+
   // ------------------------------------------
 
 }
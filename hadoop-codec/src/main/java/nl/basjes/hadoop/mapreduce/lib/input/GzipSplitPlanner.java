@@ -0,0 +1,181 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.mapreduce.lib.input;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plans the splits of a gzip file so that all of them are predicted to finish
+ * at the same time.<br>
+ * <br>
+ * A split that starts at compressed offset s with a compressed size z takes
+ * <pre>
+ *   (s - c(s)) / skipRate + z / processRate
+ * </pre>
+ * seconds, where c(s) is the offset of the last checkpoint (from the index of
+ * the file) at or before s, or 0. Both rates are in compressed bytes per
+ * second: the uncompressed rates divided by the compression ratio. Only the
+ * ratio of the two rates matters for the plan so the compression ratio itself
+ * is not needed.<br>
+ * <br>
+ * With equal splits the last split always finishes last. For a finish time T
+ * each split is made as big as fits in T, which fixes where the next split
+ * starts; the smallest T for which the file fits in n splits is the best
+ * possible plan with n splits. Without checkpoints each split is a fixed
+ * factor a = 1 - processRate / skipRate smaller than the previous one and
+ * adding splits never gets the time below C / skipRate (the time to skip the
+ * entire file of C bytes). With many checkpoints the splits are almost equal.
+ * The number of splits is the smallest that gets within
+ * {@value #GOOD_ENOUGH} of the best possible time; every additional split
+ * mostly wastes resources.
+ */
+final class GzipSplitPlanner {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(GzipSplitPlanner.class);
+
+  // Accept a plan that is at most this much slower than the best plan.
+  static final double GOOD_ENOUGH = 0.1;
+
+  // Limits the work (and memory) of planning a single file.
+  private static final int MAX_PLANNED_SPLITS = 10000;
+
+  private GzipSplitPlanner() {
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Plan the splits of a gzip file.
+   *
+   * @param compressedSize The size of the gzip file.
+   * @param checkpoints The compressed offsets (in ascending order) at which a
+   *                    split can resume without skipping what is before it.
+   * @param inflateRate Uncompressed bytes per second while skipping.
+   * @param processRate Uncompressed bytes per second while processing.
+   * @param maxSplits The maximum number of splits.
+   * @param minSplitSize The minimum size of a split.
+   * @return the start offsets of the splits (the first is always 0).
+   */
+  static long[] plan(final long compressedSize, final long[] checkpoints,
+      final double inflateRate, final double processRate,
+      final long maxSplits, final long minSplitSize) {
+    final long minSize = Math.max(1, minSplitSize);
+    final int limit = (int) Math.min(Math.min(maxSplits, MAX_PLANNED_SPLITS),
+        compressedSize / minSize);
+    if (limit <= 1) {
+      return new long[]{0};
+    }
+    // The time is expressed in compressed bytes skipped; processing includes
+    // decompressing so it is never faster than skipping.
+    final double cost = inflateRate / Math.min(processRate, inflateRate);
+    final Plan plan = new Plan(compressedSize, checkpoints, cost, minSize);
+
+    final double bestTime = plan.getFinishTime(limit);
+    int low = 1;
+    int high = limit;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (plan.getFinishTime(middle) <= bestTime * (1.0 + GOOD_ENOUGH)) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    final double time = plan.getFinishTime(low);
+    final long[] starts = plan.getStarts(time, low);
+    LOG.debug("Planned {} splits for {} bytes with {} checkpoints: "
+        + "finished in {} of the time of a single split", starts.length,
+        compressedSize, checkpoints.length, time / (compressedSize * cost));
+    return starts;
+  }
+
+  private static final class Plan {
+    private final long size;
+    private final long[] checkpoints;
+    private final double cost;
+    private final long minSplitSize;
+
+    private Plan(final long size, final long[] checkpoints, final double cost,
+        final long minSplitSize) {
+      this.size = size;
+      this.checkpoints = checkpoints;
+      this.cost = cost;
+      this.minSplitSize = minSplitSize;
+    }
+
+    /**
+     * @return the smallest time in which the file can be read in (at most)
+     * the provided number of splits.
+     */
+    private double getFinishTime(final int splits) {
+      // Never better than splits that do not have to skip anything.
+      double low = size * cost / splits;
+      // A single split.
+      double high = size * cost;
+      while (high - low > 1.0) {
+        final double middle = (low + high) / 2;
+        if (getStarts(middle, splits) == null) {
+          low = middle;
+        } else {
+          high = middle;
+        }
+      }
+      return high;
+    }
+
+    /**
+     * @return the starts of the splits that each are as big as fits in the
+     * provided time, or null if that needs more than maxSplits splits.
+     */
+    private long[] getStarts(final double time, final int maxSplits) {
+      final long[] starts = new long[maxSplits];
+      long start = 0;
+      for (int split = 0; split < maxSplits; split++) {
+        starts[split] = start;
+        final double length = (time - getSkip(start)) / cost;
+        if (length < minSplitSize) {
+          return null;
+        }
+        start += (long) length;
+        // A too small remainder is added to this split.
+        if (size - start < minSplitSize) {
+          return Arrays.copyOf(starts, split + 1);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the number of compressed bytes that are skipped to get to the
+     * provided offset.
+     */
+    private long getSkip(final long offset) {
+      final int found = Arrays.binarySearch(checkpoints, offset);
+      if (found >= 0) {
+        return 0;
+      }
+      final int before = -found - 2;
+      return before < 0 ? offset : offset - checkpoints[before];
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.mapreduce.lib.input;
+
+import java.io.InputStream;
+import java.util.Map;
+
+import nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames;
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * The counters of a task that read a split of a gzip file with the
+ * {@link SplittableGzipLineRecordReader}; these are the
+ * {@link org.apache.hadoop.fs.statistics.IOStatistics} of the stream (see
+ * {@link SplittableGzipStatisticNames}) summed over all tasks of the job.
+ * <br>
+ * The skipped bytes versus the split bytes show how much of the work of the
+ * job was decompressing data only to throw it away.
+ */
+public enum SplittableGzipCounters {
+  SKIPPED_COMPRESSED_BYTES(
+      SplittableGzipStatisticNames.SKIPPED_COMPRESSED_BYTES),
+  SKIPPED_UNCOMPRESSED_BYTES(
+      SplittableGzipStatisticNames.SKIPPED_UNCOMPRESSED_BYTES),
+  SKIP_TIME_MILLIS(SplittableGzipStatisticNames.SKIP_TIME_MILLIS),
+  CRAWL_BYTES(SplittableGzipStatisticNames.CRAWL_BYTES),
+  CRAWL_INFLATE_CALLS(SplittableGzipStatisticNames.CRAWL_INFLATE_CALLS),
+  SPLIT_COMPRESSED_BYTES(SplittableGzipStatisticNames.SPLIT_COMPRESSED_BYTES),
+  SPLIT_UNCOMPRESSED_BYTES(
+      SplittableGzipStatisticNames.SPLIT_UNCOMPRESSED_BYTES);
+
+  private final String statistic;
+
+  SplittableGzipCounters(final String statistic) {
+    this.statistic = statistic;
+  }
+
+  /**
+   * @return the name of the statistic this counter is the sum of.
+   */
+  public String getStatistic() {
+    return statistic;
+  }
+
+  /**
+   * Add the statistics of the stream to the counters of the task.
+   *
+   * @param stream The stream of the split (ignored if it has no statistics).
+   * @param context The context of the task.
+   */
+  public static void increment(final InputStream stream,
+      final TaskAttemptContext context) {
+    if (!(stream instanceof IOStatisticsSource)) {
+      return;
+    }
+    final IOStatistics statistics =
+        ((IOStatisticsSource) stream).getIOStatistics();
+    if (statistics == null) {
+      return;
+    }
+    final Map<String, Long> counters = statistics.counters();
+    for (SplittableGzipCounters counter : values()) {
+      final Long value = counters.get(counter.statistic);
+      if (value != null && value > 0) {
+        context.getCounter(counter).increment(value);
+      }
+    }
+  }
+
+}
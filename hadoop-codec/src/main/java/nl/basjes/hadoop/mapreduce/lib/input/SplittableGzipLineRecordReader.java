@@ -0,0 +1,271 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.mapreduce.lib.input;
+
+import java.io.IOException;
+
+import nl.basjes.hadoop.io.compress.SkippingSplitStream;
+import nl.basjes.hadoop.io.compress.SplittableGzipCodec;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CompressedSplitLineReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.SplitLineReader;
+import org.apache.hadoop.util.functional.FutureIO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.hadoop.fs.Options.OpenFileOptions.FS_OPTION_OPENFILE_LENGTH;
+import static org.apache.hadoop.fs.Options.OpenFileOptions.FS_OPTION_OPENFILE_READ_POLICY;
+import static org.apache.hadoop.fs.Options.OpenFileOptions.FS_OPTION_OPENFILE_READ_POLICY_SEQUENTIAL;
+
+/**
+ * A {@link LineRecordReader} for files compressed with the
+ * {@link SplittableGzipCodec} that keeps the framework informed while it
+ * skips to the start of the split.<br>
+ * <br>
+ * The normal LineRecordReader skips to the start of the split in initialize
+ * without reporting anything. For a late split in a big file this takes
+ * minutes in which the task does not seem to make any progress at all, which
+ * makes the framework start a speculative attempt (that then has to do the
+ * same skip again). This record reader does the skip in the first call to
+ * nextKeyValue while it
+ * <ul>
+ * <li>sets the status of the task to what it is doing,</li>
+ * <li>regularly reports that the task is still alive and</li>
+ * <li>reports the progress over all compressed data it has to read (the
+ * skipped part and the split itself) instead of only the split.</li>
+ * </ul>
+ * When it is closed the statistics of the stream are added to the
+ * {@link SplittableGzipCounters} of the task.
+ * All other files are read by a normal {@link LineRecordReader}.
+ */
+public class SplittableGzipLineRecordReader
+    extends RecordReader<LongWritable, Text> {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SplittableGzipLineRecordReader.class);
+
+  private final byte[] recordDelimiterBytes;
+
+  // Only used for the files that are not read with the SplittableGzipCodec.
+  private LineRecordReader lineRecordReader = null;
+
+  private TaskAttemptContext context;
+  private Path file;
+  private SplitCompressionInputStream cIn;
+  private SplitLineReader in;
+  private Decompressor decompressor;
+  private long start;
+  private long end;
+  private long pos;
+  private int maxLineLength;
+  private boolean arrived = false;
+  private LongWritable key = null;
+  private Text value = null;
+
+  public SplittableGzipLineRecordReader() {
+    this(null);
+  }
+
+  public SplittableGzipLineRecordReader(final byte[] recordDelimiter) {
+    this.recordDelimiterBytes = recordDelimiter;
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public void initialize(final InputSplit genericSplit,
+      final TaskAttemptContext taskContext) throws IOException {
+    final FileSplit split = (FileSplit) genericSplit;
+    final Configuration conf = taskContext.getConfiguration();
+    file = split.getPath();
+
+    final CompressionCodec codec =
+        new CompressionCodecFactory(conf).getCodec(file);
+    if (!(codec instanceof SplittableGzipCodec)) {
+      lineRecordReader = new LineRecordReader(recordDelimiterBytes);
+      lineRecordReader.initialize(genericSplit, taskContext);
+      return;
+    }
+
+    context = taskContext;
+    maxLineLength = conf.getInt(LineRecordReader.MAX_LINE_LENGTH,
+        Integer.MAX_VALUE);
+    start = split.getStart();
+    end = start + split.getLength();
+
+    // The file is read sequentially from the start (or a checkpoint) and the
+    // object stores can use the status instead of asking for it again.
+    final FileSystem fs = file.getFileSystem(conf);
+    final FileStatus status = fs.getFileStatus(file);
+    final FSDataInputStream fileIn = FutureIO.awaitFuture(fs.openFile(file)
+        .withFileStatus(status)
+        .opt(FS_OPTION_OPENFILE_READ_POLICY,
+            FS_OPTION_OPENFILE_READ_POLICY_SEQUENTIAL)
+        .optLong(FS_OPTION_OPENFILE_LENGTH, status.getLen())
+        .build());
+    decompressor = CodecPool.getDecompressor(codec);
+    // Passing the path makes the index and the checkpoint cache available
+    // without relying on the mapreduce.map.input.file setting.
+    cIn = ((SplittableGzipCodec) codec).createInputStream(fileIn,
+        decompressor, start, end, SplittableCompressionCodec.READ_MODE.BYBLOCK,
+        file);
+    in = new CompressedSplitLineReader(cIn, conf, recordDelimiterBytes);
+    start = cIn.getAdjustedStart();
+    end = cIn.getAdjustedEnd();
+    pos = start;
+
+    if (cIn instanceof SkippingSplitStream) {
+      final SkippingSplitStream skipping = (SkippingSplitStream) cIn;
+      skipping.setProgressable(() -> {
+        context.setStatus(String.format(
+            "Skipping to offset %d of %s (%.1f%% of this task done)",
+            start, file, 100.0 * skipping.getProgress()));
+        context.progress();
+      });
+    }
+  }
+
+  /**
+   * Go to the first record of this split: skip to the start of the split and
+   * throw away the (partial) line that belongs to the previous split.
+   */
+  private void arrive() throws IOException {
+    arrived = true;
+    if (start == 0) {
+      return;
+    }
+    context.setStatus("Skipping to offset " + start + " of " + file);
+    context.progress();
+    final long startTime = System.currentTimeMillis();
+    // We always throw away the first record because the previous split
+    // always reads one extra line.
+    start += in.readLine(new Text(), 0, Integer.MAX_VALUE);
+    pos = start;
+    LOG.info("Skipped to offset {} of {} in {} ms.",
+        start, file, System.currentTimeMillis() - startTime);
+    context.setStatus("Reading " + file + " from offset " + start);
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException {
+    if (lineRecordReader != null) {
+      return lineRecordReader.nextKeyValue();
+    }
+    if (!arrived) {
+      arrive();
+    }
+
+    if (key == null) {
+      key = new LongWritable();
+    }
+    key.set(pos);
+    if (value == null) {
+      value = new Text();
+    }
+    int newSize = 0;
+    // We always read one extra line, which lies outside the upper split
+    // limit i.e. (end - 1)
+    while (cIn.getPos() <= end || in.needAdditionalRecordAfterSplit()) {
+      newSize = in.readLine(value, maxLineLength, Integer.MAX_VALUE);
+      pos += newSize;
+      if (newSize == 0 || newSize < maxLineLength) {
+        break;
+      }
+      // The line was too long and was only partially read.
+      LOG.info("Skipped line of size {} at pos {}", newSize, pos - newSize);
+    }
+    if (newSize == 0) {
+      key = null;
+      value = null;
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public LongWritable getCurrentKey() {
+    if (lineRecordReader != null) {
+      return lineRecordReader.getCurrentKey();
+    }
+    return key;
+  }
+
+  @Override
+  public Text getCurrentValue() {
+    if (lineRecordReader != null) {
+      return lineRecordReader.getCurrentValue();
+    }
+    return value;
+  }
+
+  /**
+   * @return the progress over all compressed data this task must read, so
+   * including the part that is skipped.
+   */
+  @Override
+  public float getProgress() throws IOException {
+    if (lineRecordReader != null) {
+      return lineRecordReader.getProgress();
+    }
+    if (cIn instanceof SkippingSplitStream) {
+      return ((SkippingSplitStream) cIn).getProgress();
+    }
+    if (start == end) {
+      return 0.0F;
+    }
+    return Math.min(1.0F, (cIn.getPos() - start) / (float) (end - start));
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (lineRecordReader != null) {
+      lineRecordReader.close();
+      return;
+    }
+    try {
+      if (in != null) {
+        SplittableGzipCounters.increment(cIn, context);
+        in.close();
+        in = null;
+      }
+    } finally {
+      if (decompressor != null) {
+        CodecPool.returnDecompressor(decompressor);
+        decompressor = null;
+      }
+    }
+  }
+
+}
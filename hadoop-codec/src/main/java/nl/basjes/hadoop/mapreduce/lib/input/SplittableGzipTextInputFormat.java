@@ -0,0 +1,184 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.mapreduce.lib.input;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.basjes.hadoop.io.compress.ReadSizes;
+import nl.basjes.hadoop.io.compress.SplittableGzipCodec;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TextInputFormat} that reads the files compressed with the
+ * SplittableGzipCodec with a {@link SplittableGzipLineRecordReader}.
+ * <pre>
+ * job.setInputFormatClass(SplittableGzipTextInputFormat.class);
+ * </pre>
+ * Optionally the splits of these files are not of equal size. A split that
+ * starts later in the file first has to skip everything before it (or to the
+ * last checkpoint in the index of the file before it), so with equal splits
+ * the last split often finishes last. With {@value #PLANNER_ENABLED_KEY} the
+ * splits are planned (see {@link GzipSplitPlanner}) so they all finish at
+ * about the same time; the later splits are smaller. The maximum split size
+ * only determines the maximum number of splits, a file is split in fewer
+ * parts if more splits would hardly make it finish sooner (possibly in only
+ * one split). Files in which a split can resume almost anywhere (see
+ * {@link SplittableGzipCodec#getCheckpointOffsets}) keep splits of equal size.
+ */
+public class SplittableGzipTextInputFormat extends TextInputFormat {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SplittableGzipTextInputFormat.class);
+
+  /**
+   * Plan the splits of gzip files (true) or use splits of equal size.
+   */
+  public static final String PLANNER_ENABLED_KEY =
+      "io.compression.codec.splittablegzip.planner.enabled";
+  public static final boolean PLANNER_ENABLED_DEFAULT = false;
+
+  /**
+   * The uncompressed bytes per second that are decompressed (and discarded)
+   * while skipping to the start of a split.
+   */
+  public static final String INFLATE_RATE_KEY =
+      "io.compression.codec.splittablegzip.planner.inflate.rate";
+  public static final long INFLATE_RATE_DEFAULT = 100 * 1024 * 1024;
+
+  /**
+   * The uncompressed bytes per second that a task processes (decompressing
+   * and running the mapper).
+   */
+  public static final String PROCESS_RATE_KEY =
+      "io.compression.codec.splittablegzip.planner.process.rate";
+  public static final long PROCESS_RATE_DEFAULT = 32 * 1024 * 1024;
+
+  @Override
+  public RecordReader<LongWritable, Text> createRecordReader(
+      final InputSplit split, final TaskAttemptContext context) {
+    final String delimiter = context.getConfiguration()
+        .get("textinputformat.record.delimiter");
+    byte[] recordDelimiterBytes = null;
+    if (null != delimiter) {
+      recordDelimiterBytes = delimiter.getBytes(StandardCharsets.UTF_8);
+    }
+    return new SplittableGzipLineRecordReader(recordDelimiterBytes);
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public List<InputSplit> getSplits(final JobContext job) throws IOException {
+    final List<InputSplit> splits = super.getSplits(job);
+    final Configuration conf = job.getConfiguration();
+    if (!conf.getBoolean(PLANNER_ENABLED_KEY, PLANNER_ENABLED_DEFAULT)) {
+      return splits;
+    }
+
+    final CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+    final List<InputSplit> planned = new ArrayList<>(splits.size());
+    // Per file: are the equal splits replaced by planned splits?
+    final Map<Path, Boolean> plannedFiles = new HashMap<>();
+    for (InputSplit split : splits) {
+      final FileSplit fileSplit = (FileSplit) split;
+      final Path file = fileSplit.getPath();
+      final CompressionCodec codec = codecs.getCodec(file);
+      if (fileSplit.getLength() == 0
+          || !(codec instanceof SplittableGzipCodec)) {
+        planned.add(split);
+        continue;
+      }
+      if (!plannedFiles.containsKey(file)) {
+        final List<InputSplit> fileSplits =
+            planSplits(job, (SplittableGzipCodec) codec, file);
+        plannedFiles.put(file, fileSplits != null);
+        if (fileSplits != null) {
+          planned.addAll(fileSplits);
+        }
+      }
+      if (!plannedFiles.get(file)) {
+        planned.add(split);
+      }
+    }
+    return planned;
+  }
+
+  /**
+   * @return the planned splits or null if the equal splits are kept.
+   */
+  private List<InputSplit> planSplits(final JobContext job,
+      final SplittableGzipCodec codec, final Path file) throws IOException {
+    final Configuration conf = job.getConfiguration();
+    final FileSystem fs = file.getFileSystem(conf);
+    final FileStatus status = fs.getFileStatus(file);
+    final long length = status.getLen();
+
+    final long[] checkpoints = codec.getCheckpointOffsets(fs, status);
+    if (checkpoints == null) {
+      LOG.info("Not planning the splits of {}: a split can resume almost "
+          + "anywhere", file);
+      return null;
+    }
+
+    final long splitSize = computeSplitSize(status.getBlockSize(),
+        getMinSplitSize(job), getMaxSplitSize(job));
+    // The codec does not accept splits that are too small.
+    final long minSplitSize = Math.max(getMinSplitSize(job),
+        ReadSizes.getMinimumSplitSize(conf));
+
+    final long[] starts = GzipSplitPlanner.plan(length, checkpoints,
+        conf.getLong(INFLATE_RATE_KEY, INFLATE_RATE_DEFAULT),
+        conf.getLong(PROCESS_RATE_KEY, PROCESS_RATE_DEFAULT),
+        (length + splitSize - 1) / splitSize, minSplitSize);
+
+    final BlockLocation[] blocks = fs.getFileBlockLocations(status, 0, length);
+    final List<InputSplit> splits = new ArrayList<>(starts.length);
+    for (int split = 0; split < starts.length; split++) {
+      final long start = starts[split];
+      final long end = split + 1 < starts.length ? starts[split + 1] : length;
+      final int block = getBlockIndex(blocks, start);
+      splits.add(makeSplit(file, start, end - start,
+          blocks[block].getHosts(), blocks[block].getCachedHosts()));
+    }
+    LOG.info("Planned {} splits for {} ({} bytes)",
+        splits.size(), file, length);
+    return splits;
+  }
+
+}
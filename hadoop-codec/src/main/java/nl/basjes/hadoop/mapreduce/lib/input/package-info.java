@@ -0,0 +1,6 @@
+/**
+ * Provides the input format that reads text files compressed with the
+ * SplittableGzipCodec and reports what it is doing while it skips to the
+ * start of the split.
+ */
+package nl.basjes.hadoop.mapreduce.lib.input;
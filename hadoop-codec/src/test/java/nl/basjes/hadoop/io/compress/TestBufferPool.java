@@ -0,0 +1,118 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the JVM wide pool of buffers.
+ */
+public class TestBufferPool {
+
+  @Test
+  public void testReuse() {
+    final BufferPool pool = new BufferPool(1000);
+    final byte[] first = pool.take(100);
+    final byte[] second = pool.take(100);
+    assertNotSame(first, second);
+    assertEquals(2, pool.getAllocated());
+
+    pool.give(first);
+    assertEquals(100, pool.getPooledMemory());
+    assertEquals(50, pool.take(50).length); // Only the exact size is used
+    assertSame(first, pool.take(100));
+    assertEquals(1, pool.getReused());
+    assertEquals(0, pool.getPooledMemory());
+    pool.give(null);
+    assertEquals(0, pool.getPooledMemory());
+  }
+
+  @Test
+  public void testLimit() {
+    final BufferPool pool = new BufferPool(250);
+    pool.give(new byte[100]);
+    pool.give(new byte[100]);
+    pool.give(new byte[100]); // Does not fit anymore
+    assertEquals(200, pool.getPooledMemory());
+
+    pool.setMaxMemory(150);
+    assertEquals(100, pool.getPooledMemory());
+
+    pool.setMaxMemory(0);
+    assertEquals(0, pool.getPooledMemory());
+    pool.give(new byte[1]);
+    assertEquals(0, pool.getPooledMemory());
+    pool.clear();
+  }
+
+  @Test
+  public void testSplitStreamsReuseEverything() throws IOException {
+    final byte[] compressed = gzip(logLines(20000), 6);
+    for (boolean background : new boolean[]{false, true}) {
+      final Configuration conf = new Configuration();
+      // The decompressors of some backends are never pooled.
+      conf.set(InflateBackends.BACKEND_KEY, InflateBackends.JDK);
+      conf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY, background);
+      conf.setInt(SplittableGzipCodec.BACKGROUND_BUFFERS_KEY,
+          background ? 2 : 0);
+      final SplittableGzipCodec codec =
+          ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+
+      readSplits(codec, compressed); // Warm up
+      final long allocated = BufferPool.getInstance().getAllocated();
+      final long reused = BufferPool.getInstance().getReused();
+      readSplits(codec, compressed);
+      readSplits(codec, compressed);
+      assertEquals(allocated, BufferPool.getInstance().getAllocated());
+      assertEquals(0, CodecPool.getLeasedDecompressorsCount(codec));
+      assertTrue(BufferPool.getInstance().getReused() > reused);
+    }
+  }
+
+  private static void readSplits(final SplittableGzipCodec codec,
+      final byte[] compressed) throws IOException {
+    final byte[] buffer = new byte[1000];
+    final long middle = compressed.length / 2;
+    final long[][] splits = {{0, middle}, {middle, compressed.length}};
+    for (long[] split : splits) {
+      try (SplitCompressionInputStream in = codec.createInputStream(
+          new ByteArrayInputStream(compressed), null, split[0], split[1],
+          SplittableCompressionCodec.READ_MODE.BYBLOCK)) {
+        assertEquals(1, CodecPool.getLeasedDecompressorsCount(codec));
+        while (in.getPos() <= split[1] && in.read(buffer) != -1) {
+          // Only reading
+        }
+      }
+    }
+  }
+
+}
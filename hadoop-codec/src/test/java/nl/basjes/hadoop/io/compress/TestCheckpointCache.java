@@ -0,0 +1,97 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for the JVM wide cache of checkpoints.
+ */
+public class TestCheckpointCache {
+
+  private static final CheckpointCache.FileKey FILE =
+      new CheckpointCache.FileKey("/data/file.gz", 1000000, 1234);
+
+  @Test
+  public void testFindClosestCheckpoint() {
+    final CheckpointCache cache = new CheckpointCache(10 * 1024 * 1024);
+    final DeflateCheckpoint first = checkpoint(1000, 3);
+    final DeflateCheckpoint second = checkpoint(5000, 0);
+    cache.put(FILE, first);
+    cache.put(FILE, second);
+    cache.put(FILE, DeflateCheckpoint.memberStart(0, 0)); // Useless
+    assertEquals(2, cache.size());
+
+    assertNull(cache.get(FILE, 999));
+    assertSame(first, cache.get(FILE, 1000));
+    assertSame(first, cache.get(FILE, 4999));
+    assertSame(second, cache.get(FILE, 5000));
+    assertSame(second, cache.get(FILE, 100000));
+
+    // The same file after it was changed.
+    assertNull(cache.get(
+        new CheckpointCache.FileKey("/data/file.gz", 1000000, 5678), 100000));
+    assertNull(cache.get(
+        new CheckpointCache.FileKey("/data/file.gz", 1000001, 1234), 100000));
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    final long checkpointMemory = checkpoint(1, 0).getWindow().length + 128;
+    final CheckpointCache cache = new CheckpointCache(3 * checkpointMemory);
+    final DeflateCheckpoint first = checkpoint(1000, 0);
+    cache.put(FILE, first);
+    cache.put(FILE, checkpoint(2000, 0));
+    cache.put(FILE, checkpoint(3000, 0));
+    assertEquals(3, cache.size());
+    assertEquals(3 * checkpointMemory, cache.getUsedMemory());
+
+    // Using the first one makes the second one the least recently used.
+    assertSame(first, cache.get(FILE, 1500));
+    cache.put(FILE, checkpoint(4000, 0));
+    assertEquals(3, cache.size());
+    assertSame(first, cache.get(FILE, 2500));
+    assertEquals(4000, cache.get(FILE, 4000).getCompressedOffset());
+
+    cache.setMaxMemory(checkpointMemory);
+    assertEquals(1, cache.size());
+    assertNull(cache.get(FILE, 3999));
+    assertNotNull(cache.get(FILE, 4000));
+
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getUsedMemory());
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    assertNull(CheckpointCache.getInstance(new Configuration()));
+  }
+
+  private static DeflateCheckpoint checkpoint(final long offset,
+      final int bitOffset) {
+    return DeflateCheckpoint.blockBoundary(offset, bitOffset, offset * 3,
+        new byte[DeflateCheckpoint.WINDOW_SIZE]);
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for the persistent store of checkpoints.
+ */
+public class TestCheckpointStore {
+
+  private static final CheckpointCache.FileKey FILE =
+      new CheckpointCache.FileKey("/data/file.gz", 1000000, 1234);
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path directory;
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    fs = FileSystem.getLocal(conf);
+    directory = new Path(new Path(System.getProperty("test.build.data",
+        "/tmp")).makeQualified(fs.getUri(), fs.getWorkingDirectory()),
+        getClass().getSimpleName());
+    fs.delete(directory, true);
+    conf.set(CheckpointStore.STORE_DIR_KEY, directory.toString());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.delete(directory, true);
+  }
+
+  @Test
+  public void testFindClosestCheckpoint() throws IOException {
+    final CheckpointStore store = CheckpointStore.getInstance(conf);
+    final DeflateCheckpoint first = checkpoint(1000, 3);
+    final DeflateCheckpoint second = checkpoint(5000, 0);
+    store.put(FILE, first);
+    store.put(FILE, second);
+    store.put(FILE, second); // Already there
+    store.put(FILE, DeflateCheckpoint.memberStart(0, 0)); // Useless
+    store.put(FILE, DeflateCheckpoint.memberStart(7000, 21000));
+
+    assertNull(store.get(FILE, 999));
+    assertSameCheckpoint(first, store.get(FILE, 1000));
+    assertSameCheckpoint(first, store.get(FILE, 4999));
+    assertSameCheckpoint(second, store.get(FILE, 6999));
+    assertEquals(21000, store.get(FILE, 100000).getUncompressedOffset());
+
+    // The same file after it was changed.
+    assertNull(store.get(
+        new CheckpointCache.FileKey("/data/file.gz", 1000000, 5678), 100000));
+    assertNull(store.get(
+        new CheckpointCache.FileKey("/data/file.gz", 1000001, 1234), 100000));
+    assertNull(store.get(
+        new CheckpointCache.FileKey("/data/other.gz", 1000000, 1234), 100000));
+
+    // Only the checkpoints; no temporary files remain.
+    final FileStatus[] files = fs.listStatus(store.getDirectory(FILE));
+    assertEquals(3, files.length);
+    for (FileStatus file : files) {
+      assertFalse(file.getPath().getName().startsWith("."));
+    }
+  }
+
+  @Test
+  public void testIgnoresOtherFiles() throws IOException {
+    final CheckpointStore store = CheckpointStore.getInstance(conf);
+    final Path parent = store.getDirectory(FILE);
+    // A write that was interrupted before the rename.
+    try (FSDataOutputStream out =
+             fs.create(new Path(parent, ".2000-0.ckpt.1234.tmp"))) {
+      out.write(1);
+    }
+    try (FSDataOutputStream out = fs.create(new Path(parent, "README"))) {
+      out.write(1);
+    }
+    assertNull(store.get(FILE, 100000));
+    store.put(FILE, checkpoint(1000, 0));
+    assertEquals(1000, store.get(FILE, 100000).getCompressedOffset());
+  }
+
+  @Test
+  public void testListenerInterval() throws IOException {
+    conf.setLong(CheckpointStore.STORE_INTERVAL_KEY, 10000);
+    final CheckpointStore store = CheckpointStore.getInstance(conf);
+    final CheckpointListener listener = store.createListener(FILE, 3000);
+    for (long offset = 4000; offset <= 40000; offset += 4000) {
+      listener.checkpoint(checkpoint(offset, 1));
+    }
+    // Stored: 16000, 28000 and 40000.
+    assertNull(store.get(FILE, 15999));
+    assertEquals(16000, store.get(FILE, 27999).getCompressedOffset());
+    assertEquals(28000, store.get(FILE, 39999).getCompressedOffset());
+    assertEquals(40000, store.get(FILE, 100000).getCompressedOffset());
+    assertEquals(3, fs.listStatus(store.getDirectory(FILE)).length);
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    assertNull(CheckpointStore.getInstance(new Configuration()));
+  }
+
+  private static void assertSameCheckpoint(final DeflateCheckpoint expected,
+      final DeflateCheckpoint actual) {
+    assertEquals(expected.getCompressedOffset(), actual.getCompressedOffset());
+    assertEquals(expected.getBitOffset(), actual.getBitOffset());
+    assertEquals(expected.getUncompressedOffset(),
+        actual.getUncompressedOffset());
+    assertArrayEquals(expected.getWindow(), actual.getWindow());
+  }
+
+  private static DeflateCheckpoint checkpoint(final long offset,
+      final int bitOffset) {
+    final byte[] window = new byte[DeflateCheckpoint.WINDOW_SIZE];
+    for (int i = 0; i < window.length; i++) {
+      window[i] = (byte) (offset + i * 7);
+    }
+    return DeflateCheckpoint.blockBoundary(offset, bitOffset, offset * 3,
+        window);
+  }
+
+}
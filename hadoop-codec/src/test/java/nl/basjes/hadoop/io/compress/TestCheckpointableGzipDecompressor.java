@@ -0,0 +1,189 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the pure Java gzip decompressor.
+ * The output is compared with the input of the JDK gzip implementation.
+ */
+public class TestCheckpointableGzipDecompressor {
+
+  @Test
+  public void testDecompressAllLevels() throws IOException {
+    final byte[][] inputs = { logLines(20000), randomBytes(300000), new byte[0],
+      new byte[]{'x'} };
+    for (byte[] input : inputs) {
+      for (int level = 0; level <= 9; level++) {
+        final byte[] compressed = gzip(input, level);
+        assertArrayEquals("Level " + level, input,
+            decompress(new ByteArrayInputStream(compressed),
+                new CheckpointableGzipDecompressor(), 4096));
+      }
+    }
+  }
+
+  @Test
+  public void testDecompressByteAtATime() throws IOException {
+    final byte[] input = logLines(2000);
+    final byte[] compressed = gzip(input, 6);
+    assertArrayEquals(input,
+        decompress(new ByteArrayInputStream(compressed),
+            new CheckpointableGzipDecompressor(), 1));
+  }
+
+  @Test
+  public void testConcatenatedMembers() throws IOException {
+    final byte[] first = logLines(1000);
+    final byte[] second = randomBytes(10000);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(first, 9));
+    compressed.write(gzip(second, 1));
+    compressed.write(gzip(first, 0));
+
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(first);
+    expected.write(second);
+    expected.write(first);
+
+    assertArrayEquals(expected.toByteArray(),
+        decompress(new ByteArrayInputStream(compressed.toByteArray()),
+            new CheckpointableGzipDecompressor(), 4096));
+  }
+
+  @Test
+  public void testCorruptTrailer() {
+    final byte[] compressed = gzip(logLines(100), 6);
+    compressed[compressed.length - 6]++; // Break the CRC
+    try {
+      decompress(new ByteArrayInputStream(compressed),
+          new CheckpointableGzipDecompressor(), 4096);
+      fail("The corrupt CRC was not detected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("CRC"));
+    }
+  }
+
+  @Test
+  public void testResumeAtCheckpoints() throws IOException {
+    final byte[] input = logLines(50000);
+    final ByteArrayOutputStream members = new ByteArrayOutputStream();
+    members.write(gzip(input, 6));
+    members.write(gzip(input, 1));
+    final byte[] compressed = members.toByteArray();
+    final byte[] expected = new byte[input.length * 2];
+    System.arraycopy(input, 0, expected, 0, input.length);
+    System.arraycopy(input, 0, expected, input.length, input.length);
+
+    final List<DeflateCheckpoint> checkpoints = new ArrayList<>();
+    final CheckpointableGzipDecompressor decompressor =
+        new CheckpointableGzipDecompressor();
+    decompressor.setCheckpointListener(checkpoints::add, 10000);
+    assertArrayEquals(expected,
+        decompress(new ByteArrayInputStream(compressed), decompressor, 4096));
+
+    assertTrue("Too few checkpoints: " + checkpoints.size(),
+        checkpoints.size() > 10);
+    boolean sawMemberStart = false;
+    for (DeflateCheckpoint checkpoint : checkpoints) {
+      sawMemberStart |= checkpoint.isMemberStart()
+          && checkpoint.getCompressedOffset() > 0;
+      final InputStream in = new ByteArrayInputStream(compressed);
+      assertEquals(checkpoint.getCompressedOffset(),
+          in.skip(checkpoint.getCompressedOffset()));
+      final CheckpointableGzipDecompressor resumed =
+          new CheckpointableGzipDecompressor();
+      resumed.resume(checkpoint);
+      final byte[] tail = decompress(in, resumed, 4096);
+      assertArrayEquals("Resumed at " + checkpoint,
+          Arrays.copyOfRange(expected,
+              (int) checkpoint.getUncompressedOffset(), expected.length),
+          tail);
+    }
+    assertTrue("No checkpoint at the start of the second member",
+        sawMemberStart);
+  }
+
+  // ------------------------------------------
+
+  static byte[] decompress(final InputStream in,
+      final CheckpointableGzipDecompressor decompressor, final int bufferSize)
+    throws IOException {
+    final ThrottleableDecompressorStream stream =
+        new ThrottleableDecompressorStream(in, decompressor,
+            Math.max(bufferSize, 2));
+    stream.setReadStep(bufferSize);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[bufferSize];
+    int read;
+    while ((read = stream.read(buffer, 0, bufferSize)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] gzip(final byte[] input, final int level) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+      {
+        def.setLevel(level);
+      }
+    }) {
+      gzip.write(input);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] logLines(final int lines) {
+    final Random random = new Random(42);
+    final StringBuilder sb = new StringBuilder();
+    for (int line = 0; line < lines; line++) {
+      sb.append("192.168.").append(random.nextInt(256)).append('.')
+        .append(random.nextInt(256))
+        .append(" - - [18/Oct/2026:12:").append(random.nextInt(60))
+        .append("] \"GET /index.php?id=").append(random.nextInt(100000))
+        .append(" HTTP/1.1\" 200 ").append(random.nextInt(10000))
+        .append('\n');
+    }
+    return sb.toString().getBytes(US_ASCII);
+  }
+
+  static byte[] randomBytes(final int size) {
+    final byte[] bytes = new byte[size];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.decompress;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for finding a checkpoint without decompressing the data before it.
+ */
+public class TestDeflateBlockFinder {
+
+  @Test
+  public void testFindCheckpoint() throws IOException {
+    final byte[] expected = randomText(5000000);
+    final byte[] compressed = gzip(expected, 6);
+
+    for (int from = 100000; from < compressed.length - 600000; from += 250000) {
+      final long maxOffset = from + 500000;
+      final DeflateCheckpoint checkpoint = new DeflateBlockFinder()
+          .findCheckpoint(new Bytes(compressed), from, maxOffset);
+      assertNotNull("Nothing found after " + from, checkpoint);
+      assertTrue(checkpoint.getCompressedOffset() >= from);
+      assertTrue(checkpoint.getCompressedOffset() <= maxOffset);
+      assertEquals(DeflateCheckpoint.WINDOW_SIZE, checkpoint.getWindow().length);
+
+      // Resuming there gives exactly the end of the data.
+      final CheckpointableGzipDecompressor decompressor =
+          new CheckpointableGzipDecompressor();
+      decompressor.resume(checkpoint);
+      final int offset = (int) checkpoint.getCompressedOffset();
+      final byte[] tail = decompress(new ByteArrayInputStream(compressed,
+          offset, compressed.length - offset), decompressor, 4096);
+      assertTrue(tail.length > 0);
+      assertArrayEquals(Arrays.copyOfRange(expected,
+          expected.length - tail.length, expected.length), tail);
+      // And the window is the data just before it.
+      final int windowEnd = expected.length - tail.length;
+      assertArrayEquals(Arrays.copyOfRange(expected,
+          windowEnd - DeflateCheckpoint.WINDOW_SIZE, windowEnd),
+          checkpoint.getWindow());
+    }
+  }
+
+  /**
+   * Every log line refers back to the previous ones so the window never
+   * becomes known.
+   */
+  @Test
+  public void testRepetitiveData() throws IOException {
+    final byte[] compressed = gzip(logLines(200000), 6);
+    assertNull(new DeflateBlockFinder()
+        .findCheckpoint(new Bytes(compressed), 300000, 800000));
+  }
+
+  @Test
+  public void testNothingToFind() throws IOException {
+    final byte[] compressed = gzip(randomText(5000000), 6);
+    // Too little data to ever get a complete window.
+    assertNull(new DeflateBlockFinder()
+        .findCheckpoint(new Bytes(compressed), 300000, 310000));
+  }
+
+  /**
+   * Scanning in small chunks (so the headers and the trial decodes cross the
+   * chunk boundaries) finds the same checkpoints as scanning in big chunks.
+   */
+  @Test
+  public void testSmallChunks() throws IOException {
+    final byte[] compressed = gzip(randomText(2000000), 6);
+    for (int from = 100000; from < 400000; from += 33333) {
+      final DeflateCheckpoint expected = new DeflateBlockFinder()
+          .findCheckpoint(new Bytes(compressed), from, from + 500000);
+      final DeflateCheckpoint actual = new DeflateBlockFinder(4096)
+          .findCheckpoint(new Bytes(compressed), from, from + 500000);
+      assertNotNull(expected);
+      assertNotNull(actual);
+      assertEquals(expected.getCompressedOffset(),
+          actual.getCompressedOffset());
+      assertEquals(expected.getBitOffset(), actual.getBitOffset());
+      assertArrayEquals(expected.getWindow(), actual.getWindow());
+    }
+  }
+
+  /**
+   * The compressed data as a file.
+   */
+  private static final class Bytes implements PositionedReadable {
+    private final byte[] data;
+
+    Bytes(final byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read(final long position, final byte[] buffer, final int offset,
+        final int length) {
+      if (position >= data.length) {
+        return -1;
+      }
+      final int size = (int) Math.min(length, data.length - position);
+      System.arraycopy(data, (int) position, buffer, offset, size);
+      return size;
+    }
+
+    @Override
+    public void readFully(final long position, final byte[] buffer,
+        final int offset, final int length) throws IOException {
+      if (read(position, buffer, offset, length) != length) {
+        throw new EOFException();
+      }
+    }
+
+    @Override
+    public void readFully(final long position, final byte[] buffer)
+        throws IOException {
+      readFully(position, buffer, 0, buffer.length);
+    }
+  }
+
+  /**
+   * Lines of random lowercase letters.
+   */
+  static byte[] randomText(final int size) {
+    final Random random = new Random(42);
+    final byte[] text = new byte[size];
+    int lineEnd = 0;
+    for (int i = 0; i < size; i++) {
+      if (i == lineEnd) {
+        text[i] = '\n';
+        lineEnd = i + 20 + random.nextInt(60);
+      } else {
+        text[i] = (byte) ('a' + random.nextInt(26));
+      }
+    }
+    return text;
+  }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the DirectGzipDecompressor with arrays and ByteBuffers.
+ */
+public class TestDirectGzipDecompressor {
+
+  private static byte[] concatenated(final ByteArrayOutputStream expected)
+    throws IOException {
+    final byte[] first = logLines(5000);
+    final byte[] second = randomBytes(100000);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(first, 9));
+    compressed.write(gzip(second, 1));
+    compressed.write(gzip(new byte[0], 6));
+    compressed.write(gzip(first, 0));
+    expected.write(first);
+    expected.write(second);
+    expected.write(first);
+    return compressed.toByteArray();
+  }
+
+  @Test
+  public void testArrays() throws IOException {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final byte[] compressed = concatenated(expected);
+    for (int bufferSize : new int[]{1, 100, 4096}) {
+      assertArrayEquals(expected.toByteArray(),
+          decompress(compressed, new DirectGzipDecompressor(), bufferSize,
+              false));
+    }
+  }
+
+  @Test
+  public void testDirectByteBuffers() throws IOException {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final byte[] compressed = concatenated(expected);
+    for (int bufferSize : new int[]{1, 100, 4096}) {
+      assertArrayEquals(expected.toByteArray(),
+          decompress(compressed, new DirectGzipDecompressor(), bufferSize,
+              true));
+    }
+  }
+
+  @Test
+  public void testDirectDecompressor() throws IOException {
+    final byte[] input = logLines(2000);
+    final byte[] compressed = gzip(input, 6);
+    final ByteBuffer src = ByteBuffer.allocateDirect(compressed.length);
+    src.put(compressed).flip();
+    final ByteBuffer dst = ByteBuffer.allocateDirect(input.length);
+
+    final DirectGzipDecompressor decompressor = new DirectGzipDecompressor();
+    while (!decompressor.finished()) {
+      decompressor.decompress(src, dst);
+    }
+    dst.flip();
+    final byte[] output = new byte[dst.remaining()];
+    dst.get(output);
+    assertArrayEquals(input, output);
+  }
+
+  @Test
+  public void testCorruptTrailer() throws IOException {
+    final byte[] compressed = gzip(logLines(100), 6);
+    compressed[compressed.length - 6]++; // Break the CRC
+    try {
+      decompress(compressed, new DirectGzipDecompressor(), 4096, true);
+      fail("The corrupt CRC was not detected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("CRC"));
+    }
+  }
+
+  @Test
+  public void testSplitStreamByteBufferReadable() throws IOException {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final byte[] compressed = concatenated(expected);
+    final Configuration conf = new Configuration();
+    conf.setBoolean(SplittableGzipCodec.DIRECT_ENABLED_KEY, true);
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(10000);
+    final byte[] bytes = new byte[buffer.capacity()];
+    try (SplitCompressionInputStream in = codec.createInputStream(
+        new ByteArrayInputStream(compressed), codec.createDecompressor(), 0,
+        compressed.length, SplittableCompressionCodec.READ_MODE.BYBLOCK)) {
+      assertTrue(in instanceof ByteBufferReadable);
+      int read;
+      while ((read = ((ByteBufferReadable) in).read(buffer)) != -1) {
+        buffer.flip();
+        buffer.get(bytes, 0, read);
+        out.write(bytes, 0, read);
+        buffer.clear();
+      }
+    }
+    assertArrayEquals(expected.toByteArray(), out.toByteArray());
+  }
+
+  // ------------------------------------------
+
+  static byte[] decompress(final byte[] compressed,
+      final Decompressor decompressor, final int bufferSize,
+      final boolean direct) throws IOException {
+    final ThrottleableDecompressorStream stream =
+        new ThrottleableDecompressorStream(
+            new ByteArrayInputStream(compressed), decompressor,
+            Math.max(bufferSize, 2));
+    stream.setReadStep(bufferSize);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ByteBuffer buffer = direct
+        ? ByteBuffer.allocateDirect(bufferSize)
+        : ByteBuffer.allocate(bufferSize);
+    final byte[] bytes = new byte[bufferSize];
+    while (true) {
+      buffer.clear();
+      final int read = stream.read(buffer);
+      if (read == -1) {
+        break;
+      }
+      buffer.flip();
+      buffer.get(bytes, 0, read);
+      out.write(bytes, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+}
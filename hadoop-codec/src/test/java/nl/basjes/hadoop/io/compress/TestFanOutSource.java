@@ -0,0 +1,221 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.LineReader;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SKIPPED_UNCOMPRESSED_BYTES;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the decompression that is shared by the splits of a file.
+ */
+public class TestFanOutSource {
+
+  private static final int SPLITS = 8;
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path file;
+  private byte[] data;
+  private long length;
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    conf.setBoolean(SplittableGzipCodec.FANOUT_ENABLED_KEY, true);
+    conf.setInt(SplittableGzipCodec.FANOUT_BUFFERS_KEY, 4);
+    fs = FileSystem.getLocal(conf);
+    final Path wd = new Path(new Path(System.getProperty("test.build.data",
+        "/tmp")).makeQualified(fs.getUri(), fs.getWorkingDirectory()),
+        getClass().getSimpleName());
+    file = new Path(wd, "fanout-test.gz");
+    data = logLines(50000);
+    final byte[] compressed = gzip(data, 6);
+    try (FSDataOutputStream out = fs.create(file, true)) {
+      out.write(compressed);
+    }
+    length = compressed.length;
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FanOutSource.closeUnused();
+    fs.delete(file, false);
+  }
+
+  private long splitStart(final int split) {
+    return length * split / SPLITS;
+  }
+
+  /**
+   * Read a split like a LineRecordReader does.
+   *
+   * @return the lines and the number of decompressed bytes it skipped.
+   */
+  private Result readSplit(final int split) throws IOException {
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+    final long start = splitStart(split);
+    final long end = splitStart(split + 1);
+    final Result result = new Result();
+    try (SplitCompressionInputStream in = codec.createInputStream(
+        fs.open(file), null, start, end,
+        SplittableCompressionCodec.READ_MODE.BYBLOCK, file)) {
+      final LineReader reader = new LineReader(in);
+      final Text line = new Text();
+      if (start != 0) {
+        reader.readLine(line); // Belongs to the previous split
+      }
+      while (in.getPos() <= end && reader.readLine(line) > 0) {
+        result.lines.write(line.getBytes(), 0, line.getLength());
+        result.lines.write('\n');
+      }
+      result.skipped = ((IOStatisticsSource) in).getIOStatistics()
+          .counters().get(SKIPPED_UNCOMPRESSED_BYTES);
+    }
+    return result;
+  }
+
+  private static final class Result {
+    private final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+    private long skipped;
+  }
+
+  // ------------------------------------------
+
+  @Test
+  public void testSplitsOneAfterTheOther() throws IOException {
+    final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+    for (int split = 0; split < SPLITS; split++) {
+      final Result result = readSplit(split);
+      result.lines.writeTo(lines);
+      // Each split continues where the previous one stopped.
+      assertEquals("Split " + split, 0, result.skipped);
+      assertEquals(1, FanOutSource.getSources());
+    }
+    assertArrayEquals(data, lines.toByteArray());
+  }
+
+  @Test
+  public void testSplitsAtTheSameTime() throws Exception {
+    // Some splits start after the shared decompression has passed them and
+    // read on their own; the result must be the same. With reads larger than
+    // a split the shared decompression is often exactly at the start of a
+    // split that joins while it still has data from before that start.
+    for (int readSize : new int[]{0, 256 * 1024}) {
+      conf.setInt(ReadSizes.READ_SIZE_KEY, readSize);
+      final ExecutorService executor = Executors.newFixedThreadPool(SPLITS);
+      try {
+        final List<Future<Result>> results = new ArrayList<>();
+        for (int split = SPLITS - 1; split >= 0; split--) {
+          final int current = split;
+          results.add(0, executor.submit(() -> readSplit(current)));
+        }
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (Future<Result> result : results) {
+          result.get().lines.writeTo(lines);
+        }
+        assertArrayEquals("Read size " + readSize, data, lines.toByteArray());
+      } finally {
+        executor.shutdownNow();
+      }
+      FanOutSource.closeUnused();
+    }
+  }
+
+  @Test
+  public void testStalledSplitIsDetached() throws IOException {
+    FanOutSource.setBackpressureTimeout(100);
+    try {
+      final long detachedBefore = FanOutSource.getDetachedSplits();
+      final SplittableGzipCodec codec =
+          ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+      final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+      try (SplitCompressionInputStream stalled = codec.createInputStream(
+          fs.open(file), null, 0, splitStart(1),
+          SplittableCompressionCodec.READ_MODE.BYBLOCK, file)) {
+        final LineReader reader = new LineReader(stalled, 1000);
+        final Text line = new Text();
+        // Stop reading halfway a chunk while the next splits are read.
+        for (int i = 0; i < 10; i++) {
+          reader.readLine(line);
+          lines.write(line.getBytes(), 0, line.getLength());
+          lines.write('\n');
+        }
+        final ByteArrayOutputStream next = new ByteArrayOutputStream();
+        for (int split = 1; split < SPLITS; split++) {
+          readSplit(split).lines.writeTo(next);
+        }
+        assertTrue(FanOutSource.getDetachedSplits() > detachedBefore);
+
+        // The stalled split continues on its own decompression.
+        while (stalled.getPos() <= splitStart(1)
+            && reader.readLine(line) > 0) {
+          lines.write(line.getBytes(), 0, line.getLength());
+          lines.write('\n');
+        }
+        next.writeTo(lines);
+      }
+      assertArrayEquals(data, lines.toByteArray());
+    } finally {
+      FanOutSource.setBackpressureTimeout(0);
+    }
+  }
+
+  @Test
+  public void testLateSplitReadsOnItsOwn() throws IOException {
+    readSplit(0);
+    readSplit(1);
+    // The shared decompression is past the start of split 3.
+    final Result late = readSplit(3);
+    assertTrue(late.skipped > 0);
+    final Result next = readSplit(2);
+    assertTrue(next.skipped > 0);
+
+    final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+    for (int split = 0; split < SPLITS; split++) {
+      readSplit(split).lines.writeTo(lines);
+    }
+    assertArrayEquals(data, lines.toByteArray());
+  }
+
+}
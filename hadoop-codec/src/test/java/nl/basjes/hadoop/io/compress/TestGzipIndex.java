@@ -0,0 +1,274 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the sidecar checkpoint index.
+ */
+public class TestGzipIndex {
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path file;
+  private byte[] data;
+
+  @Before
+  public void createFile() throws IOException {
+    conf = new Configuration();
+    // We modify the gzip file in place so we do not want the checksums.
+    fs = FileSystem.getLocal(conf).getRawFileSystem();
+
+    final Path wd = new Path(new Path(System.getProperty("test.build.data",
+        "/tmp")).makeQualified(fs.getUri(), fs.getWorkingDirectory()),
+        getClass().getSimpleName());
+    file = new Path(wd, "index-test.gz");
+
+    data = logLines(100000);
+    try (FSDataOutputStream out = fs.create(file, true)) {
+      out.write(gzip(data, 6));
+    }
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    fs.delete(GzipIndex.getIndexPath(file), false);
+    fs.delete(file, false);
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    final GzipIndex index = GzipIndexer.buildIndex(fs, file, 50000);
+    assertTrue("Too few checkpoints: " + index.size(), index.size() > 10);
+    index.save(fs, file);
+
+    final GzipIndex loaded = GzipIndex.load(fs, file);
+    assertNotNull(loaded);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    index.write(out);
+    final GzipIndex inMemory =
+        GzipIndex.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(index.size(), loaded.size());
+    for (int i = 0; i < index.size(); i++) {
+      final DeflateCheckpoint expected = index.getCheckpoint(i);
+      for (GzipIndex other : Arrays.asList(loaded, inMemory)) {
+        final DeflateCheckpoint checkpoint = other.getCheckpoint(i);
+        assertEquals(expected.toString(), checkpoint.toString());
+        assertArrayEquals(expected.getWindow(), checkpoint.getWindow());
+      }
+      // Every window really is the data just before the checkpoint.
+      final int offset = (int) expected.getUncompressedOffset();
+      assertArrayEquals(Arrays.copyOfRange(data,
+          offset - expected.getWindow().length, offset), expected.getWindow());
+    }
+
+    assertNull(loaded.findCheckpoint(0));
+    final DeflateCheckpoint second = loaded.getCheckpoint(1);
+    assertEquals(second.toString(),
+        loaded.findCheckpoint(second.getCompressedOffset()).toString());
+    assertEquals(second.toString(),
+        loaded.findCheckpoint(loaded.getCheckpoint(2).getCompressedOffset() - 1)
+            .toString());
+  }
+
+  @Test
+  public void testStaleIndexIsIgnored() throws IOException {
+    GzipIndexer.buildIndex(fs, file, 50000).save(fs, file);
+    assertNotNull(GzipIndex.load(fs, file));
+
+    try (FSDataOutputStream out = fs.create(file, true)) {
+      out.write(gzip(logLines(1000), 6));
+    }
+    assertNull(GzipIndex.load(fs, file));
+  }
+
+  /**
+   * Damage the start of the file after creating the index: a split that
+   * resumes at a checkpoint must never notice this.
+   */
+  @Test
+  public void testSplitResumesAtCheckpoint() throws IOException {
+    GzipIndexer.buildIndex(fs, file, 50000).save(fs, file);
+    final FileStatus status = fs.getFileStatus(file);
+    final long length = status.getLen();
+    try (RandomAccessFile raf =
+             new RandomAccessFile(file.toUri().getPath(), "rw")) {
+      for (long position = 1000; position < length / 2; position += 997) {
+        raf.seek(position);
+        final int value = raf.read();
+        raf.seek(position);
+        raf.write(value ^ 0x55);
+      }
+    }
+    fs.setTimes(file, status.getModificationTime(), -1);
+
+    final long start = length - 20000;
+    final byte[] tail = readSplit(start, length);
+    final String lastLine = new String(data, data.length - 60, 60, "US-ASCII");
+    assertTrue(new String(tail, "US-ASCII").endsWith(
+        lastLine.substring(lastLine.indexOf('\n') + 1)));
+
+    conf.setBoolean(SplittableGzipCodec.INDEX_ENABLED_KEY, false);
+    try {
+      readSplit(start, length);
+      fail("Without the index the damage must be detected.");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testEmbeddedIndex() throws IOException {
+    conf.setLong(SplittableGzipCodec.COMPRESS_INDEX_INTERVAL_KEY, 100000);
+    conf.setInt(SplittableGzipCodec.COMPRESS_CHUNK_SIZE_KEY, 40000);
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+    try (OutputStream out = codec.createOutputStream(fs.create(file, true))) {
+      out.write(data);
+    }
+
+    // Every gzip tool ignores the embedded index.
+    final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(fs.open(file))) {
+      IOUtils.copyBytes(in, plain, 4096);
+    }
+    assertArrayEquals(data, plain.toByteArray());
+
+    final FileStatus status = fs.getFileStatus(file);
+    final long length = status.getLen();
+    final GzipIndex index;
+    try (FSDataInputStream in = fs.open(file)) {
+      index = GzipIndex.readEmbedded(in, status);
+    }
+    assertNotNull(index);
+    // A checkpoint at the first chunk that is 100000 bytes after the previous.
+    assertTrue(index.size() >= data.length / 120000 - 1);
+    for (int i = 0; i < index.size(); i++) {
+      final DeflateCheckpoint checkpoint = index.getCheckpoint(i);
+      assertEquals(0, checkpoint.getWindow().length);
+      assertEquals((i + 1) * 120000, checkpoint.getUncompressedOffset());
+    }
+
+    // Damage the first half: only the index can get us past that.
+    try (RandomAccessFile raf =
+             new RandomAccessFile(file.toUri().getPath(), "rw")) {
+      for (long position = 1000; position < length / 2; position += 997) {
+        raf.seek(position);
+        final int value = raf.read();
+        raf.seek(position);
+        raf.write(value ^ 0x55);
+      }
+    }
+    fs.setTimes(file, status.getModificationTime(), -1);
+
+    final long start = length - 20000;
+    final byte[] tail = readSplit(start, length);
+    final String lastLine = new String(data, data.length - 60, 60, "US-ASCII");
+    assertTrue(new String(tail, "US-ASCII").endsWith(
+        lastLine.substring(lastLine.indexOf('\n') + 1)));
+
+    conf.setBoolean(SplittableGzipCodec.INDEX_ENABLED_KEY, false);
+    try {
+      readSplit(start, length);
+      fail("Without the index the damage must be detected.");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testEmbeddedIndexIsThinned() throws IOException {
+    final List<DeflateCheckpoint> checkpoints = new ArrayList<>();
+    for (long i = 1; i <= 100000; i++) {
+      checkpoints.add(
+          DeflateCheckpoint.blockBoundary(i * 54321, 0, i * 1000000, null));
+    }
+    try (FSDataOutputStream out = fs.create(file, true)) {
+      out.write(gzip(data, 6));
+      out.write(GzipIndex.createEmbedded(checkpoints));
+    }
+    final GzipIndex index;
+    try (FSDataInputStream in = fs.open(file)) {
+      index = GzipIndex.readEmbedded(in, fs.getFileStatus(file));
+    }
+    assertNotNull(index);
+    assertTrue(index.size() > 1000 && index.size() < 100000);
+    final DeflateCheckpoint first = index.getCheckpoint(0);
+    assertEquals(0, first.getCompressedOffset() % 54321);
+    assertEquals(first.getCompressedOffset() / 54321 * 1000000,
+        first.getUncompressedOffset());
+  }
+
+  @Test
+  public void testNoEmbeddedIndex() throws IOException {
+    try (FSDataInputStream in = fs.open(file)) {
+      assertNull(GzipIndex.readEmbedded(in, fs.getFileStatus(file)));
+    }
+  }
+
+  private byte[] readSplit(final long start, final long end)
+    throws IOException {
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (SplitCompressionInputStream in = codec.createInputStream(
+        fs.open(file), null, start, end,
+        SplittableCompressionCodec.READ_MODE.BYBLOCK, file)) {
+      final byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+    return out.toByteArray();
+  }
+
+}
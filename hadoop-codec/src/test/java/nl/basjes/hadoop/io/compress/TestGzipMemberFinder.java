@@ -0,0 +1,213 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for finding the start of a gzip member.
+ */
+public class TestGzipMemberFinder {
+
+  private FileSystem fs;
+  private Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    fs = FileSystem.getLocal(new Configuration());
+    file = new Path(new Path(System.getProperty("test.build.data", "/tmp"))
+        .makeQualified(fs.getUri(), fs.getWorkingDirectory()),
+        getClass().getSimpleName() + ".gz");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.delete(file, false);
+  }
+
+  @Test
+  public void testBgzf() throws IOException {
+    final List<Long> members = new ArrayList<>();
+    write(bgzf(logLines(50000), members));
+
+    try (FSDataInputStream in = fs.open(file)) {
+      assertTrue(GzipMemberFinder.isBgzf(in));
+      validateMembers(in, members, true,
+          2L * GzipMemberFinder.BGZF_MAX_MEMBER_SIZE);
+    }
+  }
+
+  @Test
+  public void testConcatenatedMembers() throws IOException {
+    final List<Long> members = new ArrayList<>();
+    write(members(logLines(50000), 100000, members));
+
+    try (FSDataInputStream in = fs.open(file)) {
+      assertFalse(GzipMemberFinder.isBgzf(in));
+      validateMembers(in, members, false, 1000000);
+    }
+  }
+
+  @Test
+  public void testSingleMember() throws IOException {
+    final byte[] compressed = gzip(logLines(50000), 6);
+    write(compressed);
+    try (FSDataInputStream in = fs.open(file)) {
+      assertFalse(GzipMemberFinder.isBgzf(in));
+      assertEquals(-1, GzipMemberFinder.findMemberStart(in,
+          compressed.length / 2, compressed.length, false));
+    }
+  }
+
+  /**
+   * A split of a BGZF file must not need anything before the member it
+   * starts in: so even breaking the first member does not affect it.
+   */
+  @Test
+  public void testSplitStartsAtMember() throws IOException {
+    final byte[] data = logLines(50000);
+    final byte[] compressed = bgzf(data, new ArrayList<>());
+    Arrays.fill(compressed, 100, 1000, (byte) 0);
+    write(compressed);
+
+    final Configuration conf = new Configuration();
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+    final long start = compressed.length / 2;
+    try (SplitCompressionInputStream in = codec.createInputStream(
+        fs.open(file), null, start, compressed.length,
+        SplittableCompressionCodec.READ_MODE.BYBLOCK)) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      IOUtils.copyBytes(in, out, 4096);
+      final byte[] tail = out.toByteArray();
+      assertTrue(tail.length > 0);
+      assertArrayEquals(Arrays.copyOfRange(data, data.length - tail.length,
+          data.length), tail);
+    }
+  }
+
+  private void validateMembers(final FSDataInputStream in,
+      final List<Long> members, final boolean bgzf, final long lookBack)
+    throws IOException {
+    final long length = fs.getFileStatus(file).getLen();
+    for (long maxOffset = 1000; maxOffset < length; maxOffset += 33333) {
+      long expected = 0;
+      for (long member : members) {
+        if (member <= maxOffset) {
+          expected = member;
+        }
+      }
+      if (maxOffset - expected > lookBack || expected == 0) {
+        continue;
+      }
+      assertEquals("Max offset " + maxOffset, expected,
+          GzipMemberFinder.findMemberStart(in, maxOffset, lookBack, bgzf));
+    }
+  }
+
+  private void write(final byte[] compressed) throws IOException {
+    try (FSDataOutputStream out = fs.create(file, true)) {
+      out.write(compressed);
+    }
+  }
+
+  // ------------------------------------------
+
+  /**
+   * Compress the data as a series of gzip members.
+   * @param members Receives the offsets of the members.
+   */
+  static byte[] members(final byte[] data, final int memberSize,
+      final List<Long> members) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int offset = 0; offset < data.length; offset += memberSize) {
+      members.add((long) out.size());
+      final byte[] member = gzip(Arrays.copyOfRange(data, offset,
+          Math.min(data.length, offset + memberSize)), 6);
+      out.write(member, 0, member.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Compress the data in the BGZF format (like bgzip does).
+   * @param members Receives the offsets of the members.
+   */
+  static byte[] bgzf(final byte[] data, final List<Long> members) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Deflater deflater = new Deflater(6, true);
+    final byte[] compressed = new byte[GzipMemberFinder.BGZF_MAX_MEMBER_SIZE];
+    final int blockSize = 0xFF00; // Same as bgzip
+    for (int offset = 0; offset <= data.length; offset += blockSize) {
+      // The last member is the empty end of file marker.
+      final int length = Math.min(blockSize, data.length - offset);
+      deflater.reset();
+      deflater.setInput(data, offset, length);
+      deflater.finish();
+      final int compressedLength = deflater.deflate(compressed);
+      final CRC32 crc = new CRC32();
+      crc.update(data, offset, length);
+
+      members.add((long) out.size());
+      final int memberSize = GzipMemberFinder.BGZF_HEADER_SIZE
+          + compressedLength + 8;
+      out.write(new byte[]{0x1F, (byte) 0x8B, 8, 4, 0, 0, 0, 0, 0, (byte) 0xFF,
+        6, 0, 'B', 'C', 2, 0,
+        (byte) (memberSize - 1), (byte) ((memberSize - 1) >>> 8)}, 0,
+          GzipMemberFinder.BGZF_HEADER_SIZE);
+      out.write(compressed, 0, compressedLength);
+      writeInt(out, crc.getValue());
+      writeInt(out, length);
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  private static void writeInt(final ByteArrayOutputStream out,
+      final long value) {
+    for (int i = 0; i < 4; i++) {
+      out.write((int) (value >>> (8 * i)));
+    }
+  }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.zlib.BuiltInGzipDecompressor;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the selection of the inflate backend.
+ */
+public class TestInflateBackends {
+
+  /**
+   * A backend that is only known by its class name.
+   */
+  public static class MyBackend implements InflateBackend {
+    @Override
+    public String getName() {
+      return "mine";
+    }
+
+    @Override
+    public boolean isAvailable(final Configuration conf) {
+      return true;
+    }
+
+    @Override
+    public Class<? extends Decompressor> getDecompressorType() {
+      return BuiltInGzipDecompressor.class;
+    }
+
+    @Override
+    public Decompressor createDecompressor(final Configuration conf) {
+      return new BuiltInGzipDecompressor();
+    }
+  }
+
+  @After
+  public void clearSelection() {
+    InflateBackends.clear();
+  }
+
+  /**
+   * Every available backend must decompress a concatenated gzip file through
+   * the codec.
+   */
+  @Test
+  public void testAllBackends() throws IOException {
+    final byte[] data = logLines(10000);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(data, 6));
+    compressed.write(gzip(data, 1));
+    final byte[] expected = new byte[2 * data.length];
+    System.arraycopy(data, 0, expected, 0, data.length);
+    System.arraycopy(data, 0, expected, data.length, data.length);
+
+    final Configuration conf = new Configuration();
+    int tested = 0;
+    for (InflateBackend backend : InflateBackends.getBuiltInBackends()) {
+      if (!backend.isAvailable(conf)) {
+        continue;
+      }
+      conf.set(InflateBackends.BACKEND_KEY, backend.getName());
+      final SplittableGzipCodec codec =
+          ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+      final Decompressor decompressor = codec.createDecompressor();
+      assertSame(backend.getName(), codec.getDecompressorType(),
+          decompressor.getClass());
+
+      final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      try (CompressionInputStream in = codec.createInputStream(
+          new ByteArrayInputStream(compressed.toByteArray()), decompressor)) {
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+          actual.write(buffer, 0, n);
+        }
+      }
+      assertArrayEquals(backend.getName(), expected, actual.toByteArray());
+      tested++;
+    }
+    assertTrue(tested >= 4);
+  }
+
+  @Test
+  public void testSelection() {
+    final Configuration conf = new Configuration();
+    assertEquals(InflateBackends.JAVA,
+        InflateBackends.getBackend(conf, InflateBackends.JAVA).getName());
+    assertEquals("mine",
+        InflateBackends.getBackend(conf, MyBackend.class.getName()).getName());
+
+    // By default the decompressor of the GzipCodec is used.
+    assertEquals(InflateBackends.GZIPCODEC,
+        InflateBackends.getBackend(conf).getName());
+
+    // The probe must select an available backend (and do so only once).
+    conf.set(InflateBackends.BACKEND_KEY, InflateBackends.AUTO);
+    final InflateBackend auto = InflateBackends.getBackend(conf);
+    assertTrue(auto.isAvailable(conf));
+    assertSame(auto, InflateBackends.getBackend(conf));
+
+    // The direct setting overrules the backend.
+    conf.set(InflateBackends.BACKEND_KEY, InflateBackends.JAVA);
+    conf.setBoolean(SplittableGzipCodec.DIRECT_ENABLED_KEY, true);
+    assertEquals(DirectGzipDecompressor.class, ReflectionUtils
+        .newInstance(SplittableGzipCodec.class, conf).getDecompressorType());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownBackend() {
+    InflateBackends.getBackend(new Configuration(), "nl.basjes.NoSuchBackend");
+  }
+
+  @Test
+  public void testProbe() throws IOException {
+    final Configuration conf = new Configuration();
+    final byte[] sample = InflateBackends.createProbeSample();
+    for (InflateBackend backend : InflateBackends.getBuiltInBackends()) {
+      if (backend.isAvailable(conf)) {
+        assertTrue(InflateBackends.timeBackend(conf, backend, sample) > 0);
+      }
+    }
+  }
+
+}
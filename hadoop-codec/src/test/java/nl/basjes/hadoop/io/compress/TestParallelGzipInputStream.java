@@ -0,0 +1,207 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static nl.basjes.hadoop.io.compress.TestGzipMemberFinder.bgzf;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for reading an entire gzip file on several threads.
+ */
+public class TestParallelGzipInputStream {
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path file;
+  private byte[] data;
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    conf.setInt(SplittableGzipCodec.DECOMPRESS_THREADS_KEY, 3);
+    conf.setLong(SplittableGzipCodec.DECOMPRESS_RANGE_SIZE_KEY, 16 * 1024);
+    fs = FileSystem.getLocal(conf).getRawFileSystem();
+    final Path wd = new Path(new Path(System.getProperty("test.build.data",
+        "/tmp")).makeQualified(fs.getUri(), fs.getWorkingDirectory()),
+        getClass().getSimpleName());
+    file = new Path(wd, "parallel-test.gz");
+    data = logLines(50000);
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    fs.delete(file, false);
+  }
+
+  private void write(final byte[] compressed) throws IOException {
+    try (FSDataOutputStream out = fs.create(file, true)) {
+      out.write(compressed);
+    }
+  }
+
+  private byte[] readWithCodec(final boolean expectParallel)
+    throws IOException {
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+    try (CompressionInputStream in =
+             codec.createInputStream(fs.open(file), null, file)) {
+      assertEquals(expectParallel, in instanceof ParallelGzipInputStream);
+      return readAll(in);
+    }
+  }
+
+  private static byte[] readAll(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // Some single bytes and then reads of varying sizes.
+    for (int i = 0; i < 100; i++) {
+      final int b = in.read();
+      if (b == -1) {
+        return out.toByteArray();
+      }
+      out.write(b);
+    }
+    final byte[] buffer = new byte[100000];
+    int size = 1;
+    int read;
+    while ((read = in.read(buffer, 0, size)) != -1) {
+      out.write(buffer, 0, read);
+      size = size * 3 % buffer.length + 1;
+    }
+    return out.toByteArray();
+  }
+
+  // ------------------------------------------
+
+  @Test
+  public void testEmbeddedIndex() throws IOException {
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(
+        compressed, 6, 2, 32 * 1024, 64 * 1024)) {
+      out.write(data);
+    }
+    write(compressed.toByteArray());
+    assertArrayEquals(data, readWithCodec(true));
+
+    conf.setInt(SplittableGzipCodec.DECOMPRESS_THREADS_KEY, 0);
+    assertArrayEquals(data, readWithCodec(false));
+  }
+
+  @Test
+  public void testBgzf() throws IOException {
+    write(bgzf(data, new ArrayList<>()));
+    assertArrayEquals(data, readWithCodec(true));
+  }
+
+  @Test
+  public void testPlainFileIsReadSequentially() throws IOException {
+    write(gzip(data, 6));
+    assertArrayEquals(data, readWithCodec(false));
+  }
+
+  @Test
+  public void testCheckpointsWithWindows() throws IOException {
+    // Concatenated members so some ranges also cross a member boundary.
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(data, 6));
+    compressed.write(gzip(new byte[0], 6));
+    compressed.write(gzip(data, 1));
+    write(compressed.toByteArray());
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(data);
+    expected.write(data);
+
+    final GzipIndex index = GzipIndexer.buildIndex(fs, file, 20000);
+    final List<DeflateCheckpoint> checkpoints = new ArrayList<>();
+    boolean bitOffset = false;
+    for (int i = 0; i < index.size(); i++) {
+      checkpoints.add(index.getCheckpoint(i));
+      bitOffset |= index.getCheckpoint(i).getBitOffset() != 0;
+    }
+    assertTrue("No checkpoint inside a byte", bitOffset);
+
+    for (int threads : new int[]{1, 2, 5}) {
+      try (ParallelGzipInputStream in = new ParallelGzipInputStream(
+          fs.open(file), compressed.size(), checkpoints, threads)) {
+        assertTrue(in.getRanges() > 10);
+        assertArrayEquals(expected.toByteArray(), readAll(in));
+        assertEquals(compressed.size(), in.getPos());
+      }
+    }
+  }
+
+  @Test
+  public void testUnknownFileIsReadSequentially() throws IOException {
+    write(bgzf(data, new ArrayList<>()));
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+    try (CompressionInputStream in =
+             codec.createInputStream(fs.open(file), null)) {
+      assertFalse(in instanceof ParallelGzipInputStream);
+      assertArrayEquals(data, readAll(in));
+    }
+
+    // The old mapred API sets the file of the map task.
+    conf.set("mapreduce.map.input.file", file.toString());
+    try (CompressionInputStream in =
+             codec.createInputStream(fs.open(file), null)) {
+      assertTrue(in instanceof ParallelGzipInputStream);
+      assertArrayEquals(data, readAll(in));
+    }
+  }
+
+  @Test
+  public void testCloseEarly() throws IOException {
+    write(bgzf(data, new ArrayList<>()));
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+    final CompressionInputStream in =
+        codec.createInputStream(fs.open(file), null, file);
+    final byte[] start = new byte[1000];
+    assertEquals(1000, in.read(start));
+    in.close();
+    in.close();
+    try {
+      in.read();
+      fail("Read after close");
+    } catch (IOException e) {
+      assertEquals("Stream closed", e.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.LineReader;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the multi threaded gzip output stream.
+ */
+public class TestParallelGzipOutputStream {
+
+  private static final int CHUNK_SIZE =
+      ParallelGzipOutputStream.DICTIONARY_SIZE;
+
+  @Test
+  public void testCrc32Combine() {
+    final byte[] data = randomBytes(100000);
+    final Random random = new Random(42);
+    for (int i = 0; i < 100; i++) {
+      final int split = random.nextInt(data.length + 1);
+      assertEquals(crc32(data, 0, data.length),
+          ParallelGzipOutputStream.crc32Combine(crc32(data, 0, split),
+              crc32(data, split, data.length - split), data.length - split));
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    final byte[] text = logLines(20000);
+    final byte[] random = randomBytes(3 * CHUNK_SIZE + 1234);
+    for (byte[] input : new byte[][]{new byte[0], new byte[]{42},
+        Arrays.copyOf(text, CHUNK_SIZE), text, random}) {
+      for (int threads : new int[]{1, 4}) {
+        for (int level : new int[]{0, 1, 6, 9, -1}) {
+          final byte[] compressed = compress(input, level, threads, 1000);
+          assertArrayEquals(input, gunzip(compressed));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSingleByteWrites() throws IOException {
+    final byte[] input = logLines(2000);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (CompressionOutputStream out = new ParallelGzipOutputStream(
+        compressed, 6, 3, CHUNK_SIZE)) {
+      for (byte b : input) {
+        out.write(b);
+      }
+    }
+    assertArrayEquals(input, gunzip(compressed.toByteArray()));
+  }
+
+  @Test
+  public void testCompressionRatio() throws IOException {
+    final byte[] input = logLines(50000);
+    final int parallel = compress(input, 6, 4, 100000).length;
+    final int single = gzip(input, 6).length;
+    // The dictionaries keep the ratio close to that of a single stream.
+    assertTrue(parallel + " vs " + single, parallel < single * 1.01);
+  }
+
+  @Test
+  public void testMembers() throws IOException {
+    final byte[] first = logLines(3000);
+    final byte[] second = randomBytes(50000);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (CompressionOutputStream out = new ParallelGzipOutputStream(
+        compressed, 6, 2, CHUNK_SIZE)) {
+      out.write(first);
+      out.finish();
+      out.resetState();
+      out.write(second);
+    }
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(first);
+    expected.write(second);
+    assertArrayEquals(expected.toByteArray(), gunzip(compressed.toByteArray()));
+  }
+
+  @Test
+  public void testCheckpointsAreFullFlushPoints() throws Exception {
+    final byte[] input = logLines(20000);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final ParallelGzipOutputStream out = new ParallelGzipOutputStream(
+        compressed, 6, 4, CHUNK_SIZE, 3 * CHUNK_SIZE);
+    out.write(input);
+    out.finish();
+    out.resetState();
+    out.write(input);
+    out.close();
+    final byte[] file = compressed.toByteArray();
+
+    final List<DeflateCheckpoint> checkpoints = out.getCheckpoints();
+    assertTrue(checkpoints.size() > 2);
+    for (DeflateCheckpoint checkpoint : checkpoints) {
+      final int uncompressed = (int) checkpoint.getUncompressedOffset();
+      final byte[] expected = Arrays.copyOfRange(input,
+          uncompressed % input.length,
+          Math.min(uncompressed % input.length + 1000, input.length));
+      final int offset = (int) checkpoint.getCompressedOffset();
+      if (checkpoint.isMemberStart()) {
+        assertEquals(input.length, uncompressed);
+        final byte[] member = gunzip(Arrays.copyOfRange(file, offset,
+            file.length));
+        assertArrayEquals(input, member);
+        continue;
+      }
+      // Without any preceding data (and without a window).
+      final Inflater inflater = new Inflater(true);
+      inflater.setInput(file, offset, file.length - offset);
+      final byte[] actual = new byte[expected.length];
+      int length = 0;
+      while (length < actual.length) {
+        length += inflater.inflate(actual, length, actual.length - length);
+      }
+      inflater.end();
+      assertArrayEquals(expected, actual);
+    }
+    assertArrayEquals(input, Arrays.copyOf(gunzip(file), input.length));
+  }
+
+  @Test
+  public void testWriteAfterFinish() throws IOException {
+    final CompressionOutputStream out = new ParallelGzipOutputStream(
+        new ByteArrayOutputStream(), 6, 2, CHUNK_SIZE);
+    out.write(1);
+    out.finish();
+    try {
+      out.write(2);
+      fail("Writing after finish() was possible");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testCodecSplits() throws IOException {
+    final Configuration conf = new Configuration();
+    conf.setInt(SplittableGzipCodec.COMPRESS_THREADS_KEY, 4);
+    conf.setInt(SplittableGzipCodec.COMPRESS_CHUNK_SIZE_KEY, CHUNK_SIZE);
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+
+    final byte[] input = logLines(30000);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (CompressionOutputStream out = codec.createOutputStream(compressed)) {
+      assertTrue(out instanceof ParallelGzipOutputStream);
+      out.write(input);
+    }
+    final byte[] file = compressed.toByteArray();
+
+    // Read it back with the codec itself: entirely and in splits.
+    try (CompressionInputStream in =
+             codec.createInputStream(new ByteArrayInputStream(file))) {
+      assertArrayEquals(input, readAll(in));
+    }
+    // The same lines as a LineRecordReader would produce.
+    final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+    final long middle = file.length / 2;
+    final long[][] ranges = {{0, middle}, {middle, file.length}};
+    for (long[] range : ranges) {
+      try (SplitCompressionInputStream in = codec.createInputStream(
+          new ByteArrayInputStream(file), null, range[0], range[1],
+          SplittableCompressionCodec.READ_MODE.BYBLOCK)) {
+        final LineReader reader = new LineReader(in);
+        final Text line = new Text();
+        if (range[0] != 0) {
+          reader.readLine(line); // Belongs to the previous split
+        }
+        while (in.getPos() <= range[1] && reader.readLine(line) > 0) {
+          lines.write(line.getBytes(), 0, line.getLength());
+          lines.write('\n');
+        }
+      }
+    }
+    assertArrayEquals(input, lines.toByteArray());
+  }
+
+  // ------------------------------------------
+
+  private static byte[] compress(final byte[] input, final int level,
+      final int threads, final int writeSize) throws IOException {
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (CompressionOutputStream out = new ParallelGzipOutputStream(
+        compressed, level, threads, CHUNK_SIZE)) {
+      for (int offset = 0; offset < input.length; offset += writeSize) {
+        out.write(input, offset, Math.min(writeSize, input.length - offset));
+      }
+    }
+    return compressed.toByteArray();
+  }
+
+  private static byte[] gunzip(final byte[] compressed) throws IOException {
+    try (InputStream in =
+             new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return readAll(in);
+    }
+  }
+
+  private static byte[] readAll(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IOUtils.copyBytes(in, out, 4096, false);
+    return out.toByteArray();
+  }
+
+  private static int crc32(final byte[] data, final int off, final int len) {
+    final CRC32 crc32 = new CRC32();
+    crc32.update(data, off, len);
+    return (int) crc32.getValue();
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.fs.Seekable;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for reading (and seeking) through the ReadAheadInputStream.
+ */
+public class TestReadAheadInputStream {
+
+  /**
+   * An in memory Seekable stream that returns short reads.
+   */
+  private static final class SeekableBytes extends ByteArrayInputStream
+      implements Seekable {
+    SeekableBytes(final byte[] data) {
+      super(data);
+    }
+
+    @Override
+    public synchronized int read(final byte[] b, final int off,
+        final int len) {
+      return super.read(b, off, Math.min(len, 1000));
+    }
+
+    @Override
+    public synchronized void seek(final long newPos) {
+      pos = (int) newPos;
+    }
+
+    @Override
+    public synchronized long getPos() {
+      return pos;
+    }
+
+    @Override
+    public boolean seekToNewSource(final long targetPos) {
+      return false;
+    }
+  }
+
+  @Test
+  public void testReadAndSeek() throws IOException {
+    final byte[] data = randomBytes(1000000);
+    final Random random = new Random(42);
+    for (int blockSize : new int[]{1000, 65536, 2000000}) {
+      try (ReadAheadInputStream in =
+               new ReadAheadInputStream(new SeekableBytes(data), blockSize)) {
+        final byte[] buffer = new byte[5000];
+        long pos = 0;
+        for (int step = 0; step < 1000; step++) {
+          if (random.nextInt(50) == 0) {
+            // Sometimes within the current block, mostly somewhere else.
+            pos = random.nextInt(20) == 0
+                ? Math.min(pos + 10, data.length) : random.nextInt(data.length);
+            in.seek(pos);
+          }
+          assertEquals(pos, in.getPos());
+          final int bytesRead =
+              in.read(buffer, 0, 1 + random.nextInt(buffer.length - 1));
+          if (bytesRead == -1) {
+            assertEquals(data.length, pos);
+            in.seek(pos = 0);
+            continue;
+          }
+          assertArrayEquals(Arrays.copyOfRange(data, (int) pos,
+              (int) pos + bytesRead), Arrays.copyOf(buffer, bytesRead));
+          pos += bytesRead;
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testStartsAtCurrentPosition() throws IOException {
+    final byte[] data = randomBytes(100000);
+    final SeekableBytes bytes = new SeekableBytes(data);
+    bytes.seek(12345);
+    try (ReadAheadInputStream in = new ReadAheadInputStream(bytes, 4096)) {
+      assertEquals(12345, in.getPos());
+      assertEquals(data[12345] & 0xFF, in.read());
+      assertEquals(12346, in.getPos());
+    }
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for the sizes the split streams read with.
+ */
+public class TestReadSizes {
+
+  private static final int KIB = 1024;
+
+  @Test
+  public void testAutomaticReadSize() {
+    final Configuration conf = new Configuration();
+    assertEquals(4 * KIB, ReadSizes.forSplit(conf, 1000).getReadSize());
+    assertEquals(4 * KIB, ReadSizes.forSplit(conf, 40 * KIB).getReadSize());
+    assertEquals(64 * KIB, ReadSizes.forSplit(conf, 600 * KIB).getReadSize());
+    assertEquals(256 * KIB,
+        ReadSizes.forSplit(conf, 128L * 1024 * KIB).getReadSize());
+    assertEquals(256 * KIB,
+        ReadSizes.forSplit(conf, Long.MAX_VALUE).getReadSize());
+    assertEquals(4 * KIB, ReadSizes.getMinimumSplitSize(conf));
+  }
+
+  @Test
+  public void testConfiguredSizes() {
+    final Configuration conf = new Configuration();
+    conf.setInt(ReadSizes.READ_SIZE_KEY, 32 * KIB);
+    conf.setInt(ReadSizes.OUTPUT_SIZE_KEY, 8 * KIB);
+    conf.setInt(ReadSizes.CRAWL_SIZE_KEY, 100 * KIB);
+    final ReadSizes sizes = ReadSizes.forSplit(conf, 1024 * KIB);
+    assertEquals(32 * KIB, sizes.getReadSize());
+    assertEquals(8 * KIB, sizes.getOutputSize(1000 * KIB, 10000 * KIB));
+    assertEquals(100 * KIB, sizes.getCrawlDistance());
+    // The read size does not limit the split size with the exact position.
+    assertEquals(4 * KIB, sizes.getMinimumSplitSize());
+  }
+
+  @Test
+  public void testExplicitFileBufferSize() {
+    final Configuration conf = new Configuration();
+    conf.setInt("io.file.buffer.size", 128 * KIB);
+    assertEquals(128 * KIB, ReadSizes.forSplit(conf, 1000).getReadSize());
+    assertEquals(128 * KIB,
+        ReadSizes.forSplit(conf, Long.MAX_VALUE).getReadSize());
+    // The read size wins.
+    conf.setInt(ReadSizes.READ_SIZE_KEY, 32 * KIB);
+    assertEquals(32 * KIB, ReadSizes.forSplit(conf, 1000).getReadSize());
+
+    conf.unset(ReadSizes.READ_SIZE_KEY);
+    conf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY, false);
+    assertEquals(128 * KIB, ReadSizes.getMinimumSplitSize(conf));
+  }
+
+  @Test
+  public void testCrawling() {
+    final Configuration conf = new Configuration();
+    conf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY, false);
+    conf.setInt(ReadSizes.READ_SIZE_KEY, 64 * KIB);
+    // A single read must not cross the end of the split.
+    conf.setInt(ReadSizes.CRAWL_SIZE_KEY, 1000);
+    final ReadSizes sizes = ReadSizes.forSplit(conf, 1024 * KIB);
+    assertEquals(Math.round(1.1F * 64 * KIB), sizes.getCrawlDistance());
+    assertEquals(64 * KIB, sizes.getMinimumSplitSize());
+    assertEquals(64 * KIB, ReadSizes.getMinimumSplitSize(conf));
+
+    conf.unset(ReadSizes.READ_SIZE_KEY);
+    conf.unset(ReadSizes.CRAWL_SIZE_KEY);
+    assertEquals(Math.round(1.1F * 4 * KIB),
+        ReadSizes.forSplit(conf, 1000).getCrawlDistance());
+  }
+
+  @Test
+  public void testOutputSizeFollowsCompressionRatio() {
+    final ReadSizes sizes =
+        ReadSizes.forSplit(new Configuration(), 600 * KIB); // 64 KiB reads
+    // Nothing seen yet.
+    assertEquals(256 * KIB, sizes.getOutputSize(0, 0));
+    assertEquals(64 * KIB, sizes.getOutputSize(1000 * KIB, 1000 * KIB));
+    assertEquals(512 * KIB, sizes.getOutputSize(1000 * KIB, 10000 * KIB));
+    assertEquals(1024 * KIB, sizes.getOutputSize(1000 * KIB, 100000 * KIB));
+    // Never less than a read.
+    assertEquals(64 * KIB, sizes.getOutputSize(1000 * KIB, 10 * KIB));
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records the flight recorder events of reading two splits.
+ */
+public class TestSplitStreamEvents {
+
+  private static final String PREFIX = "nl.basjes.splittablegzip.";
+
+  @Test
+  public void testEvents() throws IOException {
+    final byte[] compressed = gzip(logLines(50000), 6);
+    final long start = compressed.length / 2;
+    final Configuration conf = new Configuration();
+    // The crawl has the position state changes.
+    conf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY, false);
+    final SplittableGzipCodec codec =
+        ReflectionUtils.newInstance(SplittableGzipCodec.class, conf);
+
+    final File file = File.createTempFile("splittablegzip", ".jfr");
+    final List<RecordedEvent> events = new ArrayList<>();
+    try (Recording recording = new Recording()) {
+      for (String event : new String[]{"StreamCreated", "Skip",
+        "PositionState", "SplitEnded"}) {
+        recording.enable(PREFIX + event).withoutThreshold();
+      }
+      recording.start();
+      readSplit(codec, compressed, 0, start);
+      readSplit(codec, compressed, start, compressed.length);
+      recording.stop();
+      recording.dump(file.toPath());
+      for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+        if (event.getEventType().getName().startsWith(PREFIX)) {
+          events.add(event);
+        }
+      }
+    } finally {
+      assertTrue(file.delete());
+    }
+
+    final List<String> names = new ArrayList<>();
+    for (RecordedEvent event : events) {
+      names.add(event.getEventType().getName().substring(PREFIX.length())
+          + (event.hasField("toState") ? " " + event.getString("toState") : ""));
+    }
+    assertEquals(names.toString(), "StreamCreated", names.get(0));
+    assertTrue(names.toString(), names.contains("PositionState HOLD"));
+    assertTrue(names.toString(), names.contains("PositionState SLOPE"));
+    assertEquals(names.toString(), 1, count(names, "Skip"));
+    // Each split is closed twice but ends only once.
+    assertEquals(names.toString(), 2, count(names, "SplitEnded"));
+
+    boolean lastSplit = false;
+    for (RecordedEvent event : events) {
+      switch (event.getEventType().getName().substring(PREFIX.length())) {
+      case "Skip":
+        assertEquals(start, event.getLong("splitStart"));
+        assertEquals(0, event.getLong("fromPosition"));
+        assertTrue(event.getLong("toPosition") >= start);
+        lastSplit = true;
+        break;
+      case "SplitEnded":
+        // Only the last split reads until the end of the file.
+        assertEquals(lastSplit, event.getBoolean("endOfInput"));
+        assertTrue(event.getLong("splitUncompressedBytes") > 0);
+        break;
+      default:
+        break;
+      }
+    }
+  }
+
+  private static int count(final List<String> names, final String name) {
+    int count = 0;
+    for (String n : names) {
+      if (n.equals(name)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static void readSplit(final SplittableGzipCodec codec,
+      final byte[] compressed, final long start, final long end)
+    throws IOException {
+    final SplitCompressionInputStream in = codec.createInputStream(
+        new ByteArrayInputStream(compressed), codec.createDecompressor(),
+        start, end, SplittableCompressionCodec.READ_MODE.BYBLOCK);
+    try {
+      final byte[] buffer = new byte[4096];
+      while (in.getPos() <= end && in.read(buffer, 0, buffer.length) != -1) {
+        // Only the events are checked.
+      }
+    } finally {
+      in.close();
+      // Closing again must not end the split again.
+      in.close();
+    }
+  }
+
+}
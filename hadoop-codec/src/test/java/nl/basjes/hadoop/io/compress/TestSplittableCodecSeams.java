@@ -22,6 +22,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CodecPool;
@@ -33,14 +34,30 @@ import org.apache.hadoop.util.LineReader;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.zip.GZIPInputStream;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.CRAWL_BYTES;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.CRAWL_INFLATE_CALLS;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SKIPPED_COMPRESSED_BYTES;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SKIPPED_UNCOMPRESSED_BYTES;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SPLIT_COMPRESSED_BYTES;
+import static nl.basjes.hadoop.io.compress.SplittableGzipStatisticNames.SPLIT_UNCOMPRESSED_BYTES;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -55,6 +72,23 @@ public class TestSplittableCodecSeams {
 
   final int BUFFER_SIZE = 4096;
 
+  // The settings used by all validations in a test.
+  private final Configuration testConf = new Configuration();
+
+  // If set the synthetic files are recompressed into a different gzip format.
+  private UnaryOperator<byte[]> recompress = null;
+
+  // If set every other split uses the Java decompressor of this project.
+  private boolean alternateDecompressors = false;
+
+  // If larger than 0 the synthetic files get an index with this interval.
+  private long indexInterval = 0;
+
+  // What the splits of the last validated file did.
+  private Class<? extends Decompressor> decompressorType;
+  private long splitStarts;
+  private long skippedCompressedBytes;
+
   /**
    * Test with a series of files with several fixed sizes in trailing gibberish.
    * I.e. all lines in the test file are of equal length.
@@ -120,6 +154,327 @@ public class TestSplittableCodecSeams {
             1000, 500, 250, splitSize, 4096);
   }
 
+  /**
+   * Test with a series of files that have an index so the splits resume at a
+   * checkpoint instead of at the start of the file.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsWithIndex() throws IOException {
+    indexInterval = 4096;
+    validateSeams();
+    assertTrue(skippedCompressedBytes < splitStarts / 10);
+    int splitSize = 25000;
+    validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+        2000, 500, 250, splitSize, 2*splitSize, 1, 10000);
+  }
+
+  /**
+   * Test with a file with 1 character lines that has an index.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsSingleCharLinesWithIndex() throws IOException {
+    int splitSize = 4096;
+    validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+        10000000, 1, 0, splitSize, 2*splitSize, 100, 1000);
+  }
+
+  /**
+   * Test with a series of files where the splits (without an index) try to
+   * find a deflate block shortly before the start of the split.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsSpeculative() throws IOException {
+    testConf.setBoolean(SplittableGzipCodec.SPECULATIVE_ENABLED_KEY, true);
+    testConf.setLong(SplittableGzipCodec.SPECULATIVE_LOOKBACK_KEY, 200000);
+    int splitSize = 100000;
+    validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+        100000, 15, 0, splitSize, 2*splitSize, 1);
+    assertTrue(skippedCompressedBytes < splitStarts / 2);
+    validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+        10000, 500, 250, splitSize, 2*splitSize, 1);
+  }
+
+  /**
+   * Test with a series of files where the splits continue from the
+   * checkpoints that the other streams (in the same JVM) have passed.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsCheckpointCache() throws IOException {
+    try {
+      validateSeamsWith(conf -> {
+        conf.setLong(CheckpointCache.CACHE_SIZE_KEY, 64 * 1024 * 1024);
+        conf.setLong(CheckpointCache.CACHE_INTERVAL_KEY, 4096);
+      });
+      assertTrue(CheckpointCache.getInstance(testConf).size() > 0);
+      assertTrue(skippedCompressedBytes < splitStarts / 10);
+    } finally {
+      CheckpointCache.getInstance(testConf).clear();
+    }
+  }
+
+  /**
+   * Test with a series of files where the splits continue from the
+   * checkpoints that the previous splits have stored on disk.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsCheckpointStore() throws IOException {
+    final FileSystem fs = FileSystem.getLocal(testConf);
+    final Path store = new Path(System.getProperty("test.build.data", "/tmp"),
+        "TestSplittableCodecSeams-store");
+    try {
+      validateSeamsWith(conf -> {
+        conf.set(CheckpointStore.STORE_DIR_KEY, store.toString());
+        conf.setLong(CheckpointStore.STORE_INTERVAL_KEY, 4096);
+      });
+      assertTrue(fs.exists(store) && fs.listStatus(store).length > 0);
+      assertTrue(skippedCompressedBytes < splitStarts / 10);
+    } finally {
+      fs.delete(store, true);
+    }
+  }
+
+  /**
+   * Test with a series of files where the splits are served by a single
+   * decompression of the file.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsFanOut() throws IOException {
+    try {
+      for (int buffers = 1; buffers <= 4; buffers += 3) {
+        final int fanOutBuffers = buffers;
+        validateSeamsWith(conf -> {
+          conf.setBoolean(SplittableGzipCodec.FANOUT_ENABLED_KEY, true);
+          conf.setInt(SplittableGzipCodec.FANOUT_BUFFERS_KEY, fanOutBuffers);
+        });
+        // Each split continued where the previous split stopped.
+        assertEquals(0, skippedCompressedBytes);
+        assertEquals(1, FanOutSource.getSources());
+      }
+      testConf.setInt(SplittableGzipCodec.BACKGROUND_BUFFERS_KEY, 2);
+      int splitSize = 25000;
+      validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+          2000, 500, 250, splitSize, 2*splitSize, 1, 10000);
+    } finally {
+      FanOutSource.closeUnused();
+    }
+  }
+
+  /**
+   * Test with a series of BGZF files where the splits start at the last
+   * member before the split.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsBgzf() throws IOException {
+    recompress = data -> TestGzipMemberFinder.bgzf(data, new ArrayList<>());
+    validateSeams();
+    assertTrue(skippedCompressedBytes < splitStarts / 10);
+  }
+
+  /**
+   * Test with a series of files with concatenated gzip members that are
+   * found by scanning for the gzip header.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsMembers() throws IOException {
+    testConf.setBoolean(SplittableGzipCodec.MEMBERS_SCAN_KEY, true);
+    testConf.setLong(SplittableGzipCodec.MEMBERS_LOOKBACK_KEY, 100000);
+    recompress = data ->
+        TestGzipMemberFinder.members(data, 50000, new ArrayList<>());
+    int splitSize = 10000;
+    validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+        100000, 15, 0, splitSize, 2*splitSize, 1);
+    assertTrue(skippedCompressedBytes < splitStarts / 2);
+    validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+        10000, 500, 250, splitSize, 2*splitSize, 1);
+  }
+
+  /**
+   * Test if the splits meet exactly when the neighbouring splits use
+   * different decompressors (i.e. native zlib and a split that resumed at a
+   * checkpoint).
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsMixedDecompressors() throws IOException {
+    alternateDecompressors = true;
+    validateSeams();
+  }
+
+  /**
+   * Test with the old approach of crawling near the end of the split instead
+   * of the exact position.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsCrawling() throws IOException {
+    validateSeamsWith(conf ->
+        conf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY, false));
+    // Each split read (a little) beyond its start before it was used.
+    assertTrue(skippedCompressedBytes > splitStarts);
+    alternateDecompressors = true;
+    int splitSize = 25000;
+    validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+        2000, 500, 250, splitSize, 2*splitSize, 1, 10000);
+  }
+
+  /**
+   * Test the zlib (".deflate") files with the generic wrapper, both with the
+   * exact position and by crawling.
+   */
+  @Test
+  public void testSplittableDefaultCodecSeams() throws IOException {
+    for (boolean exact : new boolean[]{true, false}) {
+      testConf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY, exact);
+      validateSeams(SplittableDefaultCodec.class);
+      // There are no checkpoints: each split decompressed what was before it.
+      assertTrue(skippedCompressedBytes >= splitStarts);
+      int splitSize = 25000;
+      validateSplitSeamsWithSyntheticFile(SplittableDefaultCodec.class,
+          2000, 500, 250, splitSize, 2*splitSize, 1);
+    }
+    testConf.setInt(SplittableGzipCodec.BACKGROUND_BUFFERS_KEY, 2);
+    testConf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY, true);
+    int splitSize = 10000;
+    validateSplitSeamsWithSyntheticFile(SplittableDefaultCodec.class,
+        100000, 8, 0, splitSize, 2*splitSize, 1);
+    assertEquals(splitStarts, skippedCompressedBytes);
+  }
+
+  /**
+   * Test with the DirectGzipDecompressor as the decompressor of the codec.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsDirect() throws IOException {
+    validateSeamsWith(conf ->
+        conf.setBoolean(SplittableGzipCodec.DIRECT_ENABLED_KEY, true));
+    assertEquals(DirectGzipDecompressor.class, decompressorType);
+    recompress = data ->
+        TestGzipMemberFinder.members(data, 50000, new ArrayList<>());
+    int splitSize = 25000;
+    validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+        2000, 500, 250, splitSize, 2*splitSize, 1, 10000);
+  }
+
+  /**
+   * Test with each of the available inflate backends.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsBackends() throws IOException {
+    for (InflateBackend backend : InflateBackends.getBuiltInBackends()) {
+      if (!backend.isAvailable(testConf)) {
+        continue;
+      }
+      LOG.info("Testing the " + backend.getName() + " inflate backend");
+      testConf.set(InflateBackends.BACKEND_KEY, backend.getName());
+      int splitSize = 10000;
+      validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+          100000, 7, 0, splitSize, 2*splitSize, 1);
+      assertEquals(backend.getName(), backend.getDecompressorType(),
+          decompressorType);
+    }
+  }
+
+  /**
+   * Test the statistics of the split streams with the exact position and
+   * with the crawling near the end of the split.
+   */
+  @Test
+  public void testSplittableGzipCodecStatistics() throws IOException {
+    final byte[] data = TestCheckpointableGzipDecompressor.logLines(50000);
+    final byte[] compressed = TestCheckpointableGzipDecompressor.gzip(data, 6);
+    final long start = compressed.length / 2;
+    for (boolean exact : new boolean[]{true, false}) {
+      testConf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY, exact);
+      final SplittableGzipCodec codec =
+          ReflectionUtils.newInstance(SplittableGzipCodec.class, testConf);
+      final Map<String, Long> first =
+          readSplitStatistics(codec, compressed, 0, start);
+      final Map<String, Long> second =
+          readSplitStatistics(codec, compressed, start, compressed.length);
+
+      assertEquals(0L, (long) first.get(SKIPPED_COMPRESSED_BYTES));
+      assertEquals(0L, (long) first.get(SKIPPED_UNCOMPRESSED_BYTES));
+      final long skipped = second.get(SKIPPED_COMPRESSED_BYTES);
+      if (exact) {
+        assertEquals(start, skipped);
+        assertEquals(0L, (long) first.get(CRAWL_BYTES));
+        assertEquals(0L, (long) first.get(CRAWL_INFLATE_CALLS));
+      } else {
+        // The crawl reads a little beyond the start of the split: exactly
+        // where the previous split stopped reading.
+        assertTrue(skipped >= start && skipped < start + BUFFER_SIZE);
+        assertEquals(skipped, (long) first.get(SPLIT_COMPRESSED_BYTES));
+        assertTrue(first.get(CRAWL_BYTES) > 0);
+        assertTrue(first.get(CRAWL_INFLATE_CALLS) > 0);
+      }
+      assertEquals(compressed.length - skipped,
+          (long) second.get(SPLIT_COMPRESSED_BYTES));
+      // The second split was read until the end of the file.
+      assertEquals(data.length, second.get(SKIPPED_UNCOMPRESSED_BYTES)
+          + second.get(SPLIT_UNCOMPRESSED_BYTES));
+    }
+  }
+
+  private Map<String, Long> readSplitStatistics(
+      final SplittableGzipCodec codec, final byte[] compressed,
+      final long start, final long end) throws IOException {
+    try (SplitCompressionInputStream in = codec.createInputStream(
+        new ByteArrayInputStream(compressed), codec.createDecompressor(),
+        start, end, SplittableCompressionCodec.READ_MODE.BYBLOCK)) {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      while (in.getPos() <= end && in.read(buffer, 0, buffer.length) != -1) {
+        // Only the statistics are checked.
+      }
+      return ((IOStatisticsSource) in).getIOStatistics().counters();
+    }
+  }
+
+  /**
+   * Test with read sizes that are chosen by the codec and with reads that
+   * are much larger than the split, with and without crawling.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsReadSizes() throws IOException {
+    for (boolean exactPosition : new boolean[]{true, false}) {
+      testConf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY,
+          exactPosition);
+      validateSeamsWith(conf -> conf.setInt(ReadSizes.READ_SIZE_KEY, 0));
+      testConf.setInt(ReadSizes.OUTPUT_SIZE_KEY, 100);
+      testConf.setInt(ReadSizes.CRAWL_SIZE_KEY, 20000);
+      int splitSize = 25000;
+      validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+          10000, 500, 250, splitSize, 2*splitSize, 1);
+      testConf.unset(ReadSizes.OUTPUT_SIZE_KEY);
+      testConf.unset(ReadSizes.CRAWL_SIZE_KEY);
+    }
+    // A single read is (much) larger than a split.
+    testConf.setBoolean(SplittableGzipCodec.EXACT_POSITION_KEY, true);
+    testConf.setInt(ReadSizes.READ_SIZE_KEY, 1024 * 1024);
+    int splitSize = 10000;
+    validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+        100000, 8, 0, splitSize, 2*splitSize, 1);
+  }
+
+  /**
+   * Test with the decompressing (and skipping) on a background thread; a
+   * single buffer makes the reader wait for the background thread a lot.
+   */
+  @Test
+  public void testSplittableGzipCodecSeamsBackground() throws IOException {
+    for (int buffers = 1; buffers <= 4; buffers += 3) {
+      final int backgroundBuffers = buffers;
+      validateSeamsWith(conf -> conf.setInt(
+          SplittableGzipCodec.BACKGROUND_BUFFERS_KEY, backgroundBuffers));
+    }
+    testConf.setLong(CheckpointCache.CACHE_SIZE_KEY, 64 * 1024 * 1024);
+    testConf.setLong(CheckpointCache.CACHE_INTERVAL_KEY, 4096);
+    try {
+      int splitSize = 25000;
+      validateSplitSeamsWithSyntheticFile(SplittableGzipCodec.class,
+          2000, 500, 250, splitSize, 2*splitSize, 1, 10000);
+    } finally {
+      CheckpointCache.getInstance(testConf).clear();
+    }
+  }
+
   // ------------------------------------------
 
   /**
@@ -134,6 +489,30 @@ public class TestSplittableCodecSeams {
 
   // ------------------------------------------
 
+  /**
+   * Validate the seams of a series of files with short lines (of several
+   * lengths) after applying the settings of the test.
+   */
+  private void validateSeamsWith(final Consumer<Configuration> settings)
+    throws IOException {
+    settings.accept(testConf);
+    validateSeams();
+  }
+
+  private void validateSeams() throws IOException {
+    validateSeams(SplittableGzipCodec.class);
+  }
+
+  private void validateSeams(
+          final Class<? extends SplittableCompressionCodec> codecClass)
+    throws IOException {
+    for (int length = 1; length <= 15; length += 7) {
+      int splitSize = 10000;
+      validateSplitSeamsWithSyntheticFile(codecClass,
+          100000, length, 0, splitSize, 2*splitSize, 1);
+    }
+  }
+
   private void validateSplitSeamsWithSyntheticFile(
           final Class<? extends SplittableCompressionCodec> codecClass,
           final long records,
@@ -145,8 +524,20 @@ public class TestSplittableCodecSeams {
     validateSplitSeamsWithSyntheticFile(codecClass, records, recordLength, recordLengthJitter, splitSize, lastSplitSizeLimit, 1000);
   }
 
+  private void validateSplitSeamsWithSyntheticFile(
+          final Class<? extends SplittableCompressionCodec> codecClass,
+          final long records,
+          final int  recordLength,
+          final int  recordLengthJitter,
+          final long splitSize,
+          final long lastSplitSizeLimit,
+          final int  randomizeEveryNChars) throws IOException {
+    validateSplitSeamsWithSyntheticFile(codecClass, records, recordLength, recordLengthJitter, splitSize, lastSplitSizeLimit, randomizeEveryNChars, indexInterval);
+  }
+
   /**
     * This creates a synthetic file and then uses it to run the split seam check.
+    * If indexInterval is larger than 0 a GzipIndex is created for the file first.
     */
   private void validateSplitSeamsWithSyntheticFile(
           final Class<? extends SplittableCompressionCodec> codecClass,
@@ -155,8 +546,9 @@ public class TestSplittableCodecSeams {
           final int  recordLengthJitter,
           final long splitSize,
           final long lastSplitSizeLimit,
-          final int  randomizeEveryNChars) throws IOException {
-    final Configuration conf = new Configuration();
+          final int  randomizeEveryNChars,
+          final long indexInterval) throws IOException {
+    final Configuration conf = new Configuration(testConf);
 
     if (recordLength + recordLengthJitter > splitSize) {
       fail("Test definition error: Make the splits bigger than the records.");
@@ -167,16 +559,47 @@ public class TestSplittableCodecSeams {
     }
 
     final FileSystem fs = FileSystem.getLocal(conf);
+    // A new file can have the same path, length and modification time as a
+    // file with a different content that was validated before.
+    FanOutSource.closeUnused();
+    final CheckpointCache cache = CheckpointCache.getInstance(conf);
+    if (cache != null) {
+      cache.clear();
+    }
+    final String store = conf.getTrimmed(CheckpointStore.STORE_DIR_KEY, "");
+    if (!store.isEmpty()) {
+      fs.delete(new Path(store), true);
+    }
+
     final Path filename = writeSplitTestFile(conf, codecClass, records,
             recordLength, recordLengthJitter, randomizeEveryNChars);
+    if (recompress != null) {
+      final ByteArrayOutputStream data = new ByteArrayOutputStream();
+      try (InputStream in = new GZIPInputStream(fs.open(filename))) {
+        IOUtils.copyBytes(in, data, BUFFER_SIZE);
+      }
+      try (OutputStream out = fs.create(filename, true)) {
+        out.write(recompress.apply(data.toByteArray()));
+      }
+    }
 
     LOG.info("Input is SYNTHETIC: "
             + "records=" + records + ", "
             + "recordLength=" + recordLength
             + (recordLengthJitter == 0 ? "" : "+random[0;" + recordLengthJitter + "]."));
 
+    if (indexInterval > 0) {
+      final GzipIndex index = GzipIndexer.buildIndex(fs, filename, indexInterval);
+      index.save(fs, filename);
+      LOG.info("Created index with " + index.size() + " checkpoints.");
+    }
+    // This is how the old mapred API tells the codec the file (and thus the
+    // index); TestSplittableGzipLineRecordReader covers the new API.
+    conf.set("mapreduce.map.input.file", filename.toString());
+
     validateSplitSeams(conf, fs, filename, codecClass, splitSize, records, lastSplitSizeLimit);
 
+    fs.delete(GzipIndex.getIndexPath(filename), true);
     fs.delete(filename, true);
   }
 
@@ -192,8 +615,10 @@ public class TestSplittableCodecSeams {
                                   final long splitSize,
                                   final long recordsInFile,
                                   final long lastSplitSizeLimit) throws IOException {
-    // To make the test predictable
-    conf.setInt("io.file.buffer.size", BUFFER_SIZE);
+    // To make the test predictable (unless the test sets the sizes)
+    if (conf.get(ReadSizes.READ_SIZE_KEY) == null) {
+      conf.setInt(ReadSizes.READ_SIZE_KEY, BUFFER_SIZE);
+    }
 
     final FileStatus infile = fs.getFileStatus(filename);
     final long inputLength = infile.getLen();
@@ -228,6 +653,9 @@ public class TestSplittableCodecSeams {
     final Text line = new Text();
     final Decompressor dcmp = CodecPool.getDecompressor(codec);
     assertNotNull("Unable to load the decompressor for codec \"" + codec.getClass().getName() + "\"", refDcmp);
+    decompressorType = dcmp.getClass();
+    splitStarts = 0;
+    skippedCompressedBytes = 0;
 
     try {
       long start = 0;
@@ -242,8 +670,11 @@ public class TestSplittableCodecSeams {
         LOG.debug("-------------------------------------------------------");
         dcmp.reset(); // Reset the Decompressor for reuse with the new stream
 
+        final Decompressor splitDcmp =
+            alternateDecompressors && splitCount % 2 == 0
+                ? new CheckpointableGzipDecompressor() : dcmp;
         final SplitCompressionInputStream splitStream = codec
-            .createInputStream(fs.open(infile.getPath()), dcmp, start, end,
+            .createInputStream(fs.open(infile.getPath()), splitDcmp, start, end,
                 SplittableCompressionCodec.READ_MODE.BYBLOCK);
 
         final long adjustedStart = splitStream.getAdjustedStart();
@@ -293,6 +724,13 @@ public class TestSplittableCodecSeams {
           }
         }
 
+        splitStarts += start;
+        skippedCompressedBytes += ((IOStatisticsSource) splitStream)
+            .getIOStatistics().counters().get(SKIPPED_COMPRESSED_BYTES);
+
+        // The decompressor is reused by the next split.
+        splitStream.close();
+
         // We just read through the entire split
         LOG.debug("Checked split " + splitCount + " (" + adjustedStart + "-" + adjustedEnd + ") "
                 + "containing " + splitLineNumber + " lines.");
@@ -330,6 +768,7 @@ public class TestSplittableCodecSeams {
 
       assertEquals("Wrong number of records read", recordsInFile, refLineNumber);
     } finally {
+      refStream.close();
       CodecPool.returnDecompressor(dcmp);
       CodecPool.returnDecompressor(refDcmp);
     }
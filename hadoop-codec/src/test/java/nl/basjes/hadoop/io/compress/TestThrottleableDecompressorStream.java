@@ -0,0 +1,119 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress;
+
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.zlib.BuiltInGzipDecompressor;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.gzip;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.logLines;
+import static nl.basjes.hadoop.io.compress.TestCheckpointableGzipDecompressor.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for fast forwarding the ThrottleableDecompressorStream.
+ */
+public class TestThrottleableDecompressorStream {
+
+  @Test
+  public void testFastForwardCheckpointable() throws IOException {
+    validateFastForward(CheckpointableGzipDecompressor::new);
+  }
+
+  @Test
+  public void testFastForwardBuiltIn() throws IOException {
+    validateFastForward(BuiltInGzipDecompressor::new);
+  }
+
+  @Test
+  public void testFastForwardDirect() throws IOException {
+    validateFastForward(DirectGzipDecompressor::new);
+  }
+
+  /**
+   * After fast forwarding the remaining output must be exactly the end of the
+   * data; also across the boundaries of the members of the file.
+   */
+  private void validateFastForward(final Supplier<Decompressor> decompressors)
+    throws IOException {
+    final byte[] first = logLines(20000);
+    final byte[] second = randomBytes(300000);
+    final ByteArrayOutputStream members = new ByteArrayOutputStream();
+    members.write(gzip(first, 6));
+    members.write(gzip(second, 1));
+    members.write(gzip(first, 9));
+    final byte[] compressed = members.toByteArray();
+
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    data.write(first);
+    data.write(second);
+    data.write(first);
+    final byte[] expected = data.toByteArray();
+
+    for (int target = 0; target < compressed.length; target += 50000) {
+      for (int readFirst : new int[]{0, 100}) {
+        final ThrottleableDecompressorStream stream =
+            new ThrottleableDecompressorStream(
+                new ByteArrayInputStream(compressed), decompressors.get(),
+                4096);
+        final byte[] head = new byte[readFirst];
+        final int headLength = stream.read(head, 0, readFirst);
+
+        stream.fastForward(target);
+        if (readFirst == 0) {
+          assertEquals(target, stream.getBytesRead());
+        } else {
+          assertTrue(stream.getBytesRead() >= target);
+        }
+
+        final byte[] tail = readAll(stream);
+        assertArrayEquals("Target " + target + " after " + headLength,
+            Arrays.copyOfRange(expected, expected.length - tail.length,
+                expected.length), tail);
+      }
+    }
+
+    // Fast forwarding beyond the end is not an error.
+    final ThrottleableDecompressorStream stream =
+        new ThrottleableDecompressorStream(
+            new ByteArrayInputStream(compressed), decompressors.get(), 4096);
+    stream.fastForward(compressed.length + 1000L);
+    assertEquals(compressed.length, stream.getBytesRead());
+    assertEquals(-1, stream.read(new byte[100], 0, 100));
+  }
+
+  private static byte[] readAll(final ThrottleableDecompressorStream stream)
+    throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int read;
+    while ((read = stream.read(buffer, 0, buffer.length)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.mapreduce.lib.input;
+
+import nl.basjes.hadoop.io.compress.CheckpointCache;
+import nl.basjes.hadoop.io.compress.SplittableGzipCodec;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the planned splits are predicted to finish at the same time.
+ */
+public class TestGzipSplitPlanner {
+
+  private static final long MIB = 1024 * 1024;
+
+  private static final long[] NO_CHECKPOINTS = new long[0];
+
+  /**
+   * @return the predicted finish time of each split.
+   */
+  private static double[] getFinishTimes(final long size, final long[] starts,
+      final long[] checkpoints, final double inflateRate,
+      final double processRate) {
+    final double[] finish = new double[starts.length];
+    for (int split = 0; split < starts.length; split++) {
+      final long end = split + 1 < starts.length ? starts[split + 1] : size;
+      long checkpoint = 0;
+      for (long offset : checkpoints) {
+        if (offset <= starts[split]) {
+          checkpoint = offset;
+        }
+      }
+      finish[split] = (starts[split] - checkpoint) / inflateRate
+          + (end - starts[split]) / processRate;
+    }
+    return finish;
+  }
+
+  @Test
+  public void testEqualFinishTimes() {
+    final long size = 1024 * MIB;
+    final double inflateRate = 400 * MIB;
+    final double processRate = 40 * MIB;
+    final long[] starts = GzipSplitPlanner.plan(size, NO_CHECKPOINTS,
+        inflateRate, processRate, 64, 4096);
+    assertTrue(starts.length > 1);
+    assertTrue(starts.length <= 64);
+    assertEquals(0, starts[0]);
+
+    final double[] finish = getFinishTimes(size, starts, NO_CHECKPOINTS,
+        inflateRate, processRate);
+    long previousSize = Long.MAX_VALUE;
+    for (int split = 0; split < starts.length; split++) {
+      final long end = split + 1 < starts.length ? starts[split + 1] : size;
+      final long splitSize = end - starts[split];
+      assertTrue("The later splits must be smaller", splitSize < previousSize);
+      previousSize = splitSize;
+      assertEquals(finish[0], finish[split], finish[0] * 0.001);
+    }
+    // Far better than a single split.
+    assertTrue(finish[0] < 0.5 * size / processRate);
+  }
+
+  @Test
+  public void testCheckpoints() {
+    final long size = 1024 * MIB;
+    final double inflateRate = 400 * MIB;
+    final double processRate = 40 * MIB;
+    // An index with a checkpoint every 16 MiB.
+    final long[] checkpoints = new long[64];
+    for (int checkpoint = 0; checkpoint < checkpoints.length; checkpoint++) {
+      checkpoints[checkpoint] = checkpoint * 16 * MIB;
+    }
+    final long[] starts = GzipSplitPlanner.plan(size, checkpoints,
+        inflateRate, processRate, 64, 4096);
+    final long[] withoutIndex = GzipSplitPlanner.plan(size, NO_CHECKPOINTS,
+        inflateRate, processRate, 64, 4096);
+    // Skipping is cheap so more splits are useful and they are about equal.
+    assertTrue(starts.length > withoutIndex.length);
+    final double[] finish = getFinishTimes(size, starts, checkpoints,
+        inflateRate, processRate);
+    double last = 0;
+    for (int split = 0; split < starts.length; split++) {
+      last = Math.max(last, finish[split]);
+      final long end = split + 1 < starts.length ? starts[split + 1] : size;
+      assertTrue(end - starts[split] > 8 * MIB);
+    }
+    final double lastWithoutIndex = getFinishTimes(size, withoutIndex,
+        NO_CHECKPOINTS, inflateRate, processRate)[0];
+    assertTrue(last < 0.5 * lastWithoutIndex);
+  }
+
+  @Test
+  public void testLimits() {
+    final long size = 1024 * MIB;
+    // Processing is as fast as skipping: splitting never helps.
+    assertEquals(1, GzipSplitPlanner.plan(size, NO_CHECKPOINTS,
+        100 * MIB, 100 * MIB, 64, 4096).length);
+    // The maximum number of splits.
+    assertEquals(3, GzipSplitPlanner.plan(size, NO_CHECKPOINTS,
+        1000 * MIB, 10 * MIB, 3, 4096).length);
+    // The minimum split size.
+    final long[] starts = GzipSplitPlanner.plan(size, NO_CHECKPOINTS,
+        1000 * MIB, 100 * MIB, 1000, 100 * MIB);
+    assertTrue(starts.length > 1);
+    for (int split = 0; split < starts.length; split++) {
+      final long end = split + 1 < starts.length ? starts[split + 1] : size;
+      assertTrue(end - starts[split] >= 100 * MIB);
+    }
+  }
+
+  @Test
+  public void testGetSplits() throws IOException {
+    final Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", SplittableGzipCodec.class.getName());
+    conf.setBoolean(SplittableGzipTextInputFormat.PLANNER_ENABLED_KEY, true);
+    conf.setLong(SplittableGzipTextInputFormat.INFLATE_RATE_KEY, 100 * MIB);
+    conf.setLong(SplittableGzipTextInputFormat.PROCESS_RATE_KEY, 10 * MIB);
+    final FileSystem fs = FileSystem.getLocal(conf);
+    final Path file = new Path(new Path(System.getProperty("test.build.data",
+        "/tmp")), getClass().getSimpleName() + ".gz")
+        .makeQualified(fs.getUri(), fs.getWorkingDirectory());
+
+    final Random random = new Random(42);
+    try (OutputStream out = new GZIPOutputStream(fs.create(file, true))) {
+      for (int line = 0; line < 100000; line++) {
+        out.write(("Line " + line + " " + random.nextLong() + "\n")
+            .getBytes(US_ASCII));
+      }
+    }
+    final long length = fs.getFileStatus(file).getLen();
+
+    final Job job = Job.getInstance(conf);
+    FileInputFormat.setInputPaths(job, file);
+    FileInputFormat.setMaxInputSplitSize(job, length / 8);
+    final List<InputSplit> splits =
+        new SplittableGzipTextInputFormat().getSplits(job);
+    assertTrue(splits.size() > 1);
+    assertTrue(splits.size() <= 9);
+
+    long expectedStart = 0;
+    long previousSize = Long.MAX_VALUE;
+    for (InputSplit split : splits) {
+      final FileSplit fileSplit = (FileSplit) split;
+      assertEquals(expectedStart, fileSplit.getStart());
+      assertTrue(fileSplit.getLength() < previousSize);
+      previousSize = fileSplit.getLength();
+      expectedStart += fileSplit.getLength();
+    }
+    assertEquals(length, expectedStart);
+
+    // With a checkpoint cache a split can resume almost anywhere.
+    job.getConfiguration().setLong(CheckpointCache.CACHE_SIZE_KEY, 1);
+    assertEquals(length / (length / 8),
+        new SplittableGzipTextInputFormat().getSplits(job).size(), 1);
+    job.getConfiguration().unset(CheckpointCache.CACHE_SIZE_KEY);
+
+    // Without the planner all splits are of equal size.
+    job.getConfiguration()
+        .setBoolean(SplittableGzipTextInputFormat.PLANNER_ENABLED_KEY, false);
+    assertEquals(length / (length / 8),
+        new SplittableGzipTextInputFormat().getSplits(job).size(), 1);
+    fs.delete(file, false);
+  }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.mapreduce.lib.input;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import nl.basjes.hadoop.io.compress.GzipIndex;
+import nl.basjes.hadoop.io.compress.GzipIndexer;
+import nl.basjes.hadoop.io.compress.SplittableGzipCodec;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.counters.GenericCounter;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads a gzip file as several splits with the record reader and checks that
+ * each record is read exactly once and that the skipping is reported.
+ */
+public class TestSplittableGzipLineRecordReader {
+
+  /**
+   * Remembers what the record reader reports to the framework.
+   */
+  private static class Reporter extends StatusReporter {
+    private final List<String> statuses = new ArrayList<>();
+    private final Map<Enum<?>, Counter> counters = new HashMap<>();
+    private int progressCalls = 0;
+
+    @Override
+    public Counter getCounter(final Enum<?> name) {
+      return counters.computeIfAbsent(name, n -> new GenericCounter());
+    }
+
+    private long getValue(final Enum<?> name) {
+      return getCounter(name).getValue();
+    }
+
+    @Override
+    public Counter getCounter(final String group, final String name) {
+      return new GenericCounter();
+    }
+
+    @Override
+    public void progress() {
+      progressCalls++;
+    }
+
+    @Override
+    public float getProgress() {
+      return 0;
+    }
+
+    @Override
+    public void setStatus(final String status) {
+      statuses.add(status);
+    }
+  }
+
+  @Test
+  public void testSplits() throws IOException, InterruptedException {
+    final Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", SplittableGzipCodec.class.getName());
+    final FileSystem fs = FileSystem.getLocal(conf);
+    final Path file = new Path(new Path(System.getProperty("test.build.data",
+        "/tmp")), getClass().getSimpleName() + ".gz")
+        .makeQualified(fs.getUri(), fs.getWorkingDirectory());
+
+    final List<String> expected = new ArrayList<>();
+    final Random random = new Random(42);
+    try (OutputStream out = new GZIPOutputStream(fs.create(file, true))) {
+      for (int line = 0; line < 200000; line++) {
+        final String value = "Line " + line + " " + random.nextLong();
+        expected.add(value);
+        out.write((value + "\n").getBytes(US_ASCII));
+      }
+    }
+
+    final long length = fs.getFileStatus(file).getLen();
+    final long splitSize = length / 4 + 1;
+    final List<String> actual = new ArrayList<>();
+    long uncompressed = 0;
+    for (long start = 0; start < length; start += splitSize) {
+      final Reporter reporter = new Reporter();
+      final TaskAttemptContext context =
+          new TaskAttemptContextImpl(conf, new TaskAttemptID(), reporter);
+      final RecordReader<LongWritable, Text> reader =
+          new SplittableGzipTextInputFormat().createRecordReader(null, context);
+      reader.initialize(new FileSplit(file, start,
+          Math.min(splitSize, length - start), null), context);
+
+      // Initialize must be quick; the skip is done by the first read.
+      assertEquals(0, reporter.progressCalls);
+      assertTrue(reader.getProgress() < 0.01F);
+
+      while (reader.nextKeyValue()) {
+        actual.add(reader.getCurrentValue().toString());
+      }
+      assertEquals(1.0F, reader.getProgress(), 0.001F);
+      reader.close();
+
+      if (start > 0) {
+        assertTrue(reporter.progressCalls > 0);
+        assertTrue(reporter.statuses.get(0),
+            reporter.statuses.get(0).startsWith("Skipping to offset " + start));
+      }
+
+      // The skip is exactly up to the start of the split.
+      assertEquals(start, reporter.getValue(
+          SplittableGzipCounters.SKIPPED_COMPRESSED_BYTES));
+      assertEquals(0, reporter.getValue(SplittableGzipCounters.CRAWL_BYTES));
+      assertTrue(reporter.getValue(
+          SplittableGzipCounters.SPLIT_COMPRESSED_BYTES) >= splitSize
+          || start + splitSize >= length);
+      if (start == 0) {
+        assertEquals(0, reporter.getValue(
+            SplittableGzipCounters.SKIPPED_UNCOMPRESSED_BYTES));
+      } else {
+        // Everything before this split was read by the previous splits.
+        assertTrue(reporter.getValue(
+            SplittableGzipCounters.SKIPPED_UNCOMPRESSED_BYTES) < uncompressed);
+      }
+      uncompressed += reporter.getValue(
+          SplittableGzipCounters.SPLIT_UNCOMPRESSED_BYTES);
+    }
+    assertEquals(expected, actual);
+    fs.delete(file, false);
+  }
+
+  /**
+   * The standard TextInputFormat of the new mapreduce API does not tell the
+   * codec which file it reads so the index is not used; the
+   * SplittableGzipTextInputFormat does.
+   */
+  @Test
+  public void testIndexWithTextInputFormat()
+    throws IOException, InterruptedException {
+    final Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", SplittableGzipCodec.class.getName());
+    final FileSystem fs = FileSystem.getLocal(conf);
+    final Path file = new Path(new Path(System.getProperty("test.build.data",
+        "/tmp")), getClass().getSimpleName() + "-indexed.gz")
+        .makeQualified(fs.getUri(), fs.getWorkingDirectory());
+    final Random random = new Random(42);
+    try (OutputStream out = new GZIPOutputStream(fs.create(file, true))) {
+      for (int line = 0; line < 200000; line++) {
+        out.write(("Line " + line + " " + random.nextLong() + "\n")
+            .getBytes(US_ASCII));
+      }
+    }
+    GzipIndexer.buildIndex(fs, file, 64 * 1024).save(fs, file);
+    final long length = fs.getFileStatus(file).getLen();
+    final FileSplit split =
+        new FileSplit(file, length / 2, length - length / 2, null);
+
+    try {
+      final List<Long> skipped = new ArrayList<>();
+      final File recording = File.createTempFile("splittablegzip", ".jfr");
+      try (Recording events = new Recording()) {
+        events.enable("nl.basjes.splittablegzip.Skip").withoutThreshold();
+        events.start();
+        for (TextInputFormat format : new TextInputFormat[]{
+          new TextInputFormat(), new SplittableGzipTextInputFormat()}) {
+          final TaskAttemptContext context = new TaskAttemptContextImpl(conf,
+              new TaskAttemptID(), new Reporter());
+          final RecordReader<LongWritable, Text> reader =
+              format.createRecordReader(split, context);
+          reader.initialize(split, context);
+          assertTrue(reader.nextKeyValue());
+          reader.close();
+        }
+        events.stop();
+        events.dump(recording.toPath());
+        for (RecordedEvent event :
+            RecordingFile.readAllEvents(recording.toPath())) {
+          if (event.getEventType().getName()
+              .equals("nl.basjes.splittablegzip.Skip")) {
+            skipped.add(event.getLong("skippedCompressedBytes"));
+          }
+        }
+      } finally {
+        assertTrue(recording.delete());
+      }
+
+      assertEquals(2, skipped.size());
+      // TextInputFormat: everything before the split is decompressed.
+      assertEquals(split.getStart(), (long) skipped.get(0));
+      // SplittableGzipTextInputFormat: only from the last checkpoint.
+      assertTrue(skipped.get(1) < 64 * 1024);
+    } finally {
+      fs.delete(GzipIndex.getIndexPath(file), false);
+      fs.delete(file, false);
+    }
+  }
+
+}
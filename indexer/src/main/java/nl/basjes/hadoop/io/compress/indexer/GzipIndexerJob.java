@@ -0,0 +1,194 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.basjes.hadoop.io.compress.indexer;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import nl.basjes.hadoop.io.compress.GzipIndex;
+import nl.basjes.hadoop.io.compress.GzipIndexer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A MapReduce job that creates the {@link GzipIndex} for all gzip files in one
+ * or more directory trees. Each file is indexed by its own map task in a
+ * single decompression pass.<br>
+ * Files that already have an index that is newer than the file itself are
+ * skipped so running this job again only indexes new (or changed) files.<br>
+ * <pre>
+ * hadoop jar splittablegzip-indexer-job.jar [-D...] &lt;dir or file&gt; ...
+ * </pre>
+ * The interval between the checkpoints can be set with
+ * -D{@value GzipIndexer#INDEX_INTERVAL_KEY}=bytes
+ */
+public class GzipIndexerJob extends Configured implements Tool {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(GzipIndexerJob.class);
+
+  /**
+   * The directory where the list of files to index is written (temporarily).
+   */
+  public static final String WORK_DIR_KEY =
+      "io.compression.codec.splittablegzip.indexer.work.dir";
+  public static final String WORK_DIR_DEFAULT = "/tmp";
+
+  /**
+   * The extension of the files that are indexed.
+   */
+  public static final String EXTENSION_KEY =
+      "io.compression.codec.splittablegzip.indexer.extension";
+  public static final String EXTENSION_DEFAULT = ".gz";
+
+  /**
+   * The counters of this job.
+   */
+  public enum Counters {
+    FILES_INDEXED, FILES_SKIPPED, CHECKPOINTS, COMPRESSED_BYTES
+  }
+
+  // -------------------------------------------
+
+  /**
+   * Each input line is the name of a single gzip file.
+   */
+  public static class IndexMapper
+      extends Mapper<LongWritable, Text, NullWritable, NullWritable> {
+
+    @Override
+    public void map(final LongWritable key, final Text value,
+        final Context context) throws IOException {
+      final Configuration conf = context.getConfiguration();
+      final Path file = new Path(value.toString());
+      final FileSystem fs = file.getFileSystem(conf);
+      final FileStatus status = fs.getFileStatus(file);
+
+      // Checked again because a previous attempt of this task may have
+      // completed the index.
+      if (GzipIndexer.isIndexUpToDate(fs, status)) {
+        context.getCounter(Counters.FILES_SKIPPED).increment(1);
+        return;
+      }
+
+      context.setStatus("Indexing " + file);
+      final GzipIndex index = GzipIndexer.index(conf, file, context);
+      context.getCounter(Counters.FILES_INDEXED).increment(1);
+      context.getCounter(Counters.CHECKPOINTS).increment(index.size());
+      context.getCounter(Counters.COMPRESSED_BYTES).increment(status.getLen());
+    }
+  }
+
+  // -------------------------------------------
+
+  @Override
+  public int run(final String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("Usage: " + getClass().getName()
+          + " [-D...] <dir or file> [<dir or file> ...]");
+      return 1;
+    }
+
+    final Configuration conf = getConf();
+    final String extension = conf.get(EXTENSION_KEY, EXTENSION_DEFAULT);
+
+    final Path workDir = new Path(conf.get(WORK_DIR_KEY, WORK_DIR_DEFAULT),
+        "gzip-indexer-" + System.currentTimeMillis());
+    final FileSystem workFs = workDir.getFileSystem(conf);
+    final Path fileList = new Path(workDir, "files.txt");
+
+    try {
+      long toIndex = 0;
+      long skipped = 0;
+      try (Writer out = new OutputStreamWriter(
+          workFs.create(fileList, false), UTF_8)) {
+        for (String arg : args) {
+          final Path root = new Path(arg);
+          final FileSystem fs = root.getFileSystem(conf);
+          final RemoteIterator<LocatedFileStatus> files =
+              fs.listFiles(root, true);
+          while (files.hasNext()) {
+            final LocatedFileStatus status = files.next();
+            if (!status.getPath().getName().endsWith(extension)) {
+              continue;
+            }
+            if (GzipIndexer.isIndexUpToDate(fs, status)) {
+              ++skipped;
+              continue;
+            }
+            out.write(status.getPath().toString());
+            out.write('\n');
+            ++toIndex;
+          }
+        }
+      }
+
+      LOG.info("Found {} files to index ({} are already indexed).",
+          toIndex, skipped);
+      if (toIndex == 0) {
+        return 0;
+      }
+
+      final Job job = Job.getInstance(conf);
+      job.setJobName("Gzip indexer (" + toIndex + " files)");
+      job.setJarByClass(getClass());
+
+      job.setInputFormatClass(NLineInputFormat.class);
+      NLineInputFormat.setNumLinesPerSplit(job, 1);
+      FileInputFormat.setInputPaths(job, fileList);
+
+      job.setMapperClass(IndexMapper.class);
+      job.setNumReduceTasks(0);
+      job.setOutputKeyClass(NullWritable.class);
+      job.setOutputValueClass(NullWritable.class);
+      job.setOutputFormatClass(NullOutputFormat.class);
+
+      // Indexing the same file twice at the same time only wastes resources.
+      job.setMapSpeculativeExecution(false);
+
+      return job.waitForCompletion(true) ? 0 : 1;
+    } finally {
+      workFs.delete(workDir, true);
+    }
+  }
+
+  public static void main(final String[] args) throws Exception {
+    System.exit(ToolRunner.run(new Configuration(), new GzipIndexerJob(), args));
+  }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Making GZip Splittable for Apache Hadoop
+ * Copyright (C) 2011-2019 Niels Basjes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.basjes.hadoop.io.compress.indexer;
+
+import nl.basjes.hadoop.io.compress.GzipIndex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the indexer job with the local job runner.
+ */
+public class TestGzipIndexerJob {
+
+  @Test
+  public void testIndexDirectoryTree() throws Exception {
+    final Configuration conf = new Configuration();
+    conf.set("mapreduce.framework.name", "local");
+    conf.set("fs.defaultFS", "file:///");
+    conf.setLong("io.compression.codec.splittablegzip.index.interval", 10000);
+
+    final FileSystem fs = FileSystem.getLocal(conf);
+    final Path root = new Path(new Path(System.getProperty("test.build.data",
+        "/tmp")).makeQualified(fs.getUri(), fs.getWorkingDirectory()),
+        getClass().getSimpleName());
+    fs.delete(root, true);
+    conf.set(GzipIndexerJob.WORK_DIR_KEY, new Path(root, "work").toString());
+
+    final Path first = new Path(root, "logs/2019/01/access.log.gz");
+    final Path second = new Path(root, "logs/2019/02/access.log.gz");
+    final Path other = new Path(root, "logs/2019/02/README.txt");
+    writeGzip(fs, first, 20000);
+    writeGzip(fs, second, 30000);
+    fs.create(other).close();
+
+    assertEquals(0, ToolRunner.run(conf, new GzipIndexerJob(),
+        new String[]{new Path(root, "logs").toString()}));
+
+    final GzipIndex firstIndex = GzipIndex.load(fs, first);
+    assertNotNull(firstIndex);
+    assertTrue(firstIndex.size() > 1);
+    assertNotNull(GzipIndex.load(fs, second));
+    assertFalse(fs.exists(GzipIndex.getIndexPath(other)));
+
+    // Running it again must not touch the existing indexes.
+    final FileStatus before = fs.getFileStatus(GzipIndex.getIndexPath(first));
+    assertEquals(0, ToolRunner.run(conf, new GzipIndexerJob(),
+        new String[]{new Path(root, "logs").toString()}));
+    assertEquals(before.getModificationTime(),
+        fs.getFileStatus(GzipIndex.getIndexPath(first)).getModificationTime());
+
+    fs.delete(root, true);
+  }
+
+  private static void writeGzip(final FileSystem fs, final Path file,
+      final int lines) throws IOException {
+    final Random random = new Random(lines);
+    try (OutputStream out = new GZIPOutputStream(fs.create(file, true))) {
+      for (int line = 0; line < lines; line++) {
+        out.write(("Line " + line + " " + random.nextLong() + "\n")
+            .getBytes(US_ASCII));
+      }
+    }
+  }
+
+}